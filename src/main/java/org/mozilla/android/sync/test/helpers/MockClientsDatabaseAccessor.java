@@ -3,6 +3,7 @@
 
 package org.mozilla.android.sync.test.helpers;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Map;
 
@@ -15,6 +16,8 @@ public class MockClientsDatabaseAccessor extends ClientsDatabaseAccessor {
   public boolean wiped = false;
   public boolean closed = false;
   public boolean storedArrayList = false;
+  public boolean deletedRecord = false;
+  public Collection<String> retainedGUIDs = null;
 
   @Override
   public void store(ClientRecord record) {
@@ -41,6 +44,16 @@ public class MockClientsDatabaseAccessor extends ClientsDatabaseAccessor {
     return 0;
   }
 
+  @Override
+  public void delete(String accountGUID) {
+    deletedRecord = true;
+  }
+
+  @Override
+  public void deleteAllExcept(Collection<String> accountGUIDs) {
+    retainedGUIDs = new ArrayList<String>(accountGUIDs);
+  }
+
   @Override
   public void wipe() {
     wiped = true;
@@ -52,6 +65,7 @@ public class MockClientsDatabaseAccessor extends ClientsDatabaseAccessor {
   }
 
   public void resetVars() {
-    storedRecord = wiped = closed = storedArrayList = false;
+    storedRecord = wiped = closed = storedArrayList = deletedRecord = false;
+    retainedGUIDs = null;
   }
 }
\ No newline at end of file
@@ -0,0 +1,43 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.test.helpers;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.mozilla.gecko.sync.repositories.android.PayloadHashesDatabaseAccessor;
+import org.mozilla.gecko.sync.repositories.android.PayloadHashesDatabaseAccessor.Row;
+
+/**
+ * Keeps hashes in memory, and counts the rows written.
+ */
+public class MockPayloadHashesDatabaseAccessor extends PayloadHashesDatabaseAccessor {
+  public final HashMap<String, Row> rows = new HashMap<String, Row>();
+  public int rowsWritten = 0;
+  public int deletes = 0;
+
+  @Override
+  public Map<String, Row> fetchAll() {
+    return new HashMap<String, Row>(rows);
+  }
+
+  @Override
+  public void store(Map<String, Row> hashes) {
+    for (Entry<String, Row> entry : hashes.entrySet()) {
+      if (entry.getValue() == null) {
+        rows.remove(entry.getKey());
+      } else {
+        rows.put(entry.getKey(), entry.getValue());
+      }
+      rowsWritten += 1;
+    }
+  }
+
+  @Override
+  public void deleteAll() {
+    rows.clear();
+    deletes += 1;
+  }
+}
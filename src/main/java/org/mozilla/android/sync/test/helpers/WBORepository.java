@@ -64,6 +64,13 @@ public class WBORepository extends Repository {
       }
     }
 
+    @Override
+    protected synchronized void trackGUID(String guid, long timestamp) {
+      if (wboRepository.shouldTrack()) {
+        super.trackGUID(guid, timestamp);
+      }
+    }
+
     @Override
     public void guidsSince(long timestamp,
                            RepositorySessionGuidsSinceDelegate delegate) {
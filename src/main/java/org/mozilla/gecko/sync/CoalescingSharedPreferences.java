@@ -0,0 +1,255 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import android.content.SharedPreferences;
+
+/**
+ * Wrap <code>SharedPreferences</code> so that committing an editor only
+ * updates an in-memory view, and nothing is written until {@link #flush()}.
+ * <p>
+ * Every commit to <code>SharedPreferences</code> rewrites and syncs the whole
+ * file. A sync commits from every stage -- timestamps, keys, meta/global,
+ * clients -- so we batch those writes and flush at safe points instead: the
+ * end of each stage, the end of the sync, and immediately after anything that
+ * must survive a crash, such as a reset.
+ * <p>
+ * Reads see pending writes. A flush writes every pending change in a single
+ * commit, so a crash loses all of them or none: never a later write without an
+ * earlier one.
+ */
+public class CoalescingSharedPreferences implements SharedPreferences {
+  private static final String LOG_TAG = "CoalescingPrefs";
+
+  // Pending value of a removed key.
+  private static final Object REMOVED = new Object();
+
+  // Returned by pendingValue for keys with no pending change.
+  private static final Object NOT_PENDING = new Object();
+
+  protected final SharedPreferences prefs;
+
+  // Guarded by this.
+  protected final HashMap<String, Object> pending = new HashMap<String, Object>();
+  protected boolean cleared = false;
+
+  public CoalescingSharedPreferences(SharedPreferences prefs) {
+    if (prefs == null) {
+      throw new IllegalArgumentException("prefs must not be null.");
+    }
+    this.prefs = prefs;
+  }
+
+  public class CoalescingEditor implements Editor {
+    private final HashMap<String, Object> edits = new HashMap<String, Object>();
+    private boolean clear = false;
+
+    @Override
+    public Editor putString(String key, String value) {
+      edits.put(key, (value == null) ? REMOVED : value);
+      return this;
+    }
+
+    @Override
+    public Editor putInt(String key, int value) {
+      edits.put(key, Integer.valueOf(value));
+      return this;
+    }
+
+    @Override
+    public Editor putLong(String key, long value) {
+      edits.put(key, Long.valueOf(value));
+      return this;
+    }
+
+    @Override
+    public Editor putFloat(String key, float value) {
+      edits.put(key, Float.valueOf(value));
+      return this;
+    }
+
+    @Override
+    public Editor putBoolean(String key, boolean value) {
+      edits.put(key, Boolean.valueOf(value));
+      return this;
+    }
+
+    @Override
+    public Editor remove(String key) {
+      edits.put(key, REMOVED);
+      return this;
+    }
+
+    // As with SharedPreferences, a clear happens before this editor's other
+    // changes, whatever order they were made in.
+    @Override
+    public Editor clear() {
+      clear = true;
+      return this;
+    }
+
+    /**
+     * Apply these changes to the in-memory view. They are written by the
+     * next {@link CoalescingSharedPreferences#flush()}.
+     */
+    @Override
+    public boolean commit() {
+      synchronized (CoalescingSharedPreferences.this) {
+        if (clear) {
+          pending.clear();
+          cleared = true;
+        }
+        pending.putAll(edits);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * @return true if there are changes that haven't been flushed.
+   */
+  public synchronized boolean hasPendingWrites() {
+    return cleared || !pending.isEmpty();
+  }
+
+  /**
+   * Write every pending change in one commit.
+   *
+   * @return false if the commit failed; the changes remain pending.
+   */
+  public synchronized boolean flush() {
+    if (!hasPendingWrites()) {
+      return true;
+    }
+    final Editor editor = prefs.edit();
+    if (cleared) {
+      editor.clear();
+    }
+    for (Entry<String, Object> entry : pending.entrySet()) {
+      final String key = entry.getKey();
+      final Object value = entry.getValue();
+      if (value == REMOVED) {
+        editor.remove(key);
+      } else if (value instanceof String) {
+        editor.putString(key, (String) value);
+      } else if (value instanceof Long) {
+        editor.putLong(key, (Long) value);
+      } else if (value instanceof Integer) {
+        editor.putInt(key, (Integer) value);
+      } else if (value instanceof Boolean) {
+        editor.putBoolean(key, (Boolean) value);
+      } else if (value instanceof Float) {
+        editor.putFloat(key, (Float) value);
+      }
+    }
+    Logger.debug(LOG_TAG, "Flushing " + pending.size() + " pending writes" +
+                          (cleared ? " after clear." : "."));
+    if (!editor.commit()) {
+      Logger.warn(LOG_TAG, "Failed to flush pending writes.");
+      return false;
+    }
+    pending.clear();
+    cleared = false;
+    return true;
+  }
+
+  private synchronized Object pendingValue(String key) {
+    final Object value = pending.get(key);
+    if (value != null) {
+      return value;
+    }
+    return cleared ? REMOVED : NOT_PENDING;
+  }
+
+  @Override
+  public synchronized Map<String, ?> getAll() {
+    final HashMap<String, Object> all = new HashMap<String, Object>();
+    if (!cleared) {
+      all.putAll(prefs.getAll());
+    }
+    for (Entry<String, Object> entry : pending.entrySet()) {
+      if (entry.getValue() == REMOVED) {
+        all.remove(entry.getKey());
+      } else {
+        all.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return all;
+  }
+
+  @Override
+  public String getString(String key, String defValue) {
+    final Object value = pendingValue(key);
+    if (value == NOT_PENDING) {
+      return prefs.getString(key, defValue);
+    }
+    return (value == REMOVED) ? defValue : (String) value;
+  }
+
+  @Override
+  public int getInt(String key, int defValue) {
+    final Object value = pendingValue(key);
+    if (value == NOT_PENDING) {
+      return prefs.getInt(key, defValue);
+    }
+    return (value == REMOVED) ? defValue : (Integer) value;
+  }
+
+  @Override
+  public long getLong(String key, long defValue) {
+    final Object value = pendingValue(key);
+    if (value == NOT_PENDING) {
+      return prefs.getLong(key, defValue);
+    }
+    return (value == REMOVED) ? defValue : (Long) value;
+  }
+
+  @Override
+  public float getFloat(String key, float defValue) {
+    final Object value = pendingValue(key);
+    if (value == NOT_PENDING) {
+      return prefs.getFloat(key, defValue);
+    }
+    return (value == REMOVED) ? defValue : (Float) value;
+  }
+
+  @Override
+  public boolean getBoolean(String key, boolean defValue) {
+    final Object value = pendingValue(key);
+    if (value == NOT_PENDING) {
+      return prefs.getBoolean(key, defValue);
+    }
+    return (value == REMOVED) ? defValue : (Boolean) value;
+  }
+
+  @Override
+  public boolean contains(String key) {
+    final Object value = pendingValue(key);
+    if (value == NOT_PENDING) {
+      return prefs.contains(key);
+    }
+    return value != REMOVED;
+  }
+
+  @Override
+  public Editor edit() {
+    return new CoalescingEditor();
+  }
+
+  // Listeners hear about changes when they're flushed.
+  @Override
+  public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+    prefs.registerOnSharedPreferenceChangeListener(listener);
+  }
+
+  @Override
+  public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+    prefs.unregisterOnSharedPreferenceChangeListener(listener);
+  }
+}
@@ -176,6 +176,17 @@ public class CryptoRecord extends Record {
 
   public CryptoRecord decrypt() throws CryptoException, IOException, ParseException,
                        NonObjectJSONException {
+    return setCleartext(decryptCleartext());
+  }
+
+  /**
+   * Verify and decrypt the payload without parsing it. The record is not
+   * changed: parsing is the expensive part, and the caller may find from the
+   * cleartext alone that it doesn't want this record.
+   *
+   * @return the decrypted payload, to be passed to {@link #setCleartext(byte[])}.
+   */
+  public byte[] decryptCleartext() throws CryptoException, UnsupportedEncodingException {
     if (keyBundle == null) {
       throw new NoKeyBundleException();
     }
@@ -189,7 +200,16 @@ public class CryptoRecord extends Record {
 
     // There's no difference between handling the crypto/keys object and
     // anything else; we just get this.keyBundle from a different source.
-    byte[] cleartext = decryptPayload(payload, keyBundle);
+    return decryptPayload(payload, keyBundle);
+  }
+
+  /**
+   * Replace the encrypted payload with the result of parsing
+   * <code>cleartext</code>, as returned by {@link #decryptCleartext()}.
+   */
+  public CryptoRecord setCleartext(byte[] cleartext) throws UnsupportedEncodingException,
+                                                             ParseException,
+                                                             NonObjectJSONException {
     payload = CryptoRecord.parseUTF8AsJSONObject(cleartext);
     return this;
   }
@@ -247,4 +267,28 @@ public class CryptoRecord extends Record {
   public String toJSONString() {
     return toJSONObject().toJSONString();
   }
+
+  /**
+   * Write the same JSON as {@link #toJSONString()}, streaming the payload
+   * straight into its enclosing string.
+   */
+  @Override
+  public void writeJSON(JSONOutputBuffer out) {
+    out.writeJSON("{");
+    out.writeString(KEY_PAYLOAD);
+    out.writeJSON(":");
+    out.beginStringValue();
+    out.writeValue(payload);
+    out.endStringValue();
+    out.writeJSON(",");
+    out.writeString(KEY_ID);
+    out.writeJSON(":");
+    out.writeValue(this.guid);
+    if (this.ttl > 0) {
+      out.writeJSON(",");
+      out.writeString(KEY_TTL);
+      out.writeJSON(":" + this.ttl);
+    }
+    out.writeJSON("}");
+  }
 }
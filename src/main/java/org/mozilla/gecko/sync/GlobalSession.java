@@ -48,6 +48,7 @@ import org.mozilla.gecko.sync.stage.GlobalSyncStage;
 import org.mozilla.gecko.sync.stage.GlobalSyncStage.Stage;
 import org.mozilla.gecko.sync.stage.NoSuchStageException;
 import org.mozilla.gecko.sync.stage.PasswordsServerSyncStage;
+import org.mozilla.gecko.sync.stage.ServerSyncStage;
 import org.mozilla.gecko.sync.stage.SyncClientsEngineStage;
 
 import android.content.Context;
@@ -71,6 +72,12 @@ public class GlobalSession implements CredentialsSource, PrefsSource, HttpRespon
   private Context context;
   private ClientsDataDelegate clientsDelegate;
 
+  /**
+   * If positive, the time in milliseconds by which this sync should finish.
+   * See {@link #getStageDeadline(Stage)}.
+   */
+  protected volatile long deadline = -1;
+
   /*
    * Key accessors.
    */
@@ -262,6 +269,54 @@ public class GlobalSession implements CredentialsSource, PrefsSource, HttpRespon
     return out;
   }
 
+  public void setDeadline(long deadline) {
+    this.deadline = deadline;
+  }
+
+  public long getDeadline() {
+    return deadline;
+  }
+
+  /**
+   * @return true if this sync has a deadline and it has passed.
+   */
+  public boolean isPastDeadline() {
+    return deadline > 0 && System.currentTimeMillis() >= deadline;
+  }
+
+  /**
+   * Allocate a time budget to a server sync stage that is about to run.
+   * <p>
+   * Each stage gets an equal share of the time left before the session's
+   * deadline, counting itself and the server sync stages after it. A stage
+   * that finishes early leaves its time to the stages that follow. Stages run
+   * in priority order (see {@link Stage}), so the engines that run first are
+   * the least likely to be cut short.
+   *
+   * @return the time in milliseconds by which the stage should stop, or -1 if
+   *         this sync has no deadline.
+   */
+  public long getStageDeadline(Stage stage) {
+    if (deadline <= 0) {
+      return -1;
+    }
+    final long now = System.currentTimeMillis();
+    if (now >= deadline) {
+      return deadline;
+    }
+
+    int remainingStages = 0;
+    for (Stage s = stage; s != Stage.completed; s = nextStage(s)) {
+      if (stages.get(s) instanceof ServerSyncStage) {
+        remainingStages++;
+      }
+    }
+    if (remainingStages <= 1) {
+      return deadline;
+    }
+    return now + (deadline - now) / remainingStages;
+  }
+
   /**
    * Advance and loop around the stages of a sync.
    * @param current
@@ -278,6 +333,9 @@ public class GlobalSession implements CredentialsSource, PrefsSource, HttpRespon
    * Move to the next stage in the syncing process.
    */
   public void advance() {
+    // The stage that just finished is done with its prefs.
+    config.flushPrefs();
+
     // If we have a backoff, request a backoff and don't advance to next stage.
     long existingBackoff = largestBackoffObserved.get();
     if (existingBackoff > 0) {
@@ -360,6 +418,7 @@ public class GlobalSession implements CredentialsSource, PrefsSource, HttpRespon
   }
 
   public void completeSync() {
+    config.flushPrefs();
     uninstallAsHttpResponseObserver();
     this.currentState = GlobalSyncStage.Stage.idle;
     this.callback.handleSuccess(this);
@@ -367,6 +426,7 @@ public class GlobalSession implements CredentialsSource, PrefsSource, HttpRespon
 
   public void abort(Exception e, String reason) {
     Logger.warn(LOG_TAG, "Aborting sync: " + reason, e);
+    config.flushPrefs();
     uninstallAsHttpResponseObserver();
     long existingBackoff = largestBackoffObserved.get();
     if (existingBackoff > 0) {
@@ -737,12 +797,15 @@ public class GlobalSession implements CredentialsSource, PrefsSource, HttpRespon
     }
   }
 
+  // Local data is gone: make sure the reset timestamps are written before we go on.
   public void wipeStagesByEnum(Collection<Stage> stages) {
     GlobalSession.wipeStages(this.getSyncStagesByEnum(stages));
+    config.flushPrefs();
   }
 
   public void wipeStagesByName(Collection<String> names) {
     GlobalSession.wipeStages(this.getSyncStagesByName(names));
+    config.flushPrefs();
   }
 
   public void resetAllStages() {
@@ -764,6 +827,7 @@ public class GlobalSession implements CredentialsSource, PrefsSource, HttpRespon
 
   public void resetStagesByEnum(Collection<Stage> stages) {
     GlobalSession.resetStages(this.getSyncStagesByEnum(stages));
+    config.flushPrefs();
   }
 
   public void resetStagesByName(Collection<String> names) {
@@ -777,6 +841,7 @@ public class GlobalSession implements CredentialsSource, PrefsSource, HttpRespon
       }
     }
     GlobalSession.resetStages(stages);
+    config.flushPrefs();
   }
 
   /**
@@ -5,6 +5,7 @@
 package org.mozilla.gecko.sync;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -46,6 +47,17 @@ public class InfoCollections implements SyncStorageRequestDelegate {
     return timestamps.get(collection);
   }
 
+  /**
+   * Return all fetched timestamps, keyed by collection name, or null if the
+   * timestamps have not been fetched.
+   */
+  public Map<String, Long> getTimestamps() {
+    if (timestamps == null) {
+      return null;
+    }
+    return Collections.unmodifiableMap(timestamps);
+  }
+
   /**
    * Test if a given collection needs to be updated.
    *
@@ -0,0 +1,258 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.json.simple.JSONValue;
+
+/**
+ * A growable byte buffer that JSON is written into directly as UTF-8, without
+ * building intermediate <code>JSONObject</code>s or <code>String</code>s.
+ * <p>
+ * JSON can be nested inside a JSON string, as in a Sync record's
+ * <code>payload</code>: between {@link #beginStringValue()} and
+ * {@link #endStringValue()}, everything written is escaped once more. Strings
+ * are escaped exactly as <code>JSONValue.toJSONString</code> does.
+ * <p>
+ * The buffer can be reset and reused, so its storage outlives the JSON in it.
+ * Not thread-safe.
+ */
+public class JSONOutputBuffer {
+  private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+
+  private byte[] bytes;
+  private int length = 0;
+
+  // How many times anything written now must be escaped.
+  private int level = 0;
+
+  public JSONOutputBuffer(int initialCapacity) {
+    bytes = new byte[initialCapacity];
+  }
+
+  public int length() {
+    return length;
+  }
+
+  public int capacity() {
+    return bytes.length;
+  }
+
+  /**
+   * Empty the buffer, keeping its storage.
+   */
+  public void reset() {
+    length = 0;
+    level = 0;
+  }
+
+  /**
+   * Discard everything after the first <code>newLength</code> bytes.
+   */
+  public void truncate(int newLength) {
+    if (newLength < 0 || newLength > length) {
+      throw new IllegalArgumentException("Can't truncate " + length + " bytes to " + newLength + ".");
+    }
+    length = newLength;
+  }
+
+  /**
+   * @return a copy of the bytes from <code>start</code> to the end.
+   */
+  public byte[] copyFrom(int start) {
+    byte[] out = new byte[length - start];
+    System.arraycopy(bytes, start, out, 0, out.length);
+    return out;
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    out.write(bytes, 0, length);
+  }
+
+  /**
+   * Append raw bytes. They are not escaped.
+   */
+  public void write(byte[] b) {
+    ensureCapacity(b.length);
+    System.arraycopy(b, 0, bytes, length, b.length);
+    length += b.length;
+  }
+
+  /**
+   * Append JSON text, such as punctuation or a number.
+   */
+  public void writeJSON(String text) {
+    final int count = text.length();
+    for (int i = 0; i < count; i++) {
+      writeChar(text.charAt(i), level);
+    }
+  }
+
+  /**
+   * Append <code>s</code> as a quoted, escaped JSON string.
+   */
+  public void writeString(String s) {
+    beginStringValue();
+    final int count = s.length();
+    for (int i = 0; i < count; i++) {
+      final char c = s.charAt(i);
+      if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(s.charAt(i + 1))) {
+        writeCodePoint(Character.toCodePoint(c, s.charAt(++i)));
+      } else {
+        writeChar(c, level);
+      }
+    }
+    endStringValue();
+  }
+
+  /**
+   * Open a JSON string. Until the matching {@link #endStringValue()}, what is
+   * written becomes the string's contents.
+   */
+  public void beginStringValue() {
+    writeChar('"', level);
+    level++;
+  }
+
+  public void endStringValue() {
+    if (level == 0) {
+      throw new IllegalStateException("No string value to end.");
+    }
+    level--;
+    writeChar('"', level);
+  }
+
+  /**
+   * Append any value that <code>JSONValue.toJSONString</code> accepts.
+   */
+  @SuppressWarnings("unchecked")
+  public void writeValue(Object value) {
+    if (value == null) {
+      writeJSON("null");
+    } else if (value instanceof String) {
+      writeString((String) value);
+    } else if (value instanceof Double || value instanceof Float) {
+      final double d = ((Number) value).doubleValue();
+      writeJSON((Double.isNaN(d) || Double.isInfinite(d)) ? "null" : value.toString());
+    } else if (value instanceof Number || value instanceof Boolean) {
+      writeJSON(value.toString());
+    } else if (value instanceof ExtendedJSONObject) {
+      writeObject(((ExtendedJSONObject) value).object);
+    } else if (value instanceof Map) {
+      writeObject((Map<Object, Object>) value);
+    } else if (value instanceof List) {
+      writeArray((List<Object>) value);
+    } else {
+      writeJSON(JSONValue.toJSONString(value));
+    }
+  }
+
+  protected void writeObject(Map<Object, Object> map) {
+    writeChar('{', level);
+    boolean first = true;
+    for (Entry<Object, Object> entry : map.entrySet()) {
+      if (!first) {
+        writeChar(',', level);
+      }
+      first = false;
+      writeString(String.valueOf(entry.getKey()));
+      writeChar(':', level);
+      writeValue(entry.getValue());
+    }
+    writeChar('}', level);
+  }
+
+  protected void writeArray(List<Object> list) {
+    writeChar('[', level);
+    Iterator<Object> it = list.iterator();
+    while (it.hasNext()) {
+      writeValue(it.next());
+      if (it.hasNext()) {
+        writeChar(',', level);
+      }
+    }
+    writeChar(']', level);
+  }
+
+  /**
+   * Write <code>c</code>, JSON-escaped <code>times</code> times.
+   */
+  private void writeChar(char c, int times) {
+    if (times == 0 || !needsEscape(c)) {
+      if (c < 0x80) {
+        ensureCapacity(1);
+        bytes[length++] = (byte) c;
+      } else if (c >= '\uD800' && c <= '\uDFFF') {
+        // Unpaired: String.getBytes writes '?'.
+        ensureCapacity(1);
+        bytes[length++] = '?';
+      } else {
+        writeCodePoint(c);
+      }
+      return;
+    }
+
+    final int next = times - 1;
+    writeChar('\\', next);
+    switch (c) {
+    case '"':  writeChar('"', next);  break;
+    case '\\': writeChar('\\', next); break;
+    case '/':  writeChar('/', next);  break;
+    case '\b': writeChar('b', next);  break;
+    case '\f': writeChar('f', next);  break;
+    case '\n': writeChar('n', next);  break;
+    case '\r': writeChar('r', next);  break;
+    case '\t': writeChar('t', next);  break;
+    default:
+      writeChar('u', next);
+      for (int shift = 12; shift >= 0; shift -= 4) {
+        writeChar((char) HEX[(c >> shift) & 0xF], next);
+      }
+    }
+  }
+
+  // Matches JSONValue.escape.
+  private static boolean needsEscape(char c) {
+    return c == '"' || c == '\\' || c == '/' ||
+           c <= '\u001F' ||
+           (c >= '\u007F' && c <= '\u009F') ||
+           (c >= '\u2000' && c <= '\u20FF');
+  }
+
+  private void writeCodePoint(int cp) {
+    ensureCapacity(4);
+    if (cp < 0x80) {
+      bytes[length++] = (byte) cp;
+    } else if (cp < 0x800) {
+      bytes[length++] = (byte) (0xC0 | (cp >> 6));
+      bytes[length++] = (byte) (0x80 | (cp & 0x3F));
+    } else if (cp < 0x10000) {
+      bytes[length++] = (byte) (0xE0 | (cp >> 12));
+      bytes[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+      bytes[length++] = (byte) (0x80 | (cp & 0x3F));
+    } else {
+      bytes[length++] = (byte) (0xF0 | (cp >> 18));
+      bytes[length++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+      bytes[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+      bytes[length++] = (byte) (0x80 | (cp & 0x3F));
+    }
+  }
+
+  private void ensureCapacity(int extra) {
+    if (length + extra <= bytes.length) {
+      return;
+    }
+    int capacity = Math.max(bytes.length * 2, length + extra);
+    byte[] grown = new byte[capacity];
+    System.arraycopy(bytes, 0, grown, 0, length);
+    bytes = grown;
+  }
+}
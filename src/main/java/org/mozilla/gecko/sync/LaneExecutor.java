@@ -0,0 +1,292 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A named lane of work that runs its tasks on another executor's threads, at
+ * most <code>maxWorkers</code> at a time, in the order they were submitted.
+ * <p>
+ * With <code>maxWorkers</code> of 1 this is a serial lane: tasks run one after
+ * another, exactly as on <code>Executors.newSingleThreadExecutor()</code>, but
+ * without owning a thread. A lane with nothing to do costs nothing.
+ * <p>
+ * Shutdown follows <code>ExecutorService</code>: after {@link #shutdown()},
+ * queued tasks still run but new ones are rejected; {@link #shutdownNow()}
+ * also drops queued tasks and interrupts running ones.
+ * <p>
+ * Keeps simple metrics: queue depth, active workers, and how long tasks wait
+ * between being submitted and starting.
+ */
+public class LaneExecutor extends AbstractExecutorService {
+  private static final String LOG_TAG = "LaneExecutor";
+
+  /**
+   * Pass as <code>maxWorkers</code> to run as many tasks at once as are
+   * submitted, keeping only the name and metrics.
+   */
+  public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+  protected final String name;
+  protected final Executor threads;
+  protected final int maxWorkers;
+
+  private final Object lock = new Object();
+
+  // All of these are guarded by lock.
+  private final LinkedList<QueuedTask> queue = new LinkedList<QueuedTask>();
+  private final HashSet<Thread> running = new HashSet<Thread>();
+  private int workers = 0;
+  private boolean shutdown = false;
+
+  private long tasksStarted = 0;
+  private long totalWaitMillis = 0;
+  private long maxWaitMillis = 0;
+  private int maxQueueDepth = 0;
+
+  private static class QueuedTask {
+    public final Runnable command;
+    public final long queuedAt;
+
+    public QueuedTask(Runnable command, long queuedAt) {
+      this.command = command;
+      this.queuedAt = queuedAt;
+    }
+  }
+
+  private final Runnable worker = new Runnable() {
+    @Override
+    public void run() {
+      final Thread thread = Thread.currentThread();
+      final String threadName = thread.getName();
+      thread.setName(name);
+      try {
+        while (runNext(thread)) {
+          // Keep going.
+        }
+      } finally {
+        thread.setName(threadName);
+      }
+    }
+  };
+
+  /**
+   * @param name
+   *          used for logging, and as the name of threads while they run this
+   *          executor's tasks.
+   * @param threads
+   *          where tasks actually run.
+   * @param maxWorkers
+   *          the most tasks to run at once.
+   */
+  public LaneExecutor(String name, Executor threads, int maxWorkers) {
+    if (maxWorkers < 1) {
+      throw new IllegalArgumentException("maxWorkers must be at least 1.");
+    }
+    this.name = name;
+    this.threads = threads;
+    this.maxWorkers = maxWorkers;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    if (command == null) {
+      throw new NullPointerException();
+    }
+    synchronized (lock) {
+      if (shutdown) {
+        throw new RejectedExecutionException(name + " is shut down.");
+      }
+      queue.add(new QueuedTask(command, System.currentTimeMillis()));
+      maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+      if (workers >= maxWorkers) {
+        return;
+      }
+      workers++;
+    }
+    try {
+      threads.execute(worker);
+    } catch (RejectedExecutionException e) {
+      synchronized (lock) {
+        workers--;
+        lock.notifyAll();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Run one queued task on <code>thread</code>.
+   *
+   * @return false if there was nothing to run, in which case this worker is
+   *         finished.
+   */
+  private boolean runNext(Thread thread) {
+    final QueuedTask task;
+    synchronized (lock) {
+      task = queue.poll();
+      if (task == null) {
+        workers--;
+        lock.notifyAll();
+        return false;
+      }
+      running.add(thread);
+      final long wait = System.currentTimeMillis() - task.queuedAt;
+      tasksStarted++;
+      totalWaitMillis += wait;
+      maxWaitMillis = Math.max(maxWaitMillis, wait);
+    }
+
+    boolean finished = false;
+    try {
+      task.command.run();
+      finished = true;
+    } catch (RuntimeException e) {
+      Logger.error(LOG_TAG, "Uncaught exception in task on " + name + ".", e);
+      finished = true;
+    } finally {
+      synchronized (lock) {
+        running.remove(thread);
+        // Don't leave an interrupt from shutdownNow for the next task.
+        Thread.interrupted();
+        if (!finished) {
+          // An Error is about to kill this worker.
+          workers--;
+          lock.notifyAll();
+        }
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void shutdown() {
+    synchronized (lock) {
+      shutdown = true;
+      lock.notifyAll();
+    }
+  }
+
+  @Override
+  public List<Runnable> shutdownNow() {
+    synchronized (lock) {
+      shutdown = true;
+      final List<Runnable> pending = new ArrayList<Runnable>(queue.size());
+      for (QueuedTask task : queue) {
+        pending.add(task.command);
+      }
+      queue.clear();
+      for (Thread thread : running) {
+        thread.interrupt();
+      }
+      lock.notifyAll();
+      return pending;
+    }
+  }
+
+  @Override
+  public boolean isShutdown() {
+    synchronized (lock) {
+      return shutdown;
+    }
+  }
+
+  @Override
+  public boolean isTerminated() {
+    synchronized (lock) {
+      return shutdown && workers == 0 && queue.isEmpty();
+    }
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+    synchronized (lock) {
+      while (!(shutdown && workers == 0 && queue.isEmpty())) {
+        final long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          return false;
+        }
+        lock.wait(remaining);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * @return the number of tasks waiting to start.
+   */
+  public int getQueueDepth() {
+    synchronized (lock) {
+      return queue.size();
+    }
+  }
+
+  public int getMaxQueueDepth() {
+    synchronized (lock) {
+      return maxQueueDepth;
+    }
+  }
+
+  /**
+   * @return the number of tasks running right now.
+   */
+  public int getActiveCount() {
+    synchronized (lock) {
+      return running.size();
+    }
+  }
+
+  public long getTaskCount() {
+    synchronized (lock) {
+      return tasksStarted;
+    }
+  }
+
+  /**
+   * @return the mean time, in milliseconds, that started tasks spent queued.
+   */
+  public long getAverageWaitMillis() {
+    synchronized (lock) {
+      return (tasksStarted == 0) ? 0 : totalWaitMillis / tasksStarted;
+    }
+  }
+
+  public long getMaxWaitMillis() {
+    synchronized (lock) {
+      return maxWaitMillis;
+    }
+  }
+
+  /**
+   * @return a one-line summary of this executor's metrics, for logging.
+   */
+  public String getMetrics() {
+    synchronized (lock) {
+      return name + ": " + tasksStarted + " tasks, " +
+             running.size() + "/" + ((maxWorkers == UNBOUNDED) ? "unbounded" : Integer.toString(maxWorkers)) + " active, " +
+             queue.size() + " queued (max " + maxQueueDepth + "), " +
+             "wait avg " + ((tasksStarted == 0) ? 0 : totalWaitMillis / tasksStarted) + "ms " +
+             "max " + maxWaitMillis + "ms.";
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "LaneExecutor(" + name + ")";
+  }
+}
@@ -0,0 +1,248 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.json.simple.JSONValue;
+import org.mozilla.apache.commons.codec.binary.Base64;
+import org.mozilla.gecko.sync.repositories.android.PayloadHashesDatabaseAccessor;
+import org.mozilla.gecko.sync.repositories.android.PayloadHashesDatabaseAccessor.Row;
+
+/**
+ * Remember, for each GUID in a collection, a hash of the cleartext payload
+ * that the server last held for it: either because we downloaded it, or
+ * because we uploaded it and the server accepted it.
+ * <p>
+ * Before uploading a record, compare its payload's hash with the one
+ * recorded here. If they match, the server already has this payload, and the
+ * record needn't be encrypted or sent.
+ * <p>
+ * Hashes are read in full when this is created. {@link #persist()} writes
+ * only the GUIDs whose hashes have changed since. They must be purged
+ * whenever the server's copy of the collection might have changed without us
+ * seeing it: on reset, wipe, or node reassignment.
+ */
+public class PersistedPayloadHashes {
+  public static final String LOG_TAG = "PersistedHashes";
+
+  // Bytes of SHA-1 to keep. 96 bits is plenty to tell payloads apart.
+  private static final int HASH_BYTES = 12;
+
+  protected final PayloadHashesDatabaseAccessor db;
+
+  // All guarded by this.
+  protected final HashMap<String, Row> hashes = new HashMap<String, Row>();
+  protected final HashSet<String> changed = new HashSet<String>();
+
+  public PersistedPayloadHashes(PayloadHashesDatabaseAccessor db) {
+    this.db = db;
+    try {
+      hashes.putAll(db.fetchAll());
+    } catch (Exception e) {
+      // We'll upload records the server might already hold. That's safe.
+      Logger.warn(LOG_TAG, "Unable to load payload hashes.", e);
+    }
+    Logger.debug(LOG_TAG, "Loaded " + hashes.size() + " payload hashes.");
+  }
+
+  /**
+   * @return a hash of <code>payload</code> that doesn't depend on the order
+   *         of its keys, or null if it can't be computed.
+   */
+  public static String hashPayload(ExtendedJSONObject payload) {
+    if (payload == null) {
+      return null;
+    }
+    try {
+      final String canonical = JSONValue.toJSONString(canonicalize(payload.object));
+      return truncate(Utils.sha1(canonical));
+    } catch (Exception e) {
+      Logger.warn(LOG_TAG, "Unable to hash payload.", e);
+      return null;
+    }
+  }
+
+  /**
+   * @return a hash of a payload exactly as serialized, or null if it can't be
+   *         computed. Cheaper than {@link #hashPayload(ExtendedJSONObject)},
+   *         but only suitable for comparing payloads from the same source.
+   */
+  public static String hashCleartext(byte[] cleartext) {
+    if (cleartext == null) {
+      return null;
+    }
+    try {
+      return truncate(MessageDigest.getInstance("SHA-1").digest(cleartext));
+    } catch (Exception e) {
+      Logger.warn(LOG_TAG, "Unable to hash cleartext.", e);
+      return null;
+    }
+  }
+
+  private static String truncate(byte[] sha1) throws UnsupportedEncodingException {
+    final byte[] truncated = new byte[HASH_BYTES];
+    System.arraycopy(sha1, 0, truncated, 0, HASH_BYTES);
+    return new String(Base64.encodeBase64(truncated), "UTF-8");
+  }
+
+  /**
+   * Copy a parsed JSON value, sorting the keys of every object.
+   */
+  @SuppressWarnings("unchecked")
+  protected static Object canonicalize(Object value) {
+    if (value instanceof ExtendedJSONObject) {
+      value = ((ExtendedJSONObject) value).object;
+    }
+    if (value instanceof Map) {
+      final TreeMap<String, Object> sorted = new TreeMap<String, Object>();
+      for (Entry<Object, Object> entry : ((Map<Object, Object>) value).entrySet()) {
+        sorted.put(String.valueOf(entry.getKey()), canonicalize(entry.getValue()));
+      }
+      return sorted;
+    }
+    if (value instanceof List) {
+      final List<Object> items = (List<Object>) value;
+      final ArrayList<Object> out = new ArrayList<Object>(items.size());
+      for (Object item : items) {
+        out.add(canonicalize(item));
+      }
+      return out;
+    }
+    return value;
+  }
+
+  public synchronized int size() {
+    return hashes.size();
+  }
+
+  public synchronized String get(String guid) {
+    final Row row = hashes.get(guid);
+    return (row == null) ? null : row.hash;
+  }
+
+  /**
+   * @return true if the server is known to hold exactly this payload.
+   */
+  public synchronized boolean matches(String guid, String hash) {
+    return guid != null && hash != null && hash.equals(get(guid));
+  }
+
+  /**
+   * A record with a TTL must be uploaded again before the server expires it.
+   *
+   * @param ttl
+   *          the record's TTL in seconds; zero or less if it never expires.
+   * @return true if the server is known to hold exactly this payload, and
+   *         either it never expires or less than half its TTL has passed
+   *         since the server's copy was written.
+   */
+  public synchronized boolean matchesUnexpired(String guid, String hash, long ttl, long now) {
+    if (!matches(guid, hash)) {
+      return false;
+    }
+    if (ttl <= 0) {
+      return true;
+    }
+    final long modified = hashes.get(guid).modified;
+    return modified >= 0 && now - modified < ttl * 1000 / 2;
+  }
+
+  /**
+   * Record that the server holds the payload with this hash, written at an
+   * unknown time.
+   */
+  public void put(String guid, String hash) {
+    put(guid, hash, -1);
+  }
+
+  /**
+   * Record that the server holds the payload with this hash.
+   *
+   * @param modified
+   *          when the server's copy was written, in milliseconds, or -1.
+   */
+  public void put(String guid, String hash, long modified) {
+    put(guid, hash, modified, null);
+  }
+
+  /**
+   * Record that we applied the cleartext with this hash.
+   *
+   * @param serverHash
+   *          the server hash of the same payload.
+   */
+  public void putApplied(String guid, String hash, String serverHash) {
+    put(guid, hash, -1, serverHash);
+  }
+
+  protected synchronized void put(String guid, String hash, long modified, String serverHash) {
+    if (guid == null) {
+      return;
+    }
+    if (hash == null) {
+      remove(guid);
+      return;
+    }
+    final Row old = hashes.put(guid, new Row(hash, modified, serverHash));
+    if (old == null ||
+        !hash.equals(old.hash) ||
+        old.modified != modified ||
+        !((serverHash == null) ? old.serverHash == null : serverHash.equals(old.serverHash))) {
+      changed.add(guid);
+    }
+  }
+
+  /**
+   * @return the server hash recorded alongside an applied hash, or null.
+   */
+  public synchronized String getServerHash(String guid) {
+    final Row row = hashes.get(guid);
+    return (row == null) ? null : row.serverHash;
+  }
+
+  /**
+   * Forget what the server holds for this GUID.
+   */
+  public synchronized void remove(String guid) {
+    if (hashes.remove(guid) != null) {
+      changed.add(guid);
+    }
+  }
+
+  /**
+   * Write any changes since the last call.
+   */
+  public synchronized void persist() {
+    if (changed.isEmpty()) {
+      return;
+    }
+    final HashMap<String, Row> rows = new HashMap<String, Row>(changed.size());
+    for (String guid : changed) {
+      rows.put(guid, hashes.get(guid));
+    }
+    Logger.debug(LOG_TAG, "Persisting " + rows.size() + " changed payload hashes.");
+    db.store(rows);
+    changed.clear();
+  }
+
+  /**
+   * Forget every hash, here and on disk.
+   */
+  public synchronized void purge() {
+    Logger.debug(LOG_TAG, "Purging " + hashes.size() + " payload hashes.");
+    hashes.clear();
+    changed.clear();
+    db.deleteAll();
+  }
+}
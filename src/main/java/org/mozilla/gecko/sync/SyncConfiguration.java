@@ -5,11 +5,14 @@
 package org.mozilla.gecko.sync;
 
 import java.net.URI;
+import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
+import org.json.simple.parser.ParseException;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
 import org.mozilla.gecko.sync.crypto.PersistedCrypto5Keys;
 
@@ -203,8 +206,16 @@ public class SyncConfiguration implements CredentialsSource {
   public String          prefsPath;
   public PrefsSource     prefsSource;
 
+  // Buffers our writes to the prefs until flushPrefs. Created on first use.
+  protected CoalescingSharedPreferences prefs;
+
+  // Parsed engine configurations, by branch prefix, as last loaded or persisted.
+  protected final HashMap<String, SynchronizerConfiguration> synchronizerConfigurations = new HashMap<String, SynchronizerConfiguration>();
+
   public static final String CLIENTS_COLLECTION_TIMESTAMP = "serverClientsTimestamp";  // When the collection was touched.
   public static final String CLIENT_RECORD_TIMESTAMP = "serverClientRecordTimestamp";  // When our record was touched.
+  public static final String CLIENTS_DOWNLOAD_TIMESTAMP = "serverClientsDownloadTimestamp";          // When we last downloaded the collection.
+  public static final String CLIENTS_FULL_DOWNLOAD_TIMESTAMP = "serverClientsFullDownloadTimestamp";  // When we last downloaded all of it.
 
   public static final String PREF_CLUSTER_URL = "clusterURL";
   public static final String PREF_SYNC_ID = "syncID";
@@ -220,9 +231,52 @@ public class SyncConfiguration implements CredentialsSource {
     this.loadFromPrefs(getPrefs());
   }
 
-  public SharedPreferences getPrefs() {
-    Logger.debug(LOG_TAG, "Returning prefs for " + prefsPath);
-    return prefsSource.getPrefs(prefsPath, Utils.SHARED_PREFERENCES_MODE);
+  /**
+   * @return our prefs. Writes to them are held in memory until
+   *         {@link #flushPrefs()}, but are visible to reads straight away.
+   */
+  public synchronized SharedPreferences getPrefs() {
+    if (prefs == null) {
+      Logger.debug(LOG_TAG, "Opening prefs for " + prefsPath);
+      prefs = new CoalescingSharedPreferences(prefsSource.getPrefs(prefsPath, Utils.SHARED_PREFERENCES_MODE));
+    }
+    return prefs;
+  }
+
+  /**
+   * Write every pending change to our prefs, in a single commit.
+   *
+   * @return false if the write failed.
+   */
+  public synchronized boolean flushPrefs() {
+    if (prefs == null) {
+      return true;
+    }
+    return prefs.flush();
+  }
+
+  /**
+   * Return the configuration of the engine whose prefs live under
+   * <code>prefix</code>, parsing it only the first time.
+   *
+   * @return a copy, which the caller is free to change.
+   */
+  public synchronized SynchronizerConfiguration getSynchronizerConfiguration(String prefix) throws NonObjectJSONException, IOException, ParseException {
+    SynchronizerConfiguration config = synchronizerConfigurations.get(prefix);
+    if (config == null) {
+      config = new SynchronizerConfiguration(getBranch(prefix));
+      synchronizerConfigurations.put(prefix, config);
+    }
+    return config.copy();
+  }
+
+  /**
+   * Persist the configuration of the engine whose prefs live under
+   * <code>prefix</code>. It is written with the next flush.
+   */
+  public synchronized void persistSynchronizerConfiguration(String prefix, SynchronizerConfiguration config) {
+    config.persist(getBranch(prefix));
+    synchronizerConfigurations.put(prefix, config.copy());
   }
 
   /**
@@ -264,8 +318,13 @@ public class SyncConfiguration implements CredentialsSource {
     // TODO: MetaGlobal, password, infoCollections.
   }
 
+  /**
+   * Persist, and flush, along with any other pending changes: callers change
+   * the sync ID or cluster URL, which must be durable before we go on.
+   */
   public void persistToPrefs() {
     this.persistToPrefs(this.getPrefs());
+    this.flushPrefs();
   }
 
   public void persistToPrefs(SharedPreferences prefs) {
@@ -336,15 +395,30 @@ public class SyncConfiguration implements CredentialsSource {
   }
 
   public URI collectionURI(String collection, boolean full) throws URISyntaxException {
+    return collectionURI(collection, full, -1);
+  }
+
+  /**
+   * @param newer
+   *          only fetch records modified after this time, in milliseconds;
+   *          ignored if not positive.
+   */
+  public URI collectionURI(String collection, boolean full, long newer) throws URISyntaxException {
     // Do it this way to make it easier to add more params later.
     // It's pretty ugly, I'll grant.
-    boolean anyParams = full;
+    boolean anyParams = full || newer > 0;
     String  uriParams = "";
     if (anyParams) {
       StringBuilder params = new StringBuilder("?");
       if (full) {
         params.append("full=1");
       }
+      if (newer > 0) {
+        if (full) {
+          params.append("&");
+        }
+        params.append("newer=" + Utils.millisecondsToDecimalSecondsString(newer));
+      }
       uriParams = params.toString();
     }
     String uri = storageURL(true) + collection + uriParams;
@@ -428,6 +502,26 @@ public class SyncConfiguration implements CredentialsSource {
     return getPrefs().getLong(SyncConfiguration.CLIENTS_COLLECTION_TIMESTAMP, 0);
   }
 
+  /**
+   * We also persist when we last downloaded the clients collection, so that
+   * we can compare it to info/collections and fetch only what changed since.
+   */
+  public void persistServerClientsDownloadTimestamp(long timestamp) {
+    getEditor().putLong(SyncConfiguration.CLIENTS_DOWNLOAD_TIMESTAMP, timestamp).commit();
+  }
+
+  public long getPersistedServerClientsDownloadTimestamp() {
+    return getPrefs().getLong(SyncConfiguration.CLIENTS_DOWNLOAD_TIMESTAMP, 0);
+  }
+
+  public void persistServerClientsFullDownloadTimestamp(long timestamp) {
+    getEditor().putLong(SyncConfiguration.CLIENTS_FULL_DOWNLOAD_TIMESTAMP, timestamp).commit();
+  }
+
+  public long getPersistedServerClientsFullDownloadTimestamp() {
+    return getPrefs().getLong(SyncConfiguration.CLIENTS_FULL_DOWNLOAD_TIMESTAMP, 0);
+  }
+
   public void purgeCryptoKeys() {
     if (collectionKeys != null) {
       collectionKeys.clear();
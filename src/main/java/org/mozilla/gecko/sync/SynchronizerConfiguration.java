@@ -63,6 +63,15 @@ public class SynchronizerConfiguration {
     this.localBundle  = localBundle;
   }
 
+  /**
+   * @return a copy whose bundles can be changed without changing mine.
+   */
+  public SynchronizerConfiguration copy() {
+    return new SynchronizerConfiguration(syncID,
+                                         new RepositorySessionBundle(remoteBundle),
+                                         new RepositorySessionBundle(localBundle));
+  }
+
   public String[] toStringValues() {
     String[] out = new String[3];
     out[0] = syncID;
@@ -103,7 +112,7 @@ public class SynchronizerConfiguration {
     editor.putString("local",  jsonLocal);
     editor.putString("syncID", syncID);
 
-    // Synchronous.
+    // Written when the configuration's prefs are next flushed.
     editor.commit();
   }
 }
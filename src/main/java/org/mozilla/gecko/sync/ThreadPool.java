@@ -39,10 +39,70 @@ package org.mozilla.gecko.sync;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * The threads that Sync runs on.
+ * <p>
+ * Threads come from a cached pool, so they are reused while busy and go away
+ * when idle. {@link #executorService} is not bounded: many Sync tasks block
+ * until another task on it makes progress -- a store waiting on an encryption
+ * future, a records channel consumer waiting for fetched records, a fetch
+ * waiting on its requests, a serial lane waiting behind a blocked task -- so
+ * any cap on it could leave every thread waiting on a task that can't start.
+ * <p>
+ * Work that must be ordered, such as a repository session's store and
+ * delegate queues, runs on serial lanes from {@link #newSerialExecutor(String)}
+ * rather than on threads of its own.
+ * <p>
+ * Work that only uses the CPU, and never waits on other tasks, runs on
+ * executors from {@link #newBoundedExecutor(String, int)}. Those all share
+ * {@link #computeService}, so that together they never run more than
+ * {@link #COMPUTE_THREADS} tasks at once, however many of them there are.
+ */
 public class ThreadPool {
-  public static ExecutorService executorService = Executors.newCachedThreadPool();
+
+  /**
+   * The most CPU-only tasks to run at once, across every bounded executor.
+   */
+  public static final int COMPUTE_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+  private static final ThreadFactory threadFactory = new ThreadFactory() {
+    private final AtomicInteger count = new AtomicInteger(0);
+
+    @Override
+    public Thread newThread(Runnable r) {
+      return new Thread(r, "SyncThreadPool-" + count.incrementAndGet());
+    }
+  };
+
+  private static final ExecutorService threads = Executors.newCachedThreadPool(threadFactory);
+
+  public static final LaneExecutor executorService =
+      new LaneExecutor("ThreadPool", threads, LaneExecutor.UNBOUNDED);
+
+  public static final LaneExecutor computeService =
+      new LaneExecutor("ThreadPool compute", threads, COMPUTE_THREADS);
+
   public static void run(Runnable runnable) {
     executorService.submit(runnable);
   }
+
+  /**
+   * @return an executor that runs tasks one at a time, in order, on the
+   *         shared pool.
+   */
+  public static LaneExecutor newSerialExecutor(String name) {
+    return new LaneExecutor(name, executorService, 1);
+  }
+
+  /**
+   * @return an executor that runs up to <code>maxWorkers</code> tasks at
+   *         once, within the {@link #COMPUTE_THREADS} shared by every such
+   *         executor. Tasks run on it must not wait on other tasks.
+   */
+  public static LaneExecutor newBoundedExecutor(String name, int maxWorkers) {
+    return new LaneExecutor(name, computeService, maxWorkers);
+  }
 }
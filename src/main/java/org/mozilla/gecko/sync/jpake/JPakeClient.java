@@ -68,9 +68,12 @@ public class JPakeClient {
   public boolean             paired                  = false;
   public boolean             finished                = false;
 
-  // J-PAKE values.
+  // J-PAKE values. We stop waiting for a message after
+  // jpakeMaxTries * jpakePollInterval milliseconds; pollSchedule decides how
+  // often to poll in that time.
   public int                 jpakePollInterval;
   public int                 jpakeMaxTries;
+  public JPakePollSchedule   pollSchedule            = new JPakePollSchedule();
   public String              channel;
   public volatile String     channelUrl;
 
@@ -85,6 +88,7 @@ public class JPakeClient {
   public JPakeNumGenerator   numGen;
 
   public int                 pollTries = 0;
+  public long                pollStarted = 0;
 
   // UI controller.
   private SetupSyncActivity controllerActivity;
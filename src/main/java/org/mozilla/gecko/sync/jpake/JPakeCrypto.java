@@ -43,19 +43,34 @@ import java.math.BigInteger;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 
+import org.mozilla.gecko.sync.ThreadPool;
 import org.mozilla.gecko.sync.crypto.HKDF;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
 
 import android.util.Log;
 import java.security.InvalidKeyException;
 
+/**
+ * J-PAKE is dominated by 3072-bit modular exponentiations. Where a round
+ * needs several that don't depend on each other, one set runs on the shared
+ * thread pool while the calling thread does the rest, so multi-core devices
+ * finish each round in roughly half the time. Random values are still drawn
+ * on the calling thread, in the same order as before.
+ */
 public class JPakeCrypto {
   private static final String LOG_TAG = "JPakeCrypto";
 
+  // Background computations are pure arithmetic, and never wait on each other.
+  private static final ExecutorService computeExecutor = ThreadPool.newBoundedExecutor("JPakeCrypto", 2);
+
   /*
    * Primes P and Q, and generator G - from original Mozilla J-PAKE
    * implementation.
@@ -99,21 +114,36 @@ public class JPakeCrypto {
    * Round 1 of J-PAKE protocol.
    * Generate x1, x2, and ZKP for other party.
    */
-  public static void round1(JPakeParty jp, JPakeNumGenerator gen) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+  public static void round1(final JPakeParty jp, JPakeNumGenerator gen) throws NoSuchAlgorithmException, UnsupportedEncodingException {
     // Randomly select x1 from [0,q), x2 from [1,q).
-    BigInteger x1 = gen.generateFromRange(Q); // [0, q)
-    BigInteger x2 = jp.x2 = BigInteger.ONE.add(gen.generateFromRange(Q
+    final BigInteger x1 = gen.generateFromRange(Q); // [0, q)
+    final BigInteger x2 = jp.x2 = BigInteger.ONE.add(gen.generateFromRange(Q
         .subtract(BigInteger.ONE))); // [1, q)
 
-    BigInteger gx1 = G.modPow(x1, P);
-    BigInteger gx2 = G.modPow(x2, P);
+    // Random exponents for the zero knowledge proofs.
+    final BigInteger r1 = gen.generateFromRange(Q);
+    final BigInteger r2 = gen.generateFromRange(Q);
+
+    // Compute g^x2 and its proof in the background while we do g^x1.
+    Future<Zkp> zkp2 = inBackground(new Callable<Zkp>() {
+      @Override
+      public Zkp call() throws Exception {
+        jp.gx2 = G.modPow(x2, P);
+        return createZkp(G, x2, jp.gx2, jp.signerId, r2);
+      }
+    });
 
+    BigInteger gx1 = G.modPow(x1, P);
     jp.gx1 = gx1;
-    jp.gx2 = gx2;
 
     // Generate and store zero knowledge proofs.
-    jp.zkp1 = createZkp(G, x1, gx1, jp.signerId, gen);
-    jp.zkp2 = createZkp(G, x2, gx2, jp.signerId, gen);
+    jp.zkp1 = createZkp(G, x1, gx1, jp.signerId, r1);
+    try {
+      jp.zkp2 = await(zkp2);
+    } catch (IncorrectZkpException e) {
+      // createZkp doesn't throw this.
+      throw new IllegalStateException(e);
+    }
   }
 
   /**
@@ -133,16 +163,25 @@ public class JPakeCrypto {
       throw new Gx3OrGx4IsZeroOrOneException();
     }
 
-    // Check ZKP.
+    // Check ZKPs, one in the background.
+    final BigInteger gx4 = jp.gx4;
+    final Zkp zkp4 = jp.zkp4;
+    Future<Void> checkZkp4 = inBackground(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        checkZkp(G, gx4, zkp4);
+        return null;
+      }
+    });
     checkZkp(G, jp.gx3, jp.zkp3);
-    checkZkp(G, jp.gx4, jp.zkp4);
+    await(checkZkp4);
 
     // Compute a = g^[(x1+x3+x4)*(x2*secret)].
     BigInteger y1 = jp.gx3.multiply(jp.gx4).mod(P).multiply(jp.gx1).mod(P);
     BigInteger y2 = jp.x2.multiply(secretValue).mod(P);
 
     BigInteger a  = y1.modPow(y2, P);
-    jp.thisZkpA = createZkp(y1, y2, a, jp.signerId, gen);
+    jp.thisZkpA = createZkp(y1, y2, a, jp.signerId, gen.generateFromRange(Q));
     jp.thisA = a;
 
     Log.d(LOG_TAG, "round2 finished.");
@@ -151,17 +190,26 @@ public class JPakeCrypto {
   /**
    * Final round of J-PAKE protocol.
    */
-  public static KeyBundle finalRound(BigInteger secretValue, JPakeParty jp)
+  public static KeyBundle finalRound(final BigInteger secretValue, final JPakeParty jp)
       throws IncorrectZkpException, NoSuchAlgorithmException, InvalidKeyException, UnsupportedEncodingException {
     Log.d(LOG_TAG, "Final round started.");
     BigInteger gb = jp.gx1.multiply(jp.gx2).mod(P).multiply(jp.gx3)
         .mod(P);
-    checkZkp(gb, jp.otherA, jp.otherZkpA);
 
     // Calculate shared key g^(x1+x3)*x2*x4*secret, which is equivalent to
-    // (B/g^(x2*x4*s))^x2 = (B*(g^x4)^x2^s^-1)^2.
-    BigInteger k = jp.gx4.modPow(jp.x2.multiply(secretValue).negate().mod(Q), P).multiply(jp.otherA)
-        .modPow(jp.x2, P);
+    // (B/g^(x2*x4*s))^x2 = (B*(g^x4)^x2^s^-1)^2. This doesn't depend on the
+    // ZKP check, so do it in the background; we only use it if the check
+    // passes.
+    Future<BigInteger> sharedKey = inBackground(new Callable<BigInteger>() {
+      @Override
+      public BigInteger call() {
+        return jp.gx4.modPow(jp.x2.multiply(secretValue).negate().mod(Q), P).multiply(jp.otherA)
+            .modPow(jp.x2, P);
+      }
+    });
+
+    checkZkp(gb, jp.otherA, jp.otherZkpA);
+    BigInteger k = await(sharedKey);
 
     byte[] enc = new byte[32];
     byte[] hmac = new byte[32];
@@ -190,13 +238,11 @@ public class JPakeCrypto {
 
   /*
    * Generate the ZKP b = r - x*h, and g^r, where h = hash(g, g^r, g^x, id). (We
-   * pass in gx to save on an exponentiation of g^x)
+   * pass in gx to save on an exponentiation of g^x.) r is a random exponent
+   * from [0, q).
    */
   private static Zkp createZkp(BigInteger g, BigInteger x, BigInteger gx,
-      String id, JPakeNumGenerator gen) throws NoSuchAlgorithmException, UnsupportedEncodingException {
-    // Generate random r for exponent.
-    BigInteger r = gen.generateFromRange(Q);
-
+      String id, BigInteger r) throws NoSuchAlgorithmException, UnsupportedEncodingException {
     // Calculate g^r for ZKP.
     BigInteger gr = g.modPow(r, P);
 
@@ -232,14 +278,16 @@ public class JPakeCrypto {
       Log.e(LOG_TAG, "g^x^q % p = 1 fails.");
       throw new IncorrectZkpException();
     }
-    if (zkp.gr.compareTo(g.modPow(zkp.b, P).multiply(gx.modPow(h, P)).mod(P)) != 0) {
-      // b = r-h*x ==> g^r = g^b*g^x^(h)
-      Log.i(LOG_TAG, "gb*g(xh) = "
-          + g.modPow(zkp.b, P).multiply(gx.modPow(h, P)).mod(P).toString(16));
+    // b = r-h*x ==> g^r = g^b*g^x^(h)
+    BigInteger gb = g.modPow(zkp.b, P);
+    BigInteger gxh = gx.modPow(h, P);
+    BigInteger gbgxh = gb.multiply(gxh).mod(P);
+    if (zkp.gr.compareTo(gbgxh) != 0) {
+      Log.i(LOG_TAG, "gb*g(xh) = " + gbgxh.toString(16));
       Log.d(LOG_TAG, "gr = " + zkp.gr.toString(16));
       Log.d(LOG_TAG, "b = " + zkp.b.toString(16));
-      Log.d(LOG_TAG, "g^b = " + g.modPow(zkp.b, P).toString(16));
-      Log.d(LOG_TAG, "g^(xh) = " + gx.modPow(h, P).toString(16));
+      Log.d(LOG_TAG, "g^b = " + gb.toString(16));
+      Log.d(LOG_TAG, "g^(xh) = " + gxh.toString(16));
       Log.d(LOG_TAG, "gx = " + gx.toString(16));
       Log.d(LOG_TAG, "h = " + h.toString(16));
       Log.e(LOG_TAG, "zkp calculation incorrect.");
@@ -248,6 +296,41 @@ public class JPakeCrypto {
     Log.d(LOG_TAG, "*** ZKP SUCCESS ***");
   }
 
+  private static <T> Future<T> inBackground(Callable<T> callable) {
+    return computeExecutor.submit(callable);
+  }
+
+  /*
+   * Wait for a background computation, rethrowing whatever it threw.
+   */
+  private static <T> T await(Future<T> future)
+      throws IncorrectZkpException, NoSuchAlgorithmException, UnsupportedEncodingException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IncorrectZkpException) {
+        throw (IncorrectZkpException) cause;
+      }
+      if (cause instanceof NoSuchAlgorithmException) {
+        throw (NoSuchAlgorithmException) cause;
+      }
+      if (cause instanceof UnsupportedEncodingException) {
+        throw (UnsupportedEncodingException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+
   /*
    * Use SHA-256 to compute a BigInteger hash of g, gr, gx values with
    * mySignerId to prevent replay. Does not make a twos-complement BigInteger
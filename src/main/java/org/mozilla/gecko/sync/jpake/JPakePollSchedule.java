@@ -0,0 +1,48 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.jpake;
+
+import java.util.Random;
+
+/**
+ * How long to wait between polls of the J-PAKE channel.
+ * <p>
+ * The other party usually replies within a few seconds, so the first
+ * <code>fastPolls</code> polls come every <code>fastIntervalMillis</code>.
+ * After that the interval grows by <code>backoffFactor</code> per poll, up to
+ * <code>maxIntervalMillis</code>, to save requests while the user is still
+ * typing a PIN on the other device. Each delay is jittered by up to
+ * <code>jitterFraction</code> either way.
+ * <p>
+ * Polls are conditional on the channel's ETag, so a poll that finds nothing
+ * new costs a 304 with no body.
+ */
+public class JPakePollSchedule {
+  public int    fastPolls          = 6;
+  public int    fastIntervalMillis = 250;
+  public int    maxIntervalMillis  = 3 * 1000;
+  public double backoffFactor      = 1.5;
+  public double jitterFraction     = 0.1;
+
+  private final Random random = new Random();
+
+  /**
+   * @param tries
+   *          the number of polls already made for the current message.
+   * @return the delay in milliseconds before the next poll.
+   */
+  public int getDelay(int tries) {
+    double delay = fastIntervalMillis;
+    for (int i = fastPolls; i < tries && delay < maxIntervalMillis; i++) {
+      delay *= backoffFactor;
+    }
+    delay = Math.min(delay, maxIntervalMillis);
+    double jitter;
+    synchronized (random) {
+      jitter = (random.nextDouble() * 2 - 1) * jitterFraction;
+    }
+    return (int) Math.max(0, delay + delay * jitter);
+  }
+}
@@ -25,10 +25,18 @@ import ch.boye.httpclientandroidlib.client.methods.HttpRequestBase;
 import ch.boye.httpclientandroidlib.impl.client.DefaultHttpClient;
 import ch.boye.httpclientandroidlib.message.BasicHeader;
 
+/**
+ * Poll the J-PAKE channel until the other party's next message arrives.
+ * <p>
+ * Polls follow the client's <code>JPakePollSchedule</code>, and each one is
+ * conditional on the ETag of our own last message, so a channel that hasn't
+ * changed costs a 304. Polling gives up once
+ * <code>jpakeMaxTries * jpakePollInterval</code> milliseconds have passed
+ * without a new message.
+ */
 public class GetRequestStage extends JPakeStage {
 
   private Timer timerScheduler = new Timer();
-  private int pollTries;
   private GetStepTimerTask getStepTimerTask;
 
   private interface GetRequestStageDelegate {
@@ -45,6 +53,7 @@ public class GetRequestStage extends JPakeStage {
 
       @Override
       public void handleSuccess(HttpResponse response) {
+        timerScheduler.cancel();
         if (jClient.finished) {
           Logger.debug(LOG_TAG, "Finished; returning.");
           return;
@@ -73,12 +82,14 @@ public class GetRequestStage extends JPakeStage {
 
       @Override
       public void handleFailure(String error) {
+        timerScheduler.cancel();
         Logger.error(LOG_TAG, "Got HTTP failure: " + error);
         jClient.abort(error);
       }
 
       @Override
       public void handleError(Exception e) {
+        timerScheduler.cancel();
         Logger.error(LOG_TAG, "Threw HTTP exception.", e);
         jClient.abort(Constants.JPAKE_ERROR_NETWORK);
       }
@@ -93,9 +104,13 @@ public class GetRequestStage extends JPakeStage {
       return;
     }
 
-    Logger.debug(LOG_TAG, "Scheduling GET request.");
+    if (jClient.pollTries == 0) {
+      jClient.pollStarted = System.currentTimeMillis();
+    }
+    final int delay = jClient.pollSchedule.getDelay(jClient.pollTries);
+    Logger.debug(LOG_TAG, "Scheduling GET request in " + delay + "ms.");
     getStepTimerTask = new GetStepTimerTask(httpRequest);
-    timerScheduler.schedule(getStepTimerTask, jClient.jpakePollInterval);
+    timerScheduler.schedule(getStepTimerTask, delay);
   }
 
   private Resource createGetRequest(final GetRequestStageDelegate callbackDelegate, final JPakeClient jpakeClient) throws URISyntaxException {
@@ -121,18 +136,21 @@ public class GetRequestStage extends JPakeStage {
             break;
           case 304:
             Logger.debug(LOG_TAG, "Channel hasn't been updated yet. Will try again later");
-            if (pollTries >= jpakeClient.jpakeMaxTries) {
-              Logger.error(LOG_TAG, "Tried for " + pollTries + " times, maxTries " + jpakeClient.jpakeMaxTries + ", aborting");
+            jpakeClient.pollTries += 1;
+            final long elapsed = System.currentTimeMillis() - jpakeClient.pollStarted;
+            final long timeout = (long) jpakeClient.jpakeMaxTries * jpakeClient.jpakePollInterval;
+            if (elapsed >= timeout) {
+              Logger.error(LOG_TAG, "Polled " + jpakeClient.pollTries + " times over " + elapsed + "ms, timeout " + timeout + "ms, aborting");
+              jpakeClient.pollTries = 0;
               callbackDelegate.handleFailure(Constants.JPAKE_ERROR_TIMEOUT);
               break;
             }
-            jpakeClient.pollTries += 1;
             if (!jpakeClient.finished) {
-              Logger.debug(LOG_TAG, "Scheduling next GET request.");
-              scheduleGetRequest(jpakeClient.jpakePollInterval, jpakeClient);
+              execute(jpakeClient);
             } else {
               Logger.debug(LOG_TAG, "Resetting pollTries");
               jpakeClient.pollTries = 0;
+              timerScheduler.cancel();
             }
             break;
           case 404:
@@ -141,6 +159,7 @@ public class GetRequestStage extends JPakeStage {
             break;
           case 412: // "Precondition failed"
             Logger.debug(LOG_TAG, "Message already replaced on server by other party.");
+            jpakeClient.pollTries = 0;
             callbackDelegate.handleSuccess(response);
             break;
           default:
@@ -194,19 +213,4 @@ public class GetRequestStage extends JPakeStage {
       request.get();
     }
   }
-
-  /*
-   * Helper method to schedule a GET request with some delay.
-   * Basically, run another GetRequestStage.
-   */
-  private void scheduleGetRequest(int delay, final JPakeClient jClient) {
-    timerScheduler.schedule(new TimerTask() {
-
-      @Override
-      public void run() {
-        new GetRequestStage().execute(jClient);
-      }
-    }, delay);
-  }
-
 }
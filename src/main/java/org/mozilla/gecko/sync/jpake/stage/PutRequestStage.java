@@ -8,8 +8,6 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URISyntaxException;
 import java.security.GeneralSecurityException;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import org.mozilla.gecko.sync.Logger;
 import org.mozilla.gecko.sync.jpake.JPakeClient;
@@ -42,18 +40,14 @@ public class PutRequestStage extends JPakeStage {
 
       @Override
       public void handleSuccess(HttpResponse response) {
-        TimerTask runNextStage = new TimerTask() {
+        // No need to pause here: the GET that follows waits according to the
+        // poll schedule, and early polls only cost a 304.
+        JPakeClient.runOnThread(new Runnable() {
           @Override
           public void run() {
             jClient.runNextStage();
           }
-        };
-        Timer timer = new Timer();
-
-        Logger.debug(LOG_TAG, "Pause for 2 * pollInterval before continuing.");
-        // There's no point in returning early here since the next step will
-        // always be a GET, so let's pause for twice the poll interval.
-        timer.schedule(runNextStage, 2 * jClient.jpakePollInterval);
+        });
       }
 
       @Override
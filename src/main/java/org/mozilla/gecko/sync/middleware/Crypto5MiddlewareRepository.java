@@ -37,6 +37,7 @@
 
 package org.mozilla.gecko.sync.middleware;
 
+import org.mozilla.gecko.sync.PersistedPayloadHashes;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
 import org.mozilla.gecko.sync.repositories.IdentityRecordFactory;
 import org.mozilla.gecko.sync.repositories.RecordFactory;
@@ -58,6 +59,12 @@ public class Crypto5MiddlewareRepository extends MiddlewareRepository {
 
   public RecordFactory recordFactory = new IdentityRecordFactory();
 
+  // If set, records whose payload the server already holds aren't uploaded.
+  public PersistedPayloadHashes payloadHashes = null;
+
+  // If set, fetched records whose payload we last applied locally are dropped.
+  public PersistedPayloadHashes appliedHashes = null;
+
   public class Crypto5MiddlewareRepositorySessionCreationDelegate extends MiddlewareRepository.SessionCreationDelegate {
     private Crypto5MiddlewareRepository repository;
     private RepositorySessionCreationDelegate outerDelegate;
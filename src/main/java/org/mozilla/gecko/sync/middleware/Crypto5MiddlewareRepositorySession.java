@@ -4,18 +4,32 @@
 
 package org.mozilla.gecko.sync.middleware;
 
-import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.mozilla.gecko.sync.CryptoRecord;
-import org.mozilla.gecko.sync.crypto.CryptoException;
+import org.mozilla.gecko.sync.Logger;
+import org.mozilla.gecko.sync.PersistedPayloadHashes;
+import org.mozilla.gecko.sync.ThreadPool;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
 import org.mozilla.gecko.sync.repositories.RecordFactory;
+import org.mozilla.gecko.sync.repositories.RecordStream;
+import org.mozilla.gecko.sync.repositories.RecordStreamException;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionBatchStoreDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFinishDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionStoreDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionWipeDelegate;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
 /**
@@ -54,17 +68,176 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
                  +------------------------------------+
 
 
+ * Outgoing records are encrypted ahead on a small worker pool: up to
+ * <code>ENCRYPT_AHEAD</code> records can be in encryption at once, while the
+ * store thread hands finished ones to the inner session. Records reach the
+ * inner session in the order they were stored, on the thread that stored
+ * them, so its batching is unchanged.
+ *
+ * If the repository has payload hashes, an outgoing record whose payload the
+ * server is known to hold already is reported as stored without being
+ * encrypted or passed on. Hashes are updated from every record we decrypt, and
+ * from every record the inner session reports as stored, along with when the
+ * server's copy was written. A record with a TTL is uploaded anyway once half
+ * its TTL has passed, so that the server doesn't expire it.
+ *
+ * Likewise, if the repository has applied hashes, a fetched record whose
+ * payload is the one we last applied locally is dropped right after it is
+ * decrypted, before its payload is even parsed, sparing the local session a
+ * lookup, reconcile, and write. Its server hash, recorded when we applied it,
+ * still updates the payload hashes. A hash becomes "applied" when the record
+ * is reported stored downstream, via {@link #fetchedRecordStored(String)}, and
+ * is forgotten when we store a local change to that record.
+ *
  * @author rnewman
  *
  */
 public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySession {
+  private static final String LOG_TAG = "Crypto5MiddlewareSession";
+
+  public static final int ENCRYPT_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+  public static final int ENCRYPT_AHEAD   = 4 * ENCRYPT_THREADS;
+
+  private static final ExecutorService encryptExecutor = ThreadPool.newBoundedExecutor("Crypto5 encryption", ENCRYPT_THREADS);
+
   private KeyBundle keyBundle;
   private RecordFactory recordFactory;
+  private final PersistedPayloadHashes payloadHashes;
+  private final PersistedPayloadHashes appliedHashes;
+
+  private static class PendingStore {
+    public final Record record;
+    public final Future<CryptoRecord> encrypted;
+
+    public PendingStore(Record record, Future<CryptoRecord> encrypted) {
+      this.record = record;
+      this.encrypted = encrypted;
+    }
+  }
+
+  // Encryptions not yet passed to the inner session, oldest first.
+  private final LinkedList<PendingStore> encrypting = new LinkedList<PendingStore>();
+
+  // Payload hashes of records passed to the inner session but not yet stored.
+  private final ConcurrentHashMap<String, String> uploadingHashes = new ConcurrentHashMap<String, String>();
+
+  // Cleartext and server hashes of fetched records not yet stored downstream.
+  private final ConcurrentHashMap<String, String[]> applyingHashes = new ConcurrentHashMap<String, String[]>();
 
   public Crypto5MiddlewareRepositorySession(RepositorySession session, Crypto5MiddlewareRepository repository, RecordFactory recordFactory) {
     super(session, repository);
     this.keyBundle = repository.keyBundle;
     this.recordFactory = recordFactory;
+    this.payloadHashes = repository.payloadHashes;
+    this.appliedHashes = repository.appliedHashes;
+  }
+
+  /**
+   * Decrypt a record fetched from the server, unless it's one we last
+   * applied. Those are recognized from their cleartext, so they're dropped
+   * before their payload is parsed or a local record is built from it.
+   * <p>
+   * A dropped record still tells us what the server holds: we recorded its
+   * server hash when we applied it. Otherwise, after a reset purges the
+   * server hashes, we'd upload every record we'd already applied.
+   *
+   * @return false if the record should be dropped.
+   */
+  protected boolean decryptUnlessApplied(CryptoRecord r, KeyBundle keyBundle) throws Exception {
+    r.keyBundle = keyBundle;
+    final byte[] cleartext = r.decryptCleartext();
+    String appliedHash = null;
+    if (appliedHashes != null && r.guid != null) {
+      appliedHash = PersistedPayloadHashes.hashCleartext(cleartext);
+      if (appliedHashes.matches(r.guid, appliedHash)) {
+        Logger.trace(LOG_TAG, "Already applied " + r.guid + "; dropping.");
+        if (payloadHashes != null) {
+          payloadHashes.put(r.guid, appliedHashes.getServerHash(r.guid), r.lastModified);
+        }
+        return false;
+      }
+    }
+    r.setCleartext(cleartext);
+
+    final String hash = PersistedPayloadHashes.hashPayload(r.payload);
+    if (payloadHashes != null) {
+      payloadHashes.put(r.guid, hash, r.lastModified);
+    }
+    if (appliedHash != null && hash != null) {
+      applyingHashes.put(r.guid, new String[] { appliedHash, hash });
+    }
+    return true;
+  }
+
+  @Override
+  public void fetchedRecordStored(String guid) {
+    if (appliedHashes == null || guid == null) {
+      return;
+    }
+    final String[] hashes = applyingHashes.remove(guid);
+    if (hashes != null) {
+      appliedHashes.putApplied(guid, hashes[0], hashes[1]);
+    }
+  }
+
+  protected void storedGUID(String guid) {
+    final String hash = uploadingHashes.remove(guid);
+    if (hash != null) {
+      payloadHashes.put(guid, hash, System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * Passes store callbacks on, noting the payload hashes of stored records.
+   */
+  public class HashRecordingStoreDelegate implements RepositorySessionStoreDelegate {
+    protected final RepositorySessionStoreDelegate next;
+
+    HashRecordingStoreDelegate(RepositorySessionStoreDelegate next) {
+      this.next = next;
+    }
+
+    @Override
+    public void onRecordStoreFailed(Exception ex) {
+      next.onRecordStoreFailed(ex);
+    }
+
+    @Override
+    public void onRecordStoreSucceeded(Record record) {
+      storedGUID(record.guid);
+      next.onRecordStoreSucceeded(record);
+    }
+
+    @Override
+    public void onStoreCompleted(long storeEnd) {
+      next.onStoreCompleted(storeEnd);
+    }
+
+    @Override
+    public RepositorySessionStoreDelegate deferredStoreDelegate(ExecutorService executor) {
+      return makeHashRecordingDelegate(next.deferredStoreDelegate(executor));
+    }
+  }
+
+  public class HashRecordingBatchStoreDelegate extends HashRecordingStoreDelegate implements RepositorySessionBatchStoreDelegate {
+    HashRecordingBatchStoreDelegate(RepositorySessionBatchStoreDelegate next) {
+      super(next);
+    }
+
+    @Override
+    public void onRecordsStoreSucceeded(Collection<String> guids) {
+      for (String guid : guids) {
+        storedGUID(guid);
+      }
+      ((RepositorySessionBatchStoreDelegate) next).onRecordsStoreSucceeded(guids);
+    }
+  }
+
+  private HashRecordingStoreDelegate makeHashRecordingDelegate(RepositorySessionStoreDelegate next) {
+    if (next instanceof RepositorySessionBatchStoreDelegate) {
+      return new HashRecordingBatchStoreDelegate((RepositorySessionBatchStoreDelegate) next);
+    }
+    return new HashRecordingStoreDelegate(next);
   }
 
   public class DecryptingTransformingFetchDelegate implements RepositorySessionFetchRecordsDelegate {
@@ -92,9 +265,10 @@ public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySess
         next.onFetchFailed(e, record);
         return;
       }
-      r.keyBundle = keyBundle;
       try {
-        r.decrypt();
+        if (!decryptUnlessApplied(r, keyBundle)) {
+          return;
+        }
       } catch (Exception e) {
         next.onFetchFailed(e, r);
         return;
@@ -147,6 +321,62 @@ public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySess
     inner.fetchSince(timestamp, makeUnwrappingDelegate(delegate));
   }
 
+  /**
+   * Decrypts and transforms each batch of an inner stream as it is pulled.
+   */
+  public class DecryptingTransformingRecordStream implements RecordStream {
+    private final RecordStream next;
+
+    DecryptingTransformingRecordStream(RecordStream next) {
+      this.next = next;
+    }
+
+    @Override
+    public List<Record> nextBatch() throws RecordStreamException {
+      // Keep pulling until some records survive: batches are never empty.
+      while (true) {
+        List<Record> batch = next.nextBatch();
+        if (batch == null) {
+          return null;
+        }
+        final ArrayList<Record> out = new ArrayList<Record>(batch.size());
+        for (Record record : batch) {
+          try {
+            CryptoRecord r = (CryptoRecord) record;
+            if (decryptUnlessApplied(r, keyBundle)) {
+              out.add(recordFactory.createRecord(r));
+            }
+          } catch (Exception e) {
+            next.close();
+            throw new RecordStreamException(e);
+          }
+        }
+        if (!out.isEmpty()) {
+          return out;
+        }
+      }
+    }
+
+    @Override
+    public long getEnd() {
+      return next.getEnd();
+    }
+
+    @Override
+    public void close() {
+      next.close();
+    }
+  }
+
+  @Override
+  public RecordStream streamSince(long timestamp) {
+    RecordStream stream = inner.streamSince(timestamp);
+    if (stream == null) {
+      return null;
+    }
+    return new DecryptingTransformingRecordStream(stream);
+  }
+
   @Override
   public void fetch(String[] guids,
                     RepositorySessionFetchRecordsDelegate delegate) throws InactiveSessionException {
@@ -158,30 +388,132 @@ public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySess
     inner.fetchAll(makeUnwrappingDelegate(delegate));
   }
 
+  @Override
+  public void wipe(RepositorySessionWipeDelegate delegate) {
+    // Whatever the outcome, we no longer know what the server holds.
+    if (payloadHashes != null) {
+      payloadHashes.purge();
+    }
+    super.wipe(delegate);
+  }
+
   @Override
   public void setStoreDelegate(RepositorySessionStoreDelegate delegate) {
     // TODO: it remains to be seen how this will work.
-    inner.setStoreDelegate(delegate);
+    if (payloadHashes != null) {
+      inner.setStoreDelegate(makeHashRecordingDelegate(delegate));
+    } else {
+      inner.setStoreDelegate(delegate);
+    }
     this.delegate = delegate;             // So we can handle errors without involving inner.
   }
 
   @Override
-  public void store(Record record) throws NoStoreDelegateException {
+  public void store(final Record record) throws NoStoreDelegateException {
     if (delegate == null) {
       throw new NoStoreDelegateException();
     }
-    CryptoRecord rec = record.getEnvelope();
-    rec.keyBundle = this.keyBundle;
+    if (appliedHashes != null) {
+      // A local change: the next incoming copy must be applied, even if we've seen it before.
+      appliedHashes.remove(record.guid);
+    }
+    final KeyBundle keyBundle = this.keyBundle;
+    final PersistedPayloadHashes payloadHashes = this.payloadHashes;
+    synchronized (encrypting) {
+      while (encrypting.size() >= ENCRYPT_AHEAD) {
+        storeNextEncrypted();
+      }
+      encrypting.add(new PendingStore(record, encryptExecutor.submit(new Callable<CryptoRecord>() {
+        @Override
+        public CryptoRecord call() throws Exception {
+          CryptoRecord rec = record.getEnvelope();
+          if (payloadHashes != null) {
+            final String hash = PersistedPayloadHashes.hashPayload(rec.payload);
+            if (payloadHashes.matchesUnexpired(rec.guid, hash, rec.ttl, System.currentTimeMillis())) {
+              // The server already has this, and won't expire it soon. Don't encrypt it.
+              return null;
+            }
+            if (hash != null) {
+              uploadingHashes.put(rec.guid, hash);
+            }
+          }
+          rec.keyBundle = keyBundle;
+          return rec.encrypt();
+        }
+      })));
+    }
+  }
+
+  /**
+   * Wait for the oldest pending encryption and pass its record to the inner
+   * session. Must be called with <code>encrypting</code> locked.
+   */
+  protected void storeNextEncrypted() throws NoStoreDelegateException {
+    final PendingStore next = encrypting.removeFirst();
+    final CryptoRecord rec;
     try {
-      rec.encrypt();
-    } catch (UnsupportedEncodingException e) {
+      rec = next.encrypted.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
       delegate.onRecordStoreFailed(e);
       return;
-    } catch (CryptoException e) {
-      delegate.onRecordStoreFailed(e);
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      delegate.onRecordStoreFailed((cause instanceof Exception) ? (Exception) cause : e);
+      return;
+    }
+    if (rec == null) {
+      Logger.trace(LOG_TAG, "Payload of " + next.record.guid + " unchanged on server; not uploading.");
+      delegate.onRecordStoreSucceeded(next.record);
       return;
     }
     // Allow the inner session to do delegate handling.
     inner.store(rec);
   }
+
+  protected void storeAllEncrypted() {
+    synchronized (encrypting) {
+      try {
+        while (!encrypting.isEmpty()) {
+          storeNextEncrypted();
+        }
+      } catch (NoStoreDelegateException e) {
+        Logger.error(LOG_TAG, "Inner session has no store delegate; dropping " + encrypting.size() + " records.", e);
+        encrypting.clear();
+      }
+    }
+  }
+
+  @Override
+  public void storeDone() {
+    storeAllEncrypted();
+    super.storeDone();
+  }
+
+  @Override
+  public void storeDone(long storeEnd) {
+    storeAllEncrypted();
+    super.storeDone(storeEnd);
+  }
+
+  protected void cancelEncryption() {
+    synchronized (encrypting) {
+      for (PendingStore pending : encrypting) {
+        pending.encrypted.cancel(false);
+      }
+      encrypting.clear();
+    }
+  }
+
+  @Override
+  public void abort() {
+    cancelEncryption();
+    super.abort();
+  }
+
+  @Override
+  public void abort(RepositorySessionFinishDelegate delegate) {
+    cancelEncryption();
+    super.abort(delegate);
+  }
 }
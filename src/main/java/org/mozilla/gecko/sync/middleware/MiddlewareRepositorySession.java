@@ -136,6 +136,21 @@ public abstract class MiddlewareRepositorySession extends RepositorySession {
     inner.transitionFrom(from, to);
   }
 
+  @Override
+  public boolean abortFetch() {
+    return inner.abortFetch();
+  }
+
+  @Override
+  public boolean fetchInModifiedOrder() {
+    return inner.fetchInModifiedOrder();
+  }
+
+  @Override
+  public int getPendingStoreCount() {
+    return inner.getPendingStoreCount();
+  }
+
   @Override
   public void abort() {
     inner.abort();
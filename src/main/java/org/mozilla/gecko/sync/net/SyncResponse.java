@@ -4,11 +4,13 @@
 
 package org.mozilla.gecko.sync.net;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.Scanner;
 
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 import org.mozilla.gecko.sync.ExtendedJSONObject;
 import org.mozilla.gecko.sync.NonObjectJSONException;
@@ -20,11 +22,31 @@ import ch.boye.httpclientandroidlib.HttpEntity;
 import ch.boye.httpclientandroidlib.HttpResponse;
 import ch.boye.httpclientandroidlib.impl.cookie.DateParseException;
 import ch.boye.httpclientandroidlib.impl.cookie.DateUtils;
+import ch.boye.httpclientandroidlib.util.EntityUtils;
 
 public class SyncResponse {
   private static final String HEADER_RETRY_AFTER = "retry-after";
   private static final String LOG_TAG = "SyncResponse";
 
+  // Sync servers speak UTF-8 unless they say otherwise.
+  private static final String DEFAULT_CHARSET = "UTF-8";
+
+  // Bodies we read whole are records, keys, and upload results: far smaller than this.
+  public static final int DEFAULT_MAX_BODY_BYTES = 8 * 1024 * 1024;
+
+  // Each thread reads bodies of unknown length into one reusable buffer...
+  private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+  // ... unless a body grows it beyond this, in which case it's not kept.
+  private static final int MAX_POOLED_BUFFER_SIZE = 64 * 1024;
+
+  private static final ThreadLocal<byte[]> readBuffer = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[READ_BUFFER_SIZE];
+    }
+  };
+
   protected HttpResponse response;
 
   public SyncResponse() {
@@ -47,17 +69,127 @@ public class SyncResponse {
     return this.getStatusCode() == 200;
   }
 
+  /**
+   * Bodies longer than this are refused, rather than read into memory.
+   */
+  public int maxBodyBytes = DEFAULT_MAX_BODY_BYTES;
+
+  private byte[] bodyBytes = null;
+  private String charset = null;
+
+  /**
+   * Read the entire body, once; later calls return the same bytes.
+   *
+   * @return the body, or null if there is none.
+   * @throws IOException
+   *           if the body can't be read, or is longer than
+   *           <code>maxBodyBytes</code>.
+   */
+  public byte[] bodyBytes() throws IllegalStateException, IOException {
+    if (bodyBytes != null) {
+      return bodyBytes;
+    }
+    HttpEntity entity = this.response.getEntity();
+    if (entity == null) {
+      return null;
+    }
+
+    charset = EntityUtils.getContentCharSet(entity);
+    final long length = entity.getContentLength();
+    if (length > maxBodyBytes) {
+      throw new IOException("Response body of " + length + " bytes exceeds limit of " + maxBodyBytes + ".");
+    }
+
+    InputStream content = entity.getContent();
+    if (content == null) {
+      return null;
+    }
+    try {
+      bodyBytes = (length >= 0) ? readFully(content, (int) length) : readAll(content);
+    } finally {
+      content.close();
+    }
+    return bodyBytes;
+  }
+
+  /**
+   * Read exactly <code>length</code> bytes, straight into the result.
+   */
+  private static byte[] readFully(InputStream in, int length) throws IOException {
+    final byte[] out = new byte[length];
+    int offset = 0;
+    while (offset < length) {
+      final int read = in.read(out, offset, length - offset);
+      if (read < 0) {
+        throw new IOException("Response body ended after " + offset + " of " + length + " bytes.");
+      }
+      offset += read;
+    }
+    return out;
+  }
+
+  /**
+   * Read a body of unknown length into this thread's buffer, growing it as
+   * needed, then copy out exactly what was read.
+   */
+  private byte[] readAll(InputStream in) throws IOException {
+    byte[] buffer = readBuffer.get();
+    int offset = 0;
+    int read;
+    while ((read = in.read(buffer, offset, buffer.length - offset)) >= 0) {
+      offset += read;
+      if (offset > maxBodyBytes) {
+        throw new IOException("Response body exceeds limit of " + maxBodyBytes + " bytes.");
+      }
+      if (offset == buffer.length) {
+        final byte[] grown = new byte[2 * buffer.length];
+        System.arraycopy(buffer, 0, grown, 0, offset);
+        buffer = grown;
+        if (buffer.length <= MAX_POOLED_BUFFER_SIZE) {
+          readBuffer.set(buffer);
+        }
+      }
+    }
+    final byte[] out = new byte[offset];
+    System.arraycopy(buffer, 0, out, 0, offset);
+    return out;
+  }
+
+  private String charset() {
+    return (charset == null) ? DEFAULT_CHARSET : charset;
+  }
+
   private String body = null;
+
+  /**
+   * @return the body decoded with the charset it was served with, or null if
+   *         there is no body.
+   */
   public String body() throws IllegalStateException, IOException {
     if (body != null) {
       return body;
     }
-    InputStreamReader is = new InputStreamReader(this.response.getEntity().getContent());
-    // Oh, Java, you are so evil.
-    body = new Scanner(is).useDelimiter("\\A").next();
+    final byte[] bytes = bodyBytes();
+    if (bytes == null) {
+      return null;
+    }
+    body = new String(bytes, charset());
     return body;
   }
 
+  /**
+   * Parse the body, decoding it as it is read rather than building a String.
+   *
+   * @return null if there is no body.
+   */
+  protected Object parseBody() throws IllegalStateException, IOException, ParseException {
+    final byte[] bytes = bodyBytes();
+    if (bytes == null) {
+      return null;
+    }
+    return new JSONParser().parse(new InputStreamReader(new ByteArrayInputStream(bytes), charset()));
+  }
+
   /**
    * Return the body as an Object.
    *
@@ -69,21 +201,38 @@ public class SyncResponse {
    */
   public Object jsonBody() throws IllegalStateException, IOException,
                           ParseException {
-    if (body != null) {
-      // Do it from the cached String.
-      return ExtendedJSONObject.parse(body);
+    Object parsed = parseBody();
+    if (parsed instanceof JSONObject) {
+      return new ExtendedJSONObject((JSONObject) parsed);
     }
+    return parsed;
+  }
 
-    HttpEntity entity = this.response.getEntity();
-    if (entity == null) {
+  /**
+   * Return the body as the given type, as produced by the JSON parser: for
+   * example, <code>JSONObject</code>, <code>JSONArray</code>, or
+   * <code>String</code>. Callers that only read a value or two can skip
+   * building an <code>ExtendedJSONObject</code>, though that type is also
+   * accepted.
+   *
+   * @return the body, or null if there is none.
+   * @throws NonObjectJSONException
+   *           if the body parses to something else.
+   */
+  public <T> T bodyAsTypedObject(Class<T> type) throws IllegalStateException,
+                                                      IOException, ParseException,
+                                                      NonObjectJSONException {
+    Object parsed = parseBody();
+    if (parsed == null) {
       return null;
     }
-    InputStream content = entity.getContent();
-    try {
-      return ExtendedJSONObject.parse(content);
-    } finally {
-      content.close();
+    if (type == ExtendedJSONObject.class && parsed instanceof JSONObject) {
+      parsed = new ExtendedJSONObject((JSONObject) parsed);
+    }
+    if (!type.isInstance(parsed)) {
+      throw new NonObjectJSONException(parsed);
     }
+    return type.cast(parsed);
   }
 
   /**
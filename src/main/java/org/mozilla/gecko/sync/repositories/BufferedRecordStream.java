@@ -0,0 +1,164 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import org.mozilla.gecko.sync.Logger;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
+import org.mozilla.gecko.sync.repositories.domain.Record;
+
+/**
+ * Turn a push-style fetch into a {@link RecordStream}.
+ * <p>
+ * Pass this as the fetch delegate. Fetched records are buffered, up to
+ * <code>capacity</code> of them; beyond that, <code>onFetchedRecord</code>
+ * blocks until the consumer catches up. That only works if the fetch calls
+ * back on a thread that nothing else is waiting on, such as an HTTP request
+ * thread.
+ * <p>
+ * Override {@link #onClose()} to cancel the underlying fetch.
+ */
+public class BufferedRecordStream implements RecordStream, RepositorySessionFetchRecordsDelegate {
+  private static final String LOG_TAG = "BufferedRecordStream";
+
+  protected final int capacity;
+  protected final int maxBatchSize;
+
+  private final Object lock = new Object();
+
+  // Guarded by lock.
+  private final LinkedList<Record> buffer = new LinkedList<Record>();
+  private boolean completed = false;
+  private boolean closed = false;
+  private Exception failure = null;
+  private long end = -1;
+
+  /**
+   * @param capacity
+   *          the most records to buffer before blocking the fetch.
+   * @param maxBatchSize
+   *          the most records to return from one call to {@link #nextBatch()}.
+   */
+  public BufferedRecordStream(int capacity, int maxBatchSize) {
+    this.capacity = Math.max(1, capacity);
+    this.maxBatchSize = Math.max(1, maxBatchSize);
+  }
+
+  @Override
+  public List<Record> nextBatch() throws RecordStreamException {
+    synchronized (lock) {
+      while (buffer.isEmpty() && !completed && !closed) {
+        try {
+          lock.wait();
+        } catch (InterruptedException e) {
+          Logger.warn(LOG_TAG, "Interrupted waiting for records. Closing stream.");
+          Thread.currentThread().interrupt();
+          closed = true;
+        }
+      }
+      if (closed) {
+        return null;
+      }
+      if (!buffer.isEmpty()) {
+        final int count = Math.min(maxBatchSize, buffer.size());
+        final ArrayList<Record> batch = new ArrayList<Record>(count);
+        for (int i = 0; i < count; i++) {
+          batch.add(buffer.removeFirst());
+        }
+        lock.notifyAll();
+        return batch;
+      }
+      if (failure != null) {
+        throw new RecordStreamException(failure);
+      }
+      return null;
+    }
+  }
+
+  @Override
+  public long getEnd() {
+    synchronized (lock) {
+      return end;
+    }
+  }
+
+  @Override
+  public void close() {
+    synchronized (lock) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      buffer.clear();
+      lock.notifyAll();
+    }
+    onClose();
+  }
+
+  /**
+   * Called once, from {@link #close()}, without holding any lock.
+   */
+  protected void onClose() {
+  }
+
+  @Override
+  public void onFetchedRecord(Record record) {
+    synchronized (lock) {
+      while (!closed && buffer.size() >= capacity) {
+        try {
+          lock.wait();
+        } catch (InterruptedException e) {
+          Logger.warn(LOG_TAG, "Interrupted waiting for consumer. Dropping record.");
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+      if (closed) {
+        return;
+      }
+      buffer.add(record);
+      lock.notifyAll();
+    }
+  }
+
+  @Override
+  public void onFetchSucceeded(Record[] records, long fetchEnd) {
+    for (Record record : records) {
+      onFetchedRecord(record);
+    }
+    onFetchCompleted(fetchEnd);
+  }
+
+  @Override
+  public void onFetchCompleted(long fetchEnd) {
+    synchronized (lock) {
+      completed = true;
+      end = fetchEnd;
+      lock.notifyAll();
+    }
+  }
+
+  @Override
+  public void onFetchFailed(Exception ex, Record record) {
+    synchronized (lock) {
+      completed = true;
+      failure = ex;
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * Callbacks must arrive on the fetching thread, or the buffer can't hold
+   * the fetch back.
+   */
+  @Override
+  public RepositorySessionFetchRecordsDelegate deferredFetchDelegate(ExecutorService executor) {
+    return this;
+  }
+}
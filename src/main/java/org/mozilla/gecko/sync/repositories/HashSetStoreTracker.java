@@ -31,6 +31,11 @@ public class HashSetStoreTracker implements StoreTracker {
     return (guid != null) && guids.add(guid);
   }
 
+  @Override
+  public boolean trackRecordForExclusion(String guid, long timestamp) {
+    return trackRecordForExclusion(guid);
+  }
+
   @Override
   public synchronized boolean isTrackedForExclusion(String guid) {
     return (guid != null) && guids.contains(guid);
@@ -0,0 +1,313 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.mozilla.gecko.sync.repositories.domain.Record;
+
+/**
+ * A {@link StoreTracker} that keeps Sync GUIDs -- twelve characters of
+ * URL-safe base64 -- packed into primitive arrays, rather than as
+ * <code>String</code>s in a <code>HashSet</code>.
+ * <p>
+ * GUIDs live in an open-addressed table with linear probing: the first ten
+ * characters in a <code>long</code>, the last two in a <code>short</code>,
+ * beside the time at which the record was tracked. That's 18 bytes a slot,
+ * where a <code>HashSet</code> spends over a hundred bytes an entry. GUIDs
+ * that don't pack, such as "places" or "menu", are kept in a small map on
+ * the side.
+ * <p>
+ * Writes are synchronized. Reads, including the fetch filter, take no lock: a
+ * slot's key is written last, with a volatile write, and a slot is never
+ * reused for another GUID, so a reader that sees a key also sees its
+ * timestamp. Untracked GUIDs leave a marker in their slot until the table is
+ * next rebuilt; the table is rebuilt when markers outnumber tracked GUIDs,
+ * so memory stays proportional to what is tracked.
+ * <p>
+ * A GUID tracked with a timestamp only excludes its record while the record
+ * hasn't been modified since, so local changes made after a store are still
+ * uploaded. A GUID tracked without one is always excluded.
+ */
+public class PackedGuidStoreTracker implements StoreTracker {
+  public static final int GUID_LENGTH = 12;
+
+  private static final int MIN_CAPACITY = 16;
+
+  // Stamp of a slot whose GUID has been untracked.
+  private static final long REMOVED = Long.MIN_VALUE;
+
+  // Stamp of a GUID tracked without a time: its record is always excluded.
+  private static final long ALWAYS = Long.MAX_VALUE;
+
+  // Set in every packed key, so that a key is never 0, which means an empty slot.
+  private static final long OCCUPIED = 1L << 60;
+
+  private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+  private static final byte[] DECODE = new byte[128];
+  static {
+    for (int i = 0; i < DECODE.length; i++) {
+      DECODE[i] = -1;
+    }
+    for (int i = 0; i < ALPHABET.length(); i++) {
+      DECODE[ALPHABET.charAt(i)] = (byte) i;
+    }
+  }
+
+  private static final class Table {
+    public final AtomicLongArray keys;
+    public final short[] lows;
+    public final AtomicLongArray stamps;
+    public final int mask;
+
+    // Guarded by the tracker.
+    public int used = 0;
+    public int live = 0;
+
+    public Table(int capacity) {
+      keys   = new AtomicLongArray(capacity);
+      lows   = new short[capacity];
+      stamps = new AtomicLongArray(capacity);
+      mask   = capacity - 1;
+    }
+
+    public int capacity() {
+      return mask + 1;
+    }
+
+    /**
+     * @return the slot holding the key, or the empty slot where it belongs,
+     *         as <code>-1 - slot</code>.
+     */
+    public int find(long key, short low) {
+      int slot = hash(key, low) & mask;
+      while (true) {
+        final long k = keys.get(slot);
+        if (k == 0) {
+          return -1 - slot;
+        }
+        if (k == key && lows[slot] == low) {
+          return slot;
+        }
+        slot = (slot + 1) & mask;
+      }
+    }
+
+    public void put(int slot, long key, short low, long stamp) {
+      lows[slot] = low;
+      stamps.set(slot, stamp);
+      keys.set(slot, key);      // Publishes the slot.
+      used++;
+      live++;
+    }
+  }
+
+  private volatile Table table = new Table(MIN_CAPACITY);
+  private final ConcurrentHashMap<String, Long> unpacked = new ConcurrentHashMap<String, Long>();
+
+  protected static int hash(long key, short low) {
+    long h = (key ^ (((long) low) << 48)) * 0x9E3779B97F4A7C15L;
+    return (int) (h >>> 32);
+  }
+
+  /**
+   * @return the first ten characters of <code>guid</code>, packed, or 0 if
+   *         it can't be packed.
+   */
+  protected static long packHigh(String guid) {
+    if (guid.length() != GUID_LENGTH) {
+      return 0;
+    }
+    long key = OCCUPIED;
+    for (int i = 0; i < 10; i++) {
+      final int v = decode(guid.charAt(i));
+      if (v < 0) {
+        return 0;
+      }
+      key |= ((long) v) << (6 * (9 - i));
+    }
+    return key;
+  }
+
+  protected static short packLow(String guid) {
+    return (short) ((decode(guid.charAt(10)) << 6) | decode(guid.charAt(11)));
+  }
+
+  private static int decode(char c) {
+    return (c < 128) ? DECODE[c] : -1;
+  }
+
+  protected static String unpack(long key, short low) {
+    final char[] out = new char[GUID_LENGTH];
+    for (int i = 0; i < 10; i++) {
+      out[i] = ALPHABET.charAt((int) (key >>> (6 * (9 - i))) & 0x3F);
+    }
+    out[10] = ALPHABET.charAt((low >> 6) & 0x3F);
+    out[11] = ALPHABET.charAt(low & 0x3F);
+    return new String(out);
+  }
+
+  /**
+   * @return the time at which <code>guid</code> was tracked, or
+   *         <code>REMOVED</code> if it isn't.
+   */
+  protected long getStamp(String guid) {
+    if (guid == null) {
+      return REMOVED;
+    }
+    final long key = packHigh(guid);
+    if (key == 0) {
+      Long stamp = unpacked.get(guid);
+      return (stamp == null) ? REMOVED : stamp.longValue();
+    }
+    final Table t = table;
+    final int slot = t.find(key, packLow(guid));
+    return (slot < 0) ? REMOVED : t.stamps.get(slot);
+  }
+
+  @Override
+  public String toString() {
+    final Table t = table;
+    return "#<Tracker: " + (t.live + unpacked.size()) + " guids tracked in " + t.capacity() + " slots.>";
+  }
+
+  @Override
+  public boolean trackRecordForExclusion(String guid) {
+    return trackRecordForExclusion(guid, ALWAYS);
+  }
+
+  @Override
+  public synchronized boolean trackRecordForExclusion(String guid, long timestamp) {
+    if (guid == null) {
+      return false;
+    }
+    final long key = packHigh(guid);
+    if (key == 0) {
+      Long existing = unpacked.put(guid, Math.max(timestamp, existingStamp(unpacked.get(guid))));
+      return existing == null;
+    }
+
+    final short low = packLow(guid);
+    Table t = table;
+    int slot = t.find(key, low);
+    if (slot >= 0) {
+      final long existing = t.stamps.get(slot);
+      if (existing == REMOVED) {
+        t.stamps.set(slot, timestamp);
+        t.live++;
+        return true;
+      }
+      t.stamps.set(slot, Math.max(existing, timestamp));
+      return false;
+    }
+
+    // Keep the load factor at or below three quarters.
+    if (4 * (t.used + 1) > 3 * t.capacity()) {
+      t = rebuild(t.live + 1);
+      slot = t.find(key, low);
+    }
+    t.put(-1 - slot, key, low, timestamp);
+    return true;
+  }
+
+  private static long existingStamp(Long stamp) {
+    return (stamp == null) ? REMOVED : stamp.longValue();
+  }
+
+  @Override
+  public boolean isTrackedForExclusion(String guid) {
+    return getStamp(guid) != REMOVED;
+  }
+
+  @Override
+  public synchronized boolean untrackStoredForExclusion(String guid) {
+    if (guid == null) {
+      return false;
+    }
+    final long key = packHigh(guid);
+    if (key == 0) {
+      return unpacked.remove(guid) != null;
+    }
+
+    final Table t = table;
+    final int slot = t.find(key, packLow(guid));
+    if (slot < 0 || t.stamps.get(slot) == REMOVED) {
+      return false;
+    }
+    t.stamps.set(slot, REMOVED);
+    t.live--;
+
+    // Don't let markers pile up.
+    final int removed = t.used - t.live;
+    if (removed > t.live && t.capacity() > MIN_CAPACITY) {
+      rebuild(t.live);
+    }
+    return true;
+  }
+
+  /**
+   * Copy every tracked GUID into a new table with room for at least
+   * <code>entries</code> at half load, and publish it.
+   */
+  private Table rebuild(int entries) {
+    int capacity = MIN_CAPACITY;
+    while (capacity < 2 * entries) {
+      capacity <<= 1;
+    }
+    final Table old = table;
+    final Table t = new Table(capacity);
+    for (int i = 0; i < old.capacity(); i++) {
+      final long key = old.keys.get(i);
+      if (key == 0) {
+        continue;
+      }
+      final long stamp = old.stamps.get(i);
+      if (stamp == REMOVED) {
+        continue;
+      }
+      final short low = old.lows[i];
+      t.put(-1 - t.find(key, low), key, low, stamp);
+    }
+    table = t;
+    return t;
+  }
+
+  @Override
+  public synchronized RecordFilter getFilter() {
+    if (table.live == 0 && unpacked.isEmpty()) {
+      return null;
+    }
+    return new RecordFilter() {
+      @Override
+      public boolean excludeRecord(Record r) {
+        final long stamp = getStamp(r.guid);
+        return stamp != REMOVED && r.lastModified <= stamp;
+      }
+    };
+  }
+
+  /**
+   * @return a snapshot of the tracked GUIDs.
+   */
+  @Override
+  public synchronized Iterator<String> recordsTrackedForExclusion() {
+    final Table t = table;
+    final ArrayList<String> guids = new ArrayList<String>(t.live + unpacked.size());
+    for (int i = 0; i < t.capacity(); i++) {
+      final long key = t.keys.get(i);
+      if (key != 0 && t.stamps.get(i) != REMOVED) {
+        guids.add(unpack(key, t.lows[i]));
+      }
+    }
+    for (Entry<String, Long> entry : unpacked.entrySet()) {
+      guids.add(entry.getKey());
+    }
+    return guids.iterator();
+  }
+}
@@ -0,0 +1,46 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories;
+
+import java.util.List;
+
+import org.mozilla.gecko.sync.repositories.domain.Record;
+
+/**
+ * Fetched records, pulled a batch at a time by the consumer.
+ * <p>
+ * Unlike a fetch delegate, which is handed records as fast as the source can
+ * produce them, a stream produces at most a batch ahead of its consumer.
+ * Batches follow the source's own units of work, such as a page of a cursor.
+ * <p>
+ * Streams are used from one thread at a time, except for {@link #close()},
+ * which can be called from any thread to cancel the fetch. Consumers must
+ * call <code>close</code> when they are done, even after exhausting the
+ * stream.
+ */
+public interface RecordStream {
+  /**
+   * Block until the next batch of records is available.
+   *
+   * @return a non-empty batch, or null once every record has been returned or
+   *         the stream has been closed.
+   * @throws RecordStreamException
+   *           if the fetch failed. The stream returns nothing further.
+   */
+  public List<Record> nextBatch() throws RecordStreamException;
+
+  /**
+   * @return the timestamp at which the fetch ended, as would be passed to
+   *         <code>onFetchCompleted</code>. Only meaningful once
+   *         {@link #nextBatch()} has returned null without the stream being
+   *         closed.
+   */
+  public long getEnd();
+
+  /**
+   * Stop fetching and release any resources held by the stream.
+   */
+  public void close();
+}
@@ -0,0 +1,19 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories;
+
+import org.mozilla.gecko.sync.SyncException;
+
+/**
+ * Thrown by a {@link RecordStream} whose fetch failed. The failure is in
+ * <code>cause</code>.
+ */
+public class RecordStreamException extends SyncException {
+  private static final long serialVersionUID = -4093715846217843472L;
+
+  public RecordStreamException(Exception ex) {
+    super(ex);
+  }
+}
@@ -6,11 +6,13 @@ package org.mozilla.gecko.sync.repositories;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.mozilla.gecko.sync.Logger;
+import org.mozilla.gecko.sync.ThreadPool;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionBeginDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFinishDelegate;
@@ -59,15 +61,31 @@ public abstract class RepositorySession {
 
   /**
    * A queue of Runnables which call out into delegates.
+   * A serial lane on the shared {@link ThreadPool}.
    */
-  protected ExecutorService delegateQueue  = Executors.newSingleThreadExecutor();
+  protected ExecutorService delegateQueue  = ThreadPool.newSerialExecutor(getClass().getSimpleName() + " delegates");
 
   /**
    * A queue of Runnables which effect storing.
    * This includes actual store work, and also the consequences of storeDone.
    * This provides strict ordering.
+   * A serial lane on the shared {@link ThreadPool}.
    */
-  protected ExecutorService storeWorkQueue = Executors.newSingleThreadExecutor();
+  protected ExecutorService storeWorkQueue = ThreadPool.newSerialExecutor(getClass().getSimpleName() + " store");
+
+  /**
+   * Optional store lanes, used instead of <code>storeWorkQueue</code> for
+   * individual record stores when sharded storing is enabled. Each lane
+   * provides strict ordering for the records assigned to it.
+   * <p>
+   * null unless {@link #enableShardedStore(int)} has been called.
+   */
+  protected ExecutorService[] storeShards;
+
+  // The lane each GUID and dedupe key was first assigned to since the lanes
+  // last drained. Only used when sharded storing is enabled. Guarded by
+  // laneAssignments.
+  private final HashMap<String, Integer> laneAssignments = new HashMap<String, Integer>();
 
   // The time that the last sync on this collection completed, in milliseconds since epoch.
   public long lastSyncTimestamp;
@@ -85,6 +103,29 @@ public abstract class RepositorySession {
   public abstract void fetch(String[] guids, RepositorySessionFetchRecordsDelegate delegate) throws InactiveSessionException;
   public abstract void fetchAll(RepositorySessionFetchRecordsDelegate delegate);
 
+  /**
+   * Fetch the same records as {@link #fetchSince(long, RepositorySessionFetchRecordsDelegate)},
+   * but as a {@link RecordStream} that the caller pulls from at its own pace.
+   *
+   * @return a stream, or null if this session can't stream; use
+   *         <code>fetchSince</code> instead.
+   */
+  public RecordStream streamSince(long timestamp) {
+    return null;
+  }
+
+  /**
+   * A caller that can produce records faster than they're stored, such as a
+   * records channel pulling from a stream, uses this to avoid queuing
+   * unbounded work.
+   *
+   * @return the number of records passed to <code>store</code> that haven't
+   *         finished storing, or -1 if this session doesn't know.
+   */
+  public int getPendingStoreCount() {
+    return -1;
+  }
+
   /**
    * Override this if you wish to short-circuit a sync when you know --
    * e.g., by inspecting the database or info/collections -- that no new
@@ -115,11 +156,167 @@ public abstract class RepositorySession {
   }
   public abstract void store(Record record) throws NoStoreDelegateException;
 
+  /**
+   * Opt in to storing records on <code>shards</code> parallel store lanes.
+   * <p>
+   * Only suitable for sessions whose records have no dependencies on each
+   * other (e.g., history, but not bookmarks). Records are assigned to lanes
+   * by {@link #storeLaneFor(String)}, so all stores for the same key are
+   * still strictly ordered. <code>storeWorkQueue</code> continues to run
+   * everything else, including <code>onStoreCompleted</code>, which is only
+   * invoked once every lane has drained.
+   * <p>
+   * Must be called before <code>begin</code>.
+   *
+   * @param shards the number of store lanes. Values less than 2 are ignored.
+   */
+  protected void enableShardedStore(int shards) {
+    if (shards < 2) {
+      return;
+    }
+    if (getStatus() != SessionStatus.UNSTARTED) {
+      throw new IllegalStateException("Sharded storing must be enabled before begin.");
+    }
+    Logger.info(LOG_TAG, "Storing on " + shards + " parallel store lanes.");
+    storeShards = new ExecutorService[shards];
+    for (int i = 0; i < shards; i++) {
+      storeShards[i] = ThreadPool.newSerialExecutor(getClass().getSimpleName() + " store lane " + i);
+    }
+  }
+
+  /**
+   * @return the number of store lanes: 1 unless sharded storing is enabled.
+   */
+  protected int storeLaneCount() {
+    return (storeShards == null) ? 1 : storeShards.length;
+  }
+
+  /**
+   * @param key typically a record's GUID. May be null.
+   * @return the index of the store lane that should store records with this key.
+   */
+  protected int storeLaneFor(String key) {
+    if (storeShards == null || key == null) {
+      return 0;
+    }
+    return (key.hashCode() & 0x7FFFFFFF) % storeShards.length;
+  }
+
+  /**
+   * Choose the store lane for a record, such that every record with the same
+   * GUID, and every record with the same dedupe key, is stored on the same
+   * lane, in the order it was passed to <code>store</code>.
+   * <p>
+   * A GUID keeps the lane it was first assigned, so a later deletion for a
+   * GUID is ordered after the live record. A record whose dedupe key has
+   * already been seen joins that key's lane, so that records that dupe to the
+   * same local record are reconciled in order. If the GUID and the dedupe key
+   * were previously assigned to different lanes, the GUID wins.
+   *
+   * @param guid the record's GUID. May be null.
+   * @param dedupeKey the key by which the record can dupe to a local record
+   *        with a different GUID, such as a history URI. May be null.
+   * @return the index of the store lane.
+   */
+  protected int assignStoreLane(String guid, String dedupeKey) {
+    if (storeShards == null) {
+      return 0;
+    }
+    final String dedupeEntry = (dedupeKey == null) ? null : "dedupe:" + dedupeKey;
+    final String guidEntry = (guid == null) ? null : "guid:" + guid;
+    synchronized (laneAssignments) {
+      Integer lane = (guidEntry == null) ? null : laneAssignments.get(guidEntry);
+      if (lane == null && dedupeEntry != null) {
+        lane = laneAssignments.get(dedupeEntry);
+      }
+      if (lane == null) {
+        lane = storeLaneFor(guid);
+      }
+      if (guidEntry != null) {
+        laneAssignments.put(guidEntry, lane);
+      }
+      if (dedupeEntry != null && !laneAssignments.containsKey(dedupeEntry)) {
+        laneAssignments.put(dedupeEntry, lane);
+      }
+      return lane;
+    }
+  }
+
+  /**
+   * @return the executor for the given store lane.
+   */
+  protected ExecutorService storeLane(int lane) {
+    return (storeShards == null) ? storeWorkQueue : storeShards[lane];
+  }
+
+  /**
+   * Override this to flush any per-lane buffers. Called on each store lane's
+   * own thread, after every store already queued on that lane, when
+   * {@link #afterStoreLanesDrain(Runnable)} is invoked.
+   *
+   * @param lane the index of the lane.
+   */
+  protected void onStoreLaneDrained(int lane) {
+  }
+
+  /**
+   * Run <code>command</code> on <code>storeWorkQueue</code> once every store
+   * lane has finished the work already queued on it.
+   * <p>
+   * Lane assignments are released once the lanes drain: every record stored
+   * so far has been applied, so a later record can't overtake one with the
+   * same GUID or dedupe key. <code>store</code> must not be called again
+   * until <code>command</code> has run.
+   */
+  protected void afterStoreLanesDrain(final Runnable command) {
+    if (storeShards == null) {
+      storeWorkQueue.execute(new Runnable() {
+        @Override
+        public void run() {
+          drainLane(0);
+          command.run();
+        }
+      });
+      return;
+    }
+
+    final AtomicInteger remaining = new AtomicInteger(storeShards.length);
+    for (int i = 0; i < storeShards.length; i++) {
+      final int lane = i;
+      storeShards[i].execute(new Runnable() {
+        @Override
+        public void run() {
+          drainLane(lane);
+          if (remaining.decrementAndGet() == 0) {
+            Logger.debug(LOG_TAG, "All store lanes drained.");
+            synchronized (laneAssignments) {
+              laneAssignments.clear();
+            }
+            storeWorkQueue.execute(command);
+          }
+        }
+      });
+    }
+  }
+
+  private void drainLane(int lane) {
+    try {
+      onStoreLaneDrained(lane);
+    } catch (Exception e) {
+      Logger.warn(LOG_TAG, "Caught exception draining store lane " + lane + ".", e);
+    }
+  }
+
   public void storeDone() {
     // Our default behavior will be to assume that the Runnable is
     // executed as soon as all the stores synchronously finish, so
     // our end timestamp can just be… now.
-    storeDone(now());
+    afterStoreLanesDrain(new Runnable() {
+      @Override
+      public void run() {
+        storeDone(now());
+      }
+    });
   }
 
   public void storeDone(final long end) {
@@ -162,6 +359,9 @@ public abstract class RepositorySession {
     if (storeWorkQueue.isShutdown()) {
       throw new InvalidSessionTransitionException(null);
     }
+    if (storeShards != null && storeShards[0].isShutdown()) {
+      throw new InvalidSessionTransitionException(null);
+    }
     this.transitionFrom(SessionStatus.UNSTARTED, SessionStatus.ACTIVE);
   }
 
@@ -208,6 +408,41 @@ public abstract class RepositorySession {
     delegate.deferredFinishDelegate(delegateQueue).onFinishSucceeded(this, this.getBundle(null));
   }
 
+  /**
+   * Ask this session to deliver the records of subsequent fetches in
+   * ascending order of modified time, so that a fetch that stops early can be
+   * resumed after the last record it delivered.
+   * <p>
+   * Must be called before fetching.
+   *
+   * @return true if fetches will be so ordered; false if this session can't
+   *         order its fetches.
+   */
+  public boolean fetchInModifiedOrder() {
+    return false;
+  }
+
+  /**
+   * Ask any outstanding fetch to stop early, leaving the session active.
+   *
+   * @return true if a fetch was stopped, in which case it will make no
+   *         further delegate calls; false if any fetch will run to
+   *         completion as usual. Sessions that can't interrupt a fetch
+   *         return false.
+   */
+  public boolean abortFetch() {
+    return false;
+  }
+
+  /**
+   * Called when a record fetched from this session has been stored
+   * elsewhere, such as by the sink of a <code>RecordsChannel</code>.
+   *
+   * The default implementation does nothing.
+   */
+  public void fetchedRecordStored(String guid) {
+  }
+
   /**
    * Abnormally terminate the repository session, freeing or closing
    * any resources that were opened during the lifetime of the session.
@@ -220,6 +455,15 @@ public abstract class RepositorySession {
     } catch (Exception e) {
       Logger.error(LOG_TAG, "Caught exception shutting down store work queue.", e);
     }
+    if (storeShards != null) {
+      for (ExecutorService shard : storeShards) {
+        try {
+          shard.shutdownNow();
+        } catch (Exception e) {
+          Logger.error(LOG_TAG, "Caught exception shutting down store lane.", e);
+        }
+      }
+    }
     try {
       delegateQueue.shutdown();
     } catch (Exception e) {
@@ -247,6 +491,11 @@ public abstract class RepositorySession {
 
     Logger.info(LOG_TAG, "Shutting down work queues.");
     storeWorkQueue.shutdown();
+    if (storeShards != null) {
+      for (ExecutorService shard : storeShards) {
+        shard.shutdown();
+      }
+    }
     delegateQueue.shutdown();
   }
 
@@ -38,6 +38,7 @@
 package org.mozilla.gecko.sync.repositories;
 
 import java.io.IOException;
+import java.util.Map.Entry;
 
 import org.json.simple.parser.ParseException;
 import org.mozilla.gecko.sync.ExtendedJSONObject;
@@ -58,6 +59,16 @@ public class RepositorySessionBundle extends ExtendedJSONObject {
     super(jsonString);
   }
 
+  /**
+   * Copy <code>other</code>, so that changing one doesn't change the other.
+   */
+  public RepositorySessionBundle(RepositorySessionBundle other) {
+    this();
+    for (Entry<String, Object> entry : other.entryIterable()) {
+      this.put(entry.getKey(), entry.getValue());
+    }
+  }
+
   public RepositorySessionBundle(long lastSyncTimestamp) {
     this();
     this.setTimestamp(lastSyncTimestamp);
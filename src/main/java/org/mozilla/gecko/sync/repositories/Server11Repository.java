@@ -63,6 +63,9 @@ public class Server11Repository extends Repository {
   public CredentialsSource credentialsSource;
   public static final String VERSION_PATH_FRAGMENT = "1.1/";
 
+  // Servers and proxies reject request lines much longer than this.
+  public static final int DEFAULT_MAX_URL_LENGTH = 4096;
+
   /**
    *
    * @param serverURI
@@ -133,6 +136,9 @@ public class Server11Repository extends Repository {
   }
 
   // Override these.
+  protected int getMaxURLLength() {
+    return DEFAULT_MAX_URL_LENGTH;
+  }
   protected long getDefaultFetchLimit() {
     return -1;
   }
@@ -12,7 +12,10 @@ import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.json.simple.JSONArray;
@@ -20,7 +23,9 @@ import org.mozilla.gecko.sync.CryptoRecord;
 import org.mozilla.gecko.sync.DelayedWorkTracker;
 import org.mozilla.gecko.sync.ExtendedJSONObject;
 import org.mozilla.gecko.sync.HTTPFailureException;
+import org.mozilla.gecko.sync.JSONOutputBuffer;
 import org.mozilla.gecko.sync.Logger;
+import org.mozilla.gecko.sync.ThreadPool;
 import org.mozilla.gecko.sync.UnexpectedJSONException;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
 import org.mozilla.gecko.sync.net.SyncStorageCollectionRequest;
@@ -28,6 +33,7 @@ import org.mozilla.gecko.sync.net.SyncStorageRequest;
 import org.mozilla.gecko.sync.net.SyncStorageRequestDelegate;
 import org.mozilla.gecko.sync.net.SyncStorageResponse;
 import org.mozilla.gecko.sync.net.WBOCollectionRequestDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.BatchStoreCallbacks;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionGuidsSinceDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionStoreDelegate;
@@ -56,9 +62,10 @@ public class Server11RepositorySession extends RepositorySession {
 
   private static final int UPLOAD_BYTE_THRESHOLD = 1024 * 1024;    // 1MB.
   private static final int UPLOAD_ITEM_THRESHOLD = 50;
-  private static final int PER_RECORD_OVERHEAD   = 2;              // Comma, newline.
-  // {}, newlines, but we get to skip one record overhead.
-  private static final int PER_BATCH_OVERHEAD    = 5 - PER_RECORD_OVERHEAD;
+
+  // Upload buffers start small, since most batches are, and grow as needed.
+  private static final int UPLOAD_BUFFER_INITIAL_CAPACITY = 16 * 1024;
+  private static final int UPLOAD_BUFFER_POOL_SIZE        = 2;
 
   /**
    * Return the X-Weave-Timestamp header from <code>response</code>, or the
@@ -93,9 +100,32 @@ public class Server11RepositorySession extends RepositorySession {
    */
   private Set<SyncStorageCollectionRequest> pending = Collections.synchronizedSet(new HashSet<SyncStorageCollectionRequest>());
 
+  /**
+   * Bumped whenever fetches are aborted, so that a chunked fetch knows not to
+   * issue any more requests.
+   */
+  private final AtomicInteger fetchGeneration = new AtomicInteger(0);
+
+  @Override
+  public boolean abortFetch() {
+    fetchGeneration.incrementAndGet();
+
+    // Aborted requests make no further callbacks.
+    boolean aborted = false;
+    synchronized (pending) {
+      for (SyncStorageCollectionRequest request : pending) {
+        request.abort();
+        aborted = true;
+      }
+      pending.clear();
+    }
+    return aborted;
+  }
+
   @Override
   public void abort() {
     super.abort();
+    fetchGeneration.incrementAndGet();
     for (SyncStorageCollectionRequest request : pending) {
       request.abort();
     }
@@ -222,21 +252,29 @@ public class Server11RepositorySession extends RepositorySession {
     serverRepository = (Server11Repository) repository;
   }
 
-  private String flattenIDs(String[] guids) {
-    // Consider using Utils.toDelimitedString if and when the signature changes
-    // to Collection<String> guids.
-    if (guids.length == 0) {
-      return "";
-    }
-    if (guids.length == 1) {
-      return guids[0];
-    }
-    StringBuilder b = new StringBuilder();
+  /**
+   * Split <code>guids</code> into comma-separated lists, each short enough to
+   * append to <code>baseLength</code> characters of URL without exceeding
+   * <code>maxLength</code>. A GUID that can't fit gets a list of its own.
+   */
+  protected static List<String> chunkIDs(String[] guids, int baseLength, int maxLength) {
+    final ArrayList<String> chunks = new ArrayList<String>();
+    final StringBuilder b = new StringBuilder();
     for (String guid : guids) {
+      if (b.length() > 0) {
+        if (baseLength + b.length() + 1 + guid.length() > maxLength) {
+          chunks.add(b.toString());
+          b.setLength(0);
+        } else {
+          b.append(',');
+        }
+      }
       b.append(guid);
-      b.append(",");
     }
-    return b.substring(0, b.length() - 1);
+    if (b.length() > 0) {
+      chunks.add(b.toString());
+    }
+    return chunks;
   }
 
   @Override
@@ -264,6 +302,29 @@ public class Server11RepositorySession extends RepositorySession {
     request.get();
   }
 
+  // Overrides the repository's default sort for fetchSince and streamSince.
+  private volatile String fetchSortOverride = null;
+
+  /**
+   * Fetch oldest first. A constrained repository fetches only its most
+   * important records, by its own sort; we don't change which records those
+   * are, so it stays unordered.
+   */
+  @Override
+  public boolean fetchInModifiedOrder() {
+    if (serverRepository.getDefaultFetchLimit() > 0 ||
+        serverRepository.getDefaultSort() != null) {
+      return false;
+    }
+    fetchSortOverride = "oldest";
+    return true;
+  }
+
+  protected String getFetchSort() {
+    final String sort = fetchSortOverride;
+    return (sort == null) ? serverRepository.getDefaultSort() : sort;
+  }
+
   public void fetchSince(long timestamp, long limit, String sort, RepositorySessionFetchRecordsDelegate delegate) {
     try {
       this.fetchWithParameters(timestamp, limit, true, sort, null, new RequestFetchDelegateAdapter(delegate));
@@ -277,30 +338,188 @@ public class Server11RepositorySession extends RepositorySession {
                          RepositorySessionFetchRecordsDelegate delegate) {
     try {
       long limit = serverRepository.getDefaultFetchLimit();
-      String sort = serverRepository.getDefaultSort();
+      String sort = getFetchSort();
       this.fetchWithParameters(timestamp, limit, true, sort, null, new RequestFetchDelegateAdapter(delegate));
     } catch (URISyntaxException e) {
       delegate.onFetchFailed(e, null);
     }
   }
 
+  /**
+   * When streaming, records are handed over in batches of at most this many,
+   * and we stop reading the response while this many batches are waiting.
+   */
+  public static final int STREAM_BATCH_SIZE = 50;
+  public static final int STREAM_BUFFER_BATCHES = 4;
+
+  /**
+   * Fetch on a request thread of its own, which blocks when the consumer
+   * falls behind. Closing the stream aborts the request.
+   */
+  @Override
+  public RecordStream streamSince(final long timestamp) {
+    final long limit = serverRepository.getDefaultFetchLimit();
+    final String sort = getFetchSort();
+    final BufferedRecordStream stream = new BufferedRecordStream(STREAM_BATCH_SIZE * STREAM_BUFFER_BATCHES, STREAM_BATCH_SIZE) {
+      @Override
+      protected void onClose() {
+        abortFetch();
+      }
+    };
+    ThreadPool.run(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          fetchSince(timestamp, limit, sort, stream);
+        } catch (Exception e) {
+          // Don't leave the consumer waiting.
+          stream.onFetchFailed(e, null);
+        }
+      }
+    });
+    return stream;
+  }
+
   @Override
   public void fetchAll(RepositorySessionFetchRecordsDelegate delegate) {
     this.fetchSince(-1, delegate);
   }
 
+  /**
+   * Fetches by GUID are split into requests whose URLs fit the server's
+   * limit. Up to this many of those requests run at once.
+   */
+  public static final int FETCH_CONCURRENCY = 4;
+
   @Override
   public void fetch(String[] guids,
                     RepositorySessionFetchRecordsDelegate delegate) {
-    // TODO: watch out for URL length limits!
+    final List<String> chunks;
+    try {
+      final int baseLength = serverRepository.collectionURI(true, -1, -1, "index", "").toASCIIString().length();
+      chunks = chunkIDs(guids, baseLength, serverRepository.getMaxURLLength());
+    } catch (URISyntaxException e) {
+      delegate.onFetchFailed(e, null);
+      return;
+    }
+
+    if (chunks.size() > 1) {
+      Logger.debug(LOG_TAG, "Fetching " + guids.length + " records in " + chunks.size() + " requests.");
+      new ChunkedFetch(chunks, delegate).start();
+      return;
+    }
+
     try {
-      String ids = flattenIDs(guids);
+      String ids = chunks.isEmpty() ? "" : chunks.get(0);
       this.fetchWithParameters(-1, -1, true, "index", ids, new RequestFetchDelegateAdapter(delegate));
     } catch (URISyntaxException e) {
       delegate.onFetchFailed(e, null);
     }
   }
 
+  /**
+   * Fetch several lists of GUIDs, up to <code>FETCH_CONCURRENCY</code> at a
+   * time, and present them to <code>delegate</code> as one fetch: records one
+   * at a time, then a single completion carrying the earliest of the
+   * requests' timestamps, so that nothing modified during the fetch is
+   * skipped. The first failure ends the fetch.
+   */
+  protected class ChunkedFetch implements RepositorySessionFetchRecordsDelegate {
+    private final List<String> chunks;
+    private final RepositorySessionFetchRecordsDelegate delegate;
+    private final int generation;
+
+    // All guarded by this.
+    private int nextChunk = 0;
+    private int remaining;
+    private long fetchEnd = Long.MAX_VALUE;
+    private boolean done = false;
+
+    public ChunkedFetch(List<String> chunks, RepositorySessionFetchRecordsDelegate delegate) {
+      this.chunks = chunks;
+      this.delegate = delegate;
+      this.remaining = chunks.size();
+      this.generation = fetchGeneration.get();
+    }
+
+    public void start() {
+      final int workers = Math.min(FETCH_CONCURRENCY, chunks.size());
+      for (int i = 0; i < workers; i++) {
+        ThreadPool.run(new Runnable() {
+          @Override
+          public void run() {
+            // Each request blocks until its records have been handled.
+            String ids;
+            while ((ids = takeChunk()) != null) {
+              try {
+                fetchWithParameters(-1, -1, true, "index", ids, new RequestFetchDelegateAdapter(ChunkedFetch.this));
+              } catch (Exception e) {
+                onFetchFailed(e, null);
+                return;
+              }
+            }
+          }
+        });
+      }
+    }
+
+    /**
+     * @return the next list of GUIDs to fetch, or null if there are no more
+     *         or we should stop.
+     */
+    protected synchronized String takeChunk() {
+      if (done || nextChunk >= chunks.size() || generation != fetchGeneration.get()) {
+        return null;
+      }
+      return chunks.get(nextChunk++);
+    }
+
+    @Override
+    public synchronized void onFetchFailed(Exception ex, Record record) {
+      if (done) {
+        return;
+      }
+      done = true;
+      delegate.onFetchFailed(ex, record);
+    }
+
+    // Requests run concurrently, but the delegate sees one record at a time.
+    @Override
+    public synchronized void onFetchedRecord(Record record) {
+      if (done) {
+        return;
+      }
+      delegate.onFetchedRecord(record);
+    }
+
+    @Override
+    public synchronized void onFetchCompleted(long end) {
+      if (done) {
+        return;
+      }
+      fetchEnd = Math.min(fetchEnd, end);
+      if (--remaining > 0) {
+        return;
+      }
+      done = true;
+      delegate.onFetchCompleted(fetchEnd);
+    }
+
+    @Override
+    public void onFetchSucceeded(Record[] records, long end) {
+      for (Record record : records) {
+        onFetchedRecord(record);
+      }
+      onFetchCompleted(end);
+    }
+
+    // Only our own requests call us, on their own threads.
+    @Override
+    public RepositorySessionFetchRecordsDelegate deferredFetchDelegate(ExecutorService executor) {
+      return this;
+    }
+  }
+
   @Override
   public void wipe(RepositorySessionWipeDelegate delegate) {
     if (!isActive()) {
@@ -311,8 +530,51 @@ public class Server11RepositorySession extends RepositorySession {
   }
 
   protected Object recordsBufferMonitor = new Object();
-  protected ArrayList<byte[]> recordsBuffer = new ArrayList<byte[]>();
-  protected int byteCount = PER_BATCH_OVERHEAD;
+
+  /**
+   * Buffers whose uploads have finished, kept for reuse so that each batch
+   * doesn't allocate a new megabyte.
+   */
+  private final ArrayList<JSONOutputBuffer> freeBuffers = new ArrayList<JSONOutputBuffer>(UPLOAD_BUFFER_POOL_SIZE);
+
+  /**
+   * Records waiting to be uploaded, already serialized as the body of a POST:
+   * the opening bracket and comma-separated records, but not the closing
+   * bracket.
+   */
+  protected JSONOutputBuffer recordsBuffer = obtainBuffer();
+  protected int recordsBufferCount = 0;
+
+  protected JSONOutputBuffer obtainBuffer() {
+    JSONOutputBuffer buffer = null;
+    synchronized (freeBuffers) {
+      if (!freeBuffers.isEmpty()) {
+        buffer = freeBuffers.remove(freeBuffers.size() - 1);
+      }
+    }
+    if (buffer == null) {
+      buffer = new JSONOutputBuffer(UPLOAD_BUFFER_INITIAL_CAPACITY);
+    }
+    buffer.write(recordsStart);
+    return buffer;
+  }
+
+  protected void releaseBuffer(JSONOutputBuffer buffer) {
+    buffer.reset();
+    synchronized (freeBuffers) {
+      if (freeBuffers.size() < UPLOAD_BUFFER_POOL_SIZE) {
+        freeBuffers.add(buffer);
+      }
+    }
+  }
+
+  // Records enqueued whose upload hasn't finished.
+  protected final AtomicInteger pendingStores = new AtomicInteger(0);
+
+  @Override
+  public int getPendingStoreCount() {
+    return pendingStores.get();
+  }
 
   @Override
   public void store(Record record) throws NoStoreDelegateException {
@@ -329,31 +591,43 @@ public class Server11RepositorySession extends RepositorySession {
    * @param record
    */
   protected void enqueue(Record record) {
-    // JSONify and store the bytes, rather than the record.
-    byte[] json = record.toJSONBytes();
-    int delta   = json.length;
     synchronized (recordsBufferMonitor) {
-      if ((delta + byteCount     > UPLOAD_BYTE_THRESHOLD) ||
-          (recordsBuffer.size() >= UPLOAD_ITEM_THRESHOLD)) {
+      if (recordsBufferCount >= UPLOAD_ITEM_THRESHOLD) {
+        flush();
+      }
 
-        // POST the existing contents, then enqueue.
+      // JSONify straight into the outgoing buffer.
+      final int mark = recordsBuffer.length();
+      if (recordsBufferCount > 0) {
+        recordsBuffer.write(recordSeparator);
+      }
+      final int start = recordsBuffer.length();
+      record.writeJSON(recordsBuffer);
+
+      if (recordsBufferCount > 0 &&
+          recordsBuffer.length() + recordsEnd.length > UPLOAD_BYTE_THRESHOLD) {
+        // Too big to share this batch. POST the existing contents, then
+        // start the next batch with this record.
+        final byte[] json = recordsBuffer.copyFrom(start);
+        recordsBuffer.truncate(mark);
         flush();
+        recordsBuffer.write(json);
       }
-      recordsBuffer.add(json);
-      byteCount += PER_RECORD_OVERHEAD + delta;
+      recordsBufferCount += 1;
+      pendingStores.incrementAndGet();
     }
   }
 
   // Asynchronously upload records.
   // Must be locked!
   protected void flush() {
-    if (recordsBuffer.size() > 0) {
-      final ArrayList<byte[]> outgoing = recordsBuffer;
+    if (recordsBufferCount > 0) {
+      final JSONOutputBuffer outgoing = recordsBuffer;
       RepositorySessionStoreDelegate uploadDelegate = this.delegate;
-      storeWorkQueue.execute(new RecordUploadRunnable(uploadDelegate, outgoing, byteCount));
+      storeWorkQueue.execute(new RecordUploadRunnable(uploadDelegate, outgoing, recordsBufferCount));
 
-      recordsBuffer = new ArrayList<byte[]>();
-      byteCount = PER_BATCH_OVERHEAD;
+      recordsBuffer = obtainBuffer();
+      recordsBufferCount = 0;
     }
   }
 
@@ -375,17 +649,17 @@ public class Server11RepositorySession extends RepositorySession {
   protected class RecordUploadRunnable implements Runnable, SyncStorageRequestDelegate {
 
     public final String LOG_TAG = "RecordUploadRunnable";
-    private ArrayList<byte[]> outgoing;
-    private long byteCount;
+    private JSONOutputBuffer outgoing;
+    private int recordCount;
 
     public RecordUploadRunnable(RepositorySessionStoreDelegate storeDelegate,
-                                ArrayList<byte[]> outgoing,
-                                long byteCount) {
+                                JSONOutputBuffer outgoing,
+                                int recordCount) {
       Logger.debug(LOG_TAG, "Preparing RecordUploadRunnable for " +
-                     outgoing.size() + " records (" +
-                     byteCount + " bytes).");
-      this.outgoing  = outgoing;
-      this.byteCount = byteCount;
+                     recordCount + " records (" +
+                     (outgoing.length() + recordsEnd.length) + " bytes).");
+      this.outgoing    = outgoing;
+      this.recordCount = recordCount;
     }
 
     @Override
@@ -400,7 +674,7 @@ public class Server11RepositorySession extends RepositorySession {
 
     @Override
     public void handleRequestSuccess(SyncStorageResponse response) {
-      Logger.debug(LOG_TAG, "POST of " + outgoing.size() + " records done.");
+      Logger.debug(LOG_TAG, "POST of " + recordCount + " records done.");
 
       ExtendedJSONObject body;
       try {
@@ -429,11 +703,19 @@ public class Server11RepositorySession extends RepositorySession {
         if ((success != null) &&
             (success.size() > 0)) {
           Logger.debug(LOG_TAG, "Successful records: " + success.toString());
-          // TODO: how do we notify without the whole record?
 
           long normalizedTimestamp = getNormalizedTimestamp(response);
           Logger.debug(LOG_TAG, "Passing back upload X-Weave-Timestamp: " + normalizedTimestamp);
           bumpUploadTimestamp(normalizedTimestamp);
+
+          // We only have GUIDs, so only delegates that take batches hear about these.
+          ArrayList<String> guids = new ArrayList<String>(success.size());
+          for (Object guid : success) {
+            if (guid instanceof String) {
+              guids.add((String) guid);
+            }
+          }
+          BatchStoreCallbacks.guidsStoreSucceeded(delegate, guids, null);
         }
         if ((failed != null) &&
             (failed.object.size() > 0)) {
@@ -460,31 +742,25 @@ public class Server11RepositorySession extends RepositorySession {
       delegate.onRecordStoreFailed(ex);
     }
 
-    public class ByteArraysContentProducer implements ContentProducer {
+    public class RecordsBufferContentProducer implements ContentProducer {
 
-      ArrayList<byte[]> outgoing;
-      public ByteArraysContentProducer(ArrayList<byte[]> arrays) {
-        outgoing = arrays;
+      JSONOutputBuffer outgoing;
+      public RecordsBufferContentProducer(JSONOutputBuffer buffer) {
+        outgoing = buffer;
       }
 
       @Override
       public void writeTo(OutputStream outstream) throws IOException {
-        int count = outgoing.size();
-        outstream.write(recordsStart);
-        outstream.write(outgoing.get(0));
-        for (int i = 1; i < count; ++i) {
-          outstream.write(recordSeparator);
-          outstream.write(outgoing.get(i));
-        }
+        outgoing.writeTo(outstream);
         outstream.write(recordsEnd);
       }
     }
 
-    public class ByteArraysEntity extends EntityTemplate {
+    public class RecordsBufferEntity extends EntityTemplate {
       private long count;
-      public ByteArraysEntity(ArrayList<byte[]> arrays, long totalBytes) {
-        super(new ByteArraysContentProducer(arrays));
-        this.count = totalBytes;
+      public RecordsBufferEntity(JSONOutputBuffer buffer) {
+        super(new RecordsBufferContentProducer(buffer));
+        this.count = buffer.length() + recordsEnd.length;
         this.setContentType("application/json");
         // charset is set in BaseResource.
       }
@@ -500,15 +776,23 @@ public class Server11RepositorySession extends RepositorySession {
       }
     }
 
-    public ByteArraysEntity getBodyEntity() {
-      ByteArraysEntity body = new ByteArraysEntity(outgoing, byteCount);
+    public RecordsBufferEntity getBodyEntity() {
+      RecordsBufferEntity body = new RecordsBufferEntity(outgoing);
       return body;
     }
 
     @Override
     public void run() {
+      try {
+        upload();
+      } finally {
+        pendingStores.addAndGet(-recordCount);
+      }
+    }
+
+    protected void upload() {
       if (outgoing == null ||
-          outgoing.size() == 0) {
+          recordCount == 0) {
         Logger.debug(LOG_TAG, "No items: RecordUploadRunnable returning immediately.");
         return;
       }
@@ -521,8 +805,12 @@ public class Server11RepositorySession extends RepositorySession {
       // We don't want the task queue to proceed until this request completes.
       // Fortunately, BaseResource is currently synchronous.
       // If that ever changes, you'll need to block here.
-      ByteArraysEntity body = getBodyEntity();
+      RecordsBufferEntity body = getBodyEntity();
       request.post(body);
+
+      // The request is complete, so the buffer can be reused.
+      releaseBuffer(outgoing);
+      outgoing = null;
     }
   }
 }
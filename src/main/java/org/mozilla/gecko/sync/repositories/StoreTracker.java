@@ -61,6 +61,20 @@ public interface StoreTracker {
    */
   public boolean trackRecordForExclusion(String guid);
 
+  /**
+   * Track a GUID only until its record is modified again.
+   *
+   * @param guid
+   *        The GUID of the item to track.
+   * @param timestamp
+   *        When the record was stored. Implementations may exclude the record
+   *        only while its <code>lastModified</code> is no later than this, or
+   *        ignore the timestamp and always exclude it.
+   * @return
+   *        Whether the GUID was a newly tracked value.
+   */
+  public boolean trackRecordForExclusion(String guid, long timestamp);
+
   /**
    * @param guid
    *        The GUID of the item to check.
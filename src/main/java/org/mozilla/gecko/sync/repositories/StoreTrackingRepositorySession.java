@@ -17,7 +17,7 @@ public abstract class StoreTrackingRepositorySession extends RepositorySession {
   protected StoreTracker storeTracker;
 
   protected static StoreTracker createStoreTracker() {
-    return new HashSetStoreTracker();
+    return new PackedGuidStoreTracker();
   }
 
   public StoreTrackingRepositorySession(Repository repository) {
@@ -46,6 +46,17 @@ public abstract class StoreTrackingRepositorySession extends RepositorySession {
     this.storeTracker.trackRecordForExclusion(guid);
   }
 
+  /**
+   * Track a GUID only until its record is modified after
+   * <code>timestamp</code>.
+   */
+  protected synchronized void trackGUID(String guid, long timestamp) {
+    if (this.storeTracker == null) {
+      throw new IllegalStateException("Store tracker not yet initialized!");
+    }
+    this.storeTracker.trackRecordForExclusion(guid, timestamp);
+  }
+
   @Override
   protected synchronized void untrackGUID(String guid) {
     if (this.storeTracker == null) {
@@ -71,8 +82,10 @@ public abstract class StoreTrackingRepositorySession extends RepositorySession {
 
     Logger.debug(LOG_TAG, "Tracking record " + record.guid +
                            " (" + record.lastModified + ") to avoid re-upload.");
-    // Future: we care about the timestamp…
-    trackGUID(record.guid);
+    // The record has been written by now, so anything modified later than
+    // this is a local change that should be uploaded. Some records carry
+    // their remote timestamp into storage; don't let those escape.
+    trackGUID(record.guid, Math.max(now(), record.lastModified));
   }
 
   protected void untrackRecord(Record record) {
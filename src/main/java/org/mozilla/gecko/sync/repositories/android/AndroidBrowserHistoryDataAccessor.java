@@ -82,9 +82,14 @@ public class AndroidBrowserHistoryDataAccessor extends
   public void update(String oldGUID, Record newRecord) {
     HistoryRecord rec = (HistoryRecord) newRecord;
     String newGUID = newRecord.guid;
-    Logger.debug(LOG_TAG, "Storing visits for " + newGUID + ", replacing " + oldGUID);
-    dataExtender.delete(oldGUID);
-    dataExtender.store(newGUID, rec.visits);
+    Logger.debug(LOG_TAG, "Updating visits for " + newGUID + ", replacing " + oldGUID);
+    try {
+      dataExtender.update(oldGUID, newGUID, rec.visits);
+    } catch (NullCursorException e) {
+      Logger.warn(LOG_TAG, "Unable to read visits for " + oldGUID + "; replacing.", e);
+      dataExtender.delete(oldGUID);
+      dataExtender.store(newGUID, rec.visits);
+    }
     super.update(oldGUID, newRecord);
   }
 
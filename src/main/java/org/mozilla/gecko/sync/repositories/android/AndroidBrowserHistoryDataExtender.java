@@ -5,6 +5,9 @@
 package org.mozilla.gecko.sync.repositories.android;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.json.simple.JSONArray;
 import org.mozilla.gecko.sync.Logger;
@@ -23,14 +26,24 @@ public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper {
 
   // Database Specifications.
   protected static final String DB_NAME = "history_extension_database";
-  protected static final int SCHEMA_VERSION = 1;
+  protected static final int SCHEMA_VERSION = 2;
+
+  // Version 1 stored visits as a JSON array in a TEXT column.
+  // Version 2 stores visits as a PackedVisits blob, with the visit count and
+  // most recent visit date alongside so that updates can append to the blob.
+  protected static final int SCHEMA_VERSION_JSON_VISITS = 1;
 
   // History Table.
   public static final String   TBL_HISTORY_EXT = "HistoryExtension";
   public static final String   COL_GUID = "guid";
   public static final String   GUID_IS = COL_GUID + " = ?";
   public static final String   COL_VISITS = "visits";
-  public static final String[] TBL_COLUMNS = { COL_GUID, COL_VISITS };
+  public static final String   COL_VISIT_COUNT = "visit_count";
+  public static final String   COL_LAST_VISIT = "last_visit";
+  public static final String[] TBL_COLUMNS = { COL_GUID, COL_VISITS, COL_VISIT_COUNT, COL_LAST_VISIT };
+
+  // SQLite limits the number of bound parameters in a single statement.
+  protected static final int MAX_GUIDS_PER_QUERY = 500;
 
   private final RepoUtils.QueryHelper queryHelper;
 
@@ -41,22 +54,97 @@ public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper {
 
   @Override
   public void onCreate(SQLiteDatabase db) {
-    String createTableSql = "CREATE TABLE " + TBL_HISTORY_EXT + " ("
+    createTable(db, TBL_HISTORY_EXT);
+  }
+
+  protected static void createTable(SQLiteDatabase db, String table) {
+    String createTableSql = "CREATE TABLE " + table + " ("
         + COL_GUID + " TEXT PRIMARY KEY, "
-        + COL_VISITS + " TEXT)";
+        + COL_VISITS + " BLOB, "
+        + COL_VISIT_COUNT + " INTEGER NOT NULL DEFAULT 0, "
+        + COL_LAST_VISIT + " INTEGER NOT NULL DEFAULT 0)";
     db.execSQL(createTableSql);
   }
 
   @Override
   public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-    // For now we'll just drop and recreate the tables.
+    if (oldVersion == SCHEMA_VERSION_JSON_VISITS && newVersion == SCHEMA_VERSION) {
+      // Any failure propagates, rolling back the whole upgrade; we'll try
+      // again next time the database is opened.
+      migrateJSONVisits(db);
+      return;
+    }
+
+    // Otherwise we'll just drop and recreate the tables.
     db.execSQL("DROP TABLE IF EXISTS " + TBL_HISTORY_EXT);
     onCreate(db);
   }
 
+  /**
+   * Convert a version 1 table, with JSON visits, to packed visits.
+   * <p>
+   * <code>onUpgrade</code> runs inside a transaction, and the new schema
+   * version is only recorded if it succeeds, so an exception thrown part-way
+   * leaves the version 1 table and its visits as they were.
+   */
+  protected void migrateJSONVisits(SQLiteDatabase db) {
+    final String oldTable = TBL_HISTORY_EXT + "_v" + SCHEMA_VERSION_JSON_VISITS;
+    Logger.info(LOG_TAG, "Migrating JSON history visits to packed visits.");
+    db.execSQL("DROP TABLE IF EXISTS " + oldTable);
+    db.execSQL("ALTER TABLE " + TBL_HISTORY_EXT + " RENAME TO " + oldTable);
+    createTable(db, TBL_HISTORY_EXT);
+
+    int migrated = 0;
+    Cursor cur;
+    try {
+      cur = queryHelper.safeQuery(db, ".migrateJSONVisits", oldTable,
+          new String[] { COL_GUID, COL_VISITS }, null, null);
+    } catch (NullCursorException e) {
+      throw new SQLException("Unable to read version " + SCHEMA_VERSION_JSON_VISITS + " visits.");
+    }
+    try {
+      if (cur.moveToFirst()) {
+        while (!cur.isAfterLast()) {
+          String guid = RepoUtils.getStringFromCursor(cur, COL_GUID);
+          JSONArray visits = RepoUtils.getJSONArrayFromCursor(cur, COL_VISITS);
+          if (guid != null) {
+            db.insert(TBL_HISTORY_EXT, null, contentValues(guid, PackedVisits.fromJSONArray(visits)));
+            migrated += 1;
+          }
+          cur.moveToNext();
+        }
+      }
+    } finally {
+      cur.close();
+    }
+    db.execSQL("DROP TABLE " + oldTable);
+    Logger.info(LOG_TAG, "Migrated visits for " + migrated + " history records.");
+  }
+
   public void wipe() {
     SQLiteDatabase db = this.getCachedWritableDatabase();
-    onUpgrade(db, SCHEMA_VERSION, SCHEMA_VERSION);
+    db.execSQL("DROP TABLE IF EXISTS " + TBL_HISTORY_EXT);
+    onCreate(db);
+  }
+
+  protected static ContentValues contentValues(String guid, PackedVisits packed) {
+    ContentValues cv = new ContentValues();
+    cv.put(COL_GUID, guid);
+    cv.put(COL_VISITS, packed.bytes);
+    cv.put(COL_VISIT_COUNT, packed.count);
+    cv.put(COL_LAST_VISIT, packed.lastDate);
+    return cv;
+  }
+
+  /**
+   * Wrap the packed visits in the current row of <code>cur</code>. Decoding
+   * is deferred until the visits are requested.
+   */
+  protected static PackedVisits packedVisitsFromCursor(Cursor cur) {
+    byte[] bytes = cur.getBlob(cur.getColumnIndex(COL_VISITS));
+    int count = RepoUtils.getIntFromCursor(cur, COL_VISIT_COUNT);
+    long lastDate = RepoUtils.getLongFromCursor(cur, COL_LAST_VISIT);
+    return new PackedVisits(bytes, count, lastDate);
   }
 
   /**
@@ -70,13 +158,11 @@ public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper {
    * @param visits New visits data.
    */
   protected void store(SQLiteDatabase db, String guid, JSONArray visits) {
-    ContentValues cv = new ContentValues();
-    cv.put(COL_GUID, guid);
-    if (visits == null) {
-      cv.put(COL_VISITS, "[]");
-    } else {
-      cv.put(COL_VISITS, visits.toJSONString());
-    }
+    store(db, guid, PackedVisits.fromJSONArray(visits));
+  }
+
+  protected void store(SQLiteDatabase db, String guid, PackedVisits packed) {
+    ContentValues cv = contentValues(guid, packed);
 
     String[] args = new String[] { guid };
     int rowsUpdated = db.update(TBL_HISTORY_EXT, cv, GUID_IS, args);
@@ -102,6 +188,51 @@ public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper {
     store(db, guid, visits);
   }
 
+  /**
+   * Replace the visits stored for <code>oldGUID</code> with
+   * <code>visits</code>, and store them under <code>newGUID</code>.
+   * <p>
+   * Visits newer than every stored visit are appended to the stored blob,
+   * and an unchanged visit set is not rewritten at all; see
+   * {@link PackedVisits#update(JSONArray)}.
+   *
+   * @param oldGUID the GUID whose visits are replaced; must not be null.
+   * @param newGUID the GUID to store to; must not be null.
+   * @param visits new visits data.
+   * @throws NullCursorException
+   */
+  public void update(String oldGUID, String newGUID, JSONArray visits) throws NullCursorException {
+    SQLiteDatabase db = this.getCachedWritableDatabase();
+    try {
+      db.beginTransaction();
+
+      PackedVisits existing = null;
+      Cursor cur = queryHelper.safeQuery(db, ".update", TBL_HISTORY_EXT,
+          TBL_COLUMNS, GUID_IS, new String[] { oldGUID });
+      try {
+        if (cur.moveToFirst()) {
+          existing = packedVisitsFromCursor(cur);
+        }
+      } finally {
+        cur.close();
+      }
+
+      PackedVisits updated = (existing == null) ? PackedVisits.fromJSONArray(visits)
+                                                : existing.update(visits);
+      if (!oldGUID.equals(newGUID)) {
+        db.delete(TBL_HISTORY_EXT, GUID_IS, new String[] { oldGUID });
+      } else if (updated == existing) {
+        Logger.debug(LOG_TAG, "Visits for " + newGUID + " unchanged; not writing.");
+        db.setTransactionSuccessful();
+        return;
+      }
+      store(db, newGUID, updated);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
   /**
    * Store (update or insert) visit data in a single database transaction.
    */
@@ -151,13 +282,56 @@ public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper {
         // Cursor is empty.
         return new JSONArray();
       } else {
-        return RepoUtils.getJSONArrayFromCursor(visits, COL_VISITS);
+        return packedVisitsFromCursor(visits).toJSONArray();
       }
     } finally {
       visits.close();
     }
   }
 
+  /**
+   * Fetch visits for many GUIDs at once.
+   * <p>
+   * Issues one query per <code>MAX_GUIDS_PER_QUERY</code> GUIDs, rather than
+   * one query per GUID.
+   *
+   * @param guids The GUIDs to fetch visits for.
+   * @return A map from GUID to visits array. GUIDs with no stored visits are
+   *         not present in the map.
+   * @throws NullCursorException
+   */
+  public Map<String, JSONArray> visitsForGUIDs(List<String> guids) throws NullCursorException {
+    HashMap<String, JSONArray> result = new HashMap<String, JSONArray>();
+    if (guids == null || guids.isEmpty()) {
+      return result;
+    }
+
+    SQLiteDatabase db = this.getCachedReadableDatabase();
+    final int total = guids.size();
+    for (int start = 0; start < total; start += MAX_GUIDS_PER_QUERY) {
+      final int end = Math.min(total, start + MAX_GUIDS_PER_QUERY);
+      String[] args = guids.subList(start, end).toArray(new String[end - start]);
+      String where = RepoUtils.computeSQLInClause(args.length, COL_GUID);
+
+      Logger.debug(LOG_TAG, "Fetching visits for " + args.length + " GUIDs.");
+      Cursor visits = queryHelper.safeQuery(db, ".visitsForGUIDs",
+          TBL_HISTORY_EXT, TBL_COLUMNS, where, args);
+      try {
+        if (!visits.moveToFirst()) {
+          continue;
+        }
+        while (!visits.isAfterLast()) {
+          String guid = RepoUtils.getStringFromCursor(visits, COL_GUID);
+          result.put(guid, packedVisitsFromCursor(visits).toJSONArray());
+          visits.moveToNext();
+        }
+      } finally {
+        visits.close();
+      }
+    }
+    return result;
+  }
+
   /**
    * Delete a row.
    *
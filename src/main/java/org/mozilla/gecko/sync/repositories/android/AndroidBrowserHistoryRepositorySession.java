@@ -5,6 +5,7 @@
 package org.mozilla.gecko.sync.repositories.android;
 
 import java.util.ArrayList;
+import java.util.Map;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -16,6 +17,7 @@ import org.mozilla.gecko.sync.repositories.NoGuidForIdException;
 import org.mozilla.gecko.sync.repositories.NullCursorException;
 import org.mozilla.gecko.sync.repositories.ParentNotFoundException;
 import org.mozilla.gecko.sync.repositories.Repository;
+import org.mozilla.gecko.sync.repositories.delegates.BatchStoreCallbacks;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionBeginDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFinishDelegate;
 import org.mozilla.gecko.sync.repositories.domain.HistoryRecord;
@@ -37,9 +39,22 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
    */
   public static int INSERT_RECORD_THRESHOLD = 50;
 
+  /**
+   * The number of parallel store lanes to apply incoming records on. History
+   * records don't depend on each other, and each store queries the provider
+   * by GUID and flushes its lane's inserts in batches, so applying them
+   * concurrently keeps the provider busy.
+   */
+  protected static final int STORE_SHARD_COUNT = 4;
+
   public AndroidBrowserHistoryRepositorySession(Repository repository, Context context) {
     super(repository);
     dbHelper = new AndroidBrowserHistoryDataAccessor(context);
+    enableShardedStore(STORE_SHARD_COUNT);
+    recordsBuffers = new ArrayList<ArrayList<HistoryRecord>>(storeLaneCount());
+    for (int i = 0; i < storeLaneCount(); i++) {
+      recordsBuffers.add(new ArrayList<HistoryRecord>());
+    }
   }
 
   @Override
@@ -70,6 +85,18 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
     return hist.histURI;
   }
 
+  /**
+   * Incoming records dupe to local records by URI. Deleted records carry no
+   * URI, and are matched by GUID alone.
+   */
+  @Override
+  protected String storeDedupeKey(Record record) {
+    if (!record.deleted && (record instanceof HistoryRecord)) {
+      return ((HistoryRecord) record).histURI;
+    }
+    return null;
+  }
+
   @Override
   public boolean shouldIgnore(Record record) {
     if (super.shouldIgnore(record)) {
@@ -87,6 +114,34 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
     return addVisitsToRecord(record);
   }
 
+  /**
+   * Fetch visits for a whole page of records with a single query against the
+   * data extender, rather than one query per record.
+   */
+  @Override
+  protected void transformRecords(ArrayList<Record> records) throws NullCursorException {
+    ArrayList<String> guids = new ArrayList<String>(records.size());
+    for (Record record : records) {
+      if (record != null && record.guid != null) {
+        guids.add(record.guid);
+      }
+    }
+
+    Logger.debug(LOG_TAG, "Adding visits for " + guids.size() + " records.");
+    Map<String, JSONArray> visits = getDataExtender().visitsForGUIDs(guids);
+    for (int i = 0; i < records.size(); i++) {
+      HistoryRecord hist = (HistoryRecord) records.get(i);
+      if (hist == null) {
+        continue;
+      }
+      JSONArray visitsArray = visits.get(hist.guid);
+      if (visitsArray == null) {
+        visitsArray = new JSONArray();
+      }
+      records.set(i, addVisitsToRecord(hist, visitsArray));
+    }
+  }
+
   @SuppressWarnings("unchecked")
   private void addVisit(JSONArray visits, long date, long visitType) {
     JSONObject visit = new JSONObject();
@@ -107,6 +162,10 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
     Log.d(LOG_TAG, "Adding visits for GUID " + record.guid);
     HistoryRecord hist = (HistoryRecord) record;
     JSONArray visitsArray = getDataExtender().visitsForGUID(hist.guid);
+    return addVisitsToRecord(hist, visitsArray);
+  }
+
+  private Record addVisitsToRecord(HistoryRecord hist, JSONArray visitsArray) {
     long missingRecords = hist.fennecVisitCount - visitsArray.size();
 
     // Note that Fennec visit times are milliseconds, and we are working
@@ -155,58 +214,73 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
     super.finish(delegate);
   }
 
-  protected Object recordsBufferMonitor = new Object();
-  protected ArrayList<HistoryRecord> recordsBuffer = new ArrayList<HistoryRecord>();
+  // One buffer per store lane. Each is only touched from its own lane.
+  protected final ArrayList<ArrayList<HistoryRecord>> recordsBuffers;
 
   /**
    * Queue record for insertion, possibly flushing the queue.
    * <p>
-   * Must be called on <code>storeWorkQueue</code> thread! But this is only
-   * called from <code>store</code>, which is called on the queue thread.
+   * Must be called on the given store lane's thread! But this is only
+   * called from <code>store</code>, which is called on that thread.
    *
    * @param record
    *          A <code>Record</code> with a GUID that is not present locally.
+   * @param lane
+   *          The index of the store lane this is running on.
    */
   @Override
-  protected void insert(Record record) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
-    enqueueNewRecord((HistoryRecord) prepareRecord(record));
+  protected void insert(Record record, int lane) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
+    enqueueNewRecord((HistoryRecord) prepareRecord(record), lane);
   }
 
   /**
    * Batch incoming records until some reasonable threshold is hit or storeDone
    * is received.
    * <p>
-   * Must be called on <code>storeWorkQueue</code> thread!
+   * Must be called on the given store lane's thread!
    *
    * @param record A <code>Record</code> with a GUID that is not present locally.
+   * @param lane The index of the store lane this is running on.
    * @throws NullCursorException
    */
-  protected void enqueueNewRecord(HistoryRecord record) throws NullCursorException {
-    synchronized (recordsBufferMonitor) {
-      if (recordsBuffer.size() >= INSERT_RECORD_THRESHOLD) {
-        flushNewRecords();
-      }
-      Logger.debug(LOG_TAG, "Enqueuing new record with GUID " + record.guid);
-      recordsBuffer.add(record);
+  protected void enqueueNewRecord(HistoryRecord record, int lane) throws NullCursorException {
+    final ArrayList<HistoryRecord> recordsBuffer = recordsBuffers.get(lane);
+    if (recordsBuffer.size() >= INSERT_RECORD_THRESHOLD) {
+      flushNewRecords(lane);
     }
+    Logger.debug(LOG_TAG, "Enqueuing new record with GUID " + record.guid);
+    recordsBuffer.add(record);
   }
 
   /**
-   * Flush queue of incoming records to database.
-   * <p>
-   * Must be called on <code>storeWorkQueue</code> thread!
+   * Flush every lane's queue of incoming records to database.
    * <p>
-   * Must be locked by recordsBufferMonitor!
+   * Must only be called when no stores are in progress.
+   *
    * @throws NullCursorException
    */
   protected void flushNewRecords() throws NullCursorException {
+    for (int i = 0; i < recordsBuffers.size(); i++) {
+      flushNewRecords(i);
+    }
+  }
+
+  /**
+   * Flush a lane's queue of incoming records to database.
+   * <p>
+   * Must be called on that lane's thread!
+   *
+   * @throws NullCursorException
+   */
+  protected void flushNewRecords(int lane) throws NullCursorException {
+    final ArrayList<HistoryRecord> recordsBuffer = recordsBuffers.get(lane);
     if (recordsBuffer.size() < 1) {
       Logger.debug(LOG_TAG, "No records to flush, returning.");
       return;
     }
 
-    final ArrayList<HistoryRecord> outgoing = recordsBuffer;
-    recordsBuffer = new ArrayList<HistoryRecord>();
+    final ArrayList<HistoryRecord> outgoing = new ArrayList<HistoryRecord>(recordsBuffer);
+    recordsBuffer.clear();
     Logger.debug(LOG_TAG, "Flushing " + outgoing.size() + " records to database.");
     // TODO: move bulkInsert to AndroidBrowserDataAccessor?
     int inserted = ((AndroidBrowserHistoryDataAccessor) dbHelper).bulkInsert(outgoing);
@@ -234,22 +308,25 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
         throw e;
       }
       trackRecord(succeeded);
-      delegate.onRecordStoreSucceeded(succeeded); // At this point, we are really inserted.
+    }
+    // At this point, we are really inserted.
+    BatchStoreCallbacks.recordsStoreSucceeded(delegate, outgoing);
+  }
+
+  @Override
+  protected void onStoreLaneDrained(int lane) {
+    try {
+      flushNewRecords(lane);
+    } catch (Exception e) {
+      Logger.warn(LOG_TAG, "Error flushing records to database.", e);
     }
   }
 
   @Override
   public void storeDone() {
-    storeWorkQueue.execute(new Runnable() {
+    afterStoreLanesDrain(new Runnable() {
       @Override
       public void run() {
-        synchronized (recordsBufferMonitor) {
-          try {
-            flushNewRecords();
-          } catch (Exception e) {
-            Logger.warn(LOG_TAG, "Error flushing records to database.", e);
-          }
-        }
         storeDone(System.currentTimeMillis());
       }
     });
@@ -6,6 +6,8 @@ package org.mozilla.gecko.sync.repositories.android;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.mozilla.gecko.sync.Logger;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
@@ -18,6 +20,8 @@ import org.mozilla.gecko.sync.repositories.NullCursorException;
 import org.mozilla.gecko.sync.repositories.ParentNotFoundException;
 import org.mozilla.gecko.sync.repositories.ProfileDatabaseException;
 import org.mozilla.gecko.sync.repositories.RecordFilter;
+import org.mozilla.gecko.sync.repositories.RecordStream;
+import org.mozilla.gecko.sync.repositories.RecordStreamException;
 import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.StoreTrackingRepositorySession;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionBeginDelegate;
@@ -59,6 +63,9 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
   protected AndroidBrowserRepositoryDataAccessor dbHelper;
   private HashMap<String, String> recordToGuid;
 
+  // Guards recordToGuid, which is accessed from every store lane.
+  private final Object recordToGuidMonitor = new Object();
+
   public AndroidBrowserRepositorySession(Repository repository) {
     super(repository);
   }
@@ -124,6 +131,24 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     return record;
   }
 
+  /**
+   * Override in subclass to implement record extension for a page of fetched
+   * records at once.
+   *
+   * The default implementation calls {@link #transformRecord(Record)} on each
+   * record in turn. Subclasses that can populate expensive fields with a
+   * single query per page should override this.
+   *
+   * @param records
+   *        The records to transform. Entries are replaced in place.
+   * @throws NullCursorException
+   */
+  protected void transformRecords(ArrayList<Record> records) throws NullCursorException {
+    for (int i = 0; i < records.size(); i++) {
+      records.set(i, transformRecord(records.get(i)));
+    }
+  }
+
   @Override
   public void begin(RepositorySessionBeginDelegate delegate) throws InvalidSessionTransitionException {
     RepositorySessionBeginDelegate deferredDelegate = delegate.deferredBeginDelegate(delegateQueue);
@@ -232,6 +257,46 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     executeDelegateCommand(command);
   }
 
+  /**
+   * The number of fetched records to transform together. Subclasses can
+   * use this to populate expensive fields with one query per page rather
+   * than one query per record.
+   */
+  public static final int FETCH_PAGE_SIZE = 50;
+
+  /**
+   * Read the next page of records from a fetch cursor, skipping records the
+   * filter excludes and records that transformation discards.
+   *
+   * @param cursor
+   *        a cursor positioned at the next row to read.
+   * @return up to <code>FETCH_PAGE_SIZE</code> transformed records, or null
+   *         once the cursor is exhausted.
+   */
+  protected ArrayList<Record> nextPage(Cursor cursor, RecordFilter filter)
+      throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
+    final ArrayList<Record> page = new ArrayList<Record>(FETCH_PAGE_SIZE);
+    while (page.isEmpty() && !cursor.isAfterLast()) {
+      while (page.size() < FETCH_PAGE_SIZE && !cursor.isAfterLast()) {
+        Record r = retrieveDuringFetch(cursor);
+        if (r != null) {
+          if (filter == null || !filter.excludeRecord(r)) {
+            Logger.trace(LOG_TAG, "Processing record " + r.guid);
+            page.add(r);
+          } else {
+            Logger.debug(LOG_TAG, "Skipping filtered record " + r.guid);
+          }
+        }
+        cursor.moveToNext();
+      }
+      transformRecords(page);
+      while (page.remove(null)) {
+        // Transformation discarded this record.
+      }
+    }
+    return page.isEmpty() ? null : page;
+  }
+
   abstract class FetchingRunnable implements Runnable {
     protected RepositorySessionFetchRecordsDelegate delegate;
 
@@ -247,17 +312,11 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
             delegate.onFetchCompleted(end);
             return;
           }
-          while (!cursor.isAfterLast()) {
-            Record r = retrieveDuringFetch(cursor);
-            if (r != null) {
-              if (filter == null || !filter.excludeRecord(r)) {
-                Logger.trace(LOG_TAG, "Processing record " + r.guid);
-                delegate.onFetchedRecord(transformRecord(r));
-              } else {
-                Logger.debug(LOG_TAG, "Skipping filtered record " + r.guid);
-              }
+          ArrayList<Record> page;
+          while ((page = nextPage(cursor, filter)) != null) {
+            for (Record r : page) {
+              delegate.onFetchedRecord(r);
             }
-            cursor.moveToNext();
           }
           delegate.onFetchCompleted(end);
         } catch (NoGuidForIdException e) {
@@ -356,6 +415,85 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     }
   }
 
+  @Override
+  public RecordStream streamSince(long timestamp) {
+    if (this.storeTracker == null) {
+      throw new IllegalStateException("Store tracker not yet initialized!");
+    }
+
+    Logger.info(LOG_TAG, "Streaming since " + timestamp + ".");
+    return new CursorRecordStream(timestamp, now(), this.storeTracker.getFilter());
+  }
+
+  /**
+   * Reads the records of a <code>fetchSince</code> cursor one page at a time,
+   * as the consumer asks for them. Each page is transformed together, as
+   * during a fetch.
+   */
+  public class CursorRecordStream implements RecordStream {
+    private final long since;
+    private final long end;
+    private final RecordFilter filter;
+
+    // Guarded by this.
+    private Cursor cursor;
+    private boolean done = false;
+
+    public CursorRecordStream(long since, long end, RecordFilter filter) {
+      this.since  = since;
+      this.end    = end;
+      this.filter = filter;
+    }
+
+    @Override
+    public synchronized List<Record> nextBatch() throws RecordStreamException {
+      if (done) {
+        return null;
+      }
+      if (!isActive()) {
+        close();
+        throw new RecordStreamException(new InactiveSessionException(null));
+      }
+      try {
+        if (cursor == null) {
+          cursor = dbHelper.fetchSince(since);
+          if (!cursor.moveToFirst()) {
+            close();
+            return null;
+          }
+        }
+
+        final ArrayList<Record> page = nextPage(cursor, filter);
+        if (page == null) {
+          close();
+        }
+        return page;
+      } catch (Exception e) {
+        Logger.warn(LOG_TAG, "Exception streaming from cursor.", e);
+        close();
+        throw new RecordStreamException(e);
+      }
+    }
+
+    @Override
+    public long getEnd() {
+      return end;
+    }
+
+    /**
+     * Waits for any page being read to finish.
+     */
+    @Override
+    public synchronized void close() {
+      done = true;
+      if (cursor != null) {
+        Logger.trace(LOG_TAG, "Closing cursor after stream.");
+        cursor.close();
+        cursor = null;
+      }
+    }
+  }
+
   @Override
   public void fetchAll(RepositorySessionFetchRecordsDelegate delegate) {
     this.fetchSince(0, delegate);
@@ -363,6 +501,26 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
 
   protected int storeCount = 0;
 
+  // Stores queued on a lane that haven't finished running.
+  protected final AtomicInteger pendingStores = new AtomicInteger(0);
+
+  @Override
+  public int getPendingStoreCount() {
+    return pendingStores.get();
+  }
+
+  /**
+   * Override this to return the key by which an incoming record can dupe to
+   * a local record with a different GUID. When sharded storing is enabled,
+   * records with the same dedupe key are stored on the same lane, so that
+   * they are reconciled in order.
+   *
+   * @return the key, or null if the record only matches by GUID.
+   */
+  protected String storeDedupeKey(Record record) {
+    return null;
+  }
+
   @Override
   public void store(final Record record) throws NoStoreDelegateException {
     if (delegate == null) {
@@ -376,12 +534,24 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     storeCount += 1;
     Logger.debug(LOG_TAG, "Storing record with GUID " + record.guid + " (stored " + storeCount + " records this session).");
 
+    // Every record with a given GUID is stored on the same lane, so a
+    // deletion can't overtake the live record it deletes.
+    final int lane = assignStoreLane(record.guid, storeDedupeKey(record));
+
     // Store Runnables *must* complete synchronously. It's OK, they
     // run on a background thread.
     Runnable command = new Runnable() {
 
       @Override
       public void run() {
+        try {
+          storeRecord();
+        } finally {
+          pendingStores.decrementAndGet();
+        }
+      }
+
+      private void storeRecord() {
         if (!isActive()) {
           Logger.warn(LOG_TAG, "AndroidBrowserRepositorySession is inactive. Store failing.");
           delegate.onRecordStoreFailed(new InactiveSessionException(null));
@@ -470,7 +640,7 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
           if (existingRecord == null) {
             // The record is new.
             trace("No match. Inserting.");
-            insert(record);
+            insert(record, lane);
             return;
           }
 
@@ -525,7 +695,8 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
         }
       }
     };
-    storeWorkQueue.execute(command);
+    pendingStores.incrementAndGet();
+    storeLane(lane).execute(command);
   }
 
   /**
@@ -542,6 +713,18 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     delegate.onRecordStoreSucceeded(record);
   }
 
+  /**
+   * Insert a record that has no local counterpart.
+   * <p>
+   * Called on the store lane the record was assigned to. Override this to
+   * batch inserts per lane.
+   *
+   * @param lane the index of the store lane this is running on.
+   */
+  protected void insert(Record record, int lane) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
+    insert(record);
+  }
+
   protected void insert(Record record) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
     Record toStore = prepareRecord(record);
     Uri recordURI = dbHelper.insert(toStore);
@@ -626,7 +809,10 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     }
 
     Logger.debug(LOG_TAG, "Searching with record string " + recordString);
-    String guid = getRecordToGuidMap().get(recordString);
+    String guid;
+    synchronized (recordToGuidMonitor) {
+      guid = getRecordToGuidMap().get(recordString);
+    }
     if (guid == null) {
       Logger.debug(LOG_TAG, "findExistingRecord failed to find one for " + record.guid);
       return null;
@@ -637,10 +823,12 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
   }
 
   public HashMap<String, String> getRecordToGuidMap() throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
-    if (recordToGuid == null) {
-      createRecordToGuidMap();
+    synchronized (recordToGuidMonitor) {
+      if (recordToGuid == null) {
+        createRecordToGuidMap();
+      }
+      return recordToGuid;
     }
-    return recordToGuid;
   }
 
   private void createRecordToGuidMap() throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
@@ -676,10 +864,12 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
       return;
     }
 
-    if (recordToGuid == null) {
-      createRecordToGuidMap();
+    synchronized (recordToGuidMonitor) {
+      if (recordToGuid == null) {
+        createRecordToGuidMap();
+      }
+      recordToGuid.put(recordString, guid);
     }
-    recordToGuid.put(recordString, guid);
   }
 
   protected abstract Record prepareRecord(Record record);
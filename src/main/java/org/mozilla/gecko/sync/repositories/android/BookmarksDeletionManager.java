@@ -4,6 +4,7 @@
 
 package org.mozilla.gecko.sync.repositories.android;
 
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -11,6 +12,7 @@ import java.util.Set;
 import org.mozilla.gecko.db.BrowserContract;
 import org.mozilla.gecko.sync.Logger;
 import org.mozilla.gecko.sync.repositories.NullCursorException;
+import org.mozilla.gecko.sync.repositories.delegates.BatchStoreCallbacks;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionStoreDelegate;
 import org.mozilla.gecko.sync.repositories.domain.BookmarkRecord;
 
@@ -224,10 +226,7 @@ public class BookmarksDeletionManager {
     Logger.trace(LOG_TAG, "Invoking store callback for " + nonFolderGUIDs.length + " GUIDs.");
     final long now = System.currentTimeMillis();
     BookmarkRecord r = new BookmarkRecord(null, "bookmarks", now, true);
-    for (String guid : nonFolderGUIDs) {
-      r.guid = guid;
-      delegate.onRecordStoreSucceeded(r);
-    }
+    BatchStoreCallbacks.guidsStoreSucceeded(delegate, Arrays.asList(nonFolderGUIDs), r);
   }
 
   /**
@@ -4,7 +4,10 @@
 
 package org.mozilla.gecko.sync.repositories.android;
 
+import java.util.Collection;
+
 import org.mozilla.gecko.sync.Logger;
+import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.repositories.NullCursorException;
 import org.mozilla.gecko.sync.repositories.domain.ClientRecord;
 
@@ -19,7 +22,7 @@ public class ClientsDatabase extends CachedSQLiteOpenHelper {
 
   // Database Specifications.
   protected static final String DB_NAME = "clients_database";
-  protected static final int SCHEMA_VERSION = 1;
+  protected static final int SCHEMA_VERSION = 2;
 
   // Clients Table.
   public static final String TBL_CLIENTS      = "clients";
@@ -27,11 +30,21 @@ public class ClientsDatabase extends CachedSQLiteOpenHelper {
   public static final String COL_PROFILE      = "profile";
   public static final String COL_NAME         = "name";
   public static final String COL_TYPE         = "device_type";
+  public static final String COL_HASH         = "content_hash";
 
   public static final String[] TBL_COLUMNS = new String[] { COL_ACCOUNT_GUID, COL_PROFILE, COL_NAME, COL_TYPE };
   public static final String TBL_KEY = COL_ACCOUNT_GUID + " = ? AND " +
                                        COL_PROFILE + " = ?";
 
+  // Tabs Hashes Table: what we last wrote to Fennec's clients and tabs
+  // providers for each remote client, so unchanged tabs records can be skipped.
+  public static final String TBL_TABS_HASHES  = "tabs_hashes";
+  public static final String COL_CLIENTS_HASH = "clients_hash";
+  public static final String COL_TABS_HASH    = "tabs_hash";
+
+  public static final String[] TBL_TABS_HASHES_COLUMNS = new String[] { COL_CLIENTS_HASH, COL_TABS_HASH };
+  public static final String TBL_TABS_HASHES_KEY = COL_ACCOUNT_GUID + " = ?";
+
   private final RepoUtils.QueryHelper queryHelper;
 
   public ClientsDatabase(Context context) {
@@ -46,8 +59,15 @@ public class ClientsDatabase extends CachedSQLiteOpenHelper {
         + COL_PROFILE + " TEXT, "
         + COL_NAME + " TEXT, "
         + COL_TYPE + " TEXT, "
+        + COL_HASH + " TEXT, "
         + "PRIMARY KEY (" + COL_ACCOUNT_GUID + ", " + COL_PROFILE + "))";
     db.execSQL(createTableSql);
+
+    String createHashesTableSql = "CREATE TABLE " + TBL_TABS_HASHES + " ("
+        + COL_ACCOUNT_GUID + " TEXT PRIMARY KEY, "
+        + COL_CLIENTS_HASH + " TEXT, "
+        + COL_TABS_HASH + " TEXT)";
+    db.execSQL(createHashesTableSql);
   }
 
   public void wipe() {
@@ -59,12 +79,37 @@ public class ClientsDatabase extends CachedSQLiteOpenHelper {
   public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
     // For now we'll just drop and recreate the tables.
     db.execSQL("DROP TABLE IF EXISTS " + TBL_CLIENTS);
+    db.execSQL("DROP TABLE IF EXISTS " + TBL_TABS_HASHES);
     onCreate(db);
   }
 
+  /**
+   * Hash the parts of a client record that we store, so that an unchanged
+   * record can be recognized without comparing every column.
+   *
+   * @return a hash string, or null if one could not be computed.
+   */
+  public static String contentHash(ClientRecord record) {
+    try {
+      return Utils.sha1Base32(record.name + '\u0000' + record.type);
+    } catch (Exception e) {
+      Logger.warn(LOG_TAG, "Unable to hash client record.", e);
+      return null;
+    }
+  }
+
   // If a record with given GUID exists, we'll update it,
-  // otherwise we'll insert it.
-  public void store(String profileId, ClientRecord record) {
+  // otherwise we'll insert it. If it exists and is unchanged,
+  // we do nothing.
+  // Returns true if the database was written.
+  public boolean store(String profileId, ClientRecord record) {
+    String[] args = new String[] { record.guid, profileId };
+    String hash = contentHash(record);
+    if (hash != null && hash.equals(fetchHash(args))) {
+      Logger.debug(LOG_TAG, "Client record with accountGUID " + record.guid + " is unchanged.");
+      return false;
+    }
+
     SQLiteDatabase db = this.getCachedWritableDatabase();
 
     ContentValues cv = new ContentValues();
@@ -72,8 +117,8 @@ public class ClientsDatabase extends CachedSQLiteOpenHelper {
     cv.put(COL_PROFILE, profileId);
     cv.put(COL_NAME, record.name);
     cv.put(COL_TYPE, record.type);
+    cv.put(COL_HASH, hash);
 
-    String[] args = new String[] { record.guid, profileId };
     int rowsUpdated = db.update(TBL_CLIENTS, cv, TBL_KEY, args);
 
     if (rowsUpdated >= 1) {
@@ -82,6 +127,25 @@ public class ClientsDatabase extends CachedSQLiteOpenHelper {
       long rowId = db.insert(TBL_CLIENTS, null, cv);
       Logger.debug(LOG_TAG, "Inserted client record into row: " + rowId);
     }
+    return true;
+  }
+
+  protected String fetchHash(String[] args) {
+    Cursor cur = null;
+    try {
+      SQLiteDatabase db = this.getCachedReadableDatabase();
+      cur = queryHelper.safeQuery(db, ".fetchHash", TBL_CLIENTS, new String[] { COL_HASH }, TBL_KEY, args);
+      if (!cur.moveToFirst()) {
+        return null;
+      }
+      return cur.getString(0);
+    } catch (NullCursorException e) {
+      return null;
+    } finally {
+      if (cur != null) {
+        cur.close();
+      }
+    }
   }
 
   public Cursor fetch(String accountGuid, String profileId) throws NullCursorException {
@@ -103,4 +167,61 @@ public class ClientsDatabase extends CachedSQLiteOpenHelper {
     SQLiteDatabase db = this.getCachedWritableDatabase();
     db.delete(TBL_CLIENTS, TBL_KEY, args);
   }
+
+  /**
+   * Delete every client record whose GUID is not in <code>accountGUIDs</code>.
+   */
+  public void deleteAllExcept(String profileId, Collection<String> accountGUIDs) {
+    SQLiteDatabase db = this.getCachedWritableDatabase();
+    if (accountGUIDs.isEmpty()) {
+      db.delete(TBL_CLIENTS, COL_PROFILE + " = ?", new String[] { profileId });
+      return;
+    }
+
+    // SQLite limits the number of bound arguments, so compare against a
+    // literal list instead. GUIDs are URL-safe base64 and need no escaping
+    // beyond doubling quotes.
+    StringBuilder where = new StringBuilder(COL_PROFILE + " = ? AND " + COL_ACCOUNT_GUID + " NOT IN (");
+    boolean first = true;
+    for (String guid : accountGUIDs) {
+      if (!first) {
+        where.append(", ");
+      }
+      first = false;
+      where.append('\'').append(guid.replace("'", "''")).append('\'');
+    }
+    where.append(')');
+    int deleted = db.delete(TBL_CLIENTS, where.toString(), new String[] { profileId });
+    Logger.debug(LOG_TAG, "Deleted " + deleted + " client records that are no longer on the server.");
+  }
+
+  public Cursor fetchTabsHashes(String accountGUID) throws NullCursorException {
+    String[] args = new String[] { accountGUID };
+    SQLiteDatabase db = this.getCachedReadableDatabase();
+
+    return queryHelper.safeQuery(db, ".fetchTabsHashes", TBL_TABS_HASHES, TBL_TABS_HASHES_COLUMNS, TBL_TABS_HASHES_KEY, args);
+  }
+
+  public void storeTabsHashes(String accountGUID, String clientsHash, String tabsHash) {
+    SQLiteDatabase db = this.getCachedWritableDatabase();
+
+    ContentValues cv = new ContentValues();
+    cv.put(COL_ACCOUNT_GUID, accountGUID);
+    cv.put(COL_CLIENTS_HASH, clientsHash);
+    cv.put(COL_TABS_HASH, tabsHash);
+    db.replace(TBL_TABS_HASHES, null, cv);
+  }
+
+  /**
+   * @param accountGUID
+   *          the client whose hashes to delete, or null to delete all.
+   */
+  public void deleteTabsHashes(String accountGUID) {
+    SQLiteDatabase db = this.getCachedWritableDatabase();
+    if (accountGUID == null) {
+      db.delete(TBL_TABS_HASHES, null, null);
+      return;
+    }
+    db.delete(TBL_TABS_HASHES, TBL_TABS_HASHES_KEY, new String[] { accountGUID });
+  }
 }
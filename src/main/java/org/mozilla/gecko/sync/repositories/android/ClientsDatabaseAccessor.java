@@ -105,6 +105,51 @@ public class ClientsDatabaseAccessor {
     return ClientsDatabaseAccessor.PROFILE_ID;
   }
 
+  public void delete(String accountGUID) {
+    db.delete(accountGUID, getProfileId());
+  }
+
+  /**
+   * Delete every client record whose GUID is not in <code>accountGUIDs</code>.
+   * Used after a full download in place of wiping before it.
+   */
+  public void deleteAllExcept(Collection<String> accountGUIDs) {
+    db.deleteAllExcept(getProfileId(), accountGUIDs);
+  }
+
+  /**
+   * @return the clients and tabs hashes last stored for the given client, as
+   *         a two-element array, or null if there are none.
+   */
+  public String[] fetchTabsHashes(String accountGUID) throws NullCursorException {
+    Cursor cur = null;
+    try {
+      cur = db.fetchTabsHashes(accountGUID);
+      if (cur == null || !cur.moveToFirst()) {
+        return null;
+      }
+      return new String[] {
+          RepoUtils.getStringFromCursor(cur, ClientsDatabase.COL_CLIENTS_HASH),
+          RepoUtils.getStringFromCursor(cur, ClientsDatabase.COL_TABS_HASH) };
+    } finally {
+      if (cur != null) {
+        cur.close();
+      }
+    }
+  }
+
+  public void storeTabsHashes(String accountGUID, String clientsHash, String tabsHash) {
+    db.storeTabsHashes(accountGUID, clientsHash, tabsHash);
+  }
+
+  public void deleteTabsHashes(String accountGUID) {
+    db.deleteTabsHashes(accountGUID);
+  }
+
+  public void wipeTabsHashes() {
+    db.deleteTabsHashes(null);
+  }
+
   public void wipe() {
     db.wipe();
   }
@@ -6,6 +6,7 @@ package org.mozilla.gecko.sync.repositories.android;
 
 import org.mozilla.gecko.db.BrowserContract;
 import org.mozilla.gecko.sync.Logger;
+import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.NoContentProviderException;
 import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
@@ -22,6 +23,7 @@ import org.mozilla.gecko.sync.repositories.domain.TabsRecord;
 import android.content.ContentProviderClient;
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.net.Uri;
 import android.os.RemoteException;
 
@@ -42,6 +44,10 @@ public class FennecTabsRepository extends Repository {
     private final ContentProviderClient tabsProvider;
     private final ContentProviderClient clientsProvider;
 
+    // Remembers what we last wrote for each client, so we can skip writes
+    // that wouldn't change anything.
+    private final ClientsDatabaseAccessor hashes;
+
     protected ContentProviderClient getContentProvider(final Context context, final Uri uri) throws NoContentProviderException {
 
       ContentProviderClient client = context.getContentResolver().acquireContentProviderClient(uri);
@@ -58,6 +64,9 @@ public class FennecTabsRepository extends Repository {
       try {
         tabsProvider.release();
       } catch (Exception e) {}
+      try {
+        hashes.close();
+      } catch (Exception e) {}
     }
 
 
@@ -74,6 +83,7 @@ public class FennecTabsRepository extends Repository {
         // Oh, Java.
         throw new RuntimeException(e);
       }
+      hashes = new ClientsDatabaseAccessor(context);
     }
 
     @Override
@@ -119,6 +129,66 @@ public class FennecTabsRepository extends Repository {
 
     private static final String TABS_CLIENT_GUID_IS = BrowserContract.Tabs.CLIENT_GUID + " = ?";
     private static final String CLIENT_GUID_IS = BrowserContract.Clients.GUID + " = ?";
+
+    /**
+     * Hash the values we write to the clients provider for a record.
+     *
+     * @return a hash string, or null if one could not be computed.
+     */
+    protected static String clientsHash(TabsRecord record) {
+      return hash(record.clientName + '\u0000' + record.lastModified);
+    }
+
+    /**
+     * Hash the values we write to the tabs provider for a record.
+     *
+     * @return a hash string, or null if one could not be computed.
+     */
+    protected static String tabsHash(TabsRecord record) {
+      if (record.tabs == null) {
+        return hash("");
+      }
+      StringBuilder sb = new StringBuilder();
+      for (TabsRecord.Tab tab : record.tabs) {
+        sb.append(tab.title).append('\u0000');
+        sb.append(tab.icon).append('\u0000');
+        sb.append(tab.history == null ? null : tab.history.toJSONString()).append('\u0000');
+        sb.append(tab.lastUsed).append('\u0001');
+      }
+      return hash(sb.toString());
+    }
+
+    private static String hash(String input) {
+      try {
+        return Utils.sha1Base32(input);
+      } catch (Exception e) {
+        Logger.warn(LOG_TAG, "Unable to hash tabs record.", e);
+        return null;
+      }
+    }
+
+    private static boolean hashMatches(String hash, String stored) {
+      return hash != null && hash.equals(stored);
+    }
+
+    /**
+     * Our stored hashes are only good if Fennec still has the rows they
+     * describe; it clears its own tables from time to time.
+     */
+    protected boolean clientExists(String[] selectionArgs) throws RemoteException {
+      Cursor cur = clientsProvider.query(BrowserContract.Clients.CONTENT_URI,
+                                         new String[] { BrowserContract.Clients.GUID },
+                                         CLIENT_GUID_IS, selectionArgs, null);
+      if (cur == null) {
+        return false;
+      }
+      try {
+        return cur.moveToFirst();
+      } finally {
+        cur.close();
+      }
+    }
+
     @Override
     public void store(final Record record) throws NoStoreDelegateException {
       if (delegate == null) {
@@ -149,7 +219,6 @@ public class FennecTabsRepository extends Repository {
           }
 
           try {
-            // This is nice and easy: we *always* store.
             final String[] selectionArgs = new String[] { tabsRecord.guid };
             if (tabsRecord.deleted) {
               try {
@@ -157,6 +226,7 @@ public class FennecTabsRepository extends Repository {
                 clientsProvider.delete(BrowserContract.Clients.CONTENT_URI,
                                        CLIENT_GUID_IS,
                                        selectionArgs);
+                hashes.deleteTabsHashes(tabsRecord.guid);
                 delegate.onRecordStoreSucceeded(record);
               } catch (Exception e) {
                 delegate.onRecordStoreFailed(e);
@@ -164,26 +234,49 @@ public class FennecTabsRepository extends Repository {
               return;
             }
 
-            // If it exists, update the client record; otherwise insert.
-            final ContentValues clientsCV = tabsRecord.getClientsContentValues();
+            // Skip whatever is unchanged since we last stored this client.
+            // Every write wakes Fennec's content observers.
+            final String clientsHash = clientsHash(tabsRecord);
+            final String tabsHash = tabsHash(tabsRecord);
+            String[] stored = hashes.fetchTabsHashes(tabsRecord.guid);
+            if (stored != null && !clientExists(selectionArgs)) {
+              Logger.debug(LOG_TAG, "Client " + tabsRecord.guid + " is no longer in the clients provider.");
+              stored = null;
+            }
+            final boolean clientChanged = stored == null || !hashMatches(clientsHash, stored[0]);
+            final boolean tabsChanged   = stored == null || !hashMatches(tabsHash, stored[1]);
+
+            if (clientChanged) {
+              // If it exists, update the client record; otherwise insert.
+              final ContentValues clientsCV = tabsRecord.getClientsContentValues();
 
-            Logger.debug(LOG_TAG, "Updating clients provider.");
-            final int updated = clientsProvider.update(BrowserContract.Clients.CONTENT_URI,
-                clientsCV,
-                CLIENT_GUID_IS,
-                selectionArgs);
-            if (0 == updated) {
-              clientsProvider.insert(BrowserContract.Clients.CONTENT_URI, clientsCV);
+              Logger.debug(LOG_TAG, "Updating clients provider.");
+              final int updated = clientsProvider.update(BrowserContract.Clients.CONTENT_URI,
+                  clientsCV,
+                  CLIENT_GUID_IS,
+                  selectionArgs);
+              if (0 == updated) {
+                clientsProvider.insert(BrowserContract.Clients.CONTENT_URI, clientsCV);
+              }
+            } else {
+              Logger.debug(LOG_TAG, "Client entry for " + tabsRecord.guid + " is unchanged.");
             }
 
-            // Now insert tabs.
-            final ContentValues[] tabsArray = tabsRecord.getTabsContentValues();
-            Logger.debug(LOG_TAG, "Inserting " + tabsArray.length + " tabs for client " + tabsRecord.guid);
+            if (tabsChanged) {
+              // Now insert tabs.
+              final ContentValues[] tabsArray = tabsRecord.getTabsContentValues();
+              Logger.debug(LOG_TAG, "Inserting " + tabsArray.length + " tabs for client " + tabsRecord.guid);
 
-            tabsProvider.delete(BrowserContract.Tabs.CONTENT_URI, TABS_CLIENT_GUID_IS, selectionArgs);
-            final int inserted = tabsProvider.bulkInsert(BrowserContract.Tabs.CONTENT_URI, tabsArray);
-            Logger.trace(LOG_TAG, "Inserted: " + inserted);
+              tabsProvider.delete(BrowserContract.Tabs.CONTENT_URI, TABS_CLIENT_GUID_IS, selectionArgs);
+              final int inserted = tabsProvider.bulkInsert(BrowserContract.Tabs.CONTENT_URI, tabsArray);
+              Logger.trace(LOG_TAG, "Inserted: " + inserted);
+            } else {
+              Logger.debug(LOG_TAG, "Tabs for client " + tabsRecord.guid + " are unchanged.");
+            }
 
+            if (clientChanged || tabsChanged) {
+              hashes.storeTabsHashes(tabsRecord.guid, clientsHash, tabsHash);
+            }
             delegate.onRecordStoreSucceeded(tabsRecord);
           } catch (Exception e) {
             Logger.warn(LOG_TAG, "Error storing tabs.", e);
@@ -200,6 +293,7 @@ public class FennecTabsRepository extends Repository {
       try {
         tabsProvider.delete(BrowserContract.Tabs.CONTENT_URI, null, null);
         clientsProvider.delete(BrowserContract.Clients.CONTENT_URI, null, null);
+        hashes.wipeTabsHashes();
       } catch (RemoteException e) {
         Logger.warn(LOG_TAG, "Got RemoteException in wipe.", e);
         delegate.onWipeFailed(e);
@@ -0,0 +1,153 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories.android;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.mozilla.gecko.sync.repositories.domain.FormHistoryRecord;
+
+/**
+ * An in-memory index of local form history records, used by
+ * <code>FormHistoryRepositorySession</code> to find existing records without
+ * querying the form history provider for every incoming record.
+ * <p>
+ * Records are indexed by GUID (live and deleted). Live records are also
+ * indexed by a 64-bit hash of their field name and value, which is much
+ * smaller than keeping the strings twice. If two different payloads share a
+ * hash, the later one is indexed by its full payload instead, so lookups are
+ * always exact.
+ * <p>
+ * If several local records share a payload, the first one indexed is the one
+ * found, matching the old <code>moveToFirst</code> query behaviour.
+ * <p>
+ * Not thread-safe: callers are expected to use the index from a single store
+ * thread.
+ */
+public class FormHistoryIndex {
+  private final Map<String, FormHistoryRecord> byGUID = new HashMap<String, FormHistoryRecord>();
+  private final Map<Long, String> byPayloadHash = new HashMap<Long, String>();
+  private final Map<String, String> byPayloadCollisions = new HashMap<String, String>();
+
+  public int size() {
+    return byGUID.size();
+  }
+
+  public void clear() {
+    byGUID.clear();
+    byPayloadHash.clear();
+    byPayloadCollisions.clear();
+  }
+
+  /**
+   * Add a record to the index, replacing any record with the same GUID.
+   */
+  public void put(FormHistoryRecord record) {
+    if (record == null || record.guid == null) {
+      return;
+    }
+    remove(record.guid);
+    byGUID.put(record.guid, record);
+    if (record.deleted) {
+      return;
+    }
+
+    final Long hash = payloadHash(record.fieldName, record.fieldValue);
+    final String occupant = byPayloadHash.get(hash);
+    if (occupant == null) {
+      byPayloadHash.put(hash, record.guid);
+      return;
+    }
+    if (samePayload(byGUID.get(occupant), record.fieldName, record.fieldValue)) {
+      // A local duplicate. Keep the first.
+      return;
+    }
+    final String key = payloadKey(record.fieldName, record.fieldValue);
+    if (!byPayloadCollisions.containsKey(key)) {
+      byPayloadCollisions.put(key, record.guid);
+    }
+  }
+
+  /**
+   * Remove the record with the given GUID, if present.
+   *
+   * @return the removed record, or null.
+   */
+  public FormHistoryRecord remove(String guid) {
+    final FormHistoryRecord removed = byGUID.remove(guid);
+    if (removed == null || removed.deleted) {
+      return removed;
+    }
+    final Long hash = payloadHash(removed.fieldName, removed.fieldValue);
+    if (guid.equals(byPayloadHash.get(hash))) {
+      byPayloadHash.remove(hash);
+    } else if (!byPayloadCollisions.isEmpty()) {
+      final String key = payloadKey(removed.fieldName, removed.fieldValue);
+      if (guid.equals(byPayloadCollisions.get(key))) {
+        byPayloadCollisions.remove(key);
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * @return the live or deleted record with the given GUID, or null.
+   */
+  public FormHistoryRecord get(String guid) {
+    return byGUID.get(guid);
+  }
+
+  /**
+   * @return a live record with the given field name and value, or null.
+   */
+  public FormHistoryRecord findByPayload(String fieldName, String fieldValue) {
+    final String guid = byPayloadHash.get(payloadHash(fieldName, fieldValue));
+    if (guid != null) {
+      final FormHistoryRecord candidate = byGUID.get(guid);
+      if (samePayload(candidate, fieldName, fieldValue)) {
+        return candidate;
+      }
+    }
+    if (byPayloadCollisions.isEmpty()) {
+      return null;
+    }
+    final String collision = byPayloadCollisions.get(payloadKey(fieldName, fieldValue));
+    return (collision == null) ? null : byGUID.get(collision);
+  }
+
+  private static boolean samePayload(FormHistoryRecord record, String fieldName, String fieldValue) {
+    return record != null &&
+           stringsEqual(record.fieldName, fieldName) &&
+           stringsEqual(record.fieldValue, fieldValue);
+  }
+
+  private static boolean stringsEqual(String a, String b) {
+    return (a == null) ? b == null : a.equals(b);
+  }
+
+  private static String payloadKey(String fieldName, String fieldValue) {
+    return fieldName + '\u0000' + fieldValue;
+  }
+
+  // 64-bit FNV-1a over the field name, a separator, and the value.
+  protected long payloadHash(String fieldName, String fieldValue) {
+    long hash = 0xcbf29ce484222325L;
+    hash = fnv(hash, fieldName);
+    hash = (hash ^ 0xFFFF) * 0x100000001b3L;
+    hash = fnv(hash, fieldValue);
+    return hash;
+  }
+
+  private static long fnv(long hash, String s) {
+    if (s == null) {
+      return (hash ^ 0xFFFE) * 0x100000001b3L;
+    }
+    final int length = s.length();
+    for (int i = 0; i < length; i++) {
+      hash = (hash ^ s.charAt(i)) * 0x100000001b3L;
+    }
+    return hash;
+  }
+}
@@ -12,21 +12,26 @@ import org.mozilla.gecko.db.BrowserContract.DeletedFormHistory;
 import org.mozilla.gecko.db.BrowserContract.FormHistory;
 import org.mozilla.gecko.sync.Logger;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
+import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
 import org.mozilla.gecko.sync.repositories.NoContentProviderException;
 import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
 import org.mozilla.gecko.sync.repositories.NullCursorException;
 import org.mozilla.gecko.sync.repositories.RecordFilter;
 import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.StoreTrackingRepositorySession;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionBeginDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCreationDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFinishDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionGuidsSinceDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionStoreDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionWipeDelegate;
 import org.mozilla.gecko.sync.repositories.domain.FormHistoryRecord;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
@@ -38,7 +43,7 @@ public class FormHistoryRepositorySession extends
   public static String LOG_TAG = "FormHistoryRepoSess";
 
   /**
-   * Number of records to insert in one batch.
+   * Number of write operations to apply in one batch.
    */
   public static final int INSERT_ITEM_THRESHOLD = 200;
 
@@ -63,6 +68,13 @@ public class FormHistoryRepositorySession extends
   protected final RepoUtils.QueryHelper regularHelper;
   protected final RepoUtils.QueryHelper deletedHelper;
 
+  /**
+   * Index of local records, built at <code>begin</code> and kept current as
+   * rows are inserted, replaced and deleted. Only touched on the store thread
+   * after begin.
+   */
+  protected FormHistoryIndex index;
+
   /**
    * Acquire the content provider client.
    * <p>
@@ -96,6 +108,14 @@ public class FormHistoryRepositorySession extends
     return formsProvider;
   }
 
+  /**
+   * Rebuild the index from the provider, picking up rows written behind the
+   * session's back. Must only be called when no stores are in progress.
+   */
+  protected void rebuildIndex() throws RemoteException, NullCursorException {
+    index = buildIndex();
+  }
+
   public FormHistoryRepositorySession(Repository repository, Context context)
       throws NoContentProviderException {
     super(repository);
@@ -104,9 +124,61 @@ public class FormHistoryRepositorySession extends
     deletedHelper = new RepoUtils.QueryHelper(context, BrowserContractHelpers.DELETED_FORM_HISTORY_CONTENT_URI, LOG_TAG);
   }
 
+  @Override
+  public void begin(RepositorySessionBeginDelegate delegate) throws InvalidSessionTransitionException {
+    RepositorySessionBeginDelegate deferredDelegate = delegate.deferredBeginDelegate(delegateQueue);
+    try {
+      super.sharedBegin();
+    } catch (InvalidSessionTransitionException e) {
+      deferredDelegate.onBeginFailed(e);
+      return;
+    }
+
+    try {
+      index = buildIndex();
+    } catch (Exception e) {
+      Logger.error(LOG_TAG, "Unable to build form history index.", e);
+      deferredDelegate.onBeginFailed(e);
+      return;
+    }
+    storeTracker = createStoreTracker();
+    deferredDelegate.onBeginSucceeded(this);
+  }
+
+  /**
+   * Scan the regular and deleted tables once, indexing every local record.
+   */
+  protected FormHistoryIndex buildIndex() throws RemoteException, NullCursorException {
+    final FormHistoryIndex out = new FormHistoryIndex();
+    final long before = System.currentTimeMillis();
+
+    Cursor cursor = regularHelper.safeQuery(formsProvider, ".buildIndex(regular)", null, null, null, null);
+    try {
+      while (cursor.moveToNext()) {
+        out.put(formHistoryRecordFromCursor(cursor));
+      }
+    } finally {
+      cursor.close();
+    }
+
+    cursor = deletedHelper.safeQuery(formsProvider, ".buildIndex(deleted)", null, null, null, null);
+    try {
+      while (cursor.moveToNext()) {
+        out.put(deletedFormHistoryRecordFromCursor(cursor));
+      }
+    } finally {
+      cursor.close();
+    }
+
+    final long after = System.currentTimeMillis();
+    Logger.debug(LOG_TAG, "Indexed " + out.size() + " local form history records in " + (after - before) + " milliseconds.");
+    return out;
+  }
+
   @Override
   public void abort() {
     releaseProviders();
+    index = null;
     super.abort();
   }
 
@@ -114,6 +186,7 @@ public class FormHistoryRepositorySession extends
   public void finish(final RepositorySessionFinishDelegate delegate)
       throws InactiveSessionException {
     releaseProviders();
+    index = null;
     super.finish(delegate);
   }
 
@@ -215,34 +288,16 @@ public class FormHistoryRepositorySession extends
     return record;
   }
 
-  protected static void fetchFromCursor(final Cursor cursor, final RecordFilter filter, final RepositorySessionFetchRecordsDelegate delegate)
-      throws NullCursorException {
-    Logger.debug(LOG_TAG, "Fetch from cursor");
-    if (cursor == null) {
-      throw new NullCursorException(null);
-    }
-    try {
-      if (!cursor.moveToFirst()) {
-        return;
-      }
-      while (!cursor.isAfterLast()) {
-        Record r = retrieveDuringFetch(cursor);
-        if (r != null) {
-          if (filter == null || !filter.excludeRecord(r)) {
-            Logger.trace(LOG_TAG, "Processing record " + r.guid);
-            delegate.onFetchedRecord(r);
-          } else {
-            Logger.debug(LOG_TAG, "Skipping filtered record " + r.guid);
-          }
-        }
-        cursor.moveToNext();
-      }
-    } finally {
-      Logger.trace(LOG_TAG, "Closing cursor after fetch.");
-      cursor.close();
-    }
-  }
+  protected static final String REGULAR_ORDER = FormHistory.FIRST_USED + " ASC";
+  protected static final String DELETED_ORDER = DeletedFormHistory.TIME_DELETED + " ASC";
 
+  /**
+   * Fetch records from every cursor, interleaved by modification time.
+   * <p>
+   * Each <code>Callable</code> must return a cursor sorted by modification
+   * time, ascending: see <code>REGULAR_ORDER</code> and
+   * <code>DELETED_ORDER</code>. The queries run concurrently.
+   */
   protected void fetchHelper(final RepositorySessionFetchRecordsDelegate delegate, final long end, final List<Callable<Cursor>> cursorCallables) {
     if (this.storeTracker == null) {
       throw new IllegalStateException("Store tracker not yet initialized!");
@@ -258,16 +313,27 @@ public class FormHistoryRepositorySession extends
           return;
         }
 
-        for (Callable<Cursor> cursorCallable : cursorCallables) {
-          Cursor cursor = null;
-          try {
-            cursor = cursorCallable.call();
-            fetchFromCursor(cursor, filter, delegate); // Closes cursor.
-          } catch (Exception e) {
-            Logger.warn(LOG_TAG, "Exception during fetchHelper", e);
-            delegate.onFetchFailed(e, null);
-            return;
-          }
+        final ArrayList<MergedCursorFetcher.CursorSource> sources = new ArrayList<MergedCursorFetcher.CursorSource>();
+        for (final Callable<Cursor> cursorCallable : cursorCallables) {
+          sources.add(new MergedCursorFetcher.CursorSource() {
+            @Override
+            public Cursor query() throws Exception {
+              return cursorCallable.call();
+            }
+
+            @Override
+            public Record recordFromCursor(Cursor cursor) {
+              return retrieveDuringFetch(cursor);
+            }
+          });
+        }
+
+        try {
+          MergedCursorFetcher.fetch(sources, filter, delegate); // Closes cursors.
+        } catch (Exception e) {
+          Logger.warn(LOG_TAG, "Exception during fetchHelper", e);
+          delegate.onFetchFailed(e, null);
+          return;
         }
 
         delegate.onFetchCompleted(end);
@@ -302,14 +368,14 @@ public class FormHistoryRepositorySession extends
     Callable<Cursor> regularCallable = new Callable<Cursor>() {
       @Override
       public Cursor call() throws Exception {
-        return regularHelper.safeQuery(formsProvider, ".fetchSince(regular)", null, regularBetween(timestamp, sharedEnd), null, null);
+        return regularHelper.safeQuery(formsProvider, ".fetchSince(regular)", null, regularBetween(timestamp, sharedEnd), null, REGULAR_ORDER);
       }
     };
 
     Callable<Cursor> deletedCallable = new Callable<Cursor>() {
       @Override
       public Cursor call() throws Exception {
-        return deletedHelper.safeQuery(formsProvider, ".fetchSince(deleted)", null, deletedBetween(timestamp, sharedEnd), null, null);
+        return deletedHelper.safeQuery(formsProvider, ".fetchSince(deleted)", null, deletedBetween(timestamp, sharedEnd), null, DELETED_ORDER);
       }
     };
 
@@ -336,7 +402,7 @@ public class FormHistoryRepositorySession extends
       @Override
       public Cursor call() throws Exception {
         String regularWhere = where + " AND " + FormHistory.FIRST_USED + " <= " + Long.toString(1000 * sharedEnd); // Microseconds.
-        return regularHelper.safeQuery(formsProvider, ".fetch(regular)", null, regularWhere, guids, null);
+        return regularHelper.safeQuery(formsProvider, ".fetch(regular)", null, regularWhere, guids, REGULAR_ORDER);
       }
     };
 
@@ -344,7 +410,7 @@ public class FormHistoryRepositorySession extends
       @Override
       public Cursor call() throws Exception {
         String deletedWhere = where + " AND " + DeletedFormHistory.TIME_DELETED + " <= " + Long.toString(sharedEnd); // Milliseconds.
-        return deletedHelper.safeQuery(formsProvider, ".fetch(deleted)", null, deletedWhere, guids, null);
+        return deletedHelper.safeQuery(formsProvider, ".fetch(deleted)", null, deletedWhere, guids, DELETED_ORDER);
       }
     };
 
@@ -358,72 +424,35 @@ public class FormHistoryRepositorySession extends
 
   protected Record findExistingRecordByGuid(String guid)
       throws RemoteException, NullCursorException {
-    Cursor cursor = null;
-    try {
-      cursor = regularHelper.safeQuery(formsProvider, ".findExistingRecordByGuid(regular)",
-          null, GUID_IS, new String[] { guid }, null);
-      if (cursor.moveToFirst()) {
-        return formHistoryRecordFromCursor(cursor);
-      }
-    } finally {
-      if (cursor != null) {
-        cursor.close();
-      }
-    }
-
-    try {
-      cursor = deletedHelper.safeQuery(formsProvider, ".findExistingRecordByGuid(deleted)",
-          null, GUID_IS, new String[] { guid }, null);
-      if (cursor.moveToFirst()) {
-        return deletedFormHistoryRecordFromCursor(cursor);
-      }
-    } finally {
-      if (cursor != null) {
-        cursor.close();
-      }
-    }
-
-    return null;
+    return index.get(guid);
   }
 
   protected Record findExistingRecordByPayload(Record rawRecord)
       throws RemoteException, NullCursorException {
-    if (!rawRecord.deleted) {
-      FormHistoryRecord record = (FormHistoryRecord) rawRecord;
-      Cursor cursor = null;
-      try {
-        String where = FormHistory.FIELD_NAME + " = ? AND " + FormHistory.VALUE + " = ?";
-        cursor = regularHelper.safeQuery(formsProvider, ".findExistingRecordByPayload",
-            null, where, new String[] { record.fieldName, record.fieldValue }, null);
-        if (cursor.moveToFirst()) {
-          return formHistoryRecordFromCursor(cursor);
-        }
-      } finally {
-        if (cursor != null) {
-          cursor.close();
-        }
-      }
+    if (rawRecord.deleted) {
+      return null;
     }
-
-    return null;
+    FormHistoryRecord record = (FormHistoryRecord) rawRecord;
+    return index.findByPayload(record.fieldName, record.fieldValue);
   }
 
   /**
    * Called when a record with locally known GUID has been reported deleted by
    * the server.
    * <p>
-   * We purge the record's GUID from the regular and deleted tables.
+   * We queue a purge of the record's GUID from the regular or deleted table.
    *
    * @param existingRecord
    *          The local <code>Record</code> to replace.
    * @throws RemoteException
    */
   protected void deleteExistingRecord(Record existingRecord) throws RemoteException {
-    if (existingRecord.deleted) {
-      formsProvider.delete(DELETED_FORM_HISTORY_CONTENT_URI, GUID_IS, new String[] { existingRecord.guid });
-      return;
-    }
-    formsProvider.delete(FORM_HISTORY_CONTENT_URI, GUID_IS, new String[] { existingRecord.guid });
+    final Uri uri = existingRecord.deleted ? DELETED_FORM_HISTORY_CONTENT_URI : FORM_HISTORY_CONTENT_URI;
+    enqueueWrite(new PendingWrite(ContentProviderOperation.newDelete(uri)
+                                                          .withSelection(GUID_IS, new String[] { existingRecord.guid })
+                                                          .build(),
+                                  existingRecord.guid, false));
+    index.remove(existingRecord.guid);
   }
 
   protected static ContentValues contentValuesForRegularRecord(Record rawRecord) {
@@ -440,41 +469,109 @@ public class FormHistoryRepositorySession extends
     return cv;
   }
 
+  /**
+   * A queued provider operation, and the incoming record to report to the
+   * store delegate once it has been applied.
+   */
+  protected static class PendingWrite {
+    public final ContentProviderOperation operation;
+    public final String guid;
+    public final boolean expectOneRow;
+    public Record toReport;
+
+    public PendingWrite(ContentProviderOperation operation, String guid, boolean expectOneRow) {
+      this.operation = operation;
+      this.guid = guid;
+      this.expectOneRow = expectOneRow;
+    }
+  }
+
   protected Object recordsBufferMonitor = new Object();
-  protected ArrayList<ContentValues> recordsBuffer = new ArrayList<ContentValues>();
+  protected ArrayList<PendingWrite> recordsBuffer = new ArrayList<PendingWrite>();
 
-  protected void enqueueRegularRecord(Record record) {
+  /**
+   * Queue a write. The index is updated by the caller as the write is queued,
+   * so that later incoming records see the state the batch will produce.
+   */
+  protected void enqueueWrite(PendingWrite write) {
     synchronized (recordsBufferMonitor) {
       if (recordsBuffer.size() >= INSERT_ITEM_THRESHOLD) {
-        // Insert the existing contents, then enqueue.
-        try {
-          flushInsertQueue();
-        } catch (Exception e) {
-          delegate.onRecordStoreFailed(e);
-          return;
-        }
+        // Apply the existing contents, then enqueue.
+        flushWriteQueue();
       }
-      // Store the ContentValues, rather than the record.
-      recordsBuffer.add(contentValuesForRegularRecord(record));
+      recordsBuffer.add(write);
     }
   }
 
-  // Should always be called from storeWorkQueue.
-  protected void flushInsertQueue() throws RemoteException {
+  /**
+   * Report <code>record</code> as stored once the most recently queued write
+   * has been applied. Every earlier write for the record is in the same or an
+   * earlier batch, so it will have been applied too.
+   */
+  protected void reportWhenApplied(Record record) {
     synchronized (recordsBufferMonitor) {
-      if (recordsBuffer.size() > 0) {
-        final ContentValues[] outgoing = recordsBuffer.toArray(new ContentValues[0]);
-        recordsBuffer = new ArrayList<ContentValues>();
+      recordsBuffer.get(recordsBuffer.size() - 1).toReport = record;
+    }
+  }
 
-        if (outgoing == null || outgoing.length == 0) {
-          Logger.debug(LOG_TAG, "No form history items to insert; returning immediately.");
-          return;
-        }
+  /**
+   * Apply every queued write with one <code>applyBatch</code> call, then
+   * invoke the store delegate for each record the batch stored.
+   * <p>
+   * The provider doesn't apply a batch atomically: if it fails part way,
+   * earlier writes stay applied. We can't tell which, so every record in the
+   * batch is reported as failed and the index is rebuilt from the database.
+   * <p>
+   * Should always be called from storeWorkQueue.
+   */
+  protected void flushWriteQueue() {
+    synchronized (recordsBufferMonitor) {
+      if (recordsBuffer.isEmpty()) {
+        Logger.debug(LOG_TAG, "No form history writes to apply; returning immediately.");
+        return;
+      }
+      final ArrayList<PendingWrite> writes = recordsBuffer;
+      recordsBuffer = new ArrayList<PendingWrite>();
 
-        long before = System.currentTimeMillis();
-        formsProvider.bulkInsert(FORM_HISTORY_CONTENT_URI, outgoing);
-        long after = System.currentTimeMillis();
-        Logger.debug(LOG_TAG, "Inserted " + outgoing.length + " form history items in (" + (after - before) + " milliseconds).");
+      final ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(writes.size());
+      for (PendingWrite write : writes) {
+        operations.add(write.operation);
+      }
+
+      final ContentProviderResult[] results;
+      long before = System.currentTimeMillis();
+      try {
+        results = formsProvider.applyBatch(operations);
+      } catch (Exception e) {
+        Logger.warn(LOG_TAG, "Failed to apply batch of " + operations.size() + " form history writes.", e);
+        for (PendingWrite write : writes) {
+          if (write.toReport != null) {
+            delegate.onRecordStoreFailed(e);
+          }
+        }
+        // Some of the batch might have been applied: resynchronize with the database.
+        try {
+          index = buildIndex();
+        } catch (Exception ex) {
+          Logger.error(LOG_TAG, "Unable to rebuild form history index.", ex);
+        }
+        return;
+      }
+      long after = System.currentTimeMillis();
+      Logger.debug(LOG_TAG, "Applied " + operations.size() + " form history writes in (" + (after - before) + " milliseconds).");
+
+      for (int i = 0; i < writes.size(); i++) {
+        final PendingWrite write = writes.get(i);
+        if (write.expectOneRow && results != null && i < results.length) {
+          final Integer updated = results[i].count;
+          if (updated != null && updated.intValue() != 1) {
+            Logger.warn(LOG_TAG, "Expected to update 1 record with guid " + write.guid + " but updated " + updated + " records.");
+          }
+        }
+        if (write.toReport != null) {
+          trackRecord(write.toReport);
+          delegate.onRecordStoreSucceeded(write.toReport);
+        }
       }
     }
   }
@@ -484,11 +581,9 @@ public class FormHistoryRepositorySession extends
     Runnable command = new Runnable() {
       @Override
       public void run() {
-        Logger.debug(LOG_TAG, "Checking for residual form history items to insert.");
+        Logger.debug(LOG_TAG, "Checking for residual form history writes to apply.");
         try {
-          synchronized (recordsBufferMonitor) {
-            flushInsertQueue();
-          }
+          flushWriteQueue();
           storeDone(now());
         } catch (Exception e) {
           delegate.onRecordStoreFailed(e);
@@ -502,22 +597,27 @@ public class FormHistoryRepositorySession extends
    * Called when a regular record with locally unknown GUID has been fetched
    * from the server.
    * <p>
-   * Since the record is regular, we insert it into the regular table.
+   * Since the record is regular, we queue an insert into the regular table.
    *
    * @param record The regular <code>Record</code> from the server.
    * @throws RemoteException
    */
   protected void insertNewRegularRecord(Record record)
       throws RemoteException {
-    enqueueRegularRecord(record);
+    enqueueWrite(new PendingWrite(ContentProviderOperation.newInsert(FORM_HISTORY_CONTENT_URI)
+                                                          .withValues(contentValuesForRegularRecord(record))
+                                                          .build(),
+                                  record.guid, false));
+    index.put((FormHistoryRecord) record.copyWithIDs(record.guid, record.androidID));
   }
 
   /**
    * Called when a regular record with has been fetched from the server and
    * should replace an existing record.
    * <p>
-   * We delete the existing record entirely, and then insert the new record into
-   * the regular table.
+   * We queue an update of the existing record, or, if the existing record is
+   * deleted, a purge from the deleted table and an insert into the regular
+   * table.
    *
    * @param toStore
    *          The regular <code>Record</code> from the server.
@@ -535,10 +635,13 @@ public class FormHistoryRepositorySession extends
     }
 
     final ContentValues cv = contentValuesForRegularRecord(toStore);
-    int updated = formsProvider.update(FORM_HISTORY_CONTENT_URI, cv, GUID_IS, new String[] { existingRecord.guid });
-    if (updated != 1) {
-      Logger.warn(LOG_TAG, "Expected to update 1 record with guid " + existingRecord.guid + " but updated " + updated + " records.");
-    }
+    enqueueWrite(new PendingWrite(ContentProviderOperation.newUpdate(FORM_HISTORY_CONTENT_URI)
+                                                          .withSelection(GUID_IS, new String[] { existingRecord.guid })
+                                                          .withValues(cv)
+                                                          .build(),
+                                  existingRecord.guid, true));
+    index.remove(existingRecord.guid);
+    index.put((FormHistoryRecord) toStore.copyWithIDs(toStore.guid, toStore.androidID));
   }
 
   @Override
@@ -557,6 +660,9 @@ public class FormHistoryRepositorySession extends
     }
     final FormHistoryRecord record = (FormHistoryRecord) rawRecord;
 
+    // Not sharded: matching is done against the in-memory index, and writes
+    // are applied in batches under recordsBufferMonitor, so store lanes would
+    // only parallelize map lookups.
     Runnable command = new Runnable() {
       @Override
       public void run() {
@@ -604,8 +710,7 @@ public class FormHistoryRepositorySession extends
             if (!locallyModified) {
               Logger.trace(LOG_TAG, "Remote modified, local not. Deleting.");
               deleteExistingRecord(existingRecord);
-              trackRecord(record);
-              delegate.onRecordStoreSucceeded(record);
+              reportWhenApplied(record);
               return;
             }
 
@@ -613,8 +718,7 @@ public class FormHistoryRepositorySession extends
             if (record.lastModified > existingRecord.lastModified) {
               Logger.trace(LOG_TAG, "Remote is newer, and deleted. Purging local.");
               deleteExistingRecord(existingRecord);
-              trackRecord(record);
-              delegate.onRecordStoreSucceeded(record);
+              reportWhenApplied(record);
               return;
             }
 
@@ -637,8 +741,7 @@ public class FormHistoryRepositorySession extends
             // The record is new.
             Logger.trace(LOG_TAG, "No match. Inserting.");
             insertNewRegularRecord(record);
-            trackRecord(record);
-            delegate.onRecordStoreSucceeded(record);
+            reportWhenApplied(record);
             return;
           }
 
@@ -649,8 +752,7 @@ public class FormHistoryRepositorySession extends
             // We found a local record that does NOT have the same GUID -- keep the server's version.
             Logger.trace(LOG_TAG, "Remote guid different from local guid. Storing to keep remote guid.");
             replaceExistingRecordWithRegularRecord(record, existingRecord);
-            trackRecord(record);
-            delegate.onRecordStoreSucceeded(record);
+            reportWhenApplied(record);
             return;
           }
 
@@ -659,8 +761,7 @@ public class FormHistoryRepositorySession extends
           if (!locallyModified) {
             Logger.trace(LOG_TAG, "Remote modified, local not. Storing.");
             replaceExistingRecordWithRegularRecord(record, existingRecord);
-            trackRecord(record);
-            delegate.onRecordStoreSucceeded(record);
+            reportWhenApplied(record);
             return;
           }
 
@@ -668,8 +769,7 @@ public class FormHistoryRepositorySession extends
           if (record.lastModified > existingRecord.lastModified) {
             Logger.trace(LOG_TAG, "Remote is newer, and not deleted. Storing.");
             replaceExistingRecordWithRegularRecord(record, existingRecord);
-            trackRecord(record);
-            delegate.onRecordStoreSucceeded(record);
+            reportWhenApplied(record);
             return;
           }
 
@@ -707,13 +807,30 @@ public class FormHistoryRepositorySession extends
           return;
         }
 
-        try {
-          Logger.debug(LOG_TAG, "Wiping form history and deleted form history...");
-          purgeDatabases(formsProvider);
-          Logger.debug(LOG_TAG, "Wiping form history and deleted form history... DONE");
-        } catch (Exception e) {
-          delegate.onWipeFailed(e);
-          return;
+        // Hold the buffer lock so that no write queued before the wipe can be
+        // applied after it.
+        synchronized (recordsBufferMonitor) {
+          try {
+            Logger.debug(LOG_TAG, "Wiping form history and deleted form history...");
+            purgeDatabases(formsProvider);
+            index.clear();
+            Logger.debug(LOG_TAG, "Wiping form history and deleted form history... DONE");
+          } catch (Exception e) {
+            delegate.onWipeFailed(e);
+            return;
+          }
+
+          if (!recordsBuffer.isEmpty()) {
+            Logger.debug(LOG_TAG, "Discarding " + recordsBuffer.size() + " queued form history writes.");
+            final RepositorySessionStoreDelegate storeDelegate = FormHistoryRepositorySession.this.delegate;
+            final Exception wiped = new IllegalStateException("Form history wiped before write was applied.");
+            for (PendingWrite write : recordsBuffer) {
+              if (write.toReport != null && storeDelegate != null) {
+                storeDelegate.onRecordStoreFailed(wiped);
+              }
+            }
+            recordsBuffer = new ArrayList<PendingWrite>();
+          }
         }
 
         delegate.onWipeSucceeded();
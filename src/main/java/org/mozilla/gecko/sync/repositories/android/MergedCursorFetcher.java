@@ -0,0 +1,163 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories.android;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.mozilla.gecko.sync.Logger;
+import org.mozilla.gecko.sync.ThreadPool;
+import org.mozilla.gecko.sync.repositories.NullCursorException;
+import org.mozilla.gecko.sync.repositories.RecordFilter;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
+import org.mozilla.gecko.sync.repositories.domain.Record;
+
+import android.database.Cursor;
+
+/**
+ * Fetch records from several cursors -- typically a data table and its
+ * deleted table -- as a single stream.
+ * <p>
+ * Every source's query is started at once on the shared thread pool. Each
+ * cursor must be sorted by modified time, ascending; the fetcher walks the
+ * cursors in step, always delivering the oldest pending record, so deleted
+ * and live records are interleaved in the order they changed. Only one row
+ * per cursor is materialized at a time.
+ * <p>
+ * A merge needs every cursor until it's exhausted, so each cursor stays open
+ * until its last row has been read, and is then closed. Every cursor is
+ * closed before returning.
+ */
+public class MergedCursorFetcher {
+  private static final String LOG_TAG = "MergedCursorFetcher";
+
+  /**
+   * A query and a way to turn the rows it returns into records.
+   */
+  public interface CursorSource {
+    /**
+     * @return a cursor ordered by modified time, ascending.
+     */
+    public Cursor query() throws Exception;
+
+    /**
+     * @return a record for the cursor's current row, or null to skip the row.
+     */
+    public Record recordFromCursor(Cursor cursor);
+  }
+
+  /**
+   * Fetch from every source, delivering records to <code>delegate</code>.
+   * <p>
+   * Does not call <code>onFetchCompleted</code> or <code>onFetchFailed</code>;
+   * the caller does that, based on whether this method throws.
+   *
+   * @param filter
+   *          may be null.
+   * @throws Exception
+   *           if a query fails or returns a null cursor.
+   */
+  public static void fetch(final List<CursorSource> sources,
+                           final RecordFilter filter,
+                           final RepositorySessionFetchRecordsDelegate delegate) throws Exception {
+    final int count = sources.size();
+    final ArrayList<Future<Cursor>> queries = new ArrayList<Future<Cursor>>(count);
+    for (final CursorSource source : sources) {
+      queries.add(ThreadPool.executorService.submit(new Callable<Cursor>() {
+        @Override
+        public Cursor call() throws Exception {
+          return source.query();
+        }
+      }));
+    }
+
+    final Cursor[] cursors = new Cursor[count];
+    final boolean[] collected = new boolean[count];
+    try {
+      for (int i = 0; i < count; i++) {
+        collected[i] = true;
+        cursors[i] = await(queries.get(i));
+        if (cursors[i] == null) {
+          throw new NullCursorException(null);
+        }
+      }
+
+      final Record[] heads = new Record[count];
+      for (int i = 0; i < count; i++) {
+        heads[i] = next(sources.get(i), cursors[i]);
+        if (heads[i] == null) {
+          cursors[i].close();
+          cursors[i] = null;
+        }
+      }
+
+      while (true) {
+        int oldest = -1;
+        for (int i = 0; i < count; i++) {
+          if (heads[i] != null &&
+              (oldest < 0 || heads[i].lastModified < heads[oldest].lastModified)) {
+            oldest = i;
+          }
+        }
+        if (oldest < 0) {
+          break;
+        }
+
+        final Record record = heads[oldest];
+        heads[oldest] = next(sources.get(oldest), cursors[oldest]);
+        if (heads[oldest] == null) {
+          // Exhausted. No need to hold it open while we drain the others.
+          cursors[oldest].close();
+          cursors[oldest] = null;
+        }
+
+        if (filter != null && filter.excludeRecord(record)) {
+          Logger.debug(LOG_TAG, "Skipping filtered record " + record.guid);
+          continue;
+        }
+        delegate.onFetchedRecord(record);
+      }
+    } finally {
+      for (int i = 0; i < count; i++) {
+        if (!collected[i]) {
+          // We bailed out early. Wait for the query so we can close its cursor.
+          try {
+            cursors[i] = queries.get(i).get();
+          } catch (Exception e) {
+            // Nothing to close.
+          }
+        }
+        if (cursors[i] != null) {
+          cursors[i].close();
+        }
+      }
+    }
+  }
+
+  private static Cursor await(Future<Cursor> query) throws Exception {
+    try {
+      return query.get();
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      throw e;
+    }
+  }
+
+  private static Record next(CursorSource source, Cursor cursor) {
+    while (cursor.moveToNext()) {
+      final Record record = source.recordFromCursor(cursor);
+      if (record != null) {
+        return record;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,282 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories.android;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.mozilla.gecko.sync.Logger;
+
+/**
+ * A compact binary encoding of a history record's visits.
+ * <p>
+ * Visits are sorted by date, ascending, and each visit is written as a
+ * zig-zag varint delta from the previous visit's date, followed by a varint
+ * visit type. A visit array of a few thousand entries costs a couple of bytes
+ * per visit rather than the ~40 bytes of its JSON form.
+ * <p>
+ * Because visits are sorted and each is encoded relative to the one before,
+ * the encoding of a visit set is a prefix of the encoding of any set that
+ * only adds newer visits. {@link #update(JSONArray)} uses this to append new
+ * visits to the stored bytes, and to recognize an unchanged visit set, by
+ * walking the stored varints in place rather than decoding them. The visit
+ * count and most recent visit date are stored alongside the blob so that
+ * most changed sets are recognized without walking it at all.
+ * <p>
+ * Instances wrap a stored blob; the JSON form is only built when
+ * {@link #toJSONArray()} is called.
+ */
+public class PackedVisits {
+  private static final String LOG_TAG = "PackedVisits";
+
+  public static final String KEY_DATE = AndroidBrowserHistoryRepositorySession.KEY_DATE;
+  public static final String KEY_TYPE = AndroidBrowserHistoryRepositorySession.KEY_TYPE;
+
+  public static final byte[] EMPTY = new byte[0];
+
+  public final byte[] bytes;
+  public final int    count;
+  public final long   lastDate;
+
+  private long[]    decodedDates;
+  private long[]    decodedTypes;
+  private JSONArray decodedArray;
+
+  public PackedVisits(byte[] bytes, int count, long lastDate) {
+    this.bytes    = (bytes == null) ? EMPTY : bytes;
+    this.count    = (bytes == null) ? 0 : count;
+    this.lastDate = (this.count == 0) ? 0 : lastDate;
+  }
+
+  /**
+   * Encode a JSON visits array. Visits without a date are dropped; visits
+   * without a type are given the default visit type. Exact duplicates, with
+   * the same date and type, are collapsed; visits that share only a date
+   * are kept.
+   *
+   * @param visits may be null.
+   */
+  public static PackedVisits fromJSONArray(JSONArray visits) {
+    if (visits == null || visits.isEmpty()) {
+      return new PackedVisits(EMPTY, 0, 0);
+    }
+
+    long[][] pairs = toSortedPairs(visits);
+    return encode(pairs[0], pairs[1], pairs[0].length);
+  }
+
+  /**
+   * Replace these visits with <code>incoming</code>.
+   * <p>
+   * Visits that are not in <code>incoming</code> are not kept. If
+   * <code>incoming</code> holds exactly these visits, this instance is
+   * returned, and nothing need be written. If it holds these visits and some
+   * newer ones, only the newer visits are encoded, and appended to our bytes.
+   * Otherwise <code>incoming</code> is encoded from scratch.
+   *
+   * @param incoming may be null.
+   */
+  public PackedVisits update(JSONArray incoming) {
+    if (incoming == null || incoming.isEmpty()) {
+      return (count == 0) ? this : new PackedVisits(EMPTY, 0, 0);
+    }
+
+    long[][] pairs = toSortedPairs(incoming);
+    long[] dates = pairs[0];
+    long[] types = pairs[1];
+    if (!isPrefixOf(dates, types)) {
+      return encode(dates, types, dates.length);
+    }
+
+    final int appended = dates.length - count;
+    if (appended == 0) {
+      return this;
+    }
+
+    Logger.debug(LOG_TAG, "Appending " + appended + " visits to " + count + " packed visits.");
+    ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length + appended * 4);
+    out.write(bytes, 0, bytes.length);
+    long previous = lastDate;
+    for (int i = count; i < dates.length; i++) {
+      writeVarLong(out, zigzag(dates[i] - previous));
+      writeVarLong(out, types[i]);
+      previous = dates[i];
+    }
+    return new PackedVisits(out.toByteArray(), dates.length, previous);
+  }
+
+  /**
+   * @return true if our visits are the first <code>count</code> of the given
+   *         sorted visits.
+   */
+  private boolean isPrefixOf(long[] dates, long[] types) {
+    if (count == 0) {
+      return true;
+    }
+    // Most changed visit sets differ in size or in their newest visit.
+    if (dates.length < count || dates[count - 1] != lastDate) {
+      return false;
+    }
+    int[] position = new int[] { 0 };
+    long previous = 0;
+    for (int i = 0; i < count; i++) {
+      previous += unzigzag(readVarLong(bytes, position));
+      if (previous != dates[i] || readVarLong(bytes, position) != types[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the decoded visits, most recent first. The array is cached, so
+   *         repeated calls on the same instance return the same array.
+   */
+  @SuppressWarnings("unchecked")
+  public synchronized JSONArray toJSONArray() {
+    if (decodedArray != null) {
+      return decodedArray;
+    }
+    decode();
+    JSONArray out = new JSONArray();
+    // Most recent first, as desktop Sync produces them.
+    for (int i = count - 1; i >= 0; i--) {
+      JSONObject visit = new JSONObject();
+      visit.put(KEY_DATE, decodedDates[i]);
+      visit.put(KEY_TYPE, decodedTypes[i]);
+      out.add(visit);
+    }
+    decodedArray = out;
+    return out;
+  }
+
+  private synchronized void decode() {
+    if (decodedDates != null) {
+      return;
+    }
+    long[] dates = new long[count];
+    long[] types = new long[count];
+    int[] position = new int[] { 0 };
+    long previous = 0;
+    for (int i = 0; i < count; i++) {
+      previous += unzigzag(readVarLong(bytes, position));
+      dates[i] = previous;
+      types[i] = readVarLong(bytes, position);
+    }
+    decodedDates = dates;
+    decodedTypes = types;
+  }
+
+  /**
+   * Encode sorted visits.
+   */
+  private static PackedVisits encode(long[] dates, long[] types, int length) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(length * 4 + 8);
+    long previous = 0;
+    for (int i = 0; i < length; i++) {
+      writeVarLong(out, zigzag(dates[i] - previous));
+      writeVarLong(out, types[i]);
+      previous = dates[i];
+    }
+    return new PackedVisits(out.toByteArray(), length, previous);
+  }
+
+  /**
+   * @return a pair of arrays { dates, types }, sorted by date then type, with
+   *         exact duplicates removed.
+   */
+  private static long[][] toSortedPairs(JSONArray visits) {
+    final int size = visits.size();
+    long[] packed = new long[size * 2];
+    int n = 0;
+    for (int i = 0; i < size; i++) {
+      Object o = visits.get(i);
+      if (!(o instanceof JSONObject)) {
+        continue;
+      }
+      JSONObject visit = (JSONObject) o;
+      Object date = visit.get(KEY_DATE);
+      if (!(date instanceof Number)) {
+        Logger.warn(LOG_TAG, "Dropping visit with no date.");
+        continue;
+      }
+      Object type = visit.get(KEY_TYPE);
+      packed[n * 2]     = ((Number) date).longValue();
+      packed[n * 2 + 1] = (type instanceof Number) ? ((Number) type).longValue()
+                                                   : AndroidBrowserHistoryRepositorySession.DEFAULT_VISIT_TYPE;
+      n++;
+    }
+
+    // Sort indices by date, then type. Visit arrays are small enough that
+    // boxing here is not a concern, and are usually already sorted (descending).
+    Integer[] indices = new Integer[n];
+    for (int i = 0; i < n; i++) {
+      indices[i] = i;
+    }
+    final long[] pairs = packed;
+    Arrays.sort(indices, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        final int byDate = compareLongs(pairs[a * 2], pairs[b * 2]);
+        return (byDate != 0) ? byDate : compareLongs(pairs[a * 2 + 1], pairs[b * 2 + 1]);
+      }
+    });
+
+    long[] dates = new long[n];
+    long[] types = new long[n];
+    int out = 0;
+    for (int i = 0; i < n; i++) {
+      long date = packed[indices[i] * 2];
+      long type = packed[indices[i] * 2 + 1];
+      if (out > 0 && dates[out - 1] == date && types[out - 1] == type) {
+        continue;
+      }
+      dates[out] = date;
+      types[out] = type;
+      out++;
+    }
+    if (out < n) {
+      dates = Arrays.copyOf(dates, out);
+      types = Arrays.copyOf(types, out);
+    }
+    return new long[][] { dates, types };
+  }
+
+  private static int compareLongs(long a, long b) {
+    return (a < b) ? -1 : ((a == b) ? 0 : 1);
+  }
+
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static void writeVarLong(ByteArrayOutputStream out, long value) {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  private static long readVarLong(byte[] in, int[] position) {
+    long result = 0;
+    int shift = 0;
+    while (true) {
+      byte b = in[position[0]++];
+      result |= ((long) (b & 0x7F)) << shift;
+      if ((b & 0x80) == 0) {
+        return result;
+      }
+      shift += 7;
+    }
+  }
+}
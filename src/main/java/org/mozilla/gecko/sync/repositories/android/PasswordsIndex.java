@@ -0,0 +1,141 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories.android;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.mozilla.gecko.sync.Logger;
+import org.mozilla.gecko.sync.repositories.domain.PasswordRecord;
+
+/**
+ * An in-memory index of local password records, used by
+ * <code>PasswordsRepositorySession</code> to find existing records without
+ * querying the passwords provider for every incoming record.
+ * <p>
+ * Records are indexed by GUID (live and deleted), and live records are also
+ * indexed by the fields that identify a login: hostname, HTTP realm, form
+ * submit URL, and the username and password field names. Several logins can
+ * share those fields, so each key maps to a list of candidates which are then
+ * compared by encrypted username.
+ * <p>
+ * Not thread-safe: callers are expected to use the index from a single store
+ * thread.
+ */
+public class PasswordsIndex {
+  private static final String LOG_TAG = "PasswordsIndex";
+
+  // Separates key fields; a NUL can't appear in a URL or field name.
+  private static final char SEPARATOR = '\u0000';
+  private static final char NULL_FIELD = '\u0001';
+
+  private final Map<String, PasswordRecord> byGUID = new HashMap<String, PasswordRecord>();
+  private final Map<String, List<PasswordRecord>> byKey = new HashMap<String, List<PasswordRecord>>();
+
+  public int size() {
+    return byGUID.size();
+  }
+
+  /**
+   * Add a record to the index, replacing any record with the same GUID.
+   */
+  public void put(PasswordRecord record) {
+    if (record == null || record.guid == null) {
+      return;
+    }
+    remove(record.guid);
+    byGUID.put(record.guid, record);
+    if (record.deleted) {
+      return;
+    }
+    final String key = keyFor(record);
+    List<PasswordRecord> candidates = byKey.get(key);
+    if (candidates == null) {
+      candidates = new ArrayList<PasswordRecord>(1);
+      byKey.put(key, candidates);
+    }
+    candidates.add(record);
+  }
+
+  /**
+   * Remove the record with the given GUID, if present.
+   *
+   * @return the removed record, or null.
+   */
+  public PasswordRecord remove(String guid) {
+    final PasswordRecord removed = byGUID.remove(guid);
+    if (removed == null || removed.deleted) {
+      return removed;
+    }
+    final String key = keyFor(removed);
+    final List<PasswordRecord> candidates = byKey.get(key);
+    if (candidates == null) {
+      return removed;
+    }
+    Iterator<PasswordRecord> it = candidates.iterator();
+    while (it.hasNext()) {
+      if (guid.equals(it.next().guid)) {
+        it.remove();
+        break;
+      }
+    }
+    if (candidates.isEmpty()) {
+      byKey.remove(key);
+    }
+    return removed;
+  }
+
+  /**
+   * @return the live or deleted record with the given GUID, or null.
+   */
+  public PasswordRecord get(String guid) {
+    return byGUID.get(guid);
+  }
+
+  /**
+   * Find a live record that describes the same login as <code>record</code>.
+   * <p>
+   * We compare encrypted usernames because we don't have the keys to
+   * decrypt them; identical plaintexts produce identical ciphertexts here.
+   *
+   * @return the matching record, or null.
+   */
+  public PasswordRecord findMatch(PasswordRecord record) {
+    final List<PasswordRecord> candidates = byKey.get(keyFor(record));
+    if (candidates == null) {
+      return null;
+    }
+    for (PasswordRecord candidate : candidates) {
+      Logger.trace(LOG_TAG, "Checking incoming [" + record.encryptedUsername + "] to [" + candidate.encryptedUsername + "]");
+      if (record.encryptedUsername == null ? candidate.encryptedUsername == null
+                                           : record.encryptedUsername.equals(candidate.encryptedUsername)) {
+        return candidate;
+      }
+    }
+    return null;
+  }
+
+  protected static String keyFor(PasswordRecord record) {
+    StringBuilder sb = new StringBuilder();
+    appendField(sb, record.hostname);
+    appendField(sb, record.httpRealm);
+    appendField(sb, record.formSubmitURL);
+    appendField(sb, record.usernameField);
+    appendField(sb, record.passwordField);
+    return sb.toString();
+  }
+
+  private static void appendField(StringBuilder sb, String field) {
+    if (field == null) {
+      sb.append(NULL_FIELD);
+    } else {
+      sb.append(field);
+    }
+    sb.append(SEPARATOR);
+  }
+}
@@ -13,12 +13,14 @@ import org.mozilla.gecko.db.BrowserContract.DeletedPasswords;
 import org.mozilla.gecko.db.BrowserContract.Passwords;
 import org.mozilla.gecko.sync.Logger;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
+import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
 import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
 import org.mozilla.gecko.sync.repositories.NullCursorException;
 import org.mozilla.gecko.sync.repositories.RecordFilter;
 import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.StoreTrackingRepositorySession;
 import org.mozilla.gecko.sync.repositories.android.RepoUtils.QueryHelper;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionBeginDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCreationDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFinishDelegate;
@@ -55,6 +57,12 @@ public class PasswordsRepositorySession extends
   private RepoUtils.QueryHelper deletedPasswordsHelper;
   private ContentProviderClient passwordsProvider;
 
+  /**
+   * Index of local records, built at <code>begin</code> and kept current as
+   * records are stored. Only touched on the store thread after begin.
+   */
+  protected PasswordsIndex index;
+
   private final Context context;
 
   public PasswordsRepositorySession(Repository repository, Context context) {
@@ -71,6 +79,67 @@ public class PasswordsRepositorySession extends
   private static final String WHERE_GUID_IS = Passwords.GUID + " = ?";
   private static final String WHERE_DELETED_GUID_IS = DeletedPasswords.GUID + " = ?";
 
+  @Override
+  public void begin(RepositorySessionBeginDelegate delegate) throws InvalidSessionTransitionException {
+    RepositorySessionBeginDelegate deferredDelegate = delegate.deferredBeginDelegate(delegateQueue);
+
+    // Build the index before transitioning, so that a failure leaves the
+    // session unstarted rather than active without an index.
+    final PasswordsIndex builtIndex;
+    try {
+      builtIndex = buildIndex();
+    } catch (Exception e) {
+      Logger.error(LOG_TAG, "Unable to build passwords index.", e);
+      deferredDelegate.onBeginFailed(e);
+      return;
+    }
+
+    try {
+      super.sharedBegin();
+    } catch (InvalidSessionTransitionException e) {
+      deferredDelegate.onBeginFailed(e);
+      return;
+    }
+    index = builtIndex;
+    storeTracker = createStoreTracker();
+    deferredDelegate.onBeginSucceeded(this);
+  }
+
+  /**
+   * Index a copy of a stored record: the caller still owns the original.
+   */
+  protected void indexCopyOf(Record record) {
+    index.put((PasswordRecord) record.copyWithIDs(record.guid, record.androidID));
+  }
+
+  /**
+   * Scan the data and deleted tables once, indexing every local record.
+   */
+  protected PasswordsIndex buildIndex() throws NullCursorException, RemoteException {
+    final PasswordsIndex out = new PasswordsIndex();
+
+    final Cursor data = passwordsHelper.safeQuery(passwordsProvider, ".buildIndex", getAllColumns(), null, null, null);
+    try {
+      while (data.moveToNext()) {
+        out.put(passwordRecordFromCursor(data));
+      }
+    } finally {
+      data.close();
+    }
+
+    final Cursor deleted = deletedPasswordsHelper.safeQuery(passwordsProvider, ".buildIndex", getAllDeletedColumns(), null, null, null);
+    try {
+      while (deleted.moveToNext()) {
+        out.put(deletedPasswordRecordFromCursor(deleted));
+      }
+    } finally {
+      deleted.close();
+    }
+
+    Logger.debug(LOG_TAG, "Indexed " + out.size() + " local password records.");
+    return out;
+  }
+
   @Override
   public void guidsSince(final long timestamp, final RepositorySessionGuidsSinceDelegate delegate) {
     final Runnable guidsSinceRunnable = new Runnable() {
@@ -137,23 +206,9 @@ public class PasswordsRepositorySession extends
 
         final long end = now();
         try {
-          // Fetch from data table.
-          Cursor data = passwordsHelper.safeQuery(passwordsProvider, ".fetchSince",
-                                                  getAllColumns(),
-                                                  dateModifiedWhere(timestamp),
-                                                  null, null);
-          if (!fetchAndCloseCursorDeleted(data, false, filter, delegate)) {
-            return;
-          }
-
-          // Fetch from deleted table.
-          Cursor deleted = deletedPasswordsHelper.safeQuery(passwordsProvider, ".fetchSince",
-                                                            getAllDeletedColumns(),
-                                                            dateModifiedWhereDeleted(timestamp),
-                                                            null, null);
-          if (!fetchAndCloseCursorDeleted(deleted, true, filter, delegate)) {
-            return;
-          }
+          // Fetch from data and deleted tables together.
+          MergedCursorFetcher.fetch(fetchSources(".fetchSince", dateModifiedWhere(timestamp), dateModifiedWhereDeleted(timestamp), null),
+                                    filter, delegate);
 
           // Success!
           try {
@@ -202,22 +257,8 @@ public class PasswordsRepositorySession extends
         Logger.trace(LOG_TAG, "Fetch guids where: " + where);
 
         try {
-          // Fetch records from data table.
-          Cursor data = passwordsHelper.safeQuery(passwordsProvider, ".fetch",
-                                                  getAllColumns(),
-                                                  where, guids, null);
-          if (!fetchAndCloseCursorDeleted(data, false, filter, delegate)) {
-            return;
-          }
-
-          // Fetch records from deleted table.
-          Cursor deleted = deletedPasswordsHelper.safeQuery(passwordsProvider, ".fetch",
-                                                            getAllDeletedColumns(),
-                                                            where, guids, null);
-          if (!fetchAndCloseCursorDeleted(deleted, true, filter, delegate)) {
-            return;
-          }
-
+          // Fetch records from data and deleted tables together.
+          MergedCursorFetcher.fetch(fetchSources(".fetch", where, where, guids), filter, delegate);
           delegate.onFetchCompleted(end);
 
         } catch (Exception e) {
@@ -267,17 +308,7 @@ public class PasswordsRepositorySession extends
           return;
         }
 
-        PasswordRecord existingRecord;
-        try {
-          existingRecord = retrieveByGUID(guid);
-        } catch (NullCursorException e) {
-          // Indicates a serious problem.
-          delegate.onRecordStoreFailed(e);
-          return;
-        } catch (RemoteException e) {
-          delegate.onRecordStoreFailed(e);
-          return;
-        }
+        PasswordRecord existingRecord = index.get(guid);
 
         long lastLocalRetrieval  = 0;      // lastSyncTimestamp?
         long lastRemoteRetrieval = 0;      // TODO: adjust for clock skew.
@@ -328,9 +359,26 @@ public class PasswordsRepositorySession extends
         // End deletion logic.
 
         // Now we're processing a non-deleted incoming record.
+        if (existingRecord != null && existingRecord.deleted) {
+          if (existingRecord.lastModified > remoteRecord.lastModified) {
+            trace("Local deletion is newer than incoming record " + guid + ". Ignoring.");
+            return;
+          }
+          trace("Incoming record " + guid + " is newer than local deletion. Inserting.");
+          try {
+            passwordsProvider.delete(BrowserContractHelpers.DELETED_PASSWORDS_CONTENT_URI, WHERE_DELETED_GUID_IS, new String[] { guid });
+          } catch (RemoteException e) {
+            Logger.debug(LOG_TAG, "Deleting tombstone caused a RemoteException.");
+            delegate.onRecordStoreFailed(e);
+            return;
+          }
+          index.remove(guid);
+          existingRecord = null;
+        }
+
         if (existingRecord == null) {
           trace("Looking up match for record " + remoteRecord.guid);
-          existingRecord = findExistingRecord(remoteRecord);
+          existingRecord = index.findMatch(remoteRecord);
         }
 
         if (existingRecord == null) {
@@ -345,6 +393,7 @@ public class PasswordsRepositorySession extends
             delegate.onRecordStoreFailed(e);
             return;
           }
+          indexCopyOf(inserted);
           trackRecord(inserted);
           delegate.onRecordStoreSucceeded(inserted);
           return;
@@ -372,6 +421,8 @@ public class PasswordsRepositorySession extends
           delegate.onRecordStoreFailed(e);
           return;
         }
+        index.remove(existingRecord.guid);
+        indexCopyOf(replaced);
 
         // Note that we don't track records here; deciding that is the job
         // of reconcileRecords.
@@ -400,6 +451,7 @@ public class PasswordsRepositorySession extends
         try {
           context.getContentResolver().delete(BrowserContractHelpers.PASSWORDS_CONTENT_URI, null, null);
           context.getContentResolver().delete(BrowserContractHelpers.DELETED_PASSWORDS_CONTENT_URI, null, null);
+          index = new PasswordsIndex();
         } catch (Exception e) {
           delegate.onWipeFailed(e);
           return;
@@ -413,12 +465,14 @@ public class PasswordsRepositorySession extends
   @Override
   public void abort() {
     passwordsProvider.release();
+    index = null;
     super.abort();
   }
 
   @Override
   public void finish(final RepositorySessionFinishDelegate delegate) throws InactiveSessionException {
     passwordsProvider.release();
+    index = null;
     super.finish(delegate);
   }
 
@@ -505,124 +559,41 @@ public class PasswordsRepositorySession extends
   }
 
 
+  private static final String DATA_ORDER    = Passwords.TIME_PASSWORD_CHANGED + " ASC";
+  private static final String DELETED_ORDER = DeletedColumns.TIME_DELETED + " ASC";
+
   /**
-   * Fetch from the cursor with the given parameters, invoking
-   * delegate callbacks and closing the cursor.
-   * Returns true on success, false if failure was signaled.
-   *
-   * @param cursor
-            fetch* cursor.
-   * @param deleted
-   *        true if using deleted table, false when using data table.
-   * @param delegate
-   *        FetchRecordsDelegate to process records.
+   * Sources for a merged fetch from the data and deleted tables, each sorted
+   * by modification time.
    */
-  private static boolean fetchAndCloseCursorDeleted(final Cursor cursor,
-                                                    final boolean deleted,
-                                                    final RecordFilter filter,
-                                                    final RepositorySessionFetchRecordsDelegate delegate) {
-    if (cursor == null) {
-      return true;
-    }
-
-    try {
-      while (cursor.moveToNext()) {
-        Record r = deleted ? deletedPasswordRecordFromCursor(cursor) : passwordRecordFromCursor(cursor);
-        if (r != null) {
-          if (filter == null || !filter.excludeRecord(r)) {
-            Logger.debug(LOG_TAG, "Fetched record " + r);
-            delegate.onFetchedRecord(r);
-          } else {
-            Logger.debug(LOG_TAG, "Skipping filtered record " + r.guid);
-          }
-        }
+  private List<MergedCursorFetcher.CursorSource> fetchSources(final String label,
+                                                              final String dataWhere,
+                                                              final String deletedWhere,
+                                                              final String[] args) {
+    final List<MergedCursorFetcher.CursorSource> sources = new ArrayList<MergedCursorFetcher.CursorSource>(2);
+    sources.add(new MergedCursorFetcher.CursorSource() {
+      @Override
+      public Cursor query() throws Exception {
+        return passwordsHelper.safeQuery(passwordsProvider, label, getAllColumns(), dataWhere, args, DATA_ORDER);
       }
-    } catch (Exception e) {
-      Logger.error(LOG_TAG, "Exception in fetch.");
-      delegate.onFetchFailed(e, null);
-      return false;
-    } finally {
-      cursor.close();
-    }
-
-    return true;
-  }
 
-  private PasswordRecord retrieveByGUID(String guid) throws NullCursorException, RemoteException {
-    final String[] guidArg = new String[] { guid };
-
-    // Check data table.
-    final Cursor data = passwordsHelper.safeQuery(passwordsProvider, ".store", BrowserContractHelpers.PasswordColumns, WHERE_GUID_IS, guidArg, null);
-    try {
-      if (data.moveToFirst()) {
-        return passwordRecordFromCursor(data);
+      @Override
+      public Record recordFromCursor(Cursor cursor) {
+        return passwordRecordFromCursor(cursor);
       }
-    } finally {
-      data.close();
-    }
-
-    // Check deleted table.
-    final Cursor deleted = deletedPasswordsHelper.safeQuery(passwordsProvider, ".retrieveByGuid", BrowserContractHelpers.DeletedColumns, WHERE_DELETED_GUID_IS, guidArg, null);
-    try {
-      if (deleted.moveToFirst()) {
-        return deletedPasswordRecordFromCursor(deleted);
+    });
+    sources.add(new MergedCursorFetcher.CursorSource() {
+      @Override
+      public Cursor query() throws Exception {
+        return deletedPasswordsHelper.safeQuery(passwordsProvider, label, getAllDeletedColumns(), deletedWhere, args, DELETED_ORDER);
       }
-    } finally {
-      deleted.close();
-    }
 
-    return null;
-  }
-
-  private static final String WHERE_RECORD_DATA =
-    Passwords.HOSTNAME        + " = ? AND " +
-    Passwords.HTTP_REALM      + " = ? AND " +
-    Passwords.FORM_SUBMIT_URL + " = ? AND " +
-    Passwords.USERNAME_FIELD  + " = ? AND " +
-    Passwords.PASSWORD_FIELD  + " = ?";
-
-  private PasswordRecord findExistingRecord(PasswordRecord record) {
-    PasswordRecord foundRecord = null;
-    Cursor cursor = null;
-    // Only check the data table.
-    // We can't encrypt username directly for query, so run a more general query and then filter.
-    final String[] whereArgs = new String[] {
-      record.hostname,
-      record.httpRealm,
-      record.formSubmitURL,
-      record.usernameField,
-      record.passwordField
-    };
-
-    try {
-      cursor = passwordsHelper.safeQuery(passwordsProvider, ".findRecord", getAllColumns(), WHERE_RECORD_DATA, whereArgs, null);
-      while (cursor.moveToNext()) {
-        foundRecord = passwordRecordFromCursor(cursor);
-
-        // We don't directly query for username because the
-        // username/password values are encrypted in the db.
-        // We don't have the keys for encrypting our query,
-        // so we run a more general query and then filter
-        // the returned records for a matching username.
-        Logger.trace(LOG_TAG, "Checking incoming [" + record.encryptedUsername + "] to [" + foundRecord.encryptedUsername + "]");
-        if (record.encryptedUsername.equals(foundRecord.encryptedUsername)) {
-          Logger.trace(LOG_TAG, "Found matching record: " + foundRecord);
-          return foundRecord;
-        }
-      }
-    } catch (RemoteException e) {
-      Logger.error(LOG_TAG, "Remote exception in findExistingRecord.");
-      delegate.onRecordStoreFailed(e);
-    } catch (NullCursorException e) {
-      Logger.error(LOG_TAG, "Null cursor in findExistingRecord.");
-      delegate.onRecordStoreFailed(e);
-    } finally {
-      if (cursor != null) {
-        cursor.close();
+      @Override
+      public Record recordFromCursor(Cursor cursor) {
+        return deletedPasswordRecordFromCursor(cursor);
       }
-    }
-    Logger.debug(LOG_TAG, "No matching records, returning null.");
-    return null;
+    });
+    return sources;
   }
 
   private void storeRecordDeletion(Record record) {
@@ -633,6 +604,9 @@ public class PasswordsRepositorySession extends
       delegate.onRecordStoreFailed(e);
       return;
     }
+    // Keep a marker, so a later record with this GUID is reconciled against
+    // the deletion rather than inserted as new.
+    index.put(new PasswordRecord(record.guid, COLLECTION, record.lastModified, true));
     delegate.onRecordStoreSucceeded(record);
   }
 
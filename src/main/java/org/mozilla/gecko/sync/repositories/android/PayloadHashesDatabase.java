@@ -0,0 +1,154 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories.android;
+
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.mozilla.gecko.sync.Logger;
+import org.mozilla.gecko.sync.repositories.NullCursorException;
+import org.mozilla.gecko.sync.repositories.android.PayloadHashesDatabaseAccessor.Row;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Payload hashes for each collection, one row per GUID, so that a sync only
+ * writes the rows that changed.
+ */
+public class PayloadHashesDatabase extends CachedSQLiteOpenHelper {
+
+  public static final String LOG_TAG = "PayloadHashesDatabase";
+
+  // Database Specifications.
+  protected static final String DB_NAME = "payload_hashes_database";
+  protected static final int SCHEMA_VERSION = 1;
+
+  // Hashes of the payloads the server holds, and when the server's copy was
+  // written, so records with a TTL can be refreshed before they expire.
+  public static final String TBL_SERVER_HASHES  = "server_hashes";
+
+  // Hashes of the cleartext we last applied locally, and the server hash of
+  // that payload, so that a record dropped unparsed still tells us what the
+  // server holds.
+  public static final String TBL_APPLIED_HASHES = "applied_hashes";
+
+  public static final String COL_COLLECTION = "collection";
+  public static final String COL_GUID       = "guid";
+  public static final String COL_HASH       = "hash";
+  public static final String COL_MODIFIED    = "modified";
+  public static final String COL_SERVER_HASH = "server_hash";
+
+  public static final String[] TBL_SERVER_COLUMNS  = new String[] { COL_GUID, COL_HASH, COL_MODIFIED };
+  public static final String[] TBL_APPLIED_COLUMNS = new String[] { COL_GUID, COL_HASH, COL_SERVER_HASH };
+  public static final String COLLECTION_IS = COL_COLLECTION + " = ?";
+  public static final String TBL_KEY = COL_COLLECTION + " = ? AND " +
+                                       COL_GUID + " = ?";
+
+  private final RepoUtils.QueryHelper queryHelper;
+
+  public PayloadHashesDatabase(Context context) {
+    super(context, DB_NAME, null, SCHEMA_VERSION);
+    this.queryHelper = new RepoUtils.QueryHelper(context, null, LOG_TAG);
+  }
+
+  @Override
+  public void onCreate(SQLiteDatabase db) {
+    createTable(db, TBL_SERVER_HASHES);
+    createTable(db, TBL_APPLIED_HASHES);
+  }
+
+  /**
+   * @return true if <code>table</code> records when each payload was written.
+   */
+  public static boolean hasModified(String table) {
+    return TBL_SERVER_HASHES.equals(table);
+  }
+
+  /**
+   * @return true if <code>table</code> records the server hash of each payload.
+   */
+  public static boolean hasServerHash(String table) {
+    return TBL_APPLIED_HASHES.equals(table);
+  }
+
+  protected static void createTable(SQLiteDatabase db, String table) {
+    String createTableSql = "CREATE TABLE " + table + " ("
+        + COL_COLLECTION + " TEXT NOT NULL, "
+        + COL_GUID + " TEXT NOT NULL, "
+        + COL_HASH + " TEXT NOT NULL, "
+        + (hasModified(table) ? COL_MODIFIED + " INTEGER NOT NULL, " : "")
+        + (hasServerHash(table) ? COL_SERVER_HASH + " TEXT, " : "")
+        + "PRIMARY KEY (" + COL_COLLECTION + ", " + COL_GUID + "))";
+    db.execSQL(createTableSql);
+  }
+
+  @Override
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    // For now we'll just drop and recreate the tables.
+    db.execSQL("DROP TABLE IF EXISTS " + TBL_SERVER_HASHES);
+    db.execSQL("DROP TABLE IF EXISTS " + TBL_APPLIED_HASHES);
+    onCreate(db);
+  }
+
+  public Cursor fetchAll(String table, String collection) throws NullCursorException {
+    SQLiteDatabase db = this.getCachedReadableDatabase();
+    final String[] columns = hasModified(table) ? TBL_SERVER_COLUMNS : TBL_APPLIED_COLUMNS;
+    return queryHelper.safeQuery(db, ".fetchAll", table, columns, COLLECTION_IS, new String[] { collection });
+  }
+
+  /**
+   * Write the given hashes in a single transaction.
+   *
+   * @param hashes
+   *          a map from GUID to hash. A null row deletes that GUID's row.
+   */
+  public void store(String table, String collection, Map<String, Row> hashes) {
+    final boolean hasModified = hasModified(table);
+    final boolean hasServerHash = hasServerHash(table);
+    SQLiteDatabase db = this.getCachedWritableDatabase();
+    try {
+      db.beginTransaction();
+
+      for (Entry<String, Row> entry : hashes.entrySet()) {
+        final String guid = entry.getKey();
+        final Row row = entry.getValue();
+        if (row == null) {
+          db.delete(table, TBL_KEY, new String[] { collection, guid });
+          continue;
+        }
+        ContentValues cv = new ContentValues();
+        cv.put(COL_COLLECTION, collection);
+        cv.put(COL_GUID, guid);
+        cv.put(COL_HASH, row.hash);
+        if (hasModified) {
+          cv.put(COL_MODIFIED, row.modified);
+        }
+        if (hasServerHash) {
+          cv.put(COL_SERVER_HASH, row.serverHash);
+        }
+        db.replace(table, null, cv);
+      }
+
+      db.setTransactionSuccessful();
+    } catch (SQLException e) {
+      Logger.error(LOG_TAG, "Caught exception storing payload hashes.", e);
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Delete every hash for <code>collection</code>.
+   */
+  public void delete(String table, String collection) {
+    SQLiteDatabase db = this.getCachedWritableDatabase();
+    int deleted = db.delete(table, COLLECTION_IS, new String[] { collection });
+    Logger.debug(LOG_TAG, "Deleted " + deleted + " payload hashes for " + collection + ".");
+  }
+}
@@ -0,0 +1,96 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories.android;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.mozilla.gecko.sync.repositories.NullCursorException;
+
+import android.database.Cursor;
+
+/**
+ * The payload hashes in one table of a {@link PayloadHashesDatabase} for a
+ * single collection.
+ */
+public class PayloadHashesDatabaseAccessor {
+  public static final String LOG_TAG = "PayloadHashesAccessor";
+
+  /**
+   * A hash, and what else its table records about the payload.
+   */
+  public static class Row {
+    public final String hash;
+
+    // Server hashes: when the payload was written, in milliseconds, or -1
+    // if unknown.
+    public final long modified;
+
+    // Applied hashes: the server hash of the payload, or null.
+    public final String serverHash;
+
+    public Row(String hash, long modified, String serverHash) {
+      this.hash = hash;
+      this.modified = modified;
+      this.serverHash = serverHash;
+    }
+  }
+
+  private PayloadHashesDatabase db;
+  private String table;
+  private String collection;
+
+  // Need this so we can properly stub out the class for testing.
+  public PayloadHashesDatabaseAccessor() {}
+
+  public PayloadHashesDatabaseAccessor(PayloadHashesDatabase db, String table, String collection) {
+    this.db = db;
+    this.table = table;
+    this.collection = collection;
+  }
+
+  /**
+   * @return a map from GUID to hash.
+   */
+  public Map<String, Row> fetchAll() throws NullCursorException {
+    HashMap<String, Row> hashes = new HashMap<String, Row>();
+    Cursor cur = null;
+    try {
+      cur = db.fetchAll(table, collection);
+      if (cur == null || !cur.moveToFirst()) {
+        return hashes;
+      }
+      final boolean hasModified = PayloadHashesDatabase.hasModified(table);
+      final boolean hasServerHash = PayloadHashesDatabase.hasServerHash(table);
+      while (!cur.isAfterLast()) {
+        final long modified = hasModified ? RepoUtils.getLongFromCursor(cur, PayloadHashesDatabase.COL_MODIFIED) : -1;
+        final String serverHash = hasServerHash ? RepoUtils.getStringFromCursor(cur, PayloadHashesDatabase.COL_SERVER_HASH) : null;
+        hashes.put(RepoUtils.getStringFromCursor(cur, PayloadHashesDatabase.COL_GUID),
+                   new Row(RepoUtils.getStringFromCursor(cur, PayloadHashesDatabase.COL_HASH), modified, serverHash));
+        cur.moveToNext();
+      }
+      return hashes;
+    } finally {
+      if (cur != null) {
+        cur.close();
+      }
+    }
+  }
+
+  /**
+   * @param hashes
+   *          a map from GUID to hash. A null row deletes that GUID.
+   */
+  public void store(Map<String, Row> hashes) {
+    db.store(table, collection, hashes);
+  }
+
+  /**
+   * Delete every hash for this collection.
+   */
+  public void deleteAll() {
+    db.delete(table, collection);
+  }
+}
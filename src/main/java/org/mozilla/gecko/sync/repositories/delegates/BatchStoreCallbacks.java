@@ -0,0 +1,59 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories.delegates;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.mozilla.gecko.sync.repositories.domain.Record;
+
+/**
+ * Report a batch of successful stores to any store delegate: once, if it is a
+ * {@link RepositorySessionBatchStoreDelegate}, and record by record if not.
+ */
+public class BatchStoreCallbacks {
+  public static void recordsStoreSucceeded(RepositorySessionStoreDelegate delegate,
+                                           Collection<? extends Record> records) {
+    if (delegate == null || records.isEmpty()) {
+      return;
+    }
+    if (delegate instanceof RepositorySessionBatchStoreDelegate) {
+      ArrayList<String> guids = new ArrayList<String>(records.size());
+      for (Record record : records) {
+        guids.add(record.guid);
+      }
+      ((RepositorySessionBatchStoreDelegate) delegate).onRecordsStoreSucceeded(guids);
+      return;
+    }
+    for (Record record : records) {
+      delegate.onRecordStoreSucceeded(record);
+    }
+  }
+
+  /**
+   * @param template
+   *          stands in for each record, with its GUID set in turn, when
+   *          <code>delegate</code> only takes single records. If null, such a
+   *          delegate isn't told.
+   */
+  public static void guidsStoreSucceeded(RepositorySessionStoreDelegate delegate,
+                                         Collection<String> guids,
+                                         Record template) {
+    if (delegate == null || guids.isEmpty()) {
+      return;
+    }
+    if (delegate instanceof RepositorySessionBatchStoreDelegate) {
+      ((RepositorySessionBatchStoreDelegate) delegate).onRecordsStoreSucceeded(guids);
+      return;
+    }
+    if (template == null) {
+      return;
+    }
+    for (String guid : guids) {
+      template.guid = guid;
+      delegate.onRecordStoreSucceeded(template);
+    }
+  }
+}
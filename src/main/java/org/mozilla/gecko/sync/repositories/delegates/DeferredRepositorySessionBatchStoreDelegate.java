@@ -0,0 +1,32 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories.delegates;
+
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Defers a batch store delegate's callbacks, including batches, to an
+ * executor: one task per batch rather than one per record.
+ */
+public class DeferredRepositorySessionBatchStoreDelegate extends
+    DeferredRepositorySessionStoreDelegate implements
+    RepositorySessionBatchStoreDelegate {
+
+  public DeferredRepositorySessionBatchStoreDelegate(
+      RepositorySessionBatchStoreDelegate inner, ExecutorService executor) {
+    super(inner, executor);
+  }
+
+  @Override
+  public void onRecordsStoreSucceeded(final Collection<String> guids) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        ((RepositorySessionBatchStoreDelegate) inner).onRecordsStoreSucceeded(guids);
+      }
+    });
+  }
+}
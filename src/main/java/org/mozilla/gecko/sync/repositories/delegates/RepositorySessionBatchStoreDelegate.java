@@ -0,0 +1,25 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories.delegates;
+
+import java.util.Collection;
+
+/**
+ * A store delegate that can be told about many successful stores at once.
+ * <p>
+ * Sessions that store in bulk report through {@link BatchStoreCallbacks},
+ * which calls {@link #onRecordsStoreSucceeded(Collection)} once per batch on
+ * delegates that implement this interface, and falls back to
+ * <code>onRecordStoreSucceeded</code> per record on those that don't.
+ * A delegate should expect each store to be reported through one of the two
+ * methods, not both.
+ */
+public interface RepositorySessionBatchStoreDelegate extends RepositorySessionStoreDelegate {
+  /**
+   * @param guids
+   *          the GUIDs of the records that were stored. Not to be modified.
+   */
+  public void onRecordsStoreSucceeded(Collection<String> guids);
+}
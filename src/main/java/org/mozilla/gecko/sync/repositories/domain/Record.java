@@ -8,6 +8,7 @@ import java.io.UnsupportedEncodingException;
 
 import org.mozilla.gecko.sync.CryptoRecord;
 import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.JSONOutputBuffer;
 
 /**
  * Record is the abstract base class for all entries that Sync processes:
@@ -252,6 +253,14 @@ public abstract class Record {
     }
   }
 
+  /**
+   * Append this record's JSON to <code>out</code>. Override to avoid building
+   * the whole JSON string first.
+   */
+  public void writeJSON(JSONOutputBuffer out) {
+    out.write(this.toJSONBytes());
+  }
+
   /**
    * Utility for safely populating an output CryptoRecord.
    *
@@ -15,7 +15,9 @@ import org.mozilla.gecko.sync.Logger;
 import org.mozilla.gecko.sync.MetaGlobalException;
 import org.mozilla.gecko.sync.NoCollectionKeysSetException;
 import org.mozilla.gecko.sync.NonObjectJSONException;
+import org.mozilla.gecko.sync.PersistedPayloadHashes;
 import org.mozilla.gecko.sync.SynchronizerConfiguration;
+import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
 import org.mozilla.gecko.sync.middleware.Crypto5MiddlewareRepository;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
@@ -25,6 +27,8 @@ import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
 import org.mozilla.gecko.sync.repositories.RepositorySessionBundle;
 import org.mozilla.gecko.sync.repositories.Server11Repository;
+import org.mozilla.gecko.sync.repositories.android.PayloadHashesDatabase;
+import org.mozilla.gecko.sync.repositories.android.PayloadHashesDatabaseAccessor;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionBeginDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCreationDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFinishDelegate;
@@ -33,6 +37,7 @@ import org.mozilla.gecko.sync.synchronizer.Synchronizer;
 import org.mozilla.gecko.sync.synchronizer.SynchronizerDelegate;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 
 /**
  * Fetch from a server collection into a local repository, encrypting
@@ -49,6 +54,11 @@ public abstract class ServerSyncStage implements
 
   protected final GlobalSession session;
 
+  // Set while synchronizing.
+  protected PersistedPayloadHashes payloadHashes;
+  protected PersistedPayloadHashes appliedHashes;
+  protected PayloadHashesDatabase hashesDatabase;
+
   public ServerSyncStage(GlobalSession session) {
     if (session == null) {
       throw new IllegalArgumentException("session must not be null.");
@@ -92,19 +102,95 @@ public abstract class ServerSyncStage implements
     KeyBundle collectionKey = session.keyBundleForCollection(collection);
     Crypto5MiddlewareRepository cryptoRepo = new Crypto5MiddlewareRepository(getRemoteRepository(), collectionKey);
     cryptoRepo.recordFactory = getRecordFactory();
+    payloadHashes = getPayloadHashes();
+    appliedHashes = getAppliedHashes();
+    cryptoRepo.payloadHashes = payloadHashes;
+    cryptoRepo.appliedHashes = appliedHashes;
     return cryptoRepo;
   }
 
+  protected synchronized PayloadHashesDatabase getHashesDatabase() {
+    if (hashesDatabase == null) {
+      hashesDatabase = new PayloadHashesDatabase(session.getContext());
+    }
+    return hashesDatabase;
+  }
+
+  /**
+   * Forget the hashes we loaded for this sync, and close their database.
+   */
+  protected synchronized void closeHashes() {
+    payloadHashes = null;
+    appliedHashes = null;
+    if (hashesDatabase != null) {
+      hashesDatabase.close();
+      hashesDatabase = null;
+    }
+  }
+
+  /**
+   * Payload hashes used to live in their own prefs files. Empty any that
+   * remain, since they can be large.
+   */
+  protected void clearLegacyHashes(String name) {
+    String prefsPath = session.config.prefsPath + "." + bundlePrefix() + name;
+    SharedPreferences prefs = session.getPrefs(prefsPath, Utils.SHARED_PREFERENCES_MODE);
+    if (!prefs.getAll().isEmpty()) {
+      Logger.info(LOG_TAG, "Clearing legacy payload hashes from " + prefsPath + ".");
+      prefs.edit().clear().commit();
+    }
+  }
+
+  /**
+   * Forget every hash in <code>table</code> for this collection. Outside a
+   * sync, <code>live</code> is null: delete the rows without loading them,
+   * and close the database we opened to do so.
+   */
+  protected void purgeHashes(PersistedPayloadHashes live, String table, String legacyName) {
+    if (live != null) {
+      live.purge();
+      return;
+    }
+    clearLegacyHashes(legacyName);
+    final PayloadHashesDatabase db = new PayloadHashesDatabase(session.getContext());
+    try {
+      new PayloadHashesDatabaseAccessor(db, table, getCollection()).deleteAll();
+    } finally {
+      db.close();
+    }
+  }
+
+  protected PersistedPayloadHashes getHashes(String table, String legacyName) {
+    clearLegacyHashes(legacyName);
+    return new PersistedPayloadHashes(new PayloadHashesDatabaseAccessor(getHashesDatabase(), table, getCollection()));
+  }
+
+  /**
+   * @return hashes of the payloads the server holds.
+   */
+  protected PersistedPayloadHashes getPayloadHashes() {
+    return getHashes(PayloadHashesDatabase.TBL_SERVER_HASHES, "hashes");
+  }
+
+  /**
+   * @return hashes of the payloads we last applied locally. These survive a
+   *         reset, so that records the server serves again are dropped
+   *         cheaply, but not a local wipe.
+   */
+  protected PersistedPayloadHashes getAppliedHashes() {
+    return getHashes(PayloadHashesDatabase.TBL_APPLIED_HASHES, "applied");
+  }
+
   protected String bundlePrefix() {
     return this.getCollection() + ".";
   }
 
   protected SynchronizerConfiguration getConfig() throws NonObjectJSONException, IOException, ParseException {
-    return new SynchronizerConfiguration(session.config.getBranch(bundlePrefix()));
+    return session.config.getSynchronizerConfiguration(bundlePrefix());
   }
 
   protected void persistConfig(SynchronizerConfiguration synchronizerConfiguration) {
-    synchronizerConfiguration.persist(session.config.getBranch(bundlePrefix()));
+    session.config.persistSynchronizerConfiguration(bundlePrefix(), synchronizerConfiguration);
   }
 
   public Synchronizer getConfiguredSynchronizer(GlobalSession session) throws NoCollectionKeysSetException, URISyntaxException, NonObjectJSONException, IOException, ParseException {
@@ -137,6 +223,13 @@ public abstract class ServerSyncStage implements
     config.remoteBundle.setTimestamp(0L);
     Logger.info(LOG_TAG, "Reset timestamps for " + this);
     persistConfig(config);
+
+    // We no longer know what the server holds.
+    try {
+      purgeHashes(payloadHashes, PayloadHashesDatabase.TBL_SERVER_HASHES, "hashes");
+    } catch (Exception e) {
+      Logger.warn(LOG_TAG, "Unable to purge payload hashes for " + this + ".", e);
+    }
   }
 
   // Not thread-safe. Use with caution.
@@ -163,6 +256,11 @@ public abstract class ServerSyncStage implements
   public void wipeLocal() throws Exception {
     // Reset, then clear data.
     this.resetLocal();
+    try {
+      purgeHashes(appliedHashes, PayloadHashesDatabase.TBL_APPLIED_HASHES, "applied");
+    } catch (Exception e) {
+      Logger.warn(LOG_TAG, "Unable to purge applied hashes for " + this + ".", e);
+    }
 
     final WipeWaiter monitor = new WipeWaiter();
     final Context context = session.getContext();
@@ -306,6 +404,13 @@ public abstract class ServerSyncStage implements
       return;
     }
 
+    // Out of time. Leave the stage's timestamps alone so the next sync picks
+    // up where this one would have started.
+    if (session.isPastDeadline()) {
+      Logger.info(LOG_TAG, "Sync deadline passed; skipping " + name + " stage until next sync.");
+      session.advance();
+      return;
+    }
 
     Synchronizer synchronizer;
     try {
@@ -327,6 +432,8 @@ public abstract class ServerSyncStage implements
       return;
     }
 
+    synchronizer.deadline = session.getStageDeadline(session.currentState);
+
     Logger.debug(LOG_TAG, "Invoking synchronizer.");
     synchronizer.synchronize(session.getContext(), this);
     Logger.debug(LOG_TAG, "Reached end of execute.");
@@ -335,6 +442,9 @@ public abstract class ServerSyncStage implements
   @Override
   public void onSynchronized(Synchronizer synchronizer) {
     Logger.debug(LOG_TAG, "onSynchronized.");
+    if (synchronizer.truncated) {
+      Logger.info(LOG_TAG, "Ran out of time fetching " + getEngineName() + " records; will continue next sync.");
+    }
 
     SynchronizerConfiguration synchronizerConfiguration = synchronizer.save();
     if (synchronizerConfiguration != null) {
@@ -343,6 +453,14 @@ public abstract class ServerSyncStage implements
       Logger.warn(LOG_TAG, "Didn't get configuration from synchronizer after success");
     }
 
+    if (payloadHashes != null) {
+      payloadHashes.persist();
+    }
+    if (appliedHashes != null) {
+      appliedHashes.persist();
+    }
+    closeHashes();
+
     Logger.info(LOG_TAG, "Advancing session.");
     session.advance();
   }
@@ -351,6 +469,7 @@ public abstract class ServerSyncStage implements
   public void onSynchronizeFailed(Synchronizer synchronizer,
                                   Exception lastException, String reason) {
     Logger.debug(LOG_TAG, "onSynchronizeFailed: " + reason);
+    closeHashes();
 
     // This failure could be due to a 503 or a 401 and it could have headers.
     if (lastException instanceof HTTPFailureException) {
@@ -363,6 +482,7 @@ public abstract class ServerSyncStage implements
   @Override
   public void onSynchronizeAborted(Synchronizer synchronize) {
     Logger.info(LOG_TAG, "onSynchronizeAborted.");
+    closeHashes();
 
     session.abort(null, "Synchronization was aborted.");
   }
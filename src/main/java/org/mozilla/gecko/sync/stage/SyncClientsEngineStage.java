@@ -7,6 +7,8 @@ package org.mozilla.gecko.sync.stage;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.simple.JSONArray;
@@ -16,6 +18,7 @@ import org.mozilla.gecko.sync.CryptoRecord;
 import org.mozilla.gecko.sync.ExtendedJSONObject;
 import org.mozilla.gecko.sync.GlobalSession;
 import org.mozilla.gecko.sync.HTTPFailureException;
+import org.mozilla.gecko.sync.InfoCollections;
 import org.mozilla.gecko.sync.Logger;
 import org.mozilla.gecko.sync.NoCollectionKeysSetException;
 import org.mozilla.gecko.sync.Utils;
@@ -49,7 +52,13 @@ public class SyncClientsEngineStage implements GlobalSyncStage {
   // Be sure to use this safely via getClientsDatabaseAccessor/closeDataAccessor.
   protected ClientsDatabaseAccessor db;
 
-  protected volatile boolean shouldWipe;
+  // GUIDs of the client records seen in the current download. After a full
+  // download, records stored locally but not seen are deleted.
+  protected final Set<String> downloadedGUIDs = new HashSet<String>();
+
+  // True if the current download fetches the whole collection, false if it
+  // only fetches records changed since our last download.
+  protected volatile boolean fullDownload;
   protected volatile boolean commandsProcessedShouldUpload;
   protected final AtomicInteger uploadAttemptsCount = new AtomicInteger();
 
@@ -112,19 +121,28 @@ public class SyncClientsEngineStage implements GlobalSyncStage {
 
       // Hang onto the server's last modified timestamp to use
       // in X-If-Unmodified-Since for upload.
-      session.config.persistServerClientsTimestamp(response.normalizedWeaveTimestamp());
+      final long timestamp = response.normalizedWeaveTimestamp();
+      session.config.persistServerClientsTimestamp(timestamp);
+      session.config.persistServerClientsDownloadTimestamp(timestamp);
       BaseResource.consumeEntity(response);
 
       // If we successfully downloaded all records but ours was not one of them
-      // then reset the timestamp.
-      if (!localAccountGUIDDownloaded) {
-        Logger.info(LOG_TAG, "Local client GUID does not exist on the server. Upload timestamp will be reset.");
-        session.config.persistServerClientRecordTimestamp(0);
+      // then reset the timestamp. An incremental download only tells us about
+      // records that changed, so it can't tell us ours is missing.
+      if (fullDownload) {
+        session.config.persistServerClientsFullDownloadTimestamp(timestamp);
+        if (!localAccountGUIDDownloaded) {
+          Logger.info(LOG_TAG, "Local client GUID does not exist on the server. Upload timestamp will be reset.");
+          session.config.persistServerClientRecordTimestamp(0);
+        }
       }
       localAccountGUIDDownloaded = false;
 
       final int clientsCount;
       try {
+        if (fullDownload) {
+          pruneClientRecords();
+        }
         clientsCount = getClientsCount();
       } finally {
         // Close the database to clear cached readableDatabase/writableDatabase
@@ -135,7 +153,6 @@ public class SyncClientsEngineStage implements GlobalSyncStage {
       Logger.debug(LOG_TAG, "Database contains " + clientsCount + " clients.");
       Logger.debug(LOG_TAG, "Server response asserts " + response.weaveRecords() + " records.");
 
-      // TODO: persist the response timestamp to know whether to download next time (Bug 726055).
       clientUploadDelegate = new ClientUploadDelegate();
       clientsDelegate.setClientsCount(clientsCount);
       checkAndUpload();
@@ -184,7 +201,11 @@ public class SyncClientsEngineStage implements GlobalSyncStage {
         session.abort(e, "Exception handling client WBO.");
         return;
       }
-      wipeAndStore(r);
+      if (r.deleted) {
+        deleteClientRecord(r);
+        return;
+      }
+      storeClientRecord(r);
     }
 
     @Override
@@ -226,11 +247,21 @@ public class SyncClientsEngineStage implements GlobalSyncStage {
         commandsProcessedShouldUpload = false;
         uploadAttemptsCount.set(0);
 
+        final boolean wasConditional = ifUnmodifiedSince() != null;
+
         // Persist the timestamp for the record we just uploaded,
         // and bump the collection timestamp, too.
         long timestamp = response.normalizedWeaveTimestamp();
         session.config.persistServerClientRecordTimestamp(timestamp);
         session.config.persistServerClientsTimestamp(timestamp);
+
+        // If the upload was conditional on the collection being unchanged
+        // since we last saw it, we've now seen everything up to our own
+        // upload, so the next sync needn't download it again.
+        if (wasConditional &&
+            session.config.getPersistedServerClientsDownloadTimestamp() > 0) {
+          session.config.persistServerClientsDownloadTimestamp(timestamp);
+        }
         BaseResource.consumeEntity(response);
 
         Logger.debug(LOG_TAG, "Timestamp is " + timestamp);
@@ -285,7 +316,17 @@ public class SyncClientsEngineStage implements GlobalSyncStage {
     if (shouldDownload()) {
       downloadClientRecords();   // Will kick off upload, too…
     } else {
+      Logger.debug(LOG_TAG, "Clients collection is unchanged since our last download. Not downloading.");
       // Upload if necessary.
+      final int clientsCount;
+      try {
+        clientsCount = getClientsCount();
+      } finally {
+        closeDataAccessor();
+      }
+      clientUploadDelegate = new ClientUploadDelegate();
+      session.getClientsDelegate().setClientsCount(clientsCount);
+      checkAndUpload();
     }
   }
 
@@ -294,6 +335,8 @@ public class SyncClientsEngineStage implements GlobalSyncStage {
     // Clear timestamps and local data.
     session.config.persistServerClientRecordTimestamp(0L);   // TODO: roll these into one.
     session.config.persistServerClientsTimestamp(0L);
+    session.config.persistServerClientsDownloadTimestamp(0L);
+    session.config.persistServerClientsFullDownloadTimestamp(0L);
 
     session.getClientsDelegate().setClientsCount(0);
     try {
@@ -318,10 +361,34 @@ public class SyncClientsEngineStage implements GlobalSyncStage {
     return r;    
   }
 
-  // TODO: Bug 726055 - More considered handling of when to sync.
+  /**
+   * Ask info/collections whether the clients collection has changed since we
+   * last downloaded it.
+   */
   protected boolean shouldDownload() {
-    // Ask info/collections whether a download is needed.
-    return true;
+    final long lastDownload = session.config.getPersistedServerClientsDownloadTimestamp();
+    final InfoCollections infoCollections = session.config.infoCollections;
+    if (infoCollections == null) {
+      Logger.debug(LOG_TAG, "No info/collections; downloading clients.");
+      return true;
+    }
+    return infoCollections.updateNeeded(COLLECTION_NAME, lastDownload);
+  }
+
+  /**
+   * Decide whether the next download must fetch every record, or can fetch
+   * only records changed since our last download.
+   * <p>
+   * Only a full download shows us records that have gone from the server,
+   * so we do one at least every <code>CLIENTS_TTL_REFRESH</code>.
+   */
+  protected boolean shouldDownloadFull() {
+    final long lastDownload = session.config.getPersistedServerClientsDownloadTimestamp();
+    final long lastFullDownload = session.config.getPersistedServerClientsFullDownloadTimestamp();
+    if (lastDownload <= 0 || lastFullDownload <= 0) {
+      return true;
+    }
+    return System.currentTimeMillis() - lastFullDownload > CLIENTS_TTL_REFRESH;
   }
 
   protected boolean shouldUpload() {
@@ -380,11 +447,15 @@ public class SyncClientsEngineStage implements GlobalSyncStage {
   }
 
   protected void downloadClientRecords() {
-    shouldWipe = true;
+    synchronized (downloadedGUIDs) {
+      downloadedGUIDs.clear();
+    }
+    fullDownload = shouldDownloadFull();
     clientDownloadDelegate = makeClientDownloadDelegate();
 
     try {
-      URI getURI = session.config.collectionURI(COLLECTION_NAME, true);
+      final long newer = fullDownload ? -1 : session.config.getPersistedServerClientsDownloadTimestamp();
+      URI getURI = session.config.collectionURI(COLLECTION_NAME, true, newer);
 
       SyncStorageCollectionRequest request = new SyncStorageCollectionRequest(getURI);
       request.delegate = clientDownloadDelegate;
@@ -415,12 +486,33 @@ public class SyncClientsEngineStage implements GlobalSyncStage {
     return new ClientDownloadDelegate();
   }
 
-  protected void wipeAndStore(ClientRecord record) {
-    ClientsDatabaseAccessor db = getClientsDatabaseAccessor();
-    if (shouldWipe) {
-      db.wipe();
-      shouldWipe = false;
+  /**
+   * Store a downloaded client record. The database skips the write if the
+   * stored record is unchanged.
+   */
+  protected void storeClientRecord(ClientRecord record) {
+    synchronized (downloadedGUIDs) {
+      downloadedGUIDs.add(record.guid);
+    }
+    getClientsDatabaseAccessor().store(record);
+  }
+
+  protected void deleteClientRecord(ClientRecord record) {
+    synchronized (downloadedGUIDs) {
+      downloadedGUIDs.remove(record.guid);
+    }
+    getClientsDatabaseAccessor().delete(record.guid);
+  }
+
+  /**
+   * Delete any stored client records that weren't in the full download we've
+   * just completed. This replaces wiping the database before every download,
+   * which rewrote every record whether or not it had changed.
+   */
+  protected void pruneClientRecords() {
+    synchronized (downloadedGUIDs) {
+      getClientsDatabaseAccessor().deleteAllExcept(downloadedGUIDs);
+      downloadedGUIDs.clear();
     }
-    db.store(record);
   }
 }
@@ -0,0 +1,91 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.syncadapter;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+
+/**
+ * Decide how long to wait between syncs of a multi-device account, based on
+ * how much changed in recent syncs.
+ * <p>
+ * Activity is measured from info/collections: the number of engine
+ * collections whose server timestamp moved since the previous successful
+ * sync. Our own uploads move those timestamps too, so this reflects local
+ * changes as well as changes from other devices.
+ * <p>
+ * Each sync that sees changes divides the interval by one more than the
+ * number of changed collections, down to <code>MIN_INTERVAL_MILLISECONDS</code>.
+ * Each idle sync lengthens it by half, up to
+ * <code>MAX_INTERVAL_MILLISECONDS</code>.
+ */
+public class AdaptiveSyncInterval {
+  public static final int MIN_INTERVAL_MILLISECONDS = SyncAdapter.MULTI_DEVICE_INTERVAL_MILLISECONDS;
+  public static final int MAX_INTERVAL_MILLISECONDS = 4 * 60 * 60 * 1000;  // 4 hours.
+
+  // Spread each interval by up to this fraction either way, so that devices
+  // that started syncing together don't keep hitting the server together.
+  public static final double JITTER_FRACTION = 0.1;
+
+  // These change for reasons other than engine data.
+  private static final String[] IGNORED_COLLECTIONS = new String[] { "meta", "crypto" };
+
+  /**
+   * Count the engine collections that are new or have a different timestamp
+   * in <code>current</code> than in <code>previous</code>.
+   *
+   * @param previous
+   *          may be null, in which case every collection counts as changed.
+   */
+  public static int countChangedCollections(Map<String, Long> previous, Map<String, Long> current) {
+    int changed = 0;
+    for (Entry<String, Long> entry : current.entrySet()) {
+      if (isIgnored(entry.getKey())) {
+        continue;
+      }
+      Long before = (previous == null) ? null : previous.get(entry.getKey());
+      if (before == null || !before.equals(entry.getValue())) {
+        changed++;
+      }
+    }
+    return changed;
+  }
+
+  private static boolean isIgnored(String collection) {
+    for (String ignored : IGNORED_COLLECTIONS) {
+      if (ignored.equals(collection)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param interval
+   *          the interval used before this sync.
+   * @param changedCollections
+   *          the number of collections that changed during this sync.
+   * @return the interval to use next.
+   */
+  public static int nextInterval(int interval, int changedCollections) {
+    long next;
+    if (changedCollections > 0) {
+      next = interval / (changedCollections + 1L);
+    } else {
+      next = interval + interval / 2L;
+    }
+    return (int) Math.max(MIN_INTERVAL_MILLISECONDS, Math.min(MAX_INTERVAL_MILLISECONDS, next));
+  }
+
+  /**
+   * @return <code>interval</code>, moved up or down by a random amount of at
+   *         most <code>JITTER_FRACTION</code> of itself.
+   */
+  public static long withJitter(long interval, Random random) {
+    double offset = (random.nextDouble() * 2 - 1) * JITTER_FRACTION * interval;
+    return Math.max(0, interval + (long) offset);
+  }
+}
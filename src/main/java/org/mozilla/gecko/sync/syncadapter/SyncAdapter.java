@@ -7,12 +7,17 @@ package org.mozilla.gecko.sync.syncadapter;
 import java.io.IOException;
 import java.net.URI;
 import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
 
 import org.json.simple.parser.ParseException;
 import org.mozilla.gecko.sync.AlreadySyncingException;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
 import org.mozilla.gecko.sync.GlobalConstants;
 import org.mozilla.gecko.sync.GlobalSession;
+import org.mozilla.gecko.sync.InfoCollections;
 import org.mozilla.gecko.sync.Logger;
 import org.mozilla.gecko.sync.NonObjectJSONException;
 import org.mozilla.gecko.sync.SyncConfiguration;
@@ -52,14 +57,18 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter implements GlobalSe
   private static final String  PREFS_EARLIEST_NEXT_SYNC = "earliestnextsync";
   private static final String  PREFS_INVALIDATE_AUTH_TOKEN = "invalidateauthtoken";
   private static final String  PREFS_CLUSTER_URL_IS_STALE = "clusterurlisstale";
+  private static final String  PREFS_SYNC_INTERVAL = "syncinterval";
+  private static final String  PREFS_COLLECTION_TIMESTAMPS = "collectiontimestamps";
 
   private static final int     SHARED_PREFERENCES_MODE = 0;
   private static final int     BACKOFF_PAD_SECONDS = 5;
   public  static final int     MULTI_DEVICE_INTERVAL_MILLISECONDS = 5 * 60 * 1000;         // 5 minutes.
   public  static final int     SINGLE_DEVICE_INTERVAL_MILLISECONDS = 24 * 60 * 60 * 1000;  // 24 hours.
+  public  static final int     SYNC_TIME_BUDGET_MILLISECONDS = 5 * 60 * 1000;              // 5 minutes.
 
   private final AccountManager mAccountManager;
   private final Context        mContext;
+  private final Random         mRandom = new Random();
 
   public SyncAdapter(Context context, boolean autoInitialize) {
     super(context, autoInitialize);
@@ -95,6 +104,58 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter implements GlobalSe
     edit.commit();
   }
 
+  /**
+   * The interval to use between syncs of a multi-device account, adapted to
+   * how much recent syncs have seen change.
+   */
+  public synchronized int getAdaptiveSyncInterval() {
+    SharedPreferences sharedPreferences = getGlobalPrefs();
+    return sharedPreferences.getInt(PREFS_SYNC_INTERVAL, MULTI_DEVICE_INTERVAL_MILLISECONDS);
+  }
+
+  /**
+   * Compare the collection timestamps seen by a successful sync with those
+   * seen by the previous one, and adjust the sync interval to match.
+   */
+  public synchronized void updateAdaptiveSyncInterval(InfoCollections infoCollections) {
+    if (infoCollections == null || infoCollections.getTimestamps() == null) {
+      return;
+    }
+    final Map<String, Long> current = infoCollections.getTimestamps();
+
+    SharedPreferences sharedPreferences = getGlobalPrefs();
+    final Map<String, Long> previous = parseCollectionTimestamps(sharedPreferences.getString(PREFS_COLLECTION_TIMESTAMPS, null));
+    final int changed = AdaptiveSyncInterval.countChangedCollections(previous, current);
+    final int interval = AdaptiveSyncInterval.nextInterval(getAdaptiveSyncInterval(), changed);
+    Logger.debug(LOG_TAG, changed + " collections changed; sync interval is now " + interval + "ms.");
+
+    ExtendedJSONObject o = new ExtendedJSONObject();
+    for (Map.Entry<String, Long> entry : current.entrySet()) {
+      o.put(entry.getKey(), entry.getValue());
+    }
+    Editor edit = sharedPreferences.edit();
+    edit.putInt(PREFS_SYNC_INTERVAL, interval);
+    edit.putString(PREFS_COLLECTION_TIMESTAMPS, o.toJSONString());
+    edit.commit();
+  }
+
+  private static Map<String, Long> parseCollectionTimestamps(String json) {
+    if (json == null) {
+      return null;
+    }
+    try {
+      ExtendedJSONObject o = ExtendedJSONObject.parseJSONObject(json);
+      HashMap<String, Long> map = new HashMap<String, Long>();
+      for (String key : o.keySet()) {
+        map.put(key, o.getLong(key));
+      }
+      return map;
+    } catch (Exception e) {
+      Logger.warn(LOG_TAG, "Unable to parse persisted collection timestamps.", e);
+      return null;
+    }
+  }
+
   public synchronized boolean getShouldInvalidateAuthToken() {
     SharedPreferences sharedPreferences = getGlobalPrefs();
     return sharedPreferences.getBoolean(PREFS_INVALIDATE_AUTH_TOKEN, false);
@@ -331,7 +392,9 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter implements GlobalSe
       Log.i(LOG_TAG, "Waiting on sync monitor.");
       try {
         syncMonitor.wait();
-        long next = System.currentTimeMillis() + getSyncInterval();
+        Log.i(LOG_TAG, "Sync thread pool after sync: " + ThreadPool.executorService.getMetrics());
+        Log.i(LOG_TAG, "Sync compute pool after sync: " + ThreadPool.computeService.getMetrics());
+        long next = System.currentTimeMillis() + AdaptiveSyncInterval.withJitter(getSyncInterval(), mRandom);
         Log.i(LOG_TAG, "Setting minimum next sync time to " + next);
         extendEarliestNextSync(next);
       } catch (InterruptedException e) {
@@ -354,7 +417,7 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter implements GlobalSe
       return SINGLE_DEVICE_INTERVAL_MILLISECONDS;
     }
 
-    return MULTI_DEVICE_INTERVAL_MILLISECONDS;
+    return getAdaptiveSyncInterval();
   }
 
 
@@ -388,6 +451,9 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter implements GlobalSe
                                                     serverURL, username, password, prefsPath,
                                                     keyBundle, this, this.mContext, extras, this);
 
+    // Don't hold the sync thread indefinitely. Whatever doesn't fit is picked
+    // up by the next sync.
+    globalSession.setDeadline(System.currentTimeMillis() + SYNC_TIME_BUDGET_MILLISECONDS);
     globalSession.start();
   }
 
@@ -434,6 +500,7 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter implements GlobalSe
     Log.i(LOG_TAG, "GlobalSession indicated success.");
     Log.i(LOG_TAG, "Prefs target: " + globalSession.config.prefsPath);
     globalSession.config.persistToPrefs();
+    updateAdaptiveSyncInterval(globalSession.config.infoCollections);
     notifyMonitor();
   }
 
@@ -110,6 +110,14 @@ class ConcurrentRecordConsumer extends RecordConsumer {
     }
   }
 
+  @Override
+  public void stored(int count) {
+    trace(count + " records stored.");
+    synchronized (countMonitor) {
+      counter += count;
+    }
+  }
+
   private void consumerIsDone() {
     info("Consumer is done. Processed " + counter + ((counter == 1) ? " record." : " records."));
     delegate.consumerIsDone(!allRecordsQueued);
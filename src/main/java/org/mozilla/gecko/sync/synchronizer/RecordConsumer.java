@@ -8,6 +8,15 @@ public abstract class RecordConsumer implements Runnable {
 
   public abstract void stored();
 
+  /**
+   * <code>count</code> records were stored.
+   */
+  public void stored(int count) {
+    for (int i = 0; i < count; i++) {
+      stored();
+    }
+  }
+
   /**
    * There are no more store items to arrive at the delegate.
    * When you're done, take care of finishing up.
@@ -4,6 +4,7 @@
 
 package org.mozilla.gecko.sync.synchronizer;
 
+import java.util.Collection;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 
@@ -11,9 +12,11 @@ import org.mozilla.gecko.sync.Logger;
 import org.mozilla.gecko.sync.ThreadPool;
 import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
 import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
+import org.mozilla.gecko.sync.repositories.RecordStream;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
 import org.mozilla.gecko.sync.repositories.delegates.DeferredRepositorySessionBeginDelegate;
-import org.mozilla.gecko.sync.repositories.delegates.DeferredRepositorySessionStoreDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.DeferredRepositorySessionBatchStoreDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionBatchStoreDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionBeginDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionStoreDelegate;
@@ -56,12 +59,21 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
  *
  * RecordsChannel exists to enforce this ordering of operations.
  *
+ * A channel can be given a deadline. Once it passes, the channel stops the
+ * fetch (or, if the source can't stop, ignores the rest of it), lets the
+ * records already queued finish storing, and completes as usual. Check
+ * `wasTruncated` to find out whether this happened.
+ *
+ * A channel with a deadline asks its source to fetch in order of modified
+ * time. If the source agrees, `getResumeTimestamp` says how far a truncated
+ * fetch got: every record modified at or before it has been stored.
+ *
  * @author rnewman
  *
  */
 class RecordsChannel implements
   RepositorySessionFetchRecordsDelegate,
-  RepositorySessionStoreDelegate,
+  RepositorySessionBatchStoreDelegate,
   RecordsConsumerDelegate,
   RepositorySessionBeginDelegate {
 
@@ -72,11 +84,24 @@ class RecordsChannel implements
   private long timestamp;
   private long fetchEnd = -1;
 
+  private volatile long deadline = -1;
+  private volatile boolean truncated = false;
+  private boolean fetchCompleted = false;
+
+  // Set if the source fetches in ascending order of modified time. Then every
+  // record modified at or before resumeTimestamp has been handed to the sink,
+  // and lastStoredModified is the modified time of the latest record handed
+  // over. Only touched by the consumer thread until the flow completes.
+  private boolean fetchInModifiedOrder = false;
+  private long resumeTimestamp;
+  private long lastStoredModified = -1;
+
   public RecordsChannel(RepositorySession source, RepositorySession sink, RecordsChannelDelegate delegate) {
     this.source    = source;
     this.sink      = sink;
     this.delegate  = delegate;
     this.timestamp = source.lastSyncTimestamp;
+    this.resumeTimestamp = this.timestamp;
   }
 
   /*
@@ -97,6 +122,50 @@ class RecordsChannel implements
     return toProcess;
   }
 
+  /**
+   * @param deadline
+   *          time in milliseconds after which to stop fetching, or -1 for none.
+   */
+  public void setDeadline(long deadline) {
+    this.deadline = deadline;
+  }
+
+  /**
+   * @return true if the deadline passed before the fetch completed, so not
+   *         every record was fetched.
+   */
+  public boolean wasTruncated() {
+    return truncated;
+  }
+
+  /**
+   * @return for a truncated flow whose source fetched in order of modified
+   *         time, a timestamp from which a later fetch can resume: every
+   *         record modified at or before it has been stored. Otherwise -1.
+   */
+  public long getResumeTimestamp() {
+    return fetchInModifiedOrder ? resumeTimestamp : -1;
+  }
+
+  /**
+   * @return true if records should no longer be accepted.
+   */
+  protected boolean checkDeadline() {
+    if (truncated) {
+      return true;
+    }
+    if (deadline < 0 || System.currentTimeMillis() < deadline) {
+      return false;
+    }
+    Logger.info(LOG_TAG, "Deadline passed. Stopping fetch once queued records are stored.");
+    truncated = true;
+    if (source.abortFetch()) {
+      // The source won't call us again, so complete the fetch ourselves.
+      this.onFetchCompleted(-1);
+    }
+    return true;
+  }
+
   protected boolean isReady() {
     return source.isActive() && sink.isActive();
   }
@@ -122,6 +191,10 @@ class RecordsChannel implements
 
   /**
    * Start records flowing through the channel.
+   *
+   * If the source can stream, records are pulled from it as fast as the sink
+   * stores them. Otherwise, the source pushes records into a queue that a
+   * consumer drains.
    */
   public void flow() {
     if (!isReady()) {
@@ -132,6 +205,23 @@ class RecordsChannel implements
       this.delegate.onFlowBeginFailed(this, new SessionNotBegunException(failed));
     }
     sink.setStoreDelegate(this);
+
+    if (deadline >= 0) {
+      // If we're cut short, this lets us resume where we stopped.
+      fetchInModifiedOrder = source.fetchInModifiedOrder();
+      Logger.debug(LOG_TAG, "Source fetches in modified order? " + fetchInModifiedOrder);
+    }
+
+    RecordStream stream = source.streamSince(timestamp);
+    if (stream != null) {
+      // Pull records as fast as the sink takes them.
+      Logger.info(LOG_TAG, "Source can stream. Pulling records.");
+      this.consumer = new StreamRecordConsumer(this, stream);
+      waitingForQueueDone = true;
+      ThreadPool.run(this.consumer);
+      return;
+    }
+
     // Start a consumer thread.
     this.consumer = new ConcurrentRecordConsumer(this);
     ThreadPool.run(this.consumer);
@@ -150,6 +240,15 @@ class RecordsChannel implements
 
   @Override
   public void store(Record record) {
+    if (fetchInModifiedOrder && record.lastModified > lastStoredModified) {
+      // Records arrive oldest first, so everything up to the previous
+      // modified time has now been handed to the sink. There may be more
+      // records with this one's modified time to come.
+      if (lastStoredModified > resumeTimestamp) {
+        resumeTimestamp = lastStoredModified;
+      }
+      lastStoredModified = record.lastModified;
+    }
     try {
       sink.store(record);
     } catch (NoStoreDelegateException e) {
@@ -161,6 +260,11 @@ class RecordsChannel implements
 
   @Override
   public void onFetchFailed(Exception ex, Record record) {
+    if (truncated) {
+      Logger.info(LOG_TAG, "onFetchFailed after deadline. Treating as completion: " + ex);
+      this.onFetchCompleted(-1);
+      return;
+    }
     Logger.warn(LOG_TAG, "onFetchFailed. Calling for immediate stop.", ex);
     this.consumer.halt();
     delegate.onFlowFetchFailed(this, ex);
@@ -168,14 +272,19 @@ class RecordsChannel implements
 
   @Override
   public void onFetchedRecord(Record record) {
+    if (checkDeadline()) {
+      return;
+    }
     this.toProcess.add(record);
     this.consumer.doNotify();
   }
 
   @Override
   public void onFetchSucceeded(Record[] records, final long fetchEnd) {
-    for (Record record : records) {
-      this.toProcess.add(record);
+    if (!checkDeadline()) {
+      for (Record record : records) {
+        this.toProcess.add(record);
+      }
     }
     this.consumer.doNotify();
     this.onFetchCompleted(fetchEnd);
@@ -183,6 +292,13 @@ class RecordsChannel implements
 
   @Override
   public void onFetchCompleted(final long fetchEnd) {
+    synchronized (this) {
+      if (fetchCompleted) {
+        // We completed the fetch early at our deadline.
+        return;
+      }
+      fetchCompleted = true;
+    }
     Logger.info(LOG_TAG, "onFetchCompleted. Stopping consumer once stores are done.");
     Logger.info(LOG_TAG, "Fetch timestamp is " + fetchEnd);
     this.fetchEnd = fetchEnd;
@@ -198,9 +314,20 @@ class RecordsChannel implements
 
   @Override
   public void onRecordStoreSucceeded(Record record) {
+    if (record != null) {
+      source.fetchedRecordStored(record.guid);
+    }
     this.consumer.stored();
   }
 
+  @Override
+  public void onRecordsStoreSucceeded(Collection<String> guids) {
+    for (String guid : guids) {
+      source.fetchedRecordStored(guid);
+    }
+    this.consumer.stored(guids.size());
+  }
+
 
   @Override
   public void consumerIsDone(boolean allRecordsQueued) {
@@ -245,7 +372,7 @@ class RecordsChannel implements
 
   @Override
   public RepositorySessionStoreDelegate deferredStoreDelegate(final ExecutorService executor) {
-    return new DeferredRepositorySessionStoreDelegate(this, executor);
+    return new DeferredRepositorySessionBatchStoreDelegate(this, executor);
   }
 
   @Override
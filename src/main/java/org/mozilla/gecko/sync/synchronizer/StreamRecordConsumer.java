@@ -0,0 +1,155 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.synchronizer;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mozilla.gecko.sync.Logger;
+import org.mozilla.gecko.sync.repositories.RecordStream;
+import org.mozilla.gecko.sync.repositories.RecordStreamException;
+import org.mozilla.gecko.sync.repositories.domain.Record;
+
+/**
+ * Pull records from a {@link RecordStream} and store them, a batch at a time,
+ * on a single thread. Sinks usually queue stores rather than run them, so
+ * before requesting each batch we wait until the sink has no more than
+ * <code>MAX_PENDING_STORES</code> stores outstanding. The sink sets the pace
+ * of the fetch, and at most that many records plus one batch are held in
+ * memory.
+ * <p>
+ * Not every store produces a callback -- sinks drop some records silently --
+ * so we ask the sink how many stores are pending rather than counting
+ * callbacks. A sink that can't say isn't throttled.
+ * <p>
+ * Takes the place of both the fetch delegate and the record queue: the
+ * channel's fetch callbacks are invoked from here.
+ */
+class StreamRecordConsumer extends RecordConsumer {
+  private static final String LOG_TAG = "SRecordConsumer";
+
+  public static final int MAX_PENDING_STORES = 100;
+
+  // Milliseconds between checks of the sink's pending count. We're also woken
+  // when a store is reported, but silently dropped records aren't.
+  private static final long PENDING_STORE_POLL_INTERVAL = 10;
+
+  private final Object storeMonitor = new Object();
+
+  private final RecordsChannel channel;
+  private final RecordStream stream;
+  private final AtomicLong counter = new AtomicLong(0);
+
+  public StreamRecordConsumer(RecordsChannel channel, RecordStream stream) {
+    this.delegate = channel;
+    this.channel = channel;
+    this.stream = stream;
+  }
+
+  @Override
+  public void stored() {
+    counter.incrementAndGet();
+    wakeUp();
+  }
+
+  @Override
+  public void stored(int count) {
+    counter.addAndGet(count);
+    wakeUp();
+  }
+
+  private void wakeUp() {
+    synchronized (storeMonitor) {
+      storeMonitor.notifyAll();
+    }
+  }
+
+  @Override
+  public void queueFilled() {
+    // We find out from the stream.
+  }
+
+  @Override
+  public void halt() {
+    stopImmediately = true;
+    wakeUp();
+    stream.close();
+  }
+
+  /**
+   * Block until the sink has no more than <code>MAX_PENDING_STORES</code>
+   * stores outstanding, or we're halted.
+   */
+  private void awaitPendingStores() {
+    synchronized (storeMonitor) {
+      while (!stopImmediately &&
+             channel.sink.getPendingStoreCount() > MAX_PENDING_STORES) {
+        try {
+          storeMonitor.wait(PENDING_STORE_POLL_INTERVAL);
+        } catch (InterruptedException e) {
+          Logger.warn(LOG_TAG, "Interrupted waiting for pending stores.");
+          return;
+        }
+      }
+    }
+  }
+
+  @Override
+  public void doNotify() {
+    // Nothing waits.
+  }
+
+  @Override
+  public void run() {
+    long pulled = 0;
+    try {
+      while (!stopImmediately) {
+        awaitPendingStores();
+        if (stopImmediately) {
+          break;
+        }
+        if (channel.checkDeadline()) {
+          Logger.info(LOG_TAG, "Deadline passed. Closing stream.");
+          stream.close();
+          channel.onFetchCompleted(-1);
+          break;
+        }
+
+        final List<Record> batch;
+        try {
+          batch = stream.nextBatch();
+        } catch (RecordStreamException e) {
+          channel.onFetchFailed((e.cause == null) ? e : e.cause, null);
+          break;
+        }
+        if (batch == null) {
+          if (!stopImmediately) {
+            channel.onFetchCompleted(stream.getEnd());
+          }
+          break;
+        }
+
+        Logger.trace(LOG_TAG, "Storing batch of " + batch.size() + " records.");
+        for (Record record : batch) {
+          if (stopImmediately) {
+            break;
+          }
+          try {
+            delegate.store(record);
+          } catch (Exception e) {
+            Logger.error(LOG_TAG, "Caught error in store.", e);
+          }
+        }
+        pulled += batch.size();
+      }
+    } finally {
+      stream.close();
+    }
+
+    Logger.info(LOG_TAG, "Consumer is done. Pulled " + pulled + " records; " +
+                         counter.get() + " reported stored.");
+    delegate.consumerIsDone(stopImmediately);
+  }
+}
@@ -99,6 +99,16 @@ public class Synchronizer {
   public RepositorySessionBundle bundleA;
   public RepositorySessionBundle bundleB;
 
+  /**
+   * Time in milliseconds after which to stop fetching from A, or -1 for none.
+   */
+  public long deadline = -1;
+
+  /**
+   * Set after a successful sync if the deadline cut the fetch from A short.
+   */
+  public boolean truncated = false;
+
   /**
    * Start synchronizing, calling delegate's callback methods.
    */
@@ -44,6 +44,14 @@ import android.content.Context;
  *
  * I always call exactly one of my delegate's `onSynchronized` or
  * `onSynchronizeFailed` callback methods if I have not seen an error.
+ *
+ * If my Synchronizer has a deadline, my first flow stops when it passes. If A
+ * fetched in order of modified time, A's timestamp is advanced to the last
+ * record that was fully stored, so the next sync fetches the rest. Otherwise
+ * A's timestamp isn't advanced, and the next sync fetches the same records
+ * again. The second flow is skipped, and B's timestamp left alone: B's changes
+ * haven't been reconciled with the records we didn't fetch, so we upload them
+ * next time instead.
  */
 public class SynchronizerSession
 extends DeferrableRepositorySessionCreationDelegate
@@ -73,6 +81,8 @@ implements RecordsChannelDelegate,
   private long storeEndBTimestamp = -1;
   private boolean flowAToBCompleted = false;
   private boolean flowBToACompleted = false;
+  private boolean flowAToBTruncated = false;
+  private long resumeATimestamp = -1;
 
   /*
    * Public API: constructor, init, synchronize.
@@ -147,6 +157,18 @@ implements RecordsChannelDelegate,
         pendingATimestamp = fetchEnd;
         storeEndBTimestamp = storeEnd;
         flowAToBCompleted = true;
+        flowAToBTruncated = recordsChannel.wasTruncated();
+        if (flowAToBTruncated) {
+          resumeATimestamp = recordsChannel.getResumeTimestamp();
+          Logger.info(LOG_TAG, "First RecordsChannel was cut short by its deadline. Resume timestamp is " + resumeATimestamp +
+                               ". Skipping second flow.");
+          try {
+            sessionA.finish(session);
+          } catch (InactiveSessionException e) {
+            session.onFinishFailed(e);
+          }
+          return;
+        }
         channelBToA.flow();
       }
 
@@ -179,6 +201,7 @@ implements RecordsChannelDelegate,
 
     // This is the *first* channel to flow.
     channelAToB = new RecordsChannel(this.sessionA, this.sessionB, channelAToBDelegate);
+    channelAToB.setDeadline(synchronizer.deadline);
 
     Logger.info(LOG_TAG, "Starting A to B flow. Channel is " + channelAToB);
     try {
@@ -349,8 +372,17 @@ implements RecordsChannelDelegate,
 
     if (session == sessionA) {
       if (flowAToBCompleted) {
-        Logger.info(LOG_TAG, "onFinishSucceeded: bumping session A's timestamp to " + pendingATimestamp + " or " + storeEndATimestamp);
-        bundle.bumpTimestamp(Math.max(pendingATimestamp, storeEndATimestamp));
+        if (flowAToBTruncated) {
+          if (resumeATimestamp >= 0) {
+            Logger.info(LOG_TAG, "onFinishSucceeded: fetch from A was cut short; bumping session A's timestamp to " + resumeATimestamp);
+            bundle.bumpTimestamp(resumeATimestamp);
+          } else {
+            Logger.info(LOG_TAG, "onFinishSucceeded: not bumping session A's timestamp; fetch from A was cut short.");
+          }
+        } else {
+          Logger.info(LOG_TAG, "onFinishSucceeded: bumping session A's timestamp to " + pendingATimestamp + " or " + storeEndATimestamp);
+          bundle.bumpTimestamp(Math.max(pendingATimestamp, storeEndATimestamp));
+        }
         this.synchronizer.bundleA = bundle;
       } else {
         // Should not happen!
@@ -366,10 +398,15 @@ implements RecordsChannelDelegate,
         }
       }
     } else if (session == sessionB) {
-      if (flowBToACompleted) {
-        Logger.info(LOG_TAG, "onFinishSucceeded: bumping session B's timestamp to " + pendingBTimestamp + " or " + storeEndBTimestamp);
-        bundle.bumpTimestamp(Math.max(pendingBTimestamp, storeEndBTimestamp));
+      if (flowBToACompleted || flowAToBTruncated) {
+        if (flowBToACompleted) {
+          Logger.info(LOG_TAG, "onFinishSucceeded: bumping session B's timestamp to " + pendingBTimestamp + " or " + storeEndBTimestamp);
+          bundle.bumpTimestamp(Math.max(pendingBTimestamp, storeEndBTimestamp));
+        } else {
+          Logger.info(LOG_TAG, "onFinishSucceeded: not bumping session B's timestamp; second flow was skipped.");
+        }
         this.synchronizer.bundleB = bundle;
+        this.synchronizer.truncated = flowAToBTruncated;
         Logger.info(LOG_TAG, "Notifying delegate.onSynchronized.");
         this.delegate.onSynchronized(this);
       } else {
@@ -14,6 +14,7 @@ import java.math.BigDecimal;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Collection;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -33,6 +34,7 @@ import org.mozilla.gecko.sync.CollectionKeys;
 import org.mozilla.gecko.sync.CryptoRecord;
 import org.mozilla.gecko.sync.ExtendedJSONObject;
 import org.mozilla.gecko.sync.GlobalSession;
+import org.mozilla.gecko.sync.InfoCollections;
 import org.mozilla.gecko.sync.NonObjectJSONException;
 import org.mozilla.gecko.sync.SyncConfigurationException;
 import org.mozilla.gecko.sync.Utils;
@@ -471,22 +473,73 @@ public class TestClientsEngineStage extends MockSyncClientsEngineStage {
   }
 
   @Test
-  public void testWipeAndStoreShouldNotWipe() {
-    assertFalse(shouldWipe);
-    wipeAndStore(new ClientRecord());
-    assertFalse(shouldWipe);
+  public void testStoreClientRecordDoesNotWipe() {
+    ClientRecord record = new ClientRecord();
+    storeClientRecord(record);
     assertFalse(getMockDataAccessor().wiped);
     assertTrue(getMockDataAccessor().storedRecord);
+    assertTrue(downloadedGUIDs.contains(record.guid));
   }
 
   @Test
-  public void testWipeAndStoreShouldWipe() {
-    assertFalse(shouldWipe);
-    shouldWipe = true;
-    wipeAndStore(new ClientRecord());
-    assertFalse(shouldWipe);
-    assertTrue(getMockDataAccessor().wiped);
-    assertTrue(getMockDataAccessor().storedRecord);
+  public void testPruneClientRecordsKeepsDownloaded() {
+    ClientRecord record1 = new ClientRecord();
+    ClientRecord record2 = new ClientRecord();
+    storeClientRecord(record1);
+    storeClientRecord(record2);
+    pruneClientRecords();
+
+    Collection<String> retained = getMockDataAccessor().retainedGUIDs;
+    assertFalse(getMockDataAccessor().wiped);
+    assertEquals(2, retained.size());
+    assertTrue(retained.contains(record1.guid));
+    assertTrue(retained.contains(record2.guid));
+    assertTrue(downloadedGUIDs.isEmpty());
+  }
+
+  @Test
+  public void testShouldDownloadComparesInfoCollections() throws Exception {
+    session.config.infoCollections = null;
+    assertTrue(shouldDownload());
+
+    InfoCollections info = new InfoCollections(null, null);
+    info.setFromRecord(new ExtendedJSONObject("{\"clients\": 1000.5}"));
+    session.config.infoCollections = info;
+
+    // Never downloaded.
+    session.config.persistServerClientsDownloadTimestamp(0);
+    assertTrue(shouldDownload());
+
+    session.config.persistServerClientsDownloadTimestamp(1000500);
+    assertFalse(shouldDownload());
+
+    session.config.persistServerClientsDownloadTimestamp(999000);
+    assertTrue(shouldDownload());
+    session.config.infoCollections = null;
+  }
+
+  @Test
+  public void testShouldDownloadFull() {
+    session.config.persistServerClientsDownloadTimestamp(0);
+    session.config.persistServerClientsFullDownloadTimestamp(0);
+    assertTrue(shouldDownloadFull());
+
+    long now = System.currentTimeMillis();
+    session.config.persistServerClientsDownloadTimestamp(now);
+    session.config.persistServerClientsFullDownloadTimestamp(now);
+    assertFalse(shouldDownloadFull());
+
+    session.config.persistServerClientsFullDownloadTimestamp(now - CLIENTS_TTL_REFRESH - 1);
+    assertTrue(shouldDownloadFull());
+  }
+
+  @Test
+  public void testDeletedClientRecordIsDeleted() {
+    ClientRecord record = new ClientRecord();
+    storeClientRecord(record);
+    deleteClientRecord(record);
+    assertTrue(getMockDataAccessor().deletedRecord);
+    assertFalse(downloadedGUIDs.contains(record.guid));
   }
 
   @Test
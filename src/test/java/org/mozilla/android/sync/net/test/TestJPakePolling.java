@@ -0,0 +1,187 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.net.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.PrintStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.android.sync.test.helpers.HTTPServerTestHelper;
+import org.mozilla.android.sync.test.helpers.MockServer;
+import org.mozilla.android.sync.test.helpers.WaitHelper;
+import org.mozilla.gecko.sync.jpake.JPakeClient;
+import org.mozilla.gecko.sync.jpake.JPakePollSchedule;
+import org.mozilla.gecko.sync.jpake.stage.GetRequestStage;
+import org.mozilla.gecko.sync.net.BaseResource;
+import org.mozilla.gecko.sync.setup.Constants;
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+
+public class TestJPakePolling {
+  private static final int    TEST_PORT    = 15325;
+  private static final String TEST_SERVER  = "http://localhost:" + TEST_PORT;
+  private static final String CHANNEL_URL  = TEST_SERVER + "/ABCD";
+  private static final String MY_ETAG      = "\"my-etag\"";
+  private static final String THEIR_ETAG   = "\"their-etag\"";
+
+  private HTTPServerTestHelper data = new HTTPServerTestHelper(TEST_PORT);
+
+  /**
+   * A J-PAKE channel that holds our own message (304 to If-None-Match with
+   * its ETag) until <code>availableAt</code>, then serves the other party's.
+   */
+  public class MockJPakeServer extends MockServer {
+    public final long availableAt;
+    public int polls = 0;
+    public int notModified = 0;
+
+    public MockJPakeServer(long availableAt) {
+      this.availableAt = availableAt;
+    }
+
+    @Override
+    public void handle(Request request, Response response) {
+      polls++;
+      try {
+        if (System.currentTimeMillis() < availableAt &&
+            MY_ETAG.equals(request.getValue("If-None-Match"))) {
+          notModified++;
+          PrintStream bodyStream = this.handleBasicHeaders(request, response, 304, "application/json");
+          bodyStream.close();
+          return;
+        }
+        PrintStream bodyStream = this.handleBasicHeaders(request, response, 200, "application/json");
+        response.set("ETag", THEIR_ETAG);
+        bodyStream.println("{\"type\": \"sender2\", \"version\": 3, \"payload\": {}}");
+        bodyStream.close();
+      } catch (IOException e) {
+        System.err.println("Oops.");
+      }
+    }
+  }
+
+  /**
+   * Records when the next stage would have run, or why we aborted.
+   */
+  public class MockJPakeClient extends JPakeClient {
+    public long nextStageAt = -1;
+    public String abortReason = null;
+
+    public MockJPakeClient() {
+      super(null);
+      channelUrl = CHANNEL_URL;
+      myEtag = MY_ETAG;
+    }
+
+    @Override
+    public void runNextStage() {
+      nextStageAt = System.currentTimeMillis();
+      WaitHelper.getTestWaiter().performNotify();
+    }
+
+    @Override
+    public void abort(String reason) {
+      finished = true;
+      abortReason = reason;
+      WaitHelper.getTestWaiter().performNotify();
+    }
+  }
+
+  @Before
+  public void setUp() {
+    BaseResource.enablePlainHTTPConnectionManager();
+    BaseResource.rewriteLocalhost = false;
+  }
+
+  @After
+  public void tearDown() {
+    data.stopHTTPServer();
+  }
+
+  protected void poll(final JPakeClient client) {
+    WaitHelper.getTestWaiter().performWait(new Runnable() {
+      @Override
+      public void run() {
+        new GetRequestStage().execute(client);
+      }
+    });
+  }
+
+  @Test
+  public void testScheduleBacksOff() {
+    JPakePollSchedule schedule = new JPakePollSchedule();
+    schedule.jitterFraction = 0;
+
+    for (int i = 0; i <= schedule.fastPolls; i++) {
+      assertEquals(schedule.fastIntervalMillis, schedule.getDelay(i));
+    }
+    int previous = schedule.fastIntervalMillis;
+    for (int i = schedule.fastPolls + 1; i < 100; i++) {
+      int delay = schedule.getDelay(i);
+      assertTrue(delay >= previous);
+      assertTrue(delay <= schedule.maxIntervalMillis);
+      previous = delay;
+    }
+    assertEquals(schedule.maxIntervalMillis, previous);
+  }
+
+  @Test
+  public void testScheduleJitter() {
+    JPakePollSchedule schedule = new JPakePollSchedule();
+    for (int i = 0; i < 100; i++) {
+      int delay = schedule.getDelay(50);
+      assertTrue(delay >= schedule.maxIntervalMillis * (1 - schedule.jitterFraction) - 1);
+      assertTrue(delay <= schedule.maxIntervalMillis * (1 + schedule.jitterFraction) + 1);
+    }
+  }
+
+  /**
+   * Run a single GET stage against a channel where the other party's message
+   * shows up two seconds in. We should see it soon after, having spent only
+   * 304s on the wait. This covers one poll loop, not a whole pairing.
+   */
+  @Test
+  public void testGetStageLatency() {
+    final long delay = 2000;
+    MockJPakeServer server = new MockJPakeServer(System.currentTimeMillis() + delay);
+    data.startHTTPServer(server);
+
+    MockJPakeClient client = new MockJPakeClient();
+    client.jpakeMaxTries = 10;
+    poll(client);
+
+    assertNull(client.abortReason);
+    assertEquals(THEIR_ETAG, client.theirEtag);
+    assertEquals("sender2", client.jIncoming.getString(Constants.JSON_KEY_TYPE));
+    assertEquals(0, client.pollTries);
+    assertEquals(server.polls - 1, server.notModified);
+
+    final long latency = client.nextStageAt - server.availableAt;
+    // A fixed one second poll, with its extra one second reschedule, took up
+    // to two seconds here.
+    assertTrue(latency < client.pollSchedule.maxIntervalMillis);
+  }
+
+  @Test
+  public void testPollingTimesOut() {
+    MockJPakeServer server = new MockJPakeServer(Long.MAX_VALUE);
+    data.startHTTPServer(server);
+
+    MockJPakeClient client = new MockJPakeClient();
+    client.jpakeMaxTries = 2;
+    client.jpakePollInterval = 500;
+    final long start = System.currentTimeMillis();
+    poll(client);
+
+    assertEquals(Constants.JPAKE_ERROR_TIMEOUT, client.abortReason);
+    assertTrue(System.currentTimeMillis() - start >= 1000);
+    assertEquals(server.polls, server.notModified);
+  }
+}
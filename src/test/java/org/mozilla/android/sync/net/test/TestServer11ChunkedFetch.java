@@ -0,0 +1,178 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.net.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.Utils;
+import org.mozilla.gecko.sync.net.SyncStorageResponse;
+import org.mozilla.gecko.sync.repositories.Server11Repository;
+import org.mozilla.gecko.sync.repositories.Server11RepositorySession;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
+import org.mozilla.gecko.sync.repositories.domain.Record;
+
+import ch.boye.httpclientandroidlib.HttpResponse;
+import ch.boye.httpclientandroidlib.ProtocolVersion;
+import ch.boye.httpclientandroidlib.message.BasicHttpResponse;
+import ch.boye.httpclientandroidlib.message.BasicStatusLine;
+
+public class TestServer11ChunkedFetch {
+  private static final String SERVER_URI = "http://foo.com/";
+  private static final String USERNAME   = "johndoe";
+  private static final String COLLECTION = "bookmarks";
+  private static final int MAX_URL_LENGTH = 300;
+
+  public static class ShortURLServer11Repository extends Server11Repository {
+    public ShortURLServer11Repository() throws URISyntaxException {
+      super(SERVER_URI, USERNAME, COLLECTION, null);
+    }
+
+    @Override
+    protected int getMaxURLLength() {
+      return MAX_URL_LENGTH;
+    }
+  }
+
+  /**
+   * Answers each request itself, rather than going to the network.
+   */
+  public static class MockServer11RepositorySession extends Server11RepositorySession {
+    public final List<String> requestedIDs = Collections.synchronizedList(new ArrayList<String>());
+    public final AtomicInteger concurrent = new AtomicInteger(0);
+    public final AtomicInteger maxConcurrent = new AtomicInteger(0);
+    public final AtomicInteger timestamp = new AtomicInteger(2000);
+
+    public MockServer11RepositorySession(Server11Repository repository) {
+      super(repository);
+    }
+
+    @Override
+    protected void fetchWithParameters(long newer, long limit, boolean full, String sort, String ids,
+                                       RequestFetchDelegateAdapter delegate) throws URISyntaxException {
+      assertTrue(serverRepository().collectionURI(full, newer, limit, sort, ids).toASCIIString().length() <= MAX_URL_LENGTH);
+      final int now = concurrent.incrementAndGet();
+      synchronized (maxConcurrent) {
+        maxConcurrent.set(Math.max(now, maxConcurrent.get()));
+      }
+      try {
+        Thread.sleep(20);
+      } catch (InterruptedException e) {
+      }
+      requestedIDs.add(ids);
+      for (String guid : ids.split(",")) {
+        CryptoRecord record = new CryptoRecord();
+        record.guid = guid;
+        delegate.handleWBO(record);
+      }
+      HttpResponse response = new BasicHttpResponse(
+          new BasicStatusLine(new ProtocolVersion("HTTP", 1, 1), 200, "OK"));
+      response.addHeader("X-Weave-Timestamp", Integer.toString(timestamp.getAndDecrement()));
+      concurrent.decrementAndGet();
+      delegate.handleRequestSuccess(new SyncStorageResponse(response));
+    }
+
+    public Server11Repository serverRepository() {
+      return (Server11Repository) repository;
+    }
+  }
+
+  public static class CollectingDelegate implements RepositorySessionFetchRecordsDelegate {
+    public final Set<String> guids = new HashSet<String>();
+    public final CountDownLatch completed = new CountDownLatch(1);
+    public final AtomicInteger completions = new AtomicInteger(0);
+    public final AtomicInteger inside = new AtomicInteger(0);
+    public volatile boolean overlapped = false;
+    public volatile long fetchEnd = -1;
+    public volatile Exception failure = null;
+
+    @Override
+    public void onFetchFailed(Exception ex, Record record) {
+      failure = ex;
+      completed.countDown();
+    }
+
+    @Override
+    public void onFetchedRecord(Record record) {
+      if (inside.incrementAndGet() > 1) {
+        overlapped = true;
+      }
+      guids.add(record.guid);
+      inside.decrementAndGet();
+    }
+
+    @Override
+    public void onFetchCompleted(long fetchEnd) {
+      this.fetchEnd = fetchEnd;
+      completions.incrementAndGet();
+      completed.countDown();
+    }
+
+    @Override
+    public void onFetchSucceeded(Record[] records, long fetchEnd) {
+      for (Record record : records) {
+        onFetchedRecord(record);
+      }
+      onFetchCompleted(fetchEnd);
+    }
+
+    @Override
+    public RepositorySessionFetchRecordsDelegate deferredFetchDelegate(ExecutorService executor) {
+      return this;
+    }
+  }
+
+  @Test
+  public void testFetchSplitsLongGUIDLists() throws Exception {
+    MockServer11RepositorySession session = new MockServer11RepositorySession(new ShortURLServer11Repository());
+    Set<String> expected = new HashSet<String>();
+    String[] guids = new String[200];
+    for (int i = 0; i < guids.length; i++) {
+      guids[i] = Utils.generateGuid();
+      expected.add(guids[i]);
+    }
+
+    CollectingDelegate delegate = new CollectingDelegate();
+    session.fetch(guids, delegate);
+    assertTrue(delegate.completed.await(10, TimeUnit.SECONDS));
+    Thread.sleep(50);
+
+    assertNull(delegate.failure);
+    assertEquals(1, delegate.completions.get());
+    assertEquals(expected, delegate.guids);
+    assertTrue(session.requestedIDs.size() > 1);
+    assertTrue(session.maxConcurrent.get() > 1);
+    assertTrue(session.maxConcurrent.get() <= Server11RepositorySession.FETCH_CONCURRENCY);
+    assertTrue(!delegate.overlapped);
+
+    // The earliest of the requests' timestamps.
+    assertEquals((2000 - session.requestedIDs.size() + 1) * 1000L, delegate.fetchEnd);
+  }
+
+  @Test
+  public void testShortFetchIsOneRequest() throws Exception {
+    MockServer11RepositorySession session = new MockServer11RepositorySession(new ShortURLServer11Repository());
+    CollectingDelegate delegate = new CollectingDelegate();
+    session.fetch(new String[] { "abcdefghijkl", "mnopqrstuvwx" }, delegate);
+    assertTrue(delegate.completed.await(10, TimeUnit.SECONDS));
+    assertEquals(1, session.requestedIDs.size());
+    assertEquals("abcdefghijkl,mnopqrstuvwx", session.requestedIDs.get(0));
+    assertEquals(2, delegate.guids.size());
+    assertEquals(2000000L, delegate.fetchEnd);
+  }
+}
@@ -0,0 +1,109 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.net.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.Test;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.NonObjectJSONException;
+import org.mozilla.gecko.sync.net.SyncResponse;
+
+import ch.boye.httpclientandroidlib.HttpResponse;
+import ch.boye.httpclientandroidlib.ProtocolVersion;
+import ch.boye.httpclientandroidlib.entity.BasicHttpEntity;
+import ch.boye.httpclientandroidlib.message.BasicHttpResponse;
+import ch.boye.httpclientandroidlib.message.BasicStatusLine;
+
+public class TestSyncResponseBody {
+  protected static SyncResponse makeResponse(byte[] body, String contentType, boolean withLength) {
+    final HttpResponse response = new BasicHttpResponse(
+        new BasicStatusLine(new ProtocolVersion("HTTP", 1, 1), 200, "OK"));
+    final BasicHttpEntity entity = new BasicHttpEntity();
+    entity.setContent(new ByteArrayInputStream(body));
+    entity.setContentLength(withLength ? body.length : -1);
+    if (contentType != null) {
+      entity.setContentType(contentType);
+    }
+    response.setEntity(entity);
+    return new SyncResponse(response);
+  }
+
+  @Test
+  public void testBodyUsesDeclaredCharset() throws Exception {
+    final String text = "{\"title\":\"café\"}";
+    SyncResponse response = makeResponse(text.getBytes("ISO-8859-1"), "application/json; charset=ISO-8859-1", true);
+    assertEquals(text, response.body());
+    // The body is read once, and can be parsed after it's been read as a String.
+    assertEquals("café", response.jsonObjectBody().getString("title"));
+
+    response = makeResponse(text.getBytes("UTF-8"), "application/json", false);
+    assertEquals("café", response.jsonObjectBody().getString("title"));
+    assertEquals(text, response.body());
+  }
+
+  @Test
+  public void testLargeBodyOfUnknownLength() throws Exception {
+    final StringBuilder b = new StringBuilder("[");
+    for (int i = 0; i < 20000; i++) {
+      if (i > 0) {
+        b.append(",");
+      }
+      b.append("\"abcdefghijkl\"");
+    }
+    b.append("]");
+    final byte[] bytes = b.toString().getBytes("UTF-8");
+    assertTrue(bytes.length > 64 * 1024);
+
+    SyncResponse response = makeResponse(bytes, null, false);
+    assertEquals(20000, response.bodyAsTypedObject(JSONArray.class).size());
+    assertEquals(bytes.length, response.bodyBytes().length);
+  }
+
+  @Test
+  public void testSizeCap() throws Exception {
+    final byte[] bytes = "{\"a\":\"0123456789\"}".getBytes("UTF-8");
+    for (boolean withLength : new boolean[] { true, false }) {
+      SyncResponse response = makeResponse(bytes, null, withLength);
+      response.maxBodyBytes = 10;
+      try {
+        response.body();
+        fail("Should have refused a body over the limit.");
+      } catch (IOException e) {
+        // Expected.
+      }
+    }
+  }
+
+  @Test
+  public void testBodyAsTypedObject() throws Exception {
+    final byte[] bytes = "{\"a\":1}".getBytes("UTF-8");
+    JSONObject object = makeResponse(bytes, null, true).bodyAsTypedObject(JSONObject.class);
+    assertEquals(1L, object.get("a"));
+
+    SyncResponse response = makeResponse(bytes, null, true);
+    ExtendedJSONObject extended = response.bodyAsTypedObject(ExtendedJSONObject.class);
+    assertEquals(Long.valueOf(1), extended.getLong("a"));
+    try {
+      response.bodyAsTypedObject(JSONArray.class);
+      fail("Should have thrown.");
+    } catch (NonObjectJSONException e) {
+      // Expected.
+    }
+
+    final HttpResponse empty = new BasicHttpResponse(
+        new BasicStatusLine(new ProtocolVersion("HTTP", 1, 1), 204, "No Content"));
+    assertNull(new SyncResponse(empty).bodyAsTypedObject(JSONObject.class));
+    assertNull(new SyncResponse(empty).jsonBody());
+    assertNull(new SyncResponse(empty).body());
+  }
+}
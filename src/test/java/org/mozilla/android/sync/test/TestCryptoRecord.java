@@ -8,6 +8,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
@@ -19,6 +20,7 @@ import org.junit.Test;
 import org.mozilla.apache.commons.codec.binary.Base64;
 import org.mozilla.gecko.sync.CryptoRecord;
 import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.JSONOutputBuffer;
 import org.mozilla.gecko.sync.NonArrayJSONException;
 import org.mozilla.gecko.sync.NonObjectJSONException;
 import org.mozilla.gecko.sync.Utils;
@@ -270,6 +272,56 @@ public class TestCryptoRecord {
     assertArrayEquals(Base64.decodeBase64(expectedBase64HmacKey.getBytes("UTF-8")), keyBundle.getHMACKey());
   }
 
+  protected static String writeJSON(Record record) throws IOException {
+    JSONOutputBuffer buffer = new JSONOutputBuffer(16);
+    record.writeJSON(buffer);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    buffer.writeTo(out);
+    return out.toString("UTF-8");
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testWriteJSONMatchesToJSONString() throws Exception {
+    JSONArray array = new JSONArray();
+    array.add("a\"b");
+    array.add(null);
+    array.add(Long.valueOf(-12));
+    array.add(Boolean.TRUE);
+    array.add(Double.valueOf(1.5));
+    JSONObject nested = new JSONObject();
+    nested.put("empty", new JSONArray());
+    nested.put("url", "http://example.com/a?b=c&d=\\e");
+
+    ExtendedJSONObject payload = new ExtendedJSONObject();
+    payload.put("id", "abcdefghijkl");
+    payload.put("tricky", "quote \" slash / backslash \\ tab \t newline \n bell \u0007 del \u007F");
+    payload.put("unicode", "caf\u00e9 \u2028 \u20AC \uD83D\uDE00 \u65e5\u672c");
+    payload.put("array", array);
+    payload.put("nested", nested);
+
+    CryptoRecord record = new CryptoRecord(payload);
+    record.guid = "abcdefghijkl";
+    record.ttl = 3600;
+
+    String streamed = writeJSON(record);
+    assertEquals(record.toJSONString().length(), streamed.length());
+    ExtendedJSONObject envelope = ExtendedJSONObject.parseJSONObject(streamed);
+    assertEquals(record.toJSONObject(), envelope.object);
+    // The payload is byte-for-byte what json-simple would produce.
+    assertEquals(payload.toJSONString(), envelope.getString("payload"));
+
+    // And again for an encrypted record without a TTL.
+    record.ttl = -1;
+    record.keyBundle = KeyBundle.withRandomKeys();
+    record.encrypt();
+    streamed = writeJSON(record);
+    envelope = ExtendedJSONObject.parseJSONObject(streamed);
+    assertEquals(record.toJSONObject(), envelope.object);
+    assertNull(envelope.get("ttl"));
+    assertEquals(record.payload.toJSONString(), envelope.getString("payload"));
+  }
+
   @Test
   public void testTTL() throws UnsupportedEncodingException, CryptoException {
     Record historyRecord = new HistoryRecord();
@@ -25,6 +25,7 @@ import org.mozilla.gecko.sync.jpake.JPakeCrypto;
 import org.mozilla.gecko.sync.jpake.JPakeNumGenerator;
 import org.mozilla.gecko.sync.jpake.JPakeNumGeneratorRandom;
 import org.mozilla.gecko.sync.jpake.JPakeParty;
+import org.mozilla.gecko.sync.jpake.Zkp;
 import org.mozilla.gecko.sync.jpake.stage.ComputeKeyVerificationStage;
 import org.mozilla.gecko.sync.jpake.stage.VerifyPairingStage;
 import org.mozilla.gecko.sync.setup.Constants;
@@ -154,6 +155,36 @@ public class TestJPakeSetup {
     assertFalse(jPakeDeriveSameKey(gen, gen, secret1, secret2));
   }
 
+  /*
+   * Test that round 2 rejects a bad ZKP for either of the other party's values.
+   */
+  @Test
+  public void testRound2RejectsIncorrectZkp() throws Exception {
+    BigInteger secret = JPakeClient.secretAsBigInteger("byubd7u75qmq");
+    JPakeNumGenerator gen = new JPakeNumGeneratorRandom();
+
+    for (int tampered = 3; tampered <= 4; tampered++) {
+      JPakeParty party1 = new JPakeParty("party1");
+      JPakeParty party2 = new JPakeParty("party2");
+      JPakeCrypto.round1(party1, gen);
+      JPakeCrypto.round1(party2, gen);
+
+      party1.gx3 = party2.gx1;
+      party1.gx4 = party2.gx2;
+      party1.zkp3 = party2.zkp1;
+      party1.zkp4 = party2.zkp2;
+
+      Zkp bad = (tampered == 3) ? party1.zkp3 : party1.zkp4;
+      bad.b = bad.b.add(BigInteger.ONE);
+      try {
+        JPakeCrypto.round2(secret, party1, gen);
+        fail("round2 should fail if zkp" + tampered + " is incorrect");
+      } catch (IncorrectZkpException e) {
+        // Hurrah.
+      }
+    }
+  }
+
   /*
    * Helper simulation of a J-PAKE key derivation between two parties, with
    * secret1 and secret2. Both parties are assumed to be communicating on the
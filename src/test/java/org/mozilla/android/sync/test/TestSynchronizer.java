@@ -9,12 +9,18 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 
 import org.junit.Test;
 import org.mozilla.android.sync.test.helpers.WBORepository;
 import org.mozilla.gecko.sync.repositories.RepositorySessionBundle;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCreationDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
 import org.mozilla.gecko.sync.repositories.domain.BookmarkRecord;
+import org.mozilla.gecko.sync.repositories.domain.Record;
 import org.mozilla.gecko.sync.synchronizer.Synchronizer;
 import org.mozilla.gecko.sync.synchronizer.SynchronizerDelegate;
 import org.mozilla.gecko.sync.synchronizer.SynchronizerSession;
@@ -385,4 +391,212 @@ public class TestSynchronizer {
     recordEquals(ab, bb);
     System.out.println("Reached end of test.");
   }
+
+  /**
+   * Synchronize with a deadline that has already passed. Nothing should be
+   * fetched from A, and neither timestamp should move. B's records aren't
+   * uploaded until a sync fetches everything from A.
+   */
+  @Test
+  public void testSynchronizerDeadline() {
+    final Object monitor = new Object();
+    Context context = null;
+
+    final String collection  = "bookmarks";
+    final boolean deleted    = false;
+    final String guidA       = "abcdabcdabcd";
+    final String guidB       = "ffffffffffff";
+    final long lastModifiedA = 312345;
+    final long lastModifiedB = 412345;
+    BookmarkRecord bookmarkRecordA = new BookmarkRecord(guidA, collection, lastModifiedA, deleted);
+    BookmarkRecord bookmarkRecordB = new BookmarkRecord(guidB, collection, lastModifiedB, deleted);
+
+    final Synchronizer synchronizer = getTestSynchronizer(0, 0);
+    synchronizer.deadline = 1;
+    final WBORepository repoA = (WBORepository) synchronizer.repositoryA;
+    final WBORepository repoB = (WBORepository) synchronizer.repositoryB;
+
+    repoA.wbos.put(guidA, bookmarkRecordA);
+    repoB.wbos.put(guidB, bookmarkRecordB);
+    synchronized (monitor) {
+      synchronizer.synchronize(context, new SuccessfulSynchronizerDelegate() {
+        @Override
+        public void onSynchronized(Synchronizer synchronizer) {
+          synchronized (monitor) {
+            monitor.notify();
+          }
+        }
+      });
+      try {
+        monitor.wait();
+      } catch (InterruptedException e) {
+        fail("Interrupted.");
+      }
+    }
+
+    assertTrue(synchronizer.truncated);
+    assertEquals(0, synchronizer.bundleA.getTimestamp());
+    assertEquals(0, synchronizer.bundleB.getTimestamp());
+    assertFalse(repoB.wbos.containsKey(guidA));
+    assertFalse(repoA.wbos.containsKey(guidB));
+  }
+
+  /**
+   * Fetches oldest first, like the server, and stalls until after the
+   * synchronizer's deadline once it has delivered <code>stallAfter</code>
+   * records.
+   */
+  public static class StallingWBORepository extends WBORepository {
+    public final int stallAfter;
+    public volatile long stallUntil = -1;
+
+    public StallingWBORepository(int stallAfter) {
+      super();
+      this.stallAfter = stallAfter;
+    }
+
+    @Override
+    public void createSession(RepositorySessionCreationDelegate delegate, Context context) {
+      delegate.deferredCreationDelegate().onSessionCreated(new WBORepositorySession(this) {
+        @Override
+        public boolean fetchInModifiedOrder() {
+          return true;
+        }
+
+        @Override
+        public void fetchSince(long timestamp, RepositorySessionFetchRecordsDelegate delegate) {
+          final ArrayList<Record> records = new ArrayList<Record>();
+          for (Record record : wbos.values()) {
+            if (record.lastModified > timestamp) {
+              records.add(record);
+            }
+          }
+          Collections.sort(records, new Comparator<Record>() {
+            @Override
+            public int compare(Record a, Record b) {
+              return (a.lastModified < b.lastModified) ? -1 : ((a.lastModified == b.lastModified) ? 0 : 1);
+            }
+          });
+
+          for (int i = 0; i < records.size(); i++) {
+            if (i == stallAfter) {
+              try {
+                Thread.sleep(Math.max(0, stallUntil - System.currentTimeMillis()));
+              } catch (InterruptedException e) {
+                // Carry on.
+              }
+            }
+            delegate.onFetchedRecord(records.get(i));
+          }
+          delegate.onFetchCompleted(now());
+        }
+      });
+    }
+  }
+
+  protected void synchronizeAndWait(final Synchronizer synchronizer) {
+    final Object monitor = new Object();
+    synchronized (monitor) {
+      synchronizer.synchronize(null, new SuccessfulSynchronizerDelegate() {
+        @Override
+        public void onSynchronized(Synchronizer synchronizer) {
+          synchronized (monitor) {
+            monitor.notify();
+          }
+        }
+      });
+      try {
+        monitor.wait();
+      } catch (InterruptedException e) {
+        fail("Interrupted.");
+      }
+    }
+  }
+
+  /**
+   * Synchronize a collection that takes longer than the deadline to fetch.
+   * Each truncated sync should persist how far it got, so that successive
+   * syncs make progress and together fetch every record.
+   */
+  @Test
+  public void testTruncatedSyncsResume() {
+    final int records = 10;
+    final int stallAfter = 4;
+
+    final StallingWBORepository repoA = new StallingWBORepository(stallAfter);
+    final WBORepository repoB = new WBORepository();
+    for (int i = 1; i <= records; i++) {
+      final String guid = "guid" + i + "aaaaaaaa";
+      repoA.wbos.put(guid, new BookmarkRecord(guid, "bookmarks", 1000 * i, false));
+    }
+
+    final Synchronizer synchronizer = new Synchronizer();
+    synchronizer.bundleA     = new RepositorySessionBundle(0);
+    synchronizer.bundleB     = new RepositorySessionBundle(0);
+    synchronizer.repositoryA = repoA;
+    synchronizer.repositoryB = repoB;
+
+    // Each sync stores the records up to the stall, and resumes after the
+    // last modified time it's sure to have stored completely.
+    final long[] expectedTimestamps = new long[] { 3000, 6000 };
+    for (int sync = 0; sync < expectedTimestamps.length; sync++) {
+      synchronizer.deadline = System.currentTimeMillis() + 500;
+      repoA.stallUntil = synchronizer.deadline + 50;
+      synchronizeAndWait(synchronizer);
+
+      assertTrue(synchronizer.truncated);
+      assertEquals(expectedTimestamps[sync], synchronizer.bundleA.getTimestamp());
+      assertEquals(stallAfter * (sync + 1) - sync, repoB.wbos.size());
+    }
+
+    // The rest fits in one more sync.
+    synchronizer.deadline = System.currentTimeMillis() + 500;
+    repoA.stallUntil = synchronizer.deadline + 50;
+    synchronizeAndWait(synchronizer);
+
+    assertFalse(synchronizer.truncated);
+    assertEquals(records, repoB.wbos.size());
+    assertTrue(synchronizer.bundleA.getTimestamp() > 1000 * records);
+  }
+
+  /**
+   * B's changes aren't uploaded while A's records are only partly fetched,
+   * and B's timestamp stays put so they're uploaded once A is caught up.
+   */
+  @Test
+  public void testTruncatedSyncDefersUpload() {
+    final StallingWBORepository repoA = new StallingWBORepository(2);
+    final WBORepository repoB = new WBORepository();
+    for (int i = 1; i <= 4; i++) {
+      final String guid = "guid" + i + "aaaaaaaa";
+      repoA.wbos.put(guid, new BookmarkRecord(guid, "bookmarks", 1000 * i, false));
+    }
+    final String guidB = "localbbbbbbb";
+    repoB.wbos.put(guidB, new BookmarkRecord(guidB, "bookmarks", 500, false));
+
+    final Synchronizer synchronizer = new Synchronizer();
+    synchronizer.bundleA     = new RepositorySessionBundle(0);
+    synchronizer.bundleB     = new RepositorySessionBundle(0);
+    synchronizer.repositoryA = repoA;
+    synchronizer.repositoryB = repoB;
+
+    synchronizer.deadline = System.currentTimeMillis() + 500;
+    repoA.stallUntil = synchronizer.deadline + 50;
+    synchronizeAndWait(synchronizer);
+
+    assertTrue(synchronizer.truncated);
+    // The two records fetched before the stall, and B's own.
+    assertEquals(3, repoB.wbos.size());
+    assertFalse(repoA.wbos.containsKey(guidB));
+    assertEquals(0, synchronizer.bundleB.getTimestamp());
+
+    synchronizer.deadline = System.currentTimeMillis() + 500;
+    repoA.stallUntil = -1;
+    synchronizeAndWait(synchronizer);
+
+    assertFalse(synchronizer.truncated);
+    assertEquals(5, repoB.wbos.size());
+    assertTrue(repoA.wbos.containsKey(guidB));
+    assertTrue(synchronizer.bundleB.getTimestamp() > 0);
+  }
 }
@@ -10,6 +10,9 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import junit.framework.AssertionFailedError;
 
@@ -22,12 +25,14 @@ import org.mozilla.android.sync.test.helpers.ExpectSuccessRepositorySessionFetch
 import org.mozilla.android.sync.test.helpers.ExpectSuccessRepositorySessionFinishDelegate;
 import org.mozilla.android.sync.test.helpers.ExpectSuccessRepositorySessionStoreDelegate;
 import org.mozilla.android.sync.test.helpers.ExpectSuccessRepositoryWipeDelegate;
+import org.mozilla.android.sync.test.helpers.MockPayloadHashesDatabaseAccessor;
 import org.mozilla.android.sync.test.helpers.MockRecord;
 import org.mozilla.android.sync.test.helpers.WaitHelper;
 import org.mozilla.android.sync.test.helpers.WBORepository;
 import org.mozilla.gecko.sync.CryptoRecord;
 import org.mozilla.gecko.sync.Logger;
 import org.mozilla.gecko.sync.NonObjectJSONException;
+import org.mozilla.gecko.sync.PersistedPayloadHashes;
 import org.mozilla.gecko.sync.crypto.CryptoException;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
 import org.mozilla.gecko.sync.middleware.Crypto5MiddlewareRepository;
@@ -36,9 +41,12 @@ import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
 import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCreationDelegate;
 import org.mozilla.gecko.sync.repositories.domain.BookmarkRecord;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
+import android.content.Context;
+
 public class TestCrypto5MiddlewareRepositorySession {
   public static WaitHelper getTestWaiter() {
     return WaitHelper.getTestWaiter();
@@ -194,6 +202,334 @@ public class TestCrypto5MiddlewareRepositorySession {
     assertEquals(record.title, decryptedRecord.title);
   }
 
+  @Test
+  /**
+   * Verify that records encrypted ahead on worker threads still reach the
+   * underlying repository in the order they were stored, and all encrypted.
+   */
+  public void testStoreManyKeepsOrder() throws NonObjectJSONException, CryptoException, IOException, ParseException {
+    final List<String> storedGuids = Collections.synchronizedList(new ArrayList<String>());
+    wboRepo = new WBORepository() {
+      @Override
+      public void createSession(RepositorySessionCreationDelegate delegate, Context context) {
+        delegate.deferredCreationDelegate().onSessionCreated(new WBORepositorySession(this) {
+          @Override
+          public void store(Record record) throws NoStoreDelegateException {
+            storedGuids.add(record.guid);
+            super.store(record);
+          }
+        });
+      }
+    };
+    cmwRepo = new Crypto5MiddlewareRepository(wboRepo, keyBundle);
+
+    final int count = 100;
+    final List<BookmarkRecord> records = new ArrayList<BookmarkRecord>();
+    for (int i = 0; i < count; i++) {
+      BookmarkRecord record = new BookmarkRecord("nncdefgh" + (1000 + i), "coll", System.currentTimeMillis(), false);
+      record.title = "unencrypted title " + i;
+      records.add(record);
+    }
+
+    runInOnBeginSucceeded(new Runnable() {
+      @Override public void run() {
+        try {
+          try {
+            cmwSession.setStoreDelegate(new ExpectSuccessRepositorySessionStoreDelegate(getTestWaiter()));
+            for (BookmarkRecord record : records) {
+              cmwSession.store(record);
+            }
+          } catch (NoStoreDelegateException e) {
+            getTestWaiter().performNotify(new AssertionFailedError("Should not happen."));
+          }
+          cmwSession.storeDone();
+          cmwSession.finish(new ExpectSuccessRepositorySessionFinishDelegate(getTestWaiter()));
+        } catch (InactiveSessionException e) {
+          performNotify(e);
+        }
+      }
+    });
+
+    assertEquals(count, storedGuids.size());
+    assertEquals(count, wboRepo.wbos.size());
+    for (int i = 0; i < count; i++) {
+      BookmarkRecord record = records.get(i);
+      assertEquals(record.guid, storedGuids.get(i));
+
+      CryptoRecord cryptoRecord = ((CryptoRecord) wboRepo.wbos.get(record.guid)).decrypt();
+      BookmarkRecord decryptedRecord = new BookmarkRecord();
+      decryptedRecord.initFromEnvelope(cryptoRecord);
+      assertEquals(record.title, decryptedRecord.title);
+    }
+  }
+
+  protected void storeRecords(final List<? extends Record> records) {
+    runInOnBeginSucceeded(new Runnable() {
+      @Override public void run() {
+        try {
+          try {
+            cmwSession.setStoreDelegate(new ExpectSuccessRepositorySessionStoreDelegate(getTestWaiter()));
+            for (Record record : records) {
+              cmwSession.store(record);
+            }
+          } catch (NoStoreDelegateException e) {
+            getTestWaiter().performNotify(new AssertionFailedError("Should not happen."));
+          }
+          cmwSession.storeDone();
+          cmwSession.finish(new ExpectSuccessRepositorySessionFinishDelegate(getTestWaiter()));
+        } catch (InactiveSessionException e) {
+          performNotify(e);
+        }
+      }
+    });
+  }
+
+  @Test
+  /**
+   * Verify that records whose payload the server already holds aren't uploaded again.
+   */
+  public void testStoreSkipsUnchangedPayloads() throws Exception {
+    final List<String> storedGuids = Collections.synchronizedList(new ArrayList<String>());
+    wboRepo = new WBORepository() {
+      @Override
+      public void createSession(RepositorySessionCreationDelegate delegate, Context context) {
+        delegate.deferredCreationDelegate().onSessionCreated(new WBORepositorySession(this) {
+          @Override
+          public void store(Record record) throws NoStoreDelegateException {
+            storedGuids.add(record.guid);
+            super.store(record);
+          }
+        });
+      }
+    };
+    final PersistedPayloadHashes hashes = new PersistedPayloadHashes(new MockPayloadHashesDatabaseAccessor());
+    cmwRepo = new Crypto5MiddlewareRepository(wboRepo, keyBundle);
+    cmwRepo.payloadHashes = hashes;
+
+    final BookmarkRecord record1 = new BookmarkRecord("nncdefghiaaa", "coll", System.currentTimeMillis(), false);
+    record1.title = "first title";
+    final BookmarkRecord record2 = new BookmarkRecord("XXXXXXXXXXXX", "coll", System.currentTimeMillis(), false);
+    record2.title = "second title";
+    final List<BookmarkRecord> records = new ArrayList<BookmarkRecord>();
+    records.add(record1);
+    records.add(record2);
+
+    storeRecords(records);
+    assertEquals(2, storedGuids.size());
+    assertEquals(2, hashes.size());
+
+    // Only the changed record goes to the server.
+    storedGuids.clear();
+    record2.title = "changed title";
+    storeRecords(records);
+    assertEquals(1, storedGuids.size());
+    assertEquals(record2.guid, storedGuids.get(0));
+
+    // Fetching a record tells us what the server holds.
+    record1.title = "changed elsewhere";
+    CryptoRecord encrypted = record1.getEnvelope();
+    encrypted.keyBundle = keyBundle;
+    wboRepo.wbos.put(record1.guid, encrypted.encrypt());
+    runInOnBeginSucceeded(new Runnable() {
+      @Override public void run() {
+        cmwSession.fetchAll(new ExpectSuccessRepositorySessionFetchRecordsDelegate(getTestWaiter()));
+      }
+    });
+    performWait(onThreadRunnable(new Runnable() {
+      @Override public void run() {
+        try {
+          cmwSession.finish(new ExpectSuccessRepositorySessionFinishDelegate(getTestWaiter()));
+        } catch (InactiveSessionException e) {
+          performNotify(e);
+        }
+      }
+    }));
+
+    storedGuids.clear();
+    storeRecords(records);
+    assertEquals(0, storedGuids.size());
+  }
+
+  @Test
+  /**
+   * Verify that unchanged records with a TTL are uploaded again before the server expires them.
+   */
+  public void testStoreRefreshesExpiringPayloads() throws Exception {
+    final List<String> storedGuids = Collections.synchronizedList(new ArrayList<String>());
+    wboRepo = new WBORepository() {
+      @Override
+      public void createSession(RepositorySessionCreationDelegate delegate, Context context) {
+        delegate.deferredCreationDelegate().onSessionCreated(new WBORepositorySession(this) {
+          @Override
+          public void store(Record record) throws NoStoreDelegateException {
+            storedGuids.add(record.guid);
+            super.store(record);
+          }
+        });
+      }
+    };
+    final PersistedPayloadHashes hashes = new PersistedPayloadHashes(new MockPayloadHashesDatabaseAccessor());
+    cmwRepo = new Crypto5MiddlewareRepository(wboRepo, keyBundle);
+    cmwRepo.payloadHashes = hashes;
+
+    final BookmarkRecord record1 = new BookmarkRecord("nncdefghiaaa", "coll", System.currentTimeMillis(), false);
+    record1.title = "first title";
+    record1.ttl = 60;
+    final List<BookmarkRecord> records = new ArrayList<BookmarkRecord>();
+    records.add(record1);
+
+    storeRecords(records);
+    assertEquals(1, storedGuids.size());
+
+    // Freshly uploaded: skipped.
+    storedGuids.clear();
+    storeRecords(records);
+    assertEquals(0, storedGuids.size());
+
+    // More than half the TTL has passed since the upload.
+    hashes.put(record1.guid, hashes.get(record1.guid), System.currentTimeMillis() - 31 * 1000);
+    storeRecords(records);
+    assertEquals(1, storedGuids.size());
+    assertEquals(record1.guid, storedGuids.get(0));
+
+    // Which refreshes the hash.
+    storedGuids.clear();
+    storeRecords(records);
+    assertEquals(0, storedGuids.size());
+  }
+
+  protected List<Record> fetchAll() {
+    final ExpectSuccessRepositorySessionFetchRecordsDelegate delegate = new ExpectSuccessRepositorySessionFetchRecordsDelegate(getTestWaiter());
+    runInOnBeginSucceeded(new Runnable() {
+      @Override public void run() {
+        cmwSession.fetchAll(delegate);
+      }
+    });
+    return delegate.fetchedRecords;
+  }
+
+  protected void finishSession() {
+    performWait(onThreadRunnable(new Runnable() {
+      @Override public void run() {
+        try {
+          cmwSession.finish(new ExpectSuccessRepositorySessionFinishDelegate(getTestWaiter()));
+        } catch (InactiveSessionException e) {
+          performNotify(e);
+        }
+      }
+    }));
+  }
+
+  /**
+   * Put encrypted copies of records in the underlying repository. Fetching
+   * decrypts them in place, so do this before each fetch.
+   */
+  protected void serve(BookmarkRecord... records) throws Exception {
+    for (BookmarkRecord record : records) {
+      CryptoRecord encrypted = record.getEnvelope();
+      encrypted.keyBundle = keyBundle;
+      wboRepo.wbos.put(record.guid, encrypted.encrypt());
+    }
+  }
+
+  @Test
+  /**
+   * Verify that fetched records we last applied are dropped, until we change them locally.
+   */
+  public void testFetchDropsAppliedPayloads() throws Exception {
+    final PersistedPayloadHashes applied = new PersistedPayloadHashes(new MockPayloadHashesDatabaseAccessor());
+    cmwRepo.appliedHashes = applied;
+
+    final BookmarkRecord record1 = new BookmarkRecord("nncdefghiaaa", "coll", System.currentTimeMillis(), false);
+    record1.title = "first title";
+    final BookmarkRecord record2 = new BookmarkRecord("XXXXXXXXXXXX", "coll", System.currentTimeMillis(), false);
+    record2.title = "second title";
+
+    serve(record1, record2);
+    assertEquals(2, fetchAll().size());
+    // Only records stored downstream count as applied.
+    cmwSession.fetchedRecordStored(record1.guid);
+    finishSession();
+    assertEquals(1, applied.size());
+
+    serve(record1, record2);
+    List<Record> fetched = fetchAll();
+    assertEquals(1, fetched.size());
+    assertEquals(record2.guid, fetched.get(0).guid);
+    finishSession();
+
+    // A changed payload is applied as usual.
+    record1.title = "changed elsewhere";
+    serve(record1, record2);
+    assertEquals(2, fetchAll().size());
+    cmwSession.fetchedRecordStored(record1.guid);
+    finishSession();
+    serve(record1, record2);
+    assertEquals(1, fetchAll().size());
+    finishSession();
+
+    // So is one we've since changed locally.
+    final List<BookmarkRecord> records = new ArrayList<BookmarkRecord>();
+    records.add(record1);
+    storeRecords(records);
+    assertEquals(0, applied.size());
+    serve(record1, record2);
+    assertEquals(2, fetchAll().size());
+    finishSession();
+  }
+
+  @Test
+  /**
+   * Verify that after a reset, records we drop as already applied aren't uploaded again.
+   */
+  public void testResetDoesNotReuploadAppliedPayloads() throws Exception {
+    final List<String> storedGuids = Collections.synchronizedList(new ArrayList<String>());
+    wboRepo = new WBORepository() {
+      @Override
+      public void createSession(RepositorySessionCreationDelegate delegate, Context context) {
+        delegate.deferredCreationDelegate().onSessionCreated(new WBORepositorySession(this) {
+          @Override
+          public void store(Record record) throws NoStoreDelegateException {
+            storedGuids.add(record.guid);
+            super.store(record);
+          }
+        });
+      }
+    };
+    final PersistedPayloadHashes hashes = new PersistedPayloadHashes(new MockPayloadHashesDatabaseAccessor());
+    final PersistedPayloadHashes applied = new PersistedPayloadHashes(new MockPayloadHashesDatabaseAccessor());
+    cmwRepo = new Crypto5MiddlewareRepository(wboRepo, keyBundle);
+    cmwRepo.payloadHashes = hashes;
+    cmwRepo.appliedHashes = applied;
+
+    final BookmarkRecord record1 = new BookmarkRecord("nncdefghiaaa", "coll", System.currentTimeMillis(), false);
+    record1.title = "first title";
+    final BookmarkRecord record2 = new BookmarkRecord("XXXXXXXXXXXX", "coll", System.currentTimeMillis(), false);
+    record2.title = "second title";
+
+    serve(record1, record2);
+    assertEquals(2, fetchAll().size());
+    cmwSession.fetchedRecordStored(record1.guid);
+    cmwSession.fetchedRecordStored(record2.guid);
+    finishSession();
+    assertEquals(2, applied.size());
+
+    // A reset forgets what the server holds, and we download everything again.
+    hashes.purge();
+    serve(record1, record2);
+    assertEquals(0, fetchAll().size());
+    finishSession();
+    assertEquals(2, hashes.size());
+
+    // Uploading everything again sends nothing.
+    final List<BookmarkRecord> records = new ArrayList<BookmarkRecord>();
+    records.add(record1);
+    records.add(record2);
+    storedGuids.clear();
+    storeRecords(records);
+    assertEquals(0, storedGuids.size());
+  }
+
   @Test
   /**
    * Verify that fetch is actually retrieving encrypted data from the underlying repository and is correctly decrypting it.
@@ -0,0 +1,94 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.repositories.android.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+import org.mozilla.gecko.sync.repositories.android.FormHistoryIndex;
+import org.mozilla.gecko.sync.repositories.domain.FormHistoryRecord;
+
+public class TestFormHistoryIndex {
+
+  protected static FormHistoryRecord form(String guid, String fieldName, String fieldValue) {
+    FormHistoryRecord rec = new FormHistoryRecord(guid, "forms", 0, false);
+    rec.fieldName  = fieldName;
+    rec.fieldValue = fieldValue;
+    return rec;
+  }
+
+  /**
+   * An index in which every payload hashes alike.
+   */
+  protected static class CollidingFormHistoryIndex extends FormHistoryIndex {
+    @Override
+    protected long payloadHash(String fieldName, String fieldValue) {
+      return 42;
+    }
+  }
+
+  protected static void assertLookups(FormHistoryIndex index) {
+    FormHistoryRecord first  = form("guid1", "email", "a@example.com");
+    FormHistoryRecord second = form("guid2", "email", "b@example.com");
+    FormHistoryRecord third  = form("guid3", "name",  "a@example.com");
+    index.put(first);
+    index.put(second);
+    index.put(third);
+    assertEquals(3, index.size());
+
+    assertSame(first,  index.findByPayload("email", "a@example.com"));
+    assertSame(second, index.findByPayload("email", "b@example.com"));
+    assertSame(third,  index.findByPayload("name",  "a@example.com"));
+    assertNull(index.findByPayload("email", "c@example.com"));
+
+    // Removing the record that owns a hash leaves the others findable.
+    assertSame(first, index.remove("guid1"));
+    assertNull(index.findByPayload("email", "a@example.com"));
+    assertSame(second, index.findByPayload("email", "b@example.com"));
+    assertSame(third,  index.findByPayload("name",  "a@example.com"));
+
+    // Replacing a record under the same GUID re-keys its payload.
+    FormHistoryRecord updated = form("guid2", "email", "d@example.com");
+    index.put(updated);
+    assertNull(index.findByPayload("email", "b@example.com"));
+    assertSame(updated, index.findByPayload("email", "d@example.com"));
+    assertSame(updated, index.get("guid2"));
+  }
+
+  @Test
+  public void testLookups() {
+    assertLookups(new FormHistoryIndex());
+  }
+
+  @Test
+  public void testLookupsWithHashCollisions() {
+    assertLookups(new CollidingFormHistoryIndex());
+  }
+
+  @Test
+  public void testDuplicatePayloadKeepsFirst() {
+    FormHistoryIndex index = new FormHistoryIndex();
+    FormHistoryRecord first  = form("guid1", "email", "a@example.com");
+    FormHistoryRecord second = form("guid2", "email", "a@example.com");
+    index.put(first);
+    index.put(second);
+    assertSame(first, index.findByPayload("email", "a@example.com"));
+    assertSame(second, index.get("guid2"));
+  }
+
+  @Test
+  public void testDeletedRecordsAreNotMatchedByPayload() {
+    FormHistoryIndex index = new FormHistoryIndex();
+    FormHistoryRecord deleted = new FormHistoryRecord("guid1", "forms", 0, true);
+    index.put(deleted);
+    assertSame(deleted, index.get("guid1"));
+    assertNull(index.findByPayload(null, null));
+
+    index.clear();
+    assertEquals(0, index.size());
+    assertNull(index.get("guid1"));
+  }
+}
@@ -0,0 +1,129 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.repositories.android.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.Test;
+import org.mozilla.gecko.sync.repositories.android.PackedVisits;
+
+public class TestPackedVisits {
+
+  @SuppressWarnings("unchecked")
+  protected static JSONArray visits(long... dates) {
+    JSONArray out = new JSONArray();
+    for (long date : dates) {
+      JSONObject visit = new JSONObject();
+      visit.put("date", date);
+      visit.put("type", (date % 2) + 1);
+      out.add(visit);
+    }
+    return out;
+  }
+
+  protected static void assertVisits(PackedVisits packed, long... expectedDescending) {
+    JSONArray decoded = new PackedVisits(packed.bytes, packed.count, packed.lastDate).toJSONArray();
+    assertEquals(expectedDescending.length, decoded.size());
+    for (int i = 0; i < expectedDescending.length; i++) {
+      JSONObject visit = (JSONObject) decoded.get(i);
+      assertEquals(expectedDescending[i], ((Long) visit.get("date")).longValue());
+      assertEquals((expectedDescending[i] % 2) + 1, ((Long) visit.get("type")).longValue());
+    }
+  }
+
+  @Test
+  public void testRoundTrip() {
+    PackedVisits packed = PackedVisits.fromJSONArray(visits(1320087601465600L, 1320084970724990L, 1319764134412287L));
+    assertEquals(3, packed.count);
+    assertEquals(1320087601465600L, packed.lastDate);
+    assertTrue(packed.bytes.length < 30);
+    assertVisits(packed, 1320087601465600L, 1320084970724990L, 1319764134412287L);
+  }
+
+  @Test
+  public void testEmpty() {
+    PackedVisits packed = PackedVisits.fromJSONArray(null);
+    assertEquals(0, packed.count);
+    assertEquals(0, packed.toJSONArray().size());
+    assertEquals(0, PackedVisits.fromJSONArray(new JSONArray()).count);
+  }
+
+  @Test
+  public void testDuplicatesCollapsed() {
+    PackedVisits packed = PackedVisits.fromJSONArray(visits(5, 3, 5, 1));
+    assertVisits(packed, 5, 3, 1);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testSameDateDifferentTypesKept() {
+    JSONArray visits = new JSONArray();
+    for (long type : new long[] { 2, 1, 2 }) {
+      JSONObject visit = new JSONObject();
+      visit.put("date", 100L);
+      visit.put("type", type);
+      visits.add(visit);
+    }
+    PackedVisits packed = PackedVisits.fromJSONArray(visits);
+    // Only the exact duplicate is collapsed.
+    assertEquals(2, packed.count);
+    JSONArray decoded = packed.toJSONArray();
+    assertEquals(2L, ((JSONObject) decoded.get(0)).get("type"));
+    assertEquals(1L, ((JSONObject) decoded.get(1)).get("type"));
+  }
+
+  @Test
+  public void testUpdateUnchanged() {
+    PackedVisits packed = PackedVisits.fromJSONArray(visits(5, 3, 1));
+    // Order doesn't matter; the same visits are the same set.
+    assertSame(packed, packed.update(visits(1, 5, 3)));
+  }
+
+  @Test
+  public void testUpdateAppends() {
+    PackedVisits packed = PackedVisits.fromJSONArray(visits(5, 3, 1));
+    PackedVisits updated = packed.update(visits(9, 7, 5, 3, 1));
+    assertEquals(5, updated.count);
+    assertEquals(9, updated.lastDate);
+    assertVisits(updated, 9, 7, 5, 3, 1);
+
+    // Appending produces exactly the bytes that encoding from scratch would.
+    PackedVisits encoded = PackedVisits.fromJSONArray(visits(9, 7, 5, 3, 1));
+    assertEquals(encoded.bytes.length, updated.bytes.length);
+    for (int i = 0; i < encoded.bytes.length; i++) {
+      assertEquals(encoded.bytes[i], updated.bytes[i]);
+    }
+  }
+
+  @Test
+  public void testUpdateReplaces() {
+    PackedVisits packed = PackedVisits.fromJSONArray(visits(5, 3, 1));
+
+    // Removed visits are not kept, even when newer visits are added.
+    assertVisits(packed.update(visits(9, 5, 1)), 9, 5, 1);
+
+    // An older visit is interleaved.
+    assertVisits(packed.update(visits(5, 4, 3, 1)), 5, 4, 3, 1);
+
+    // Same size and newest visit, different history.
+    PackedVisits replaced = packed.update(visits(5, 2, 1));
+    assertNotSame(packed, replaced);
+    assertVisits(replaced, 5, 2, 1);
+
+    PackedVisits cleared = packed.update(null);
+    assertEquals(0, cleared.count);
+    assertSame(cleared, cleared.update(new JSONArray()));
+  }
+
+  @Test
+  public void testUpdateEmpty() {
+    PackedVisits empty = PackedVisits.fromJSONArray(null);
+    assertVisits(empty.update(visits(3, 1)), 3, 1);
+  }
+}
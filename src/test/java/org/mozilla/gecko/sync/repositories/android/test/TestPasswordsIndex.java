@@ -0,0 +1,84 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.repositories.android.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+import org.mozilla.gecko.sync.repositories.android.PasswordsIndex;
+import org.mozilla.gecko.sync.repositories.domain.PasswordRecord;
+
+public class TestPasswordsIndex {
+
+  protected static PasswordRecord password(String guid, String hostname, String username) {
+    PasswordRecord rec = new PasswordRecord(guid);
+    rec.hostname          = hostname;
+    rec.formSubmitURL     = hostname + "/login";
+    rec.httpRealm         = null;
+    rec.usernameField     = "user";
+    rec.passwordField     = "pass";
+    rec.encryptedUsername = username;
+    return rec;
+  }
+
+  @Test
+  public void testFindMatchComparesUsername() {
+    PasswordsIndex index = new PasswordsIndex();
+    PasswordRecord alice = password("guid-alice", "https://example.com", "alice");
+    PasswordRecord bob   = password("guid-bob",   "https://example.com", "bob");
+    index.put(alice);
+    index.put(bob);
+    assertEquals(2, index.size());
+
+    assertSame(bob,   index.findMatch(password("incoming-1", "https://example.com", "bob")));
+    assertSame(alice, index.findMatch(password("incoming-2", "https://example.com", "alice")));
+    assertNull(index.findMatch(password("incoming-3", "https://example.com", "carol")));
+    assertNull(index.findMatch(password("incoming-4", "https://example.org", "alice")));
+  }
+
+  @Test
+  public void testReplaceAndRemove() {
+    PasswordsIndex index = new PasswordsIndex();
+    PasswordRecord original = password("guid-1", "https://example.com", "alice");
+    index.put(original);
+
+    // Re-putting under the same GUID moves the record to its new key.
+    PasswordRecord moved = password("guid-1", "https://example.org", "alice");
+    index.put(moved);
+    assertEquals(1, index.size());
+    assertSame(moved, index.get("guid-1"));
+    assertNull(index.findMatch(original));
+    assertSame(moved, index.findMatch(password("incoming", "https://example.org", "alice")));
+
+    assertSame(moved, index.remove("guid-1"));
+    assertNull(index.get("guid-1"));
+    assertNull(index.findMatch(moved));
+    assertEquals(0, index.size());
+  }
+
+  @Test
+  public void testDeletedRecordsAreNotMatched() {
+    PasswordsIndex index = new PasswordsIndex();
+    PasswordRecord deleted = new PasswordRecord("guid-deleted", PasswordRecord.COLLECTION_NAME, 0, true);
+    index.put(deleted);
+
+    assertSame(deleted, index.get("guid-deleted"));
+    assertNull(index.findMatch(password("incoming", null, null)));
+  }
+
+  @Test
+  public void testDeletionMarkerReplacesLiveRecord() {
+    PasswordsIndex index = new PasswordsIndex();
+    PasswordRecord live = password("guid-1", "https://example.com", "alice");
+    index.put(live);
+
+    PasswordRecord marker = new PasswordRecord("guid-1", PasswordRecord.COLLECTION_NAME, 1000, true);
+    index.put(marker);
+    assertEquals(1, index.size());
+    assertSame(marker, index.get("guid-1"));
+    assertNull(index.findMatch(live));
+  }
+}
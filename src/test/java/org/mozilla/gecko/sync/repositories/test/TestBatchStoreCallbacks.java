@@ -0,0 +1,102 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.repositories.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.mozilla.android.sync.test.helpers.MockRecord;
+import org.mozilla.gecko.sync.ThreadPool;
+import org.mozilla.gecko.sync.repositories.delegates.BatchStoreCallbacks;
+import org.mozilla.gecko.sync.repositories.delegates.DeferredRepositorySessionBatchStoreDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionBatchStoreDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionStoreDelegate;
+import org.mozilla.gecko.sync.repositories.domain.Record;
+
+public class TestBatchStoreCallbacks {
+  public static class RecordingStoreDelegate implements RepositorySessionStoreDelegate {
+    public final List<String> stored = new ArrayList<String>();
+
+    @Override
+    public void onRecordStoreFailed(Exception ex) {
+    }
+
+    @Override
+    public void onRecordStoreSucceeded(Record record) {
+      stored.add(record.guid);
+    }
+
+    @Override
+    public void onStoreCompleted(long storeEnd) {
+    }
+
+    @Override
+    public RepositorySessionStoreDelegate deferredStoreDelegate(ExecutorService executor) {
+      return this;
+    }
+  }
+
+  public static class RecordingBatchStoreDelegate extends RecordingStoreDelegate implements RepositorySessionBatchStoreDelegate {
+    public final List<Collection<String>> batches = new ArrayList<Collection<String>>();
+
+    @Override
+    public void onRecordsStoreSucceeded(Collection<String> guids) {
+      batches.add(guids);
+    }
+  }
+
+  protected static List<Record> records(String... guids) {
+    List<Record> records = new ArrayList<Record>();
+    for (String guid : guids) {
+      records.add(new MockRecord(guid, "coll", 0, false));
+    }
+    return records;
+  }
+
+  @Test
+  public void testBatchDelegateCalledOnce() {
+    RecordingBatchStoreDelegate delegate = new RecordingBatchStoreDelegate();
+    BatchStoreCallbacks.recordsStoreSucceeded(delegate, records("aaaaaaaaaaaa", "bbbbbbbbbbbb", "cccccccccccc"));
+    BatchStoreCallbacks.guidsStoreSucceeded(delegate, Arrays.asList("dddddddddddd"), null);
+
+    assertEquals(0, delegate.stored.size());
+    assertEquals(2, delegate.batches.size());
+    assertEquals(Arrays.asList("aaaaaaaaaaaa", "bbbbbbbbbbbb", "cccccccccccc"), delegate.batches.get(0));
+    assertEquals(Arrays.asList("dddddddddddd"), delegate.batches.get(1));
+  }
+
+  @Test
+  public void testPlainDelegateCalledPerRecord() {
+    RecordingStoreDelegate delegate = new RecordingStoreDelegate();
+    BatchStoreCallbacks.recordsStoreSucceeded(delegate, records("aaaaaaaaaaaa", "bbbbbbbbbbbb"));
+    BatchStoreCallbacks.guidsStoreSucceeded(delegate, Arrays.asList("cccccccccccc", "dddddddddddd"), new MockRecord(null, "coll", 0, false));
+    // Without a template, a plain delegate can't be told.
+    BatchStoreCallbacks.guidsStoreSucceeded(delegate, Arrays.asList("eeeeeeeeeeee"), null);
+
+    assertEquals(Arrays.asList("aaaaaaaaaaaa", "bbbbbbbbbbbb", "cccccccccccc", "dddddddddddd"), delegate.stored);
+  }
+
+  @Test
+  public void testDeferredBatchDelegate() throws InterruptedException {
+    RecordingBatchStoreDelegate inner = new RecordingBatchStoreDelegate();
+    ExecutorService executor = ThreadPool.newSerialExecutor("TestBatchStoreCallbacks");
+    DeferredRepositorySessionBatchStoreDelegate deferred = new DeferredRepositorySessionBatchStoreDelegate(inner, executor);
+
+    BatchStoreCallbacks.recordsStoreSucceeded(deferred, records("aaaaaaaaaaaa", "bbbbbbbbbbbb"));
+    deferred.onRecordStoreSucceeded(new MockRecord("cccccccccccc", "coll", 0, false));
+    executor.shutdown();
+    executor.awaitTermination(5, TimeUnit.SECONDS);
+
+    assertEquals(1, inner.batches.size());
+    assertEquals(Arrays.asList("aaaaaaaaaaaa", "bbbbbbbbbbbb"), inner.batches.get(0));
+    assertEquals(Arrays.asList("cccccccccccc"), inner.stored);
+  }
+}
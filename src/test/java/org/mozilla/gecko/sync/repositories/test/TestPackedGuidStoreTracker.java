@@ -0,0 +1,144 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.repositories.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.junit.Test;
+import org.mozilla.android.sync.test.helpers.MockRecord;
+import org.mozilla.gecko.sync.Utils;
+import org.mozilla.gecko.sync.repositories.PackedGuidStoreTracker;
+import org.mozilla.gecko.sync.repositories.RecordFilter;
+
+public class TestPackedGuidStoreTracker {
+  protected static Set<String> tracked(PackedGuidStoreTracker tracker) {
+    Set<String> guids = new HashSet<String>();
+    Iterator<String> it = tracker.recordsTrackedForExclusion();
+    while (it.hasNext()) {
+      guids.add(it.next());
+    }
+    return guids;
+  }
+
+  @Test
+  public void testTrackAndUntrack() {
+    PackedGuidStoreTracker tracker = new PackedGuidStoreTracker();
+    assertNull(tracker.getFilter());
+
+    assertTrue(tracker.trackRecordForExclusion("abcdefghij-_"));
+    assertFalse(tracker.trackRecordForExclusion("abcdefghij-_"));
+    assertTrue(tracker.trackRecordForExclusion("places"));
+    assertTrue(tracker.isTrackedForExclusion("abcdefghij-_"));
+    assertTrue(tracker.isTrackedForExclusion("places"));
+    assertFalse(tracker.isTrackedForExclusion("abcdefghij--"));
+    assertFalse(tracker.isTrackedForExclusion("toolbar"));
+    assertFalse(tracker.isTrackedForExclusion(null));
+
+    Set<String> expected = new HashSet<String>();
+    expected.add("abcdefghij-_");
+    expected.add("places");
+    assertEquals(expected, tracked(tracker));
+
+    assertTrue(tracker.untrackStoredForExclusion("abcdefghij-_"));
+    assertFalse(tracker.untrackStoredForExclusion("abcdefghij-_"));
+    assertTrue(tracker.untrackStoredForExclusion("places"));
+    assertFalse(tracker.isTrackedForExclusion("abcdefghij-_"));
+    assertFalse(tracker.isTrackedForExclusion("places"));
+    assertNull(tracker.getFilter());
+
+    // Tracking again reuses the slot.
+    assertTrue(tracker.trackRecordForExclusion("abcdefghij-_"));
+    assertTrue(tracker.isTrackedForExclusion("abcdefghij-_"));
+  }
+
+  @Test
+  public void testManyGUIDs() {
+    PackedGuidStoreTracker tracker = new PackedGuidStoreTracker();
+    Set<String> guids = new HashSet<String>();
+    for (int i = 0; i < 5000; i++) {
+      String guid = Utils.generateGuid();
+      guids.add(guid);
+      tracker.trackRecordForExclusion(guid);
+    }
+    assertEquals(guids, tracked(tracker));
+
+    // Untrack most of them; the rest survive the rebuilds.
+    Set<String> kept = new HashSet<String>();
+    int i = 0;
+    for (String guid : guids) {
+      if (i++ % 10 == 0) {
+        kept.add(guid);
+      } else {
+        assertTrue(tracker.untrackStoredForExclusion(guid));
+      }
+    }
+    assertEquals(kept, tracked(tracker));
+    for (String guid : guids) {
+      assertEquals(kept.contains(guid), tracker.isTrackedForExclusion(guid));
+    }
+  }
+
+  @Test
+  public void testFilterRespectsTimestamp() {
+    PackedGuidStoreTracker tracker = new PackedGuidStoreTracker();
+    tracker.trackRecordForExclusion("aaaaaaaaaaaa", 1000);
+    tracker.trackRecordForExclusion("bbbbbbbbbbbb");
+    tracker.trackRecordForExclusion("menu", 1000);
+
+    RecordFilter filter = tracker.getFilter();
+    assertTrue(filter.excludeRecord(new MockRecord("aaaaaaaaaaaa", "coll", 999, false)));
+    assertTrue(filter.excludeRecord(new MockRecord("aaaaaaaaaaaa", "coll", 1000, false)));
+    // Modified locally since we stored it.
+    assertFalse(filter.excludeRecord(new MockRecord("aaaaaaaaaaaa", "coll", 1001, false)));
+    // Tracked without a timestamp: always excluded.
+    assertTrue(filter.excludeRecord(new MockRecord("bbbbbbbbbbbb", "coll", Long.MAX_VALUE - 1, false)));
+    assertTrue(filter.excludeRecord(new MockRecord("menu", "coll", 1000, false)));
+    assertFalse(filter.excludeRecord(new MockRecord("menu", "coll", 2000, false)));
+    assertFalse(filter.excludeRecord(new MockRecord("cccccccccccc", "coll", 0, false)));
+
+    // Tracking again only moves the timestamp forward.
+    tracker.trackRecordForExclusion("aaaaaaaaaaaa", 2000);
+    tracker.trackRecordForExclusion("aaaaaaaaaaaa", 500);
+    assertTrue(filter.excludeRecord(new MockRecord("aaaaaaaaaaaa", "coll", 2000, false)));
+    assertFalse(filter.excludeRecord(new MockRecord("aaaaaaaaaaaa", "coll", 2001, false)));
+  }
+
+  @Test
+  public void testConcurrentReads() throws InterruptedException {
+    final PackedGuidStoreTracker tracker = new PackedGuidStoreTracker();
+    final String[] guids = new String[2000];
+    for (int i = 0; i < guids.length; i++) {
+      guids[i] = Utils.generateGuid();
+    }
+    tracker.trackRecordForExclusion(guids[0]);
+
+    final boolean[] failed = new boolean[] { false };
+    Thread reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        // The first GUID stays tracked while the table grows around it.
+        for (int i = 0; i < 20000; i++) {
+          if (!tracker.isTrackedForExclusion(guids[0])) {
+            failed[0] = true;
+            return;
+          }
+        }
+      }
+    });
+    reader.start();
+    for (int i = 1; i < guids.length; i++) {
+      tracker.trackRecordForExclusion(guids[i]);
+    }
+    reader.join();
+    assertFalse(failed[0]);
+    assertEquals(guids.length, tracked(tracker).size());
+  }
+}
@@ -0,0 +1,304 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.repositories.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.mozilla.android.sync.test.helpers.MockRecord;
+import org.mozilla.android.sync.test.helpers.WBORepository;
+import org.mozilla.gecko.sync.ThreadPool;
+import org.mozilla.gecko.sync.repositories.BufferedRecordStream;
+import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
+import org.mozilla.gecko.sync.repositories.RecordStream;
+import org.mozilla.gecko.sync.repositories.RecordStreamException;
+import org.mozilla.gecko.sync.repositories.RepositorySessionBundle;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCreationDelegate;
+import org.mozilla.gecko.sync.repositories.domain.Record;
+import org.mozilla.gecko.sync.synchronizer.Synchronizer;
+import org.mozilla.gecko.sync.synchronizer.SynchronizerSession;
+import org.mozilla.gecko.sync.synchronizer.SynchronizerSessionDelegate;
+
+import android.content.Context;
+
+public class TestRecordStream {
+  protected static Record record(int i) {
+    return new MockRecord("guid" + (10000000 + i), "coll", 1000 + i, false);
+  }
+
+  /**
+   * Push <code>count</code> records into <code>stream</code> on another
+   * thread, counting how many have been accepted.
+   */
+  protected static CountDownLatch produce(final BufferedRecordStream stream, final int count, final AtomicInteger produced) {
+    final CountDownLatch done = new CountDownLatch(1);
+    ThreadPool.run(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < count; i++) {
+          stream.onFetchedRecord(record(i));
+          produced.incrementAndGet();
+        }
+        stream.onFetchCompleted(12345);
+        done.countDown();
+      }
+    });
+    return done;
+  }
+
+  @Test
+  public void testBufferedStreamHoldsBackProducer() throws Exception {
+    final BufferedRecordStream stream = new BufferedRecordStream(10, 4);
+    final AtomicInteger produced = new AtomicInteger(0);
+    final CountDownLatch done = produce(stream, 100, produced);
+
+    // The producer fills the buffer, then waits for us.
+    assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+    assertEquals(10, produced.get());
+
+    int pulled = 0;
+    List<Record> batch;
+    while ((batch = stream.nextBatch()) != null) {
+      assertTrue(batch.size() <= 4);
+      for (Record r : batch) {
+        assertEquals(record(pulled++).guid, r.guid);
+      }
+    }
+    assertEquals(100, pulled);
+    assertEquals(12345, stream.getEnd());
+    assertTrue(done.await(1, TimeUnit.SECONDS));
+    stream.close();
+  }
+
+  @Test
+  public void testBufferedStreamFailure() {
+    final BufferedRecordStream stream = new BufferedRecordStream(10, 10);
+    final Exception failure = new RuntimeException("Failed.");
+    stream.onFetchedRecord(record(0));
+    stream.onFetchFailed(failure, null);
+
+    try {
+      // Records fetched before the failure still arrive.
+      assertEquals(1, stream.nextBatch().size());
+      stream.nextBatch();
+      fail("Should have thrown.");
+    } catch (RecordStreamException e) {
+      assertSame(failure, e.cause);
+    }
+  }
+
+  @Test
+  public void testCloseReleasesProducer() throws Exception {
+    final AtomicInteger closed = new AtomicInteger(0);
+    final BufferedRecordStream stream = new BufferedRecordStream(5, 5) {
+      @Override
+      protected void onClose() {
+        closed.incrementAndGet();
+      }
+    };
+    final AtomicInteger produced = new AtomicInteger(0);
+    final CountDownLatch done = produce(stream, 100, produced);
+    assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+
+    stream.close();
+    stream.close();
+    assertTrue(done.await(1, TimeUnit.SECONDS));
+    assertNull(stream.nextBatch());
+    assertEquals(1, closed.get());
+  }
+
+  /**
+   * A repository whose sessions stream their fetches.
+   */
+  public static class StreamingWBORepository extends WBORepository {
+    public final AtomicInteger streams = new AtomicInteger(0);
+
+    @Override
+    public void createSession(RepositorySessionCreationDelegate delegate, Context context) {
+      delegate.deferredCreationDelegate().onSessionCreated(new WBORepositorySession(this) {
+        @Override
+        public RecordStream streamSince(final long timestamp) {
+          streams.incrementAndGet();
+          final BufferedRecordStream stream = new BufferedRecordStream(8, 4);
+          ThreadPool.run(new Runnable() {
+            @Override
+            public void run() {
+              fetchSince(timestamp, stream);
+            }
+          });
+          return stream;
+        }
+      });
+    }
+  }
+
+  /**
+   * A repository whose sessions store slowly, one record at a time on the
+   * store queue, and remember the most stores they ever had pending.
+   */
+  public static class SlowStoringWBORepository extends WBORepository {
+    public final AtomicInteger maxPending = new AtomicInteger(0);
+
+    public class SlowStoringSession extends WBORepositorySession {
+      private final AtomicInteger pending = new AtomicInteger(0);
+
+      public SlowStoringSession() {
+        super(SlowStoringWBORepository.this);
+      }
+
+      @Override
+      public int getPendingStoreCount() {
+        return pending.get();
+      }
+
+      @Override
+      public void store(final Record record) throws NoStoreDelegateException {
+        final int now = pending.incrementAndGet();
+        if (now > maxPending.get()) {
+          maxPending.set(now);
+        }
+        storeWorkQueue.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              Thread.sleep(1);
+              storeNow(record);
+            } catch (Exception e) {
+              fail("Store should not fail.");
+            } finally {
+              pending.decrementAndGet();
+            }
+          }
+        });
+      }
+
+      protected void storeNow(Record record) throws NoStoreDelegateException {
+        super.store(record);
+      }
+
+      @Override
+      public void storeDone(final long end) {
+        // Complete once every queued store has run.
+        storeWorkQueue.execute(new Runnable() {
+          @Override
+          public void run() {
+            storeDoneNow(end);
+          }
+        });
+      }
+
+      protected void storeDoneNow(long end) {
+        super.storeDone(end);
+      }
+    }
+
+    @Override
+    public void createSession(RepositorySessionCreationDelegate delegate, Context context) {
+      delegate.deferredCreationDelegate().onSessionCreated(new SlowStoringSession());
+    }
+  }
+
+  protected static void synchronize(WBORepository repoA, WBORepository repoB) {
+    final Synchronizer synchronizer = new Synchronizer();
+    synchronizer.repositoryA = repoA;
+    synchronizer.repositoryB = repoB;
+    final CountDownLatch synced = new CountDownLatch(1);
+    final SynchronizerSession session = new SynchronizerSession(synchronizer, new SynchronizerSessionDelegate() {
+      @Override
+      public void onInitialized(SynchronizerSession session) {
+        session.synchronize();
+      }
+
+      @Override
+      public void onSynchronized(SynchronizerSession session) {
+        synced.countDown();
+      }
+
+      @Override
+      public void onSynchronizeFailed(SynchronizerSession session, Exception lastException, String reason) {
+        fail("Synchronization should not fail.");
+      }
+
+      @Override
+      public void onStoreError(Exception e) {
+        fail("Should be no store error.");
+      }
+
+      @Override
+      public void onSessionError(Exception e) {
+        fail("Should be no session error.");
+      }
+
+      @Override
+      public void onFetchError(Exception e) {
+        fail("Should be no fetch error.");
+      }
+
+      @Override
+      public void onSynchronizeAborted(SynchronizerSession synchronizerSession) {
+        fail("Sync should not be aborted.");
+      }
+
+      @Override
+      public void onSynchronizeSkipped(SynchronizerSession synchronizerSession) {
+        fail("Sync should not be skipped.");
+      }
+    });
+    session.init(null, new RepositorySessionBundle(0), new RepositorySessionBundle(0));
+    try {
+      assertTrue(synced.await(10, TimeUnit.SECONDS));
+    } catch (InterruptedException e) {
+      fail("Interrupted.");
+    }
+  }
+
+  @Test
+  public void testSynchronizerPullsFromStream() {
+    final StreamingWBORepository repoA = new StreamingWBORepository();
+    final WBORepository repoB = new WBORepository();
+    final int count = 100;
+    for (int i = 0; i < count; i++) {
+      Record r = record(i);
+      repoA.wbos.put(r.guid, r);
+    }
+
+    synchronize(repoA, repoB);
+
+    assertEquals(1, repoA.streams.get());
+    assertEquals(count, repoB.wbos.size());
+    for (int i = 0; i < count; i++) {
+      assertTrue(repoB.wbos.containsKey(record(i).guid));
+    }
+  }
+
+  @Test
+  public void testSlowSinkHoldsBackStream() {
+    final StreamingWBORepository repoA = new StreamingWBORepository();
+    final SlowStoringWBORepository repoB = new SlowStoringWBORepository();
+    final int count = 600;
+    for (int i = 0; i < count; i++) {
+      Record r = record(i);
+      repoA.wbos.put(r.guid, r);
+    }
+
+    synchronize(repoA, repoB);
+
+    // StreamRecordConsumer.MAX_PENDING_STORES, plus one batch from the stream.
+    assertTrue(repoB.maxPending.get() <= 100 + 4);
+    assertEquals(count, repoB.wbos.size());
+    for (int i = 0; i < count; i++) {
+      assertTrue(repoB.wbos.containsKey(record(i).guid));
+    }
+  }
+}
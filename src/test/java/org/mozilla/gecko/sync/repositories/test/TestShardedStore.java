@@ -0,0 +1,215 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.repositories.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+import junit.framework.AssertionFailedError;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.android.sync.test.helpers.MockRecord;
+import org.mozilla.android.sync.test.helpers.WaitHelper;
+import org.mozilla.gecko.sync.Logger;
+import org.mozilla.gecko.sync.Utils;
+import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
+import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
+import org.mozilla.gecko.sync.repositories.RepositorySession;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionGuidsSinceDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionStoreDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionWipeDelegate;
+import org.mozilla.gecko.sync.repositories.domain.Record;
+
+public class TestShardedStore {
+  public static final int SHARDS = 4;
+  public static final int RECORDS = 200;
+
+  public static class ShardedSession extends RepositorySession {
+    public final Set<String> stored = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    public final Set<Integer> drained = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    public final Set<String> threads = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    public ShardedSession(int shards) {
+      super(null);
+      enableShardedStore(shards);
+    }
+
+    public int lanes() {
+      return storeLaneCount();
+    }
+
+    public int assign(String guid, String dedupeKey) {
+      return assignStoreLane(guid, dedupeKey);
+    }
+
+    @Override
+    public int storeLaneFor(String key) {
+      return super.storeLaneFor(key);
+    }
+
+    @Override
+    protected void onStoreLaneDrained(int lane) {
+      drained.add(lane);
+    }
+
+    @Override
+    public void store(final Record record) throws NoStoreDelegateException {
+      storeLane(storeLaneFor(record.guid)).execute(new Runnable() {
+        @Override
+        public void run() {
+          threads.add(Thread.currentThread().getName());
+          try {
+            Thread.sleep(1);
+          } catch (InterruptedException e) {
+            // Ignore.
+          }
+          stored.add(record.guid);
+          delegate.onRecordStoreSucceeded(record);
+        }
+      });
+    }
+
+    @Override
+    public void guidsSince(long timestamp, RepositorySessionGuidsSinceDelegate delegate) {
+    }
+
+    @Override
+    public void fetchSince(long timestamp, RepositorySessionFetchRecordsDelegate delegate) {
+    }
+
+    @Override
+    public void fetch(String[] guids, RepositorySessionFetchRecordsDelegate delegate) {
+    }
+
+    @Override
+    public void fetchAll(RepositorySessionFetchRecordsDelegate delegate) {
+    }
+
+    @Override
+    public void wipe(RepositorySessionWipeDelegate delegate) {
+    }
+  }
+
+  @Before
+  public void setUp() {
+    Logger.LOG_TO_STDOUT = true;
+  }
+
+  protected void storeAll(final ShardedSession session, final Set<String> guids) {
+    WaitHelper.getTestWaiter().performWait(new Runnable() {
+      @Override
+      public void run() {
+        session.setStoreDelegate(new RepositorySessionStoreDelegate() {
+          @Override
+          public void onRecordStoreFailed(Exception ex) {
+            WaitHelper.getTestWaiter().performNotify(new AssertionFailedError("Store failed."));
+          }
+
+          @Override
+          public void onRecordStoreSucceeded(Record record) {
+          }
+
+          @Override
+          public void onStoreCompleted(long storeEnd) {
+            try {
+              assertEquals(guids, session.stored);
+              assertEquals(session.lanes(), session.drained.size());
+            } catch (Throwable e) {
+              WaitHelper.getTestWaiter().performNotify(e);
+              return;
+            }
+            WaitHelper.getTestWaiter().performNotify();
+          }
+
+          @Override
+          public RepositorySessionStoreDelegate deferredStoreDelegate(ExecutorService executor) {
+            return this;
+          }
+        });
+
+        try {
+          for (String guid : guids) {
+            session.store(new MockRecord(guid, null, 0, false));
+          }
+        } catch (NoStoreDelegateException e) {
+          WaitHelper.getTestWaiter().performNotify(e);
+          return;
+        }
+        session.storeDone();
+      }
+    });
+  }
+
+  protected static Set<String> guids(int count) {
+    Set<String> guids = new HashSet<String>();
+    for (int i = 0; i < count; i++) {
+      guids.add(Utils.generateGuid());
+    }
+    return guids;
+  }
+
+  @Test
+  public void testStoreCompletedAfterAllLanesDrain() throws InvalidSessionTransitionException {
+    ShardedSession session = new ShardedSession(SHARDS);
+    assertEquals(SHARDS, session.lanes());
+    storeAll(session, guids(RECORDS));
+    assertTrue(session.threads.size() > 1);
+  }
+
+  @Test
+  public void testDeletionFollowsLiveRecordLane() {
+    ShardedSession session = new ShardedSession(SHARDS);
+    for (String guid : guids(RECORDS)) {
+      // Live records are assigned by dedupe key; deletions carry none.
+      final int live = session.assign(guid, "http://example.com/" + Utils.generateGuid());
+      assertEquals(live, session.assign(guid, null));
+    }
+  }
+
+  @Test
+  public void testDupesShareLane() {
+    ShardedSession session = new ShardedSession(SHARDS);
+    final String uri = "http://example.com/";
+    final int first = session.assign(Utils.generateGuid(), uri);
+    for (String guid : guids(RECORDS)) {
+      final int lane = session.assign(guid, uri);
+      assertEquals(first, lane);
+      // Once assigned, a GUID keeps its lane.
+      assertEquals(lane, session.assign(guid, null));
+    }
+  }
+
+  @Test
+  public void testAssignmentsReleasedWhenLanesDrain() throws InvalidSessionTransitionException {
+    ShardedSession session = new ShardedSession(SHARDS);
+    final String uri = "http://example.com/";
+    final int first = session.assign(Utils.generateGuid(), uri);
+    String guid = Utils.generateGuid();
+    while (session.storeLaneFor(guid) == first) {
+      guid = Utils.generateGuid();
+    }
+    assertEquals(first, session.assign(guid, uri));
+
+    storeAll(session, guids(RECORDS));
+
+    // Nothing is in flight, so neither the GUID nor the URI is pinned any more.
+    assertEquals(session.storeLaneFor(guid), session.assign(guid, uri));
+  }
+
+  @Test
+  public void testUnshardedUsesSingleLane() throws InvalidSessionTransitionException {
+    ShardedSession session = new ShardedSession(1);
+    assertEquals(1, session.lanes());
+    storeAll(session, guids(RECORDS));
+    assertEquals(1, session.threads.size());
+  }
+}
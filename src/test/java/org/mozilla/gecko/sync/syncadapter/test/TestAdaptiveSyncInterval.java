@@ -0,0 +1,72 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.syncadapter.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Test;
+import org.mozilla.gecko.sync.syncadapter.AdaptiveSyncInterval;
+
+public class TestAdaptiveSyncInterval {
+
+  @Test
+  public void testCountChangedCollections() {
+    HashMap<String, Long> previous = new HashMap<String, Long>();
+    previous.put("history", 1000L);
+    previous.put("tabs", 2000L);
+    previous.put("meta", 3000L);
+
+    HashMap<String, Long> current = new HashMap<String, Long>(previous);
+    assertEquals(0, AdaptiveSyncInterval.countChangedCollections(previous, current));
+
+    // meta and crypto don't count.
+    current.put("meta", 3500L);
+    current.put("crypto", 4000L);
+    assertEquals(0, AdaptiveSyncInterval.countChangedCollections(previous, current));
+
+    current.put("tabs", 2500L);
+    current.put("forms", 5000L);
+    assertEquals(2, AdaptiveSyncInterval.countChangedCollections(previous, current));
+
+    assertEquals(3, AdaptiveSyncInterval.countChangedCollections(null, current));
+  }
+
+  @Test
+  public void testNextInterval() {
+    final int min = AdaptiveSyncInterval.MIN_INTERVAL_MILLISECONDS;
+    final int max = AdaptiveSyncInterval.MAX_INTERVAL_MILLISECONDS;
+
+    // Idle syncs lengthen the interval, up to the maximum.
+    assertEquals(min + min / 2, AdaptiveSyncInterval.nextInterval(min, 0));
+    assertEquals(max, AdaptiveSyncInterval.nextInterval(max - 1, 0));
+    assertEquals(max, AdaptiveSyncInterval.nextInterval(max, 0));
+
+    // Busy syncs shorten it, more so when more engines changed.
+    assertEquals(max / 2, AdaptiveSyncInterval.nextInterval(max, 1));
+    assertEquals(max / 4, AdaptiveSyncInterval.nextInterval(max, 3));
+    assertEquals(min, AdaptiveSyncInterval.nextInterval(min * 2, 5));
+  }
+
+  @Test
+  public void testWithJitter() {
+    final long interval = 100000;
+    final long spread = (long) (interval * AdaptiveSyncInterval.JITTER_FRACTION);
+    Random random = new Random(1234);
+    long lowest = interval;
+    long highest = interval;
+    for (int i = 0; i < 1000; i++) {
+      long jittered = AdaptiveSyncInterval.withJitter(interval, random);
+      assertTrue(jittered >= interval - spread);
+      assertTrue(jittered <= interval + spread);
+      lowest = Math.min(lowest, jittered);
+      highest = Math.max(highest, jittered);
+    }
+    assertTrue(lowest < interval);
+    assertTrue(highest > interval);
+  }
+}
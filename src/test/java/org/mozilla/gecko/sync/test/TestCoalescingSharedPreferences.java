@@ -0,0 +1,107 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.android.sync.test.helpers.MockSharedPreferences;
+import org.mozilla.gecko.sync.CoalescingSharedPreferences;
+import org.mozilla.gecko.sync.PrefsSource;
+import org.mozilla.gecko.sync.SyncConfiguration;
+import org.mozilla.gecko.sync.SynchronizerConfiguration;
+import org.mozilla.gecko.sync.repositories.RepositorySessionBundle;
+
+import android.content.SharedPreferences;
+
+public class TestCoalescingSharedPreferences {
+  MockSharedPreferences backing = null;
+  CoalescingSharedPreferences prefs = null;
+
+  @Before
+  public void setUp() {
+    backing = new MockSharedPreferences();
+    prefs = new CoalescingSharedPreferences(backing);
+  }
+
+  @Test
+  public void testWritesWaitForFlush() {
+    backing.edit().putString("kept", "value").putLong("removed", 1L).commit();
+
+    prefs.edit().putLong("long", 5L).putString("string", "s").putBoolean("bool", true).remove("removed").commit();
+    assertTrue(prefs.hasPendingWrites());
+    assertEquals(5L, prefs.getLong("long", 0L));
+    assertEquals("s", prefs.getString("string", null));
+    assertTrue(prefs.getBoolean("bool", false));
+    assertFalse(prefs.contains("removed"));
+    assertEquals(-1L, prefs.getLong("removed", -1L));
+    assertEquals("value", prefs.getString("kept", null));
+    assertEquals(4, prefs.getAll().size());
+
+    // Nothing written yet.
+    assertFalse(backing.contains("long"));
+    assertEquals(1L, backing.getLong("removed", 0L));
+
+    assertTrue(prefs.flush());
+    assertFalse(prefs.hasPendingWrites());
+    assertEquals(5L, backing.getLong("long", 0L));
+    assertEquals("s", backing.getString("string", null));
+    assertTrue(backing.getBoolean("bool", false));
+    assertFalse(backing.contains("removed"));
+    assertEquals("value", backing.getString("kept", null));
+  }
+
+  @Test
+  public void testClear() {
+    backing.edit().putString("old", "value").commit();
+
+    // Like SharedPreferences, clear happens first, whatever the call order.
+    prefs.edit().putString("new", "value").clear().commit();
+    assertFalse(prefs.contains("old"));
+    assertNull(prefs.getString("old", null));
+    assertEquals("value", prefs.getString("new", null));
+    assertEquals(1, prefs.getAll().size());
+    assertTrue(backing.contains("old"));
+
+    prefs.flush();
+    assertFalse(backing.contains("old"));
+    assertEquals("value", backing.getString("new", null));
+  }
+
+  @Test
+  public void testSyncConfigurationCoalesces() throws Exception {
+    final SharedPreferences shared = backing;
+    SyncConfiguration config = new SyncConfiguration("test", new PrefsSource() {
+      @Override
+      public SharedPreferences getPrefs(String name, int mode) {
+        return shared;
+      }
+    });
+
+    config.persistServerClientsTimestamp(1234L);
+    SynchronizerConfiguration sc = config.getSynchronizerConfiguration("bookmarks.");
+    assertEquals(0L, sc.remoteBundle.getTimestamp());
+    sc.remoteBundle.setTimestamp(1000L);
+    sc.localBundle.setTimestamp(2000L);
+
+    // Changing what we were given doesn't change what's stored...
+    assertEquals(0L, config.getSynchronizerConfiguration("bookmarks.").remoteBundle.getTimestamp());
+
+    // ... until it's persisted.
+    config.persistSynchronizerConfiguration("bookmarks.", sc);
+    assertEquals(1000L, config.getSynchronizerConfiguration("bookmarks.").remoteBundle.getTimestamp());
+    assertEquals(1234L, config.getPersistedServerClientsTimestamp());
+    assertFalse(backing.contains("bookmarks.remote"));
+    assertFalse(backing.contains(SyncConfiguration.CLIENTS_COLLECTION_TIMESTAMP));
+
+    assertTrue(config.flushPrefs());
+    assertEquals(1234L, backing.getLong(SyncConfiguration.CLIENTS_COLLECTION_TIMESTAMP, 0L));
+    RepositorySessionBundle remote = new RepositorySessionBundle(backing.getString("bookmarks.remote", null));
+    assertEquals(1000L, remote.getTimestamp());
+  }
+}
@@ -0,0 +1,185 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.mozilla.gecko.sync.LaneExecutor;
+import org.mozilla.gecko.sync.ThreadPool;
+
+public class TestLaneExecutor {
+  @Test
+  public void testSerialExecutorKeepsOrder() throws InterruptedException {
+    final LaneExecutor lane = ThreadPool.newSerialExecutor("TestLane");
+    final List<Integer> ran = Collections.synchronizedList(new ArrayList<Integer>());
+    final int count = 200;
+    for (int i = 0; i < count; i++) {
+      final int n = i;
+      lane.execute(new Runnable() {
+        @Override
+        public void run() {
+          ran.add(n);
+        }
+      });
+    }
+    lane.shutdown();
+    assertTrue(lane.awaitTermination(5, TimeUnit.SECONDS));
+
+    assertEquals(count, ran.size());
+    for (int i = 0; i < count; i++) {
+      assertEquals(i, ran.get(i).intValue());
+    }
+    assertEquals(count, lane.getTaskCount());
+    assertEquals(0, lane.getQueueDepth());
+  }
+
+  @Test
+  public void testRespectsBound() throws InterruptedException {
+    final int bound = 3;
+    final LaneExecutor executor = ThreadPool.newBoundedExecutor("TestBounded", bound);
+    final AtomicInteger active = new AtomicInteger(0);
+    final AtomicInteger mostActive = new AtomicInteger(0);
+    final CountDownLatch done = new CountDownLatch(30);
+    for (int i = 0; i < 30; i++) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          final int now = active.incrementAndGet();
+          synchronized (mostActive) {
+            mostActive.set(Math.max(mostActive.get(), now));
+          }
+          try {
+            Thread.sleep(5);
+          } catch (InterruptedException e) {
+            // Fall through.
+          }
+          active.decrementAndGet();
+          done.countDown();
+        }
+      });
+    }
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertTrue(mostActive.get() <= bound);
+    assertTrue(mostActive.get() > 1);
+    assertTrue(executor.getMaxQueueDepth() > 0);
+  }
+
+  @Test
+  public void testBoundedExecutorsShareComputeThreads() throws InterruptedException {
+    final int executors = ThreadPool.COMPUTE_THREADS + 2;
+    final int perExecutor = 4;
+    final AtomicInteger active = new AtomicInteger(0);
+    final AtomicInteger mostActive = new AtomicInteger(0);
+    final CountDownLatch done = new CountDownLatch(executors * perExecutor);
+    for (int n = 0; n < executors; n++) {
+      final LaneExecutor executor = ThreadPool.newBoundedExecutor("TestCompute" + n, 2);
+      for (int i = 0; i < perExecutor; i++) {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            final int now = active.incrementAndGet();
+            synchronized (mostActive) {
+              mostActive.set(Math.max(mostActive.get(), now));
+            }
+            try {
+              Thread.sleep(5);
+            } catch (InterruptedException e) {
+              // Fall through.
+            }
+            active.decrementAndGet();
+            done.countDown();
+          }
+        });
+      }
+    }
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertTrue(mostActive.get() <= ThreadPool.COMPUTE_THREADS);
+  }
+
+  @Test
+  public void testShutdownNow() throws InterruptedException {
+    final LaneExecutor lane = ThreadPool.newSerialExecutor("TestShutdownNow");
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch interrupted = new CountDownLatch(1);
+    lane.execute(new Runnable() {
+      @Override
+      public void run() {
+        started.countDown();
+        try {
+          Thread.sleep(10000);
+        } catch (InterruptedException e) {
+          interrupted.countDown();
+        }
+      }
+    });
+    final Runnable neverRun = new Runnable() {
+      @Override
+      public void run() {
+      }
+    };
+    lane.execute(neverRun);
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+
+    List<Runnable> pending = lane.shutdownNow();
+    assertEquals(1, pending.size());
+    assertTrue(pending.get(0) == neverRun);
+    assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+    assertTrue(lane.awaitTermination(5, TimeUnit.SECONDS));
+    assertTrue(lane.isTerminated());
+
+    try {
+      lane.execute(neverRun);
+      assertFalse("Should have been rejected.", true);
+    } catch (RejectedExecutionException e) {
+      // Expected.
+    }
+  }
+
+  /**
+   * Tasks that block on other tasks in the shared pool must not starve them
+   * of threads, however many are waiting.
+   */
+  @Test
+  public void testSharedPoolDoesNotStarveNestedTasks() throws InterruptedException {
+    final int count = 64;
+    final CountDownLatch waiting = new CountDownLatch(count);
+    final CountDownLatch done = new CountDownLatch(count);
+    for (int i = 0; i < count; i++) {
+      ThreadPool.run(new Runnable() {
+        @Override
+        public void run() {
+          final CountDownLatch inner = new CountDownLatch(1);
+          waiting.countDown();
+          try {
+            // Hold this thread until every outer task is running.
+            waiting.await();
+            ThreadPool.run(new Runnable() {
+              @Override
+              public void run() {
+                inner.countDown();
+              }
+            });
+            if (inner.await(5, TimeUnit.SECONDS)) {
+              done.countDown();
+            }
+          } catch (InterruptedException e) {
+            // Fail below.
+          }
+        }
+      });
+    }
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+  }
+}
@@ -0,0 +1,166 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.android.sync.test.helpers.MockPayloadHashesDatabaseAccessor;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.PersistedPayloadHashes;
+
+public class TestPersistedPayloadHashes {
+  MockPayloadHashesDatabaseAccessor db = null;
+
+  @Before
+  public void setUp() {
+    db = new MockPayloadHashesDatabaseAccessor();
+  }
+
+  @Test
+  public void testHashIgnoresKeyOrder() throws Exception {
+    ExtendedJSONObject a = ExtendedJSONObject.parseJSONObject("{\"id\":\"abcdefghijkl\",\"title\":\"T\",\"children\":[\"x\",\"y\"],\"nested\":{\"p\":1,\"q\":2}}");
+    ExtendedJSONObject b = ExtendedJSONObject.parseJSONObject("{\"nested\":{\"q\":2,\"p\":1},\"children\":[\"x\",\"y\"],\"title\":\"T\",\"id\":\"abcdefghijkl\"}");
+    ExtendedJSONObject c = ExtendedJSONObject.parseJSONObject("{\"id\":\"abcdefghijkl\",\"title\":\"T\",\"children\":[\"y\",\"x\"],\"nested\":{\"p\":1,\"q\":2}}");
+
+    String hash = PersistedPayloadHashes.hashPayload(a);
+    assertNotNull(hash);
+    assertEquals(hash, PersistedPayloadHashes.hashPayload(b));
+    // Order within arrays matters.
+    assertFalse(hash.equals(PersistedPayloadHashes.hashPayload(c)));
+    assertNull(PersistedPayloadHashes.hashPayload(null));
+  }
+
+  @Test
+  public void testHashCleartext() throws Exception {
+    String hash = PersistedPayloadHashes.hashCleartext("{\"id\":\"abcdefghijkl\"}".getBytes("UTF-8"));
+    assertNotNull(hash);
+    assertEquals(hash, PersistedPayloadHashes.hashCleartext("{\"id\":\"abcdefghijkl\"}".getBytes("UTF-8")));
+    // Unlike payload hashes, these depend on serialization.
+    assertFalse(hash.equals(PersistedPayloadHashes.hashCleartext("{\"id\": \"abcdefghijkl\"}".getBytes("UTF-8"))));
+    assertNull(PersistedPayloadHashes.hashCleartext(null));
+  }
+
+  @Test
+  public void testAppliedServerHash() {
+    PersistedPayloadHashes hashes = new PersistedPayloadHashes(db);
+    hashes.putApplied("guid1", "cleartext1", "server1");
+    assertTrue(hashes.matches("guid1", "cleartext1"));
+    assertEquals("server1", hashes.getServerHash("guid1"));
+    assertNull(hashes.getServerHash("guid2"));
+    hashes.persist();
+
+    hashes = new PersistedPayloadHashes(db);
+    assertEquals("server1", hashes.getServerHash("guid1"));
+
+    // A new server hash for the same cleartext is a change.
+    hashes.putApplied("guid1", "cleartext1", "server2");
+    hashes.persist();
+    assertEquals(2, db.rowsWritten);
+    assertEquals("server2", new PersistedPayloadHashes(db).getServerHash("guid1"));
+  }
+
+  @Test
+  public void testPersistAndReload() {
+    PersistedPayloadHashes hashes = new PersistedPayloadHashes(db);
+    assertEquals(0, hashes.size());
+    hashes.put("guid1", "hash1");
+    hashes.put("guid2", "hash2");
+    assertTrue(hashes.matches("guid1", "hash1"));
+    assertFalse(hashes.matches("guid1", "hash2"));
+    assertFalse(hashes.matches("guid3", "hash1"));
+    assertFalse(hashes.matches("guid1", null));
+
+    // Nothing is written until we persist.
+    assertEquals(0, new PersistedPayloadHashes(db).size());
+    hashes.persist();
+    assertEquals(2, db.rowsWritten);
+
+    PersistedPayloadHashes reloaded = new PersistedPayloadHashes(db);
+    assertEquals(2, reloaded.size());
+    assertEquals("hash1", reloaded.get("guid1"));
+    assertEquals("hash2", reloaded.get("guid2"));
+
+    reloaded.remove("guid1");
+    reloaded.put("guid2", null);
+    reloaded.put("guid3", "hash3");
+    reloaded.persist();
+
+    hashes = new PersistedPayloadHashes(db);
+    assertEquals(1, hashes.size());
+    assertEquals("hash3", hashes.get("guid3"));
+  }
+
+  @Test
+  public void testPersistWritesOnlyChangedRows() {
+    PersistedPayloadHashes hashes = new PersistedPayloadHashes(db);
+    for (int i = 0; i < 100; i++) {
+      hashes.put("guid" + i, "hash" + i);
+    }
+    hashes.persist();
+    assertEquals(100, db.rowsWritten);
+
+    hashes = new PersistedPayloadHashes(db);
+    hashes.put("guid1", "hash1");      // Unchanged.
+    hashes.put("guid2", "changed");
+    hashes.remove("guid3");
+    hashes.remove("nonexistent");
+    hashes.persist();
+    assertEquals(102, db.rowsWritten);
+    assertEquals(99, db.rows.size());
+    assertEquals("changed", db.rows.get("guid2").hash);
+
+    // Nothing changed since the last persist.
+    hashes.persist();
+    assertEquals(102, db.rowsWritten);
+  }
+
+  @Test
+  public void testMatchesUnexpired() {
+    PersistedPayloadHashes hashes = new PersistedPayloadHashes(db);
+    final long now = 1000000000L;
+    hashes.put("guid1", "hash1", now - 20 * 1000);
+    hashes.put("guid2", "hash2");
+
+    // Records that never expire match whenever they were written.
+    assertTrue(hashes.matchesUnexpired("guid1", "hash1", -1, now));
+    assertTrue(hashes.matchesUnexpired("guid2", "hash2", -1, now));
+
+    // Otherwise they match until half their TTL has passed.
+    assertTrue(hashes.matchesUnexpired("guid1", "hash1", 60, now));
+    assertFalse(hashes.matchesUnexpired("guid1", "hash1", 30, now));
+    assertFalse(hashes.matchesUnexpired("guid1", "hash2", 60, now));
+
+    // If we don't know when the server's copy was written, assume it's stale.
+    assertFalse(hashes.matchesUnexpired("guid2", "hash2", 60, now));
+
+    // Write times persist.
+    hashes.persist();
+    assertTrue(new PersistedPayloadHashes(db).matchesUnexpired("guid1", "hash1", 60, now));
+  }
+
+  @Test
+  public void testPurge() {
+    PersistedPayloadHashes hashes = new PersistedPayloadHashes(db);
+    hashes.put("guid1", "hash1");
+    hashes.persist();
+
+    hashes = new PersistedPayloadHashes(db);
+    hashes.put("guid2", "hash2");
+    hashes.purge();
+    assertEquals(0, hashes.size());
+    assertEquals(1, db.deletes);
+    assertEquals(0, new PersistedPayloadHashes(db).size());
+
+    // Changes made before the purge aren't written afterwards.
+    hashes.persist();
+    assertEquals(1, db.rowsWritten);
+    assertTrue(db.rows.isEmpty());
+  }
+}
@@ -51,6 +51,11 @@ public class AndroidBrowserBookmarksRepositoryTest extends AndroidBrowserReposit
           protected synchronized void trackGUID(String guid) {
             System.out.println("Ignoring trackGUID call: this is a test!");
           }
+
+          @Override
+          protected synchronized void trackGUID(String guid, long timestamp) {
+            System.out.println("Ignoring trackGUID call: this is a test!");
+          }
         };
         delegate.deferredCreationDelegate().onSessionCreated(session);
       }
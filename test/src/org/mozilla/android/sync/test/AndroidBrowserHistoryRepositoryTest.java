@@ -50,6 +50,11 @@ public class AndroidBrowserHistoryRepositoryTest extends AndroidBrowserRepositor
           protected synchronized void trackGUID(String guid) {
             System.out.println("Ignoring trackGUID call: this is a test!");
           }
+
+          @Override
+          protected synchronized void trackGUID(String guid, long timestamp) {
+            System.out.println("Ignoring trackGUID call: this is a test!");
+          }
         };
         delegate.onSessionCreated(session);
       }
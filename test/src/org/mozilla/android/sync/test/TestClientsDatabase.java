@@ -3,6 +3,8 @@
 
 package org.mozilla.android.sync.test;
 
+import java.util.ArrayList;
+
 import org.mozilla.gecko.sync.repositories.NullCursorException;
 import org.mozilla.gecko.sync.repositories.android.ClientsDatabase;
 import org.mozilla.gecko.sync.repositories.android.ClientsDatabaseAccessor;
@@ -125,4 +127,43 @@ public class TestClientsDatabase extends AndroidTestCase {
       }
     }
   }
+
+  public void testStoreUnchangedSkipsWrite() {
+    ClientRecord record = new ClientRecord();
+    String profileConst = ClientsDatabaseAccessor.PROFILE_ID;
+
+    assertTrue(db.store(profileConst, record));
+    assertFalse(db.store(profileConst, record));
+
+    record.name = "Renamed";
+    assertTrue(db.store(profileConst, record));
+  }
+
+  public void testDeleteAllExcept() {
+    ClientRecord record1 = new ClientRecord();
+    ClientRecord record2 = new ClientRecord();
+    String profileConst = ClientsDatabaseAccessor.PROFILE_ID;
+
+    db.store(profileConst, record1);
+    db.store(profileConst, record2);
+
+    ArrayList<String> keep = new ArrayList<String>();
+    keep.add(record2.guid);
+    db.deleteAllExcept(profileConst, keep);
+
+    Cursor cur = null;
+    try {
+      cur = db.fetch(record1.guid, profileConst);
+      assertFalse(cur.moveToFirst());
+      cur.close();
+      cur = db.fetch(record2.guid, profileConst);
+      assertTrue(cur.moveToFirst());
+    } catch (NullCursorException e) {
+      fail("Should not have NullCursorException");
+    } finally {
+      if (cur != null) {
+        cur.close();
+      }
+    }
+  }
 }
@@ -5,6 +5,7 @@ package org.mozilla.android.sync.test;
 
 import java.util.concurrent.ExecutorService;
 
+import org.mozilla.android.sync.test.helpers.DefaultFetchDelegate;
 import org.mozilla.android.sync.test.helpers.ExpectFetchDelegate;
 import org.mozilla.android.sync.test.helpers.ExpectFetchSinceDelegate;
 import org.mozilla.android.sync.test.helpers.ExpectGuidsSinceDelegate;
@@ -16,6 +17,7 @@ import org.mozilla.gecko.db.BrowserContract;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.NoContentProviderException;
 import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
+import org.mozilla.gecko.sync.repositories.NullCursorException;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
 import org.mozilla.gecko.sync.repositories.android.BrowserContractHelpers;
 import org.mozilla.gecko.sync.repositories.android.FormHistoryRepositorySession;
@@ -25,6 +27,7 @@ import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionWipeDelega
 import org.mozilla.gecko.sync.repositories.domain.FormHistoryRecord;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
+import junit.framework.AssertionFailedError;
 import android.content.ContentProviderClient;
 import android.content.ContentValues;
 import android.content.Context;
@@ -62,6 +65,30 @@ public class TestFormHistoryRepositorySession extends AndroidSyncTestCase {
     }
   }
 
+  /**
+   * A session that ignores tracking and lets tests pick up rows they wrote
+   * directly to the provider.
+   */
+  protected static class TestSession extends FormHistoryRepositorySession {
+    public TestSession(FormHistoryRepository repository, Context context) throws NoContentProviderException {
+      super(repository, context);
+    }
+
+    @Override
+    protected synchronized void trackGUID(String guid) {
+      System.out.println("Ignoring trackGUID call: this is a test!");
+    }
+
+    @Override
+    protected synchronized void trackGUID(String guid, long timestamp) {
+      System.out.println("Ignoring trackGUID call: this is a test!");
+    }
+
+    public void reindex() throws RemoteException, NullCursorException {
+      rebuildIndex();
+    }
+  }
+
   protected FormHistoryRepositorySession.FormHistoryRepository getRepository() {
     /**
      * Override this chain in order to avoid our test code having to create two
@@ -72,12 +99,7 @@ public class TestFormHistoryRepositorySession extends AndroidSyncTestCase {
       public void createSession(RepositorySessionCreationDelegate delegate,
                                 Context context) {
         try {
-          final FormHistoryRepositorySession session = new FormHistoryRepositorySession(this, context) {
-            @Override
-            protected synchronized void trackGUID(String guid) {
-              System.out.println("Ignoring trackGUID call: this is a test!");
-            }
-          };
+          final FormHistoryRepositorySession session = new TestSession(this, context);
           delegate.onSessionCreated(session);
         } catch (Exception e) {
           delegate.onSessionCreateFailed(e);
@@ -156,6 +178,8 @@ public class TestFormHistoryRepositorySession extends AndroidSyncTestCase {
 
     regular2 = null;
     deleted2 = null;
+
+    rebuildIndex(session);
   }
 
   public void insertFourRecords(FormHistoryRepositorySession session) throws RemoteException {
@@ -185,6 +209,17 @@ public class TestFormHistoryRepositorySession extends AndroidSyncTestCase {
     int deletedInserted = session.getFormsProvider().bulkInsert(deletedUri, new ContentValues[] { cv4 });
     assertEquals(1, deletedInserted);
     after4 = System.currentTimeMillis();
+
+    rebuildIndex(session);
+  }
+
+  protected void rebuildIndex(FormHistoryRepositorySession session) throws RemoteException {
+    // We wrote behind the session's back.
+    try {
+      ((TestSession) session).reindex();
+    } catch (NullCursorException e) {
+      fail("Failed to rebuild index: " + e);
+    }
   }
 
   public void testWipe() throws NoContentProviderException, RemoteException {
@@ -299,6 +334,37 @@ public class TestFormHistoryRepositorySession extends AndroidSyncTestCase {
     session.abort();
   }
 
+  public void testFetchSinceInterleavesByTime() throws NoContentProviderException, RemoteException {
+    final FormHistoryRepositorySession session = createAndBeginSession();
+
+    insertFourRecords(session);
+
+    final DefaultFetchDelegate delegate = new DefaultFetchDelegate() {
+      @Override
+      public void onFetchCompleted(final long fetchEnd) {
+        AssertionFailedError err = null;
+        try {
+          assertEquals(4, records.size());
+          for (int i = 1; i < records.size(); i++) {
+            assertTrue(records.get(i - 1).lastModified <= records.get(i).lastModified);
+          }
+        } catch (AssertionFailedError e) {
+          err = e;
+        }
+        performNotify(err);
+      }
+    };
+
+    performWait(new Runnable() {
+      @Override
+      public void run() {
+        session.fetchSince(after0, delegate);
+      }
+    });
+
+    session.abort();
+  }
+
   protected Runnable guidsSinceRunnable(final RepositorySession session, final long timestamp, final String[] expectedGuids) {
     return new Runnable() {
       @Override
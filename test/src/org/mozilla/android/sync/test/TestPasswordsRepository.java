@@ -9,6 +9,7 @@ import java.util.Set;
 import org.mozilla.android.sync.test.helpers.ExpectFetchDelegate;
 import org.mozilla.android.sync.test.helpers.ExpectFetchSinceDelegate;
 import org.mozilla.android.sync.test.helpers.ExpectGuidsSinceDelegate;
+import org.mozilla.android.sync.test.helpers.ExpectStoreCompletedDelegate;
 import org.mozilla.android.sync.test.helpers.ExpectStoredDelegate;
 import org.mozilla.android.sync.test.helpers.PasswordHelpers;
 import org.mozilla.android.sync.test.helpers.SessionTestHelper;
@@ -191,6 +192,49 @@ public class TestPasswordsRepository extends AndroidSyncTestCase {
     dispose(session);
   }
 
+  public void testOlderRecordAfterDeletionIgnored() {
+    final RepositorySession session = createAndBeginSession();
+    final long now = System.currentTimeMillis();
+
+    PasswordRecord local = PasswordHelpers.createPassword1();
+    updatePassword(NEW_PASSWORD1, local);
+    local.lastModified = now - 2000;
+    performWait(storeRunnable(session, local));
+
+    // Delete it remotely.
+    PasswordRecord deletion = new PasswordRecord(local.guid, PasswordRecord.COLLECTION_NAME, now - 1000, true);
+    performWait(storeRunnable(session, deletion));
+
+    // A stale version of the same record mustn't resurrect it.
+    final PasswordRecord stale = PasswordHelpers.createPassword1();
+    stale.guid = local.guid;
+    updatePassword(NEW_PASSWORD2, stale);
+    stale.lastModified = now - 1500;
+    performWait(new Runnable() {
+      @Override
+      public void run() {
+        session.setStoreDelegate(new ExpectStoreCompletedDelegate());
+        try {
+          session.store(stale);
+          session.storeDone();
+        } catch (NoStoreDelegateException e) {
+          fail("NoStoreDelegateException should not occur.");
+        }
+      }
+    });
+
+    performWait(fetchAllRunnable(session, new Record[] {}));
+
+    // But a newer version does.
+    PasswordRecord revived = PasswordHelpers.createPassword2();
+    revived.guid = local.guid;
+    updatePassword(NEW_PASSWORD2, revived);
+    performWait(storeRunnable(session, revived));
+
+    performWait(fetchAllRunnable(session, new Record[] { revived }));
+    dispose(session);
+  }
+
   public void testLocalNewerTimeStamp() {
     final RepositorySession session = createAndBeginSession();
     // Remote record updated before local record.
@@ -340,6 +384,11 @@ public class TestPasswordsRepository extends AndroidSyncTestCase {
           protected synchronized void trackGUID(String guid) {
             System.out.println("Ignoring trackGUID call: this is a test!");
           }
+
+          @Override
+          protected synchronized void trackGUID(String guid, long timestamp) {
+            System.out.println("Ignoring trackGUID call: this is a test!");
+          }
         };
         delegate.onSessionCreated(session);
       }
@@ -5,6 +5,7 @@ package org.mozilla.gecko.sync.repositories.android.test;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Map;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -59,7 +60,7 @@ public class AndroidBrowserHistoryDataExtenderTest extends AndroidSyncTestCase {
 
   public void testVisitsForGUID() throws NonArrayJSONException, NonObjectJSONException, IOException, ParseException, NullCursorException {
     String guid = Utils.generateGuid();
-    JSONArray visits = new ExtendedJSONObject("{ \"visits\": [ { \"key\" : \"value\" } ] }").getArray("visits");
+    JSONArray visits = new ExtendedJSONObject("{ \"visits\": [ { \"date\" : 1320087601465600, \"type\" : 2 } ] }").getArray("visits");
 
     extender.store(Utils.generateGuid(), null);
     extender.store(guid, visits);
@@ -67,7 +68,70 @@ public class AndroidBrowserHistoryDataExtenderTest extends AndroidSyncTestCase {
 
     JSONArray fetchedVisits = extender.visitsForGUID(guid);
     assertEquals(1, fetchedVisits.size());
-    assertEquals("value", ((JSONObject)fetchedVisits.get(0)).get("key"));
+    assertEquals(Long.valueOf(1320087601465600L), ((JSONObject)fetchedVisits.get(0)).get("date"));
+    assertEquals(Long.valueOf(2L), ((JSONObject)fetchedVisits.get(0)).get("type"));
+  }
+
+  public void testVisitsForGUIDs() throws NonArrayJSONException, NonObjectJSONException, IOException, ParseException, NullCursorException {
+    String guid1 = Utils.generateGuid();
+    String guid2 = Utils.generateGuid();
+    String missing = Utils.generateGuid();
+    JSONArray visits = new ExtendedJSONObject("{ \"visits\": [ { \"date\" : 1320087601465600, \"type\" : 2 } ] }").getArray("visits");
+
+    extender.store(guid1, visits);
+    extender.store(guid2, null);
+    extender.store(Utils.generateGuid(), visits);
+
+    ArrayList<String> guids = new ArrayList<String>();
+    guids.add(guid1);
+    guids.add(guid2);
+    guids.add(missing);
+    Map<String, JSONArray> fetched = extender.visitsForGUIDs(guids);
+    assertEquals(2, fetched.size());
+    assertEquals(1, fetched.get(guid1).size());
+    assertEquals(Long.valueOf(1320087601465600L), ((JSONObject)fetched.get(guid1).get(0)).get("date"));
+    assertEquals(0, fetched.get(guid2).size());
+    assertFalse(fetched.containsKey(missing));
+  }
+
+  public void testStoreReplacesVisits() throws NonArrayJSONException, NonObjectJSONException, IOException, ParseException, NullCursorException {
+    String guid = Utils.generateGuid();
+    extender.store(guid, new ExtendedJSONObject("{ \"visits\": [ { \"date\" : 200, \"type\" : 2 }, { \"date\" : 100, \"type\" : 1 } ] }").getArray("visits"));
+    assertEquals(2, extender.visitsForGUID(guid).size());
+
+    // Visits removed on the server are removed here.
+    extender.store(guid, new ExtendedJSONObject("{ \"visits\": [ { \"date\" : 200, \"type\" : 2 } ] }").getArray("visits"));
+    JSONArray stored = extender.visitsForGUID(guid);
+    assertEquals(1, stored.size());
+    assertEquals(Long.valueOf(200L), ((JSONObject)stored.get(0)).get("date"));
+
+    // Visits at the same time with different types are both kept.
+    extender.store(guid, new ExtendedJSONObject("{ \"visits\": [ { \"date\" : 200, \"type\" : 2 }, { \"date\" : 200, \"type\" : 1 } ] }").getArray("visits"));
+    assertEquals(2, extender.visitsForGUID(guid).size());
+  }
+
+  public void testUpdate() throws NonArrayJSONException, NonObjectJSONException, IOException, ParseException, NullCursorException {
+    String oldGUID = Utils.generateGuid();
+    String newGUID = Utils.generateGuid();
+    extender.store(oldGUID, new ExtendedJSONObject("{ \"visits\": [ { \"date\" : 200, \"type\" : 2 }, { \"date\" : 100, \"type\" : 1 } ] }").getArray("visits"));
+
+    // Newer visits are appended.
+    extender.update(oldGUID, oldGUID, new ExtendedJSONObject("{ \"visits\": [ { \"date\" : 300, \"type\" : 1 }, { \"date\" : 200, \"type\" : 2 }, { \"date\" : 100, \"type\" : 1 } ] }").getArray("visits"));
+    JSONArray stored = extender.visitsForGUID(oldGUID);
+    assertEquals(3, stored.size());
+    assertEquals(Long.valueOf(300L), ((JSONObject)stored.get(0)).get("date"));
+
+    // Visits removed on the server are removed here, and a changed GUID moves the row.
+    extender.update(oldGUID, newGUID, new ExtendedJSONObject("{ \"visits\": [ { \"date\" : 300, \"type\" : 1 } ] }").getArray("visits"));
+    assertEquals(0, extender.visitsForGUID(oldGUID).size());
+    stored = extender.visitsForGUID(newGUID);
+    assertEquals(1, stored.size());
+    assertEquals(Long.valueOf(300L), ((JSONObject)stored.get(0)).get("date"));
+
+    // A record with no stored visits gets a row.
+    String missing = Utils.generateGuid();
+    extender.update(missing, missing, new ExtendedJSONObject("{ \"visits\": [ { \"date\" : 100, \"type\" : 1 } ] }").getArray("visits"));
+    assertEquals(1, extender.visitsForGUID(missing).size());
   }
 
   public void testDeleteHandlesBadGUIDs() {